@@ -28,6 +28,12 @@ public class AddBackupItemFragment extends Fragment {
     private TextInputEditText v_src;
     private TextInputEditText v_dst;
     private TextInputEditText v_opts;
+    private TextInputEditText v_quota;
+    private TextInputEditText v_shards;
+    private TextInputEditText v_filters;
+    private TextInputEditText v_server;
+    private TextInputEditText v_mirrors;
+    private TextInputEditText v_snapshots;
 
     @Override
     public void onAttach(Activity acc) {
@@ -54,6 +60,12 @@ public class AddBackupItemFragment extends Fragment {
         v_src = (TextInputEditText) v.findViewById(R.id.addbackupitem_source);
         v_dst = (TextInputEditText) v.findViewById(R.id.addbackupitem_destination);
         v_opts = (TextInputEditText) v.findViewById(R.id.addbackupitem_rsync_options);
+        v_quota = (TextInputEditText) v.findViewById(R.id.addbackupitem_metered_quota);
+        v_shards = (TextInputEditText) v.findViewById(R.id.addbackupitem_shards);
+        v_server = (TextInputEditText) v.findViewById(R.id.addbackupitem_server);
+        v_mirrors = (TextInputEditText) v.findViewById(R.id.addbackupitem_mirrors);
+        v_snapshots = (TextInputEditText) v.findViewById(R.id.addbackupitem_snapshots);
+        v_filters = (TextInputEditText) v.findViewById(R.id.addbackupitem_filters);
 
 		/*
         v_src.setOnLongClickListener(new View.OnLongClickListener () {
@@ -79,6 +91,18 @@ public class AddBackupItemFragment extends Fragment {
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         v_dir.setAdapter(adapter);
 
+        Spinner v_period = (Spinner) v.findViewById(R.id.addbackupitem_quota_period);
+        items = getResources().getStringArray(R.array.addbackupitem_quota_period_entries);
+        adapter = new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, items);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        v_period.setAdapter(adapter);
+
+        Spinner v_engine = (Spinner) v.findViewById(R.id.addbackupitem_engine);
+        items = getResources().getStringArray(R.array.addbackupitem_engine_entries);
+        adapter = new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, items);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        v_engine.setAdapter(adapter);
+
         if (mBackup == null) {
             return v;
         }
@@ -93,6 +117,20 @@ public class AddBackupItemFragment extends Fragment {
         v_src.setText(TextUtils.join("\n", mBackup.sources));
         v_dst.setText(mBackup.destination);
         v_opts.setText(mBackup.rsync_options);
+        v_server.setText(mBackup.server);
+        v_mirrors.setText(mBackup.mirrors);
+        v_snapshots.setText(mBackup.snapshots);
+        v_filters.setText(mBackup.filters);
+
+        v_period.setSelection(mBackup.quota_period.ordinal());
+        v_engine.setSelection(mBackup.engine.ordinal());
+        if (mBackup.metered_quota > 0) {
+            v_quota.setText(Long.toString(mBackup.metered_quota));
+        }
+
+        if (mBackup.shards > 1) {
+            v_shards.setText(Integer.toString(mBackup.shards));
+        }
 
         return v;
     }
@@ -134,6 +172,38 @@ public class AddBackupItemFragment extends Fragment {
             t = (EditText) v.findViewById(R.id.addbackupitem_rsync_options);
             i.rsync_options = t.getText().toString();
 
+            t = (EditText) v.findViewById(R.id.addbackupitem_server);
+            i.server = t.getText().toString().trim();
+
+            t = (EditText) v.findViewById(R.id.addbackupitem_mirrors);
+            i.mirrors = t.getText().toString().trim();
+
+            t = (EditText) v.findViewById(R.id.addbackupitem_snapshots);
+            i.snapshots = t.getText().toString().trim();
+
+            t = (EditText) v.findViewById(R.id.addbackupitem_filters);
+            i.filters = t.getText().toString();
+
+            t = (EditText) v.findViewById(R.id.addbackupitem_metered_quota);
+            try {
+                i.metered_quota = Long.parseLong(t.getText().toString());
+            } catch (NumberFormatException e) {
+                i.metered_quota = 0;
+            }
+
+            t = (EditText) v.findViewById(R.id.addbackupitem_shards);
+            try {
+                i.shards = Integer.parseInt(t.getText().toString());
+            } catch (NumberFormatException e) {
+                i.shards = 0;
+            }
+
+            Spinner p = (Spinner) v.findViewById(R.id.addbackupitem_quota_period);
+            i.quota_period = BackupItem.QuotaPeriod.values()[p.getSelectedItemPosition()];
+
+            Spinner e = (Spinner) v.findViewById(R.id.addbackupitem_engine);
+            i.engine = BackupItem.Engine.values()[e.getSelectedItemPosition()];
+
             Spinner s = (Spinner) v.findViewById(R.id.addbackupitem_direction);
             if (s.getSelectedItemPosition() == 0) {
                 i.direction = BackupItem.Direction.INCOMING;
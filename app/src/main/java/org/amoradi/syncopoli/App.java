@@ -11,6 +11,7 @@ public class App extends Application {
     public static final String ERROR_CHANNEL_ID = "Sync error channel";
     public static final int SYNC_NOTIF_ID = 1;
     public static final int ERROR_NOTIF_ID = 2;
+    public static final int WATCH_NOTIF_ID = 3;
 
     @Override
     public void onCreate() {
@@ -35,5 +36,8 @@ public class App extends Application {
             notifyMan.createNotificationChannel(sync_notif_chan);
             notifyMan.createNotificationChannel(error_notif_chan);
         }
+
+        MediaChangeFeed.register(this);
+        RemoteWatchService.update(this);
     }
 }
@@ -10,11 +10,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import androidx.annotation.LayoutRes;
+import androidx.appcompat.app.AlertDialog;
 import com.google.android.material.snackbar.Snackbar;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
@@ -253,8 +255,11 @@ public class BackupActivity extends AppCompatActivity implements IBackupHandler
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
 		try {
 			for (String k : SettingsFragment.KEYS) {
-                if (k.equals(SettingsFragment.KEY_WIFI_ONLY)) {
+                if (k.equals(SettingsFragment.KEY_WIFI_ONLY) || k.equals(SettingsFragment.KEY_WATCH_REMOTE)) {
                     globals.put(k, prefs.getBoolean(k, false));
+                } else if (k.equals(SettingsFragment.KEY_DETECT_MOVES) || k.equals(SettingsFragment.KEY_MEDIA_FEED) ||
+                        k.equals(SettingsFragment.KEY_SKIP_UNCHANGED) || k.equals(SettingsFragment.KEY_SEED)) {
+                    globals.put(k, prefs.getBoolean(k, true));
                 } else {
                     globals.put(k, prefs.getString(k, ""));
                 }
@@ -288,6 +293,14 @@ public class BackupActivity extends AppCompatActivity implements IBackupHandler
 
 				p.put("destination", i.destination);
 				p.put("rsync_options", i.rsync_options);
+				p.put("metered_quota", i.metered_quota);
+				p.put("quota_period", i.quota_period.name());
+				p.put("shards", i.shards);
+				p.put("server", i.server);
+				p.put("filters", i.filters);
+				p.put("mirrors", i.mirrors);
+				p.put("engine", i.engine.name());
+				p.put("snapshots", i.snapshots);
 
 				if (i.direction == BackupItem.Direction.INCOMING) {
 					p.put("direction", "INCOMING");
@@ -419,6 +432,20 @@ public class BackupActivity extends AppCompatActivity implements IBackupHandler
 
                 b.destination = jb.getString("destination");
                 b.rsync_options = jb.getString("rsync_options");
+                b.metered_quota = jb.optLong("metered_quota", 0);
+                b.quota_period = BackupItem.QuotaPeriod.valueOf(jb.optString("quota_period", "NONE"));
+                b.shards = jb.optInt("shards", 0);
+                b.server = jb.optString("server", "");
+                b.filters = jb.optString("filters", "");
+                b.mirrors = jb.optString("mirrors", "");
+                try {
+                    b.engine = BackupItem.Engine.valueOf(jb.optString("engine", "RSYNC"));
+                } catch (IllegalArgumentException e) {
+                    // an engine of another version of the app
+                    Log.w(TAG, "Unknown engine " + jb.optString("engine") + " for " + b.name + ", using rsync");
+                    b.engine = BackupItem.Engine.RSYNC;
+                }
+                b.snapshots = jb.optString("snapshots", "");
 
                 if (jb.getString("direction").equals("INCOMING")) {
                     b.direction = BackupItem.Direction.INCOMING;
@@ -443,7 +470,14 @@ public class BackupActivity extends AppCompatActivity implements IBackupHandler
 			SharedPreferences.Editor editor = prefs.edit();
 
             for (String k : SettingsFragment.KEYS) {
-                if (k.equals(SettingsFragment.KEY_WIFI_ONLY)) {
+                // settings added after the export was made keep their current value
+                if (!globals.has(k)) {
+                    continue;
+                }
+
+                if (k.equals(SettingsFragment.KEY_WIFI_ONLY) || k.equals(SettingsFragment.KEY_DETECT_MOVES) ||
+                        k.equals(SettingsFragment.KEY_MEDIA_FEED) || k.equals(SettingsFragment.KEY_SKIP_UNCHANGED) ||
+                        k.equals(SettingsFragment.KEY_WATCH_REMOTE) || k.equals(SettingsFragment.KEY_SEED)) {
                     editor.putBoolean(k, globals.getBoolean(k));
                 } else {
                     editor.putString(k, globals.getString(k));
@@ -451,6 +485,7 @@ public class BackupActivity extends AppCompatActivity implements IBackupHandler
             }
 
             editor.apply();
+            RemoteWatchService.update(this);
 
 		} catch (JSONException e) {
 			Log.e(TAG, "ERROR importing globals: " + e.getMessage());
@@ -566,6 +601,71 @@ public class BackupActivity extends AppCompatActivity implements IBackupHandler
         setCurrentFragment(f, true);
     }
 
+    public void verifyBackup(BackupItem b) {
+        Snackbar.make(findViewById(R.id.backuplist_coordinator),
+                "Verifying '" + b.name + "'",
+                Snackbar.LENGTH_SHORT).show();
+
+        Intent i = new Intent(this, BackupBackgroundService.class);
+        i.putExtra("item", b);
+        i.putExtra("force", true);
+        i.putExtra("verify", true);
+        ContextCompat.startForegroundService(getApplicationContext(), i);
+    }
+
+    public void estimateBackup(BackupItem b) {
+        Snackbar.make(findViewById(R.id.backuplist_coordinator),
+                "Estimating '" + b.name + "'",
+                Snackbar.LENGTH_SHORT).show();
+
+        new EstimateTask(this, b).execute();
+    }
+
+    private class EstimateTask extends AsyncTask<Void, Void, String> {
+        private Context mContext;
+        private BackupItem mBackup;
+
+        EstimateTask(Context ctx, BackupItem b) {
+            mContext = ctx;
+            mBackup = b;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            TransferEstimator estimator = new TransferEstimator(getApplicationContext(), mBackupHandler);
+            TransferEstimator.Plan plan = estimator.getPlan(mBackup);
+
+            if (plan == null) {
+                return null;
+            }
+
+            String msg = estimator.describe(mBackup, plan) + ".";
+
+            if (mBackup.direction == BackupItem.Direction.INCOMING) {
+                long free = TransferEstimator.getUsableSpace(mBackup.destination);
+                if (free >= 0) {
+                    msg += "\n\n" + TransferEstimator.formatSize(free) + " free on " + mBackup.destination + ".";
+                }
+            }
+
+            return msg;
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            if (result == null) {
+                Toast.makeText(mContext, "Could not estimate '" + mBackup.name + "', see logcat for details", Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            AlertDialog.Builder builder = new AlertDialog.Builder(mContext);
+            builder.setTitle(mBackup.name);
+            builder.setMessage(result);
+            builder.setPositiveButton("OK", null);
+            builder.show();
+        }
+    }
+
 
     private void setCurrentFragment(Fragment f, boolean stack) {
         FragmentTransaction tr = getFragmentManager().beginTransaction().replace(R.id.content_container, f);
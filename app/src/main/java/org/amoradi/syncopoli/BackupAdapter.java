@@ -52,7 +52,7 @@ public class BackupAdapter extends RecyclerView.Adapter<BackupAdapter.ViewHolder
         @Override
         public boolean onLongClick(View v) {
             if (v instanceof LinearLayout) {
-                final CharSequence[] items = {"Copy Profile", "Edit Profile", "Delete Profile"};
+                final CharSequence[] items = {"Copy Profile", "Edit Profile", "Delete Profile", "Estimate Transfer", "Verify Backup"};
 
                 AlertDialog.Builder builder = new AlertDialog.Builder(mContext);
 
@@ -66,6 +66,10 @@ public class BackupAdapter extends RecyclerView.Adapter<BackupAdapter.ViewHolder
                             mBackupClickHandler.onBackupEdit(getAdapterPosition());
                         } else if (item == 2) {
                             mBackupClickHandler.onBackupDelete(getAdapterPosition());
+                        } else if (item == 3) {
+                            mBackupClickHandler.onBackupEstimate(getAdapterPosition());
+                        } else if (item == 4) {
+                            mBackupClickHandler.onBackupVerify(getAdapterPosition());
                         }
                     }
                 });
@@ -136,4 +140,12 @@ public class BackupAdapter extends RecyclerView.Adapter<BackupAdapter.ViewHolder
     public void onBackupRun(int pos) {
         mBackupHandler.runBackup(mBackupHandler.getBackups().get(pos));
     }
+
+    public void onBackupEstimate(int pos) {
+        mBackupHandler.estimateBackup(mBackupHandler.getBackups().get(pos));
+    }
+
+    public void onBackupVerify(int pos) {
+        mBackupHandler.verifyBackup(mBackupHandler.getBackups().get(pos));
+    }
 }
@@ -15,6 +15,10 @@ import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.JobIntentService;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 public class BackupBackgroundService extends JobIntentService {
     public final static String TAG = "Syncopoli";
     private static final int JOB_ID = 1234;
@@ -54,6 +58,13 @@ public class BackupBackgroundService extends JobIntentService {
         }
     }
 
+    @Override
+    public void onDestroy() {
+        // all work is done, tunnels left open for the next run can go
+        SshTunnel.closeIdle();
+        super.onDestroy();
+    }
+
 	private void executeWork(Intent work) {
 		Bundle bundle = work.getExtras();
 		Boolean force = bundle.getBoolean("force");
@@ -69,23 +80,55 @@ public class BackupBackgroundService extends JobIntentService {
 			Log.d(TAG, "Forced sync - ignoring configuration restrictions");
 		}
 
+		// runs as root share su sessions until the work is done
+		h.beginRootSession();
+		try {
+			runItems(h, bundle, force);
+		} finally {
+			h.endRootSession();
+		}
+	}
+
+	private void runItems(BackupHandler h, Bundle bundle, boolean force) {
 		BackupItem b = bundle.getParcelable("item");
 
+        if (b != null && bundle.getBoolean("verify")) {
+            notifyResult(b, h.runVerify(b));
+            return;
+        }
+
         if (b != null) {
-            runTask(h, b);
+            runTask(h, b, force);
             return;
         }
 
+        // profiles that can share one rsync invocation are run together
+        List<BackupItem> items = new ArrayList<>();
         Parcelable[] ps = bundle.getParcelableArray("items");
         for (Parcelable x : ps) {
             BackupItem y = (BackupItem) x;
-            runTask(h, y);
+            if (force || h.checkDataQuota(y) == 0) {
+                items.add(y);
+            }
+        }
+
+        for (ProfileBatch batch : ProfileBatch.group(items)) {
+            Map<BackupItem, Integer> results = h.runBatch(batch);
+            for (BackupItem y : batch.getItems()) {
+                notifyResult(y, results.get(y));
+            }
         }
 	}
 
-    private void runTask(BackupHandler h, BackupItem b) {
-		int ret = h.runBackup(b);
+    private void runTask(BackupHandler h, BackupItem b, boolean force) {
+		if (!force && h.checkDataQuota(b) != 0) {
+			return;
+		}
+
+		notifyResult(b, h.runBackup(b));
+    }
 
+    private void notifyResult(BackupItem b, int ret) {
 		// handle errors with new notification if necessary
 		if (ret != 0 && ret != BackupHandler.ERROR_DONOTRUN) {
 			int notif_icon = R.drawable.ic_action_refresh_bitmap;
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.ConnectivityManager;
 import android.os.Build;
 import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiInfo;
@@ -14,10 +15,12 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -25,6 +28,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -36,12 +41,18 @@ public class BackupHandler implements IBackupHandler {
     private List<BackupItem> mBackupItems;
     Context mContext;
 
+    /* idle root shells, kept while a root session is open */
+    private final List<RootShell> mRootShells = new ArrayList<>();
+    private boolean mRootSession = false;
+
     public static final int ERROR_DONOTRUN = -2;
     public static final int ERROR_BACKUP_EXISTS = -3;
     public static final int ERROR_BACKUP_MISSING = -4;
     public static final int ERROR_TOO_MANY_RESULTS = -5;
 	public static final int ERROR_RSYNC_MISSING = -6;
 	public static final int ERROR_SSH_MISSING = -7;
+    public static final int ERROR_QUOTA_EXCEEDED = -8;
+    public static final int ERROR_NO_SPACE = -9;
 
     public BackupHandler(Context ctx) {
         mContext = ctx;
@@ -62,25 +73,15 @@ public class BackupHandler implements IBackupHandler {
         BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        ContentValues values = new ContentValues();
-        values.put(BackupSyncSchema.COLUMN_TYPE, "backup");
-        values.put(BackupSyncSchema.COLUMN_NAME, item.name);
-        values.put(BackupSyncSchema.COLUMN_SOURCES, item.getSourcesAsString());
-        values.put(BackupSyncSchema.COLUMN_DESTINATION, item.destination);
-        values.put(BackupSyncSchema.COLUMN_RSYNC_OPTIONS, item.rsync_options);
+        ContentValues values = getContentValues(item);
         values.put(BackupSyncSchema.COLUMN_LAST_UPDATE, "");
 
-        if (item.direction == BackupItem.Direction.INCOMING) {
-            values.put(BackupSyncSchema.COLUMN_DIRECTION, "INCOMING");
-        } else {
-            values.put(BackupSyncSchema.COLUMN_DIRECTION, "OUTGOING");
-        }
-
         db.insert(BackupSyncSchema.TABLE_NAME, null, values);
         db.close();
         dbHelper.close();
 
         updateBackupList();
+        RemoteWatchService.update(mContext);
         Log.d(TAG, "Adding backup succeeded");
         return 0;
     }
@@ -122,6 +123,18 @@ public class BackupHandler implements IBackupHandler {
         }
 
         db.delete(BackupSyncSchema.TABLE_NAME, "name = '" + item.name + "'", null);
+        new RunHistory(mContext).removeProfile(item.name);
+        MoveDetector.forget(mContext, item);
+        FilterRules.getFilterFile(mContext, item).delete();
+        MediaChangeFeed.forget(mContext, item);
+        RemoteWatcher.forget(mContext, item);
+        Mirrors.forget(mContext, item);
+        ChunkStore.forget(mContext, item);
+        Mirrors.deleteBatch(Mirrors.getBatchFile(mContext, item));
+        for (String mirror : Mirrors.parse(item.mirrors)) {
+            FilterRules.getFilterFile(mContext, Mirrors.getItem(item, mirror)).delete();
+        }
+        RemoteWatchService.update(mContext);
         return 0;
     }
 
@@ -174,6 +187,14 @@ public class BackupHandler implements IBackupHandler {
             x.sources = c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_SOURCES)).split("\n");
             x.destination = c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_DESTINATION));
             x.rsync_options = c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_RSYNC_OPTIONS));
+            x.metered_quota = c.getLong(c.getColumnIndex(BackupSyncSchema.COLUMN_METERED_QUOTA));
+            x.quota_period = BackupItem.QuotaPeriod.valueOf(c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_QUOTA_PERIOD)));
+            x.shards = c.getInt(c.getColumnIndex(BackupSyncSchema.COLUMN_SHARDS));
+            x.server = c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_SERVER));
+            x.filters = c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_FILTERS));
+            x.mirrors = c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_MIRRORS));
+            x.engine = BackupItem.Engine.valueOf(c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_ENGINE)));
+            x.snapshots = c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_SNAPSHOTS));
 
             String dir = c.getString(c.getColumnIndex(BackupSyncSchema.COLUMN_DIRECTION));
             if (dir.equals("INCOMING")) {
@@ -202,12 +223,7 @@ public class BackupHandler implements IBackupHandler {
         BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        ContentValues values = new ContentValues();
-        values.put(BackupSyncSchema.COLUMN_TYPE, "backup");
-        values.put(BackupSyncSchema.COLUMN_NAME, b.name);
-        values.put(BackupSyncSchema.COLUMN_SOURCES, b.getSourcesAsString());
-        values.put(BackupSyncSchema.COLUMN_DESTINATION, b.destination);
-        values.put(BackupSyncSchema.COLUMN_RSYNC_OPTIONS, b.rsync_options);
+        ContentValues values = getContentValues(b);
 
         b.lastUpdate = new Date();
 
@@ -223,13 +239,36 @@ public class BackupHandler implements IBackupHandler {
         BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
+        ContentValues values = getContentValues(b);
+        values.put(BackupSyncSchema.COLUMN_LAST_UPDATE, "");
+
+        db.update(BackupSyncSchema.TABLE_NAME, values, "name='" + old_name + "'", null);
+        db.close();
+        dbHelper.close();
+
+        if (!old_name.equals(b.name)) {
+            new RunHistory(mContext).renameProfile(old_name, b.name);
+        }
+
+        RemoteWatchService.update(mContext);
+        return 0;
+    }
+
+    private ContentValues getContentValues(BackupItem b) {
         ContentValues values = new ContentValues();
         values.put(BackupSyncSchema.COLUMN_TYPE, "backup");
         values.put(BackupSyncSchema.COLUMN_NAME, b.name);
         values.put(BackupSyncSchema.COLUMN_SOURCES, b.getSourcesAsString());
         values.put(BackupSyncSchema.COLUMN_DESTINATION, b.destination);
-        values.put(BackupSyncSchema.COLUMN_LAST_UPDATE, "");
         values.put(BackupSyncSchema.COLUMN_RSYNC_OPTIONS, b.rsync_options);
+        values.put(BackupSyncSchema.COLUMN_METERED_QUOTA, b.metered_quota);
+        values.put(BackupSyncSchema.COLUMN_QUOTA_PERIOD, b.quota_period.name());
+        values.put(BackupSyncSchema.COLUMN_SHARDS, b.shards);
+        values.put(BackupSyncSchema.COLUMN_SERVER, b.server);
+        values.put(BackupSyncSchema.COLUMN_FILTERS, b.filters);
+        values.put(BackupSyncSchema.COLUMN_MIRRORS, b.mirrors);
+        values.put(BackupSyncSchema.COLUMN_ENGINE, b.engine.name());
+        values.put(BackupSyncSchema.COLUMN_SNAPSHOTS, b.snapshots);
 
         if (b.direction == BackupItem.Direction.INCOMING) {
             values.put(BackupSyncSchema.COLUMN_DIRECTION, "INCOMING");
@@ -237,275 +276,1692 @@ public class BackupHandler implements IBackupHandler {
             values.put(BackupSyncSchema.COLUMN_DIRECTION, "OUTGOING");
         }
 
-        db.update(BackupSyncSchema.TABLE_NAME, values, "name='" + old_name + "'", null);
-        db.close();
-        dbHelper.close();
+        return values;
+    }
 
-        return 0;
+    /*
+     * The servers b can go to, in the order to try them: the one in the
+     * settings, or the members of the server or pool it names. Returns null,
+     * with the reason written to log, if there are none.
+     */
+    public List<Server> getServers(BackupItem b, OutputStream log) throws IOException {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        Server defaults = Server.getDefault(prefs);
+
+        if (b.server == null || b.server.equals("")) {
+            List<Server> servers = new ArrayList<>();
+            servers.add(defaults);
+            return servers;
+        }
+
+        List<Server> servers;
+        try {
+            servers = Server.parseList(prefs.getString(SettingsFragment.KEY_SERVERS, ""), defaults);
+        } catch (IllegalArgumentException e) {
+            log.write(("ERROR: " + e.getMessage()).getBytes());
+            return null;
+        }
+
+        List<Server> members = Server.findMembers(servers, b.server);
+        if (members.isEmpty()) {
+            log.write(("ERROR: No server or pool named '" + b.server + "'. Please check Other servers in settings.").getBytes());
+            return null;
+        }
+
+        return ServerPool.order(members);
     }
 
-    public int runBackup(BackupItem b) {
+    /* rsync exit codes of runs that didn't get through to the server */
+    static boolean isConnectFailure(int errno) {
+        // socket I/O error, daemon connection timeout, ssh connection failure
+        return errno == 10 || errno == 35 || errno == 255;
+    }
+
+    /*
+     * Trust alias with the keys of host. Failing that isn't fatal: the run
+     * goes on and ssh reports the unknown key if it really is one.
+     */
+    private static void addHostAlias(KnownHosts known_hosts, String alias, String host, OutputStream log) throws IOException {
         try {
-            String rsyncPath = new File(mContext.getFilesDir(), "rsync").getAbsolutePath();
-            Log.d(TAG, "rsyncPath: " + rsyncPath);
-            String sshPath = new File(mContext.getFilesDir(), "ssh").getAbsolutePath();
-            Log.d(TAG, "sshPath: " + sshPath);
+            known_hosts.addAlias(alias, host);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not add " + alias + " to known_hosts: " + e.toString());
+            log.write(("Could not add " + alias + " to known_hosts (" + e.getMessage() + "), going on without it\n").getBytes());
+        }
+    }
 
-            FileOutputStream logFile = mContext.openFileOutput(b.getLogFileName(), Context.MODE_PRIVATE);
+    /* the rsync options of the settings followed by those of b */
+    List<String> getRsyncOptions(BackupItem b) {
+        List<String> options = new ArrayList<>();
+        String rsync_options = PreferenceManager.getDefaultSharedPreferences(mContext).getString(SettingsFragment.KEY_RSYNC_OPTIONS, "");
 
-            updateBackupTimestamp(b);
-            logFile.write((b.lastUpdate.toString() + " \n\n").getBytes());
+        if (!rsync_options.equals("")) {
+            options.addAll(ArgumentTokenizer.tokenize(rsync_options));
+        }
+
+        if (b.rsync_options != null && !b.rsync_options.equals("")) {
+            options.addAll(ArgumentTokenizer.tokenize(b.rsync_options));
+        }
 
-            File f = new File(rsyncPath);
+        return options;
+    }
 
-            if (!f.exists()) {
-                logFile.write(("ERROR: Missing rsync binary. Please submit a bug report and include logcat output along with the following info:\n\n").getBytes());
+    /*
+     * Build the command for the first server of b (see getServers()), for
+     * dry runs and commands of our own rather than a run of b.
+     */
+    public int buildRsyncCommand(BackupItem b, RsyncCommand cmd, OutputStream log) throws IOException {
+        List<Server> servers = getServers(b, log);
+        if (servers == null) {
+            return -1;
+        }
 
-                String[] abis = {Build.CPU_ABI, Build.CPU_ABI2};
-                if (Build.VERSION.SDK_INT >= 21) {
-                    abis = Build.SUPPORTED_ABIS;
-                }
+        return buildRsyncCommand(b, servers.get(0), cmd, false, log);
+    }
 
-                logFile.write(("SUPPORTED ABIS: " + Arrays.toString(abis) + "\n").getBytes());
+    public int buildRsyncCommand(BackupItem b, Server server, RsyncCommand cmd, OutputStream log) throws IOException {
+        return buildRsyncCommand(b, server, cmd, true, log);
+    }
 
-                return ERROR_RSYNC_MISSING;
+    /*
+     * Put together the rsync command for b from the global settings, server
+     * and the profile. Configuration problems are written to log and returned
+     * as an error code. run tells a run of b from other uses, which leave the
+     * measurements of TransferPolicy to runs.
+     */
+    private int buildRsyncCommand(BackupItem b, Server server, RsyncCommand cmd, boolean run, OutputStream log) throws IOException {
+        String rsyncPath = new File(mContext.getFilesDir(), "rsync").getAbsolutePath();
+        Log.d(TAG, "rsyncPath: " + rsyncPath);
+        String sshPath = new File(mContext.getFilesDir(), "ssh").getAbsolutePath();
+        Log.d(TAG, "sshPath: " + sshPath);
+
+        File f = new File(rsyncPath);
+
+        if (!f.exists()) {
+            log.write(("ERROR: Missing rsync binary. Please submit a bug report and include logcat output along with the following info:\n\n").getBytes());
+
+            String[] abis = {Build.CPU_ABI, Build.CPU_ABI2};
+            if (Build.VERSION.SDK_INT >= 21) {
+                abis = Build.SUPPORTED_ABIS;
             }
 
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-            String rsync_username = prefs.getString(SettingsFragment.KEY_RSYNC_USERNAME, "");
+            log.write(("SUPPORTED ABIS: " + Arrays.toString(abis) + "\n").getBytes());
+
+            return ERROR_RSYNC_MISSING;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String rsync_username = server.username;
+
+        if (rsync_username.equals("")) {
+            log.write("ERROR: Username not specified. Please set username in settings.".getBytes());
+            return -1;
+        }
+
+        String rsync_password = server.rsyncPassword;
+        String ssh_password = server.sshPassword;
+        boolean use_ssh_password = false;
+        boolean as_root = prefs.getBoolean(SettingsFragment.KEY_AS_ROOT, false);
+
+        String server_address = server.address;
+
+        if (server_address.equals("")) {
+            log.write("ERROR: Server address not specified. Please set Server address in settings.".getBytes());
+            return -1;
+        }
+
+        String protocol = server.protocol;
+        String private_key = server.privateKey;
+        String port = server.port;
+
+        if (port.equals("")) {
+            log.write("ERROR: Port not specified. Please set Port in settings.".getBytes());
+            return -1;
+        }
+
+        if (protocol.equals("SSH")) {
+            if (private_key.equals("")) {
+                use_ssh_password = true;
+            } else {
+                File pkey_file = new File(private_key);
+                if (!pkey_file.canRead()) {
+                    log.write(("ERROR: Cannot read specified private key file: '" + private_key + "'").getBytes());
+                    return -1;
+                }
+                use_ssh_password = false;
+            }
 
-            if (rsync_username.equals("")) {
-                logFile.write("ERROR: Username not specified. Please set username in settings.".getBytes());
+            if (ssh_password.equals("") && use_ssh_password) {
+                log.write(("ERROR: attempting to use password, but no password specified for SSH").getBytes());
                 return -1;
             }
+        }
 
-            String rsync_options = prefs.getString(SettingsFragment.KEY_RSYNC_OPTIONS, "");
-            String rsync_password = prefs.getString(SettingsFragment.KEY_RSYNC_PASSWORD, "");
-            String ssh_password = prefs.getString(SettingsFragment.KEY_SSH_PASSWORD, "");
-            boolean use_ssh_password = false;
-            boolean as_root = prefs.getBoolean(SettingsFragment.KEY_AS_ROOT, false);
+        /*
+         * RESOLVE SERVER
+         */
 
-            String server_address = prefs.getString(SettingsFragment.KEY_SERVER_ADDRESS, "");
+        try {
+            Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            log.write(("ERROR: Invalid port: " + port).getBytes());
+            return -1;
+        }
+
+        if (!server.name.equals("")) {
+            log.write(("Server: " + server + "\n").getBytes());
+        }
+
+        KnownHosts known_hosts = KnownHosts.getInstance(new File(mContext.getFilesDir().getAbsolutePath() + "/.ssh/", "known_hosts"));
 
-            if (server_address.equals("")) {
-                logFile.write("ERROR: Server address not specified. Please set Server address in settings.".getBytes());
+        // an endpoint of the server closer to this network, if one is set up
+        String server_name = server_address;
+        String endpoints = prefs.getString(SettingsFragment.KEY_ENDPOINTS, "");
+        if (!endpoints.trim().equals("")) {
+            List<Endpoint> list = new ArrayList<>();
+            try {
+                for (Endpoint e : Endpoint.parseList(endpoints)) {
+                    if (e.server.equals(server.name)) {
+                        list.add(e);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                log.write(("ERROR: " + e.getMessage()).getBytes());
                 return -1;
             }
 
-            String protocol = prefs.getString(SettingsFragment.KEY_PROTOCOL, "SSH");
-            String private_key = prefs.getString(SettingsFragment.KEY_PRIVATE_KEY, "");
-            String port = prefs.getString(SettingsFragment.KEY_PORT, "22");
+            EndpointSelector.Choice c = list.isEmpty() ? null : new EndpointSelector(mContext).select(server_address, Integer.parseInt(port), list, getWifiSsid());
+            if (c != null && c.endpoint != null) {
+                server_name = c.host;
+                port = Integer.toString(c.port);
 
-            if (port.equals("")) {
-                logFile.write("ERROR: Port not specified. Please set Port in settings.".getBytes());
-                return -1;
+                String latency = c.latency >= 0 ? " (connect " + c.latency + " ms)" : "";
+                log.write(("Endpoint: " + c.host + ":" + c.port + latency + "\n").getBytes());
+
+                if (protocol.equals("SSH")) {
+                    addHostAlias(known_hosts, c.host, server_address, log);
+                }
             }
+        }
+
+        // host spec for rsync (IPv6 in brackets) and plain host for dropbear
+        String server_host = server_name;
+        String ssh_host = server_name;
+        HostResolver.Result r = HostResolver.getInstance().resolve(server_name, Integer.parseInt(port));
+        if (r != null && !r.getLiteral().equals(server_name)) {
+            server_host = r.getHostSpec();
+            ssh_host = r.getLiteral();
 
+            String latency = r.latency >= 0 ? " (connect " + r.latency + " ms)" : "";
+            log.write(("Server address: " + server_name + " -> " + r.getLiteral() + latency + "\n\n").getBytes());
+
+            // dropbear checks the host key under the name it is given
             if (protocol.equals("SSH")) {
-                if (private_key.equals("")) {
-                    use_ssh_password = true;
-                } else {
-                    File pkey_file = new File(private_key);
-                    if (!pkey_file.canRead()) {
-                        logFile.write(("ERROR: Cannot read specified private key file: '" + private_key + "'").getBytes());
-                        return -1;
-                    }
-                    use_ssh_password = false;
-                }
+                addHostAlias(known_hosts, r.getLiteral(), server_address, log);
+            }
+        }
 
-                if (ssh_password.equals("") && use_ssh_password) {
-                    logFile.write(("ERROR: attempting to use password, but no password specified for SSH").getBytes());
-                    return -1;
-                }
+        /*
+         * BUILD ARGUMENTS
+         */
+
+        cmd.rsyncPath = f.getAbsolutePath();
+        cmd.directory = mContext.getFilesDir();
+        cmd.as_root = as_root;
+
+        // ahead of the options, where FilterRules.forProfile() puts them too
+        if (b.filters != null && !b.filters.trim().equals("")) {
+            File filter = FilterRules.getFilterFile(mContext, b);
+            try {
+                FilterRules.write(b, filter);
+            } catch (IllegalArgumentException e) {
+                log.write(("ERROR: " + e.getMessage()).getBytes());
+                return -1;
             }
 
-            /*
-             * BUILD ARGUMENTS
-             */
+            cmd.options.add("--filter=. " + filter.getAbsolutePath());
+        }
+
+        cmd.options.addAll(getRsyncOptions(b));
+
+        int tunnel_port = 0;
+        try {
+            tunnel_port = Integer.parseInt(prefs.getString(SettingsFragment.KEY_TUNNEL_PORT, "0"));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid tunnel port: " + e.toString());
+        }
 
-            ArrayList<String> args = new ArrayList<>();
+        boolean use_tunnel = protocol.equals("SSH") && tunnel_port > 0;
 
-            args.add(f.getAbsolutePath());
+        if (use_tunnel) {
+            // talk to the server's rsync daemon through a shared ssh connection
+            List<String> ssh_args = new ArrayList<>();
+            ssh_args.add(sshPath);
+            ssh_args.add("-p");
+            ssh_args.add(port);
 
-            if (!rsync_options.equals("")) {
-				args.addAll(ArgumentTokenizer.tokenize(rsync_options));
+            if (!use_ssh_password) {
+                ssh_args.add("-i");
+                ssh_args.add(private_key);
             }
 
-            if (!b.rsync_options.equals("")) {
-				args.addAll(ArgumentTokenizer.tokenize(b.rsync_options));
+            ssh_args.addAll(new SshTuner(mContext).getArgs(server));
+
+            Map<String, String> ssh_env = new HashMap<>();
+            ssh_env.put("HOME", mContext.getFilesDir().getAbsolutePath());
+            if (use_ssh_password) {
+                ssh_env.put("DROPBEAR_PASSWORD", ssh_password);
             }
 
-            if (protocol.equals("SSH")) {
-                args.add("-e");
-                String ssh_cmd = sshPath + " -p " + port;
+            SshTunnel tunnel = SshTunnel.get(ssh_args, ssh_env, mContext.getFilesDir(), rsync_username + "@" + ssh_host, tunnel_port);
+            try {
+                tunnel.ensureOpen();
+            } catch (IOException e) {
+                log.write(("ERROR: " + e.getMessage()).getBytes());
+                return -1;
+            }
 
-                if (!use_ssh_password) {
-                    ssh_cmd += " -i " + private_key;
-                }
+            cmd.tunnel = tunnel;
+            cmd.transport.add("--port=" + tunnel.getLocalPort());
 
-                if (as_root) {
-                    args.add("'" + ssh_cmd + "'");
-                } else {
-                    args.add(ssh_cmd);
+            if (b.direction == BackupItem.Direction.OUTGOING) {
+                cmd.paths.addAll(Arrays.asList(b.sources));
+                cmd.paths.add(rsync_username + "@127.0.0.1::" + b.destination);
+            } else {
+                for (String s : b.sources) {
+                    cmd.paths.add(rsync_username + "@127.0.0.1::" + s);
                 }
+                cmd.paths.add(b.destination);
+            }
 
-                if (b.direction == BackupItem.Direction.OUTGOING) {
-                    args.addAll(Arrays.asList(b.sources));
-                    args.add(rsync_username + "@" + server_address + ":" + b.destination);
-                } else {
-                    for (String s : b.sources) {
-                        args.add(rsync_username + "@" + server_address + ":" + s);
-                    }
-                    args.add(b.destination);
-                }
+        } else if (protocol.equals("SSH")) {
+            cmd.transport.add("-e");
+            String ssh_cmd = sshPath + " -p " + port;
 
-            } else if (protocol.equals("Rsync")) {
-				args.add("--port=" + port);
-				
-                if (b.direction == BackupItem.Direction.OUTGOING) {
-                    args.addAll(Arrays.asList(b.sources));
-                    args.add(rsync_username + "@" + server_address + "::" + b.destination);
-                } else {
-                    for (String s : b.sources) {
-                        args.add(rsync_username + "@" + server_address + "::" + s);
-                    }
-                    args.add(b.destination);
-                }
+            if (!use_ssh_password) {
+                ssh_cmd += " -i " + private_key;
             }
 
-            Log.d(TAG, "rsync exec: " + args.toString());
+            for (String arg : new SshTuner(mContext).getArgs(server)) {
+                ssh_cmd += " " + arg;
+            }
 
-            /*
-             * AS ROOT
-             */
-            ArrayList<String> final_cmd = new ArrayList<String>();
+            cmd.transport.add(ssh_cmd);
+            cmd.ssh.addAll(ArgumentTokenizer.tokenize(ssh_cmd));
+            cmd.login = rsync_username + "@" + ssh_host;
 
-            if (as_root) {
-                StringBuilder sb = new StringBuilder();
-                for (String s : args) {
-                    sb.append(s);
-                    sb.append(" ");
+            if (b.direction == BackupItem.Direction.OUTGOING) {
+                cmd.paths.addAll(Arrays.asList(b.sources));
+                cmd.paths.add(rsync_username + "@" + server_host + ":" + b.destination);
+            } else {
+                for (String s : b.sources) {
+                    cmd.paths.add(rsync_username + "@" + server_host + ":" + s);
                 }
+                cmd.paths.add(b.destination);
+            }
 
-                final_cmd.add("su");
-                final_cmd.add("--preserve-environment");
-                final_cmd.add("--command");
-                final_cmd.add(sb.toString());
+        } else if (protocol.equals("Rsync")) {
+            cmd.transport.add("--port=" + port);
 
-                Log.d(TAG, "with su: " + final_cmd.toString());
+            if (b.direction == BackupItem.Direction.OUTGOING) {
+                cmd.paths.addAll(Arrays.asList(b.sources));
+                cmd.paths.add(rsync_username + "@" + server_host + "::" + b.destination);
             } else {
-                final_cmd = args;
+                for (String s : b.sources) {
+                    cmd.paths.add(rsync_username + "@" + server_host + "::" + s);
+                }
+                cmd.paths.add(b.destination);
             }
+        }
 
-            /*
-             * BUILD PROCESS
-             */
+        /*
+         * ENVIRONMENT
+         */
 
-            ProcessBuilder pb = new ProcessBuilder(final_cmd);
-            pb.directory(mContext.getFilesDir());
-            pb.redirectErrorStream(true);
+        // make sure we have reasonable $HOME, so ssh can store keys
+        cmd.env.put("HOME", mContext.getFilesDir().getAbsolutePath());
 
-            // Set environment (make sure we have reasonable $HOME, so ssh can store keys)
-            Map<String, String> env = pb.environment();
-            env.put("HOME", mContext.getFilesDir().getAbsolutePath());
+        if ((protocol.equals("Rsync") || use_tunnel) && !rsync_password.equals("")) {
+            cmd.env.put("RSYNC_PASSWORD", rsync_password);
+        }
 
-            if (protocol.equals("Rsync") && !rsync_password.equals("")) {
-                env.put("RSYNC_PASSWORD", rsync_password);
-            }
+        if (protocol.equals("SSH") && use_ssh_password && !use_tunnel) {
+            cmd.env.put("DROPBEAR_PASSWORD", ssh_password);
+        }
 
-            if (protocol.equals("SSH") && use_ssh_password) {
-                env.put("DROPBEAR_PASSWORD", ssh_password);
-            }
+        /*
+         * TRANSFER POLICY
+         */
 
-            /*
-             * RUN PROCESS
-             */
+        // by name, which outlives the address it resolves to
+        cmd.endpoint = server_name + ":" + port;
+        cmd.policy = new TransferPolicy(mContext).apply(cmd, b, isMeteredNetwork(), run, log);
 
-            Process process = pb.start();
+        return 0;
+    }
 
-            /*
-             * GET STDOUT/STDERR
-             */
+    /*
+     * Run cmd to completion, copying its output to log (if not null) and
+     * collecting its --stats into stats (if not null). Returns rsync's exit code.
+     */
+    public int runRsync(RsyncCommand cmd, OutputStream log, RsyncStats stats) throws IOException, InterruptedException {
+        return runRsync(cmd, log, stats, null, 0);
+    }
 
-            String temp = "";
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    /* runRsync() stopped by restart when its share comes down after generation, see runSharded() */
+    private int runRsync(RsyncCommand cmd, OutputStream log, RsyncStats stats, Restart restart, int generation) throws IOException, InterruptedException {
+        if (cmd.tunnel == null) {
+            return runProcess(cmd, log, stats, restart, generation);
+        }
 
-            /* Read STDOUT & STDERR */
-            while ((temp = reader.readLine()) != null) {
-                Log.v(TAG, temp + "\n");
-                logFile.write((temp + "\n").getBytes());
+        try {
+            cmd.tunnel.acquire();
+        } catch (IOException e) {
+            if (log != null) {
+                log.write(("ERROR: " + e.getMessage() + "\n").getBytes());
             }
-            reader.close();
+            return -1;
+        }
+
+        try {
+            return runProcess(cmd, log, stats, restart, generation);
+        } finally {
+            cmd.tunnel.release();
+        }
+    }
 
-            // Wait for the command to finish.
-            process.waitFor();
+    private int runProcess(RsyncCommand cmd, final OutputStream log, final RsyncStats stats, Restart restart, int generation) throws IOException, InterruptedException {
+        final RootShell.OutputListener listener = new RootShell.OutputListener() {
+            @Override
+            public void onLine(String line) throws IOException {
+                Log.v(TAG, line + "\n");
 
-            // Show message how it ended.
-            int errno = process.exitValue();
-            if (errno != 0) {
-                logFile.write(("\nSync FAILED (error code " + errno + ").\n").getBytes());
-            } else {
-                logFile.write("\nSync complete.\n".getBytes());
+                if (log != null) {
+                    log.write((line + "\n").getBytes());
+                }
+
+                if (stats != null) {
+                    stats.feed(line);
+                }
             }
+        };
 
-            logFile.close();
+        if (cmd.budget != null) {
+            return runLimited(cmd, listener);
+        }
 
-            return errno;
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+        return runOnce(cmd, listener, restart, generation);
+    }
+
+    /*
+     * Run cmd at its share of the bandwidth budget (see BandwidthBudget).
+     * rsync can't change its --bwlimit once running, so when another run needs
+     * part of the share, rsync is stopped and started again with the lower one;
+     * what it had sent already is skipped by then. Through the root shell it
+     * can't be stopped, and keeps the share it started with.
+     */
+    private int runLimited(RsyncCommand cmd, RootShell.OutputListener listener) throws IOException, InterruptedException {
+        Restart restart = cmd.as_root ? null : new Restart();
+        int requested = BandwidthBudget.parseBwlimit(cmd.options);
+
+        while (true) {
+            int generation = restart == null ? 0 : restart.getGeneration();
+            int bwlimit = BandwidthBudget.getInstance().acquire(cmd.budget, getBandwidthCap(), requested, restart);
+
+            RsyncCommand c = new RsyncCommand(cmd);
+            if (bwlimit > 0) {
+                c.options.add("--bwlimit=" + bwlimit);
+                listener.onLine("Bandwidth limit: " + bwlimit + " KB/s\n");
+            }
+
+            int ret = runOnce(c, listener, restart, generation);
+            if (restart == null || restart.getGeneration() == generation) {
+                return ret;
+            }
+
+            listener.onLine("\nAnother run needs part of the bandwidth, starting rsync again with less\n");
         }
     }
 
-    public boolean canRunBackup() {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-        boolean wifi_only = prefs.getBoolean(SettingsFragment.KEY_WIFI_ONLY, false);
-        String wifi_name = prefs.getString(SettingsFragment.KEY_WIFI_NAME, "");
+    /* the rsyncs sharing one share of the budget, stopped when it comes down */
+    private static class Restart implements BandwidthBudget.Listener {
+        private final List<Process> mRunning = new ArrayList<>();
+        /* times the share came down */
+        private int mGeneration = 0;
+
+        @Override
+        public synchronized void onLowered(int share) {
+            mGeneration++;
+            for (Process p : mRunning) {
+                p.destroy();
+            }
+        }
 
-        if (!wifi_only) {
-            return true;
+        synchronized int getGeneration() {
+            return mGeneration;
         }
 
-        WifiManager wifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
-        if (!wifiManager.isWifiEnabled()) {
-            Log.d(TAG, "Wifi not enabled");
-            return false;
+        /* process was started with the share of generation, stop it if that's gone already */
+        synchronized void start(Process process, int generation) {
+            mRunning.add(process);
+            if (generation != mGeneration) {
+                process.destroy();
+            }
         }
 
-        WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-        if (wifiInfo == null) {
-            Log.e(TAG, "Cannot get Wifi info from WifiManager");
-            return false;
+        synchronized void stop(Process process) {
+            mRunning.remove(process);
         }
+    }
 
-        SupplicantState state = wifiInfo.getSupplicantState();
-        if (state != SupplicantState.COMPLETED) {
-            Log.d(TAG, "SupplicantState.COMPLETED is false");
-            return false;
+    /* run cmd once; a process started directly is handed to restart (if not null) */
+    private int runOnce(RsyncCommand cmd, RootShell.OutputListener listener, Restart restart, int generation) throws IOException, InterruptedException {
+        if (cmd.as_root) {
+            RootShell shell;
+            try {
+                shell = takeRootShell();
+            } catch (IOException e) {
+                listener.onLine("ERROR: Could not get a root shell: " + e.getMessage());
+                return -1;
+            }
+
+            int ret;
+            try {
+                ret = shell.run(cmd.getArgs(), cmd.env, cmd.directory, listener);
+            } catch (IOException e) {
+                // the command may still be running in it
+                shell.close();
+                throw e;
+            } catch (RuntimeException e) {
+                shell.close();
+                throw e;
+            }
+
+            returnRootShell(shell);
+            return ret;
         }
 
-        if (wifi_name.equals("")) {
-	       return true;
+        Process process = cmd.toProcessBuilder().start();
+
+        if (restart != null) {
+            restart.start(process, generation);
         }
 
-        String ssid = wifiInfo.getSSID();
-        if (ssid.startsWith("\"")) {
-            ssid = ssid.replaceAll("^\"|\"$", "");
+        /*
+         * GET STDOUT/STDERR
+         */
+
+        String temp = "";
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+        /* Read STDOUT & STDERR */
+        while ((temp = reader.readLine()) != null) {
+            listener.onLine(temp);
         }
+        reader.close();
 
-        Log.d(TAG, "ssid: " + ssid);
-        for (String name : wifi_name.split(";")) {
-            if (ssid.equals(name)) {
-                Log.d(TAG, ssid + " matches " + name);
-                return true;
-            }
+        // Wait for the command to finish.
+        process.waitFor();
+
+        if (restart != null) {
+            restart.stop(process);
         }
 
-        return false;
+        return process.exitValue();
+    }
+
+    public int runBackup(BackupItem b) {
+        try {
+            FileOutputStream logFile = mContext.openFileOutput(b.getLogFileName(), Context.MODE_PRIVATE);
+
+            updateBackupTimestamp(b);
+            logFile.write((b.lastUpdate.toString() + " \n\n").getBytes());
+
+            List<Server> servers = getServers(b, logFile);
+            if (servers == null) {
+                logFile.close();
+                return -1;
+            }
+
+            RunHistory.Run run = new RunHistory.Run(b.name, System.currentTimeMillis(), isMeteredNetwork());
+            RsyncStats stats;
+            int errno;
+            List<Manifest.Entry> manifest = null;
+
+            // only what the media index saw change, if that's all there is to send
+            MediaChangeFeed.Changes changes = null;
+            List<String> options = getRsyncOptions(b);
+            if (MediaChangeFeed.isMediaProfile(b, options) && b.engine == BackupItem.Engine.RSYNC && !b.hasSnapshots() &&
+                    PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(SettingsFragment.KEY_MEDIA_FEED, true)) {
+                try {
+                    changes = new MediaChangeFeed(mContext).getChanges(b, options, FilterRules.forProfile(mContext, b));
+                } catch (IllegalArgumentException e) {
+                    // bad filter rules, buildRsyncCommand() reports them
+                    changes = null;
+                }
+
+                if (changes != null && changes.isFull()) {
+                    logFile.write(("Media index: going through all files, " + changes.fullReason + "\n\n").getBytes());
+                }
+            }
+            boolean partial = changes != null && !changes.isFull();
+
+            // what is sent goes to the mirrors as well, see Mirrors
+            boolean mirrored = b.direction == BackupItem.Direction.OUTGOING && b.engine == BackupItem.Engine.RSYNC &&
+                    !b.hasSnapshots() && !Mirrors.parse(b.mirrors).isEmpty();
+            long generation = new Mirrors(mContext).getGeneration(b, null);
+            MoveDetector detector = null;
+            boolean seeded = false;
+            File batch = null;
+
+            // a new snapshot each run, see Snapshots
+            Snapshots.Retention retention = null;
+            List<String> existing = new ArrayList<>();
+            RsyncCommand last = null;
+            if (b.hasSnapshots()) {
+                try {
+                    retention = Snapshots.parseRetention(b.snapshots);
+                } catch (IllegalArgumentException e) {
+                    logFile.write(("ERROR: " + e.getMessage()).getBytes());
+                    logFile.close();
+                    return -1;
+                }
+            }
+
+            // what the server's files were like when the sync started
+            String token;
+            String login;
+            long tokenTime;
+            boolean unchanged;
+
+            for (int i = 0; ; i++) {
+                RsyncCommand cmd = new RsyncCommand();
+                int ret = buildRsyncCommand(retention != null ? Snapshots.getIncomplete(b) : b, servers.get(i), cmd, logFile);
+                if (ret != 0) {
+                    logFile.close();
+                    return ret;
+                }
+                last = cmd;
+
+                if (b.direction == BackupItem.Direction.INCOMING) {
+                    ret = checkFreeSpace(b, logFile);
+                    if (ret != 0) {
+                        logFile.close();
+                        return ret;
+                    }
+                }
+
+                token = null;
+                login = cmd.login;
+                tokenTime = System.currentTimeMillis();
+                unchanged = false;
+
+                if (b.direction == BackupItem.Direction.INCOMING && cmd.login != null &&
+                        PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(SettingsFragment.KEY_SKIP_UNCHANGED, true)) {
+                    token = new RemoteWatcher(mContext).getToken(b, cmd, logFile);
+                    unchanged = token != null && new RemoteWatcher(mContext).isUnchanged(b, cmd.login, token);
+                }
+
+                if (unchanged) {
+                    logFile.write("Server unchanged since the last sync, nothing to fetch\n".getBytes());
+
+                    stats = new RsyncStats();
+                    errno = 0;
+                    run.endpoint = cmd.endpoint;
+                    run.policy = RemoteWatcher.POLICY;
+                    break;
+                }
+
+                // a store of its own rather than rsync, see ChunkStore
+                if (b.engine == BackupItem.Engine.CHUNKS) {
+                    stats = new RsyncStats();
+
+                    // chunks draw from the budget as they are sent
+                    throttleBandwidth(b, cmd);
+                    errno = new ChunkStore(mContext).backup(b, cmd, logFile, stats);
+
+                    run.endpoint = cmd.endpoint;
+                    run.policy = ChunkStore.POLICY;
+
+                    if (!failOver(servers, i, errno, logFile)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                if (retention != null) {
+                    if (cmd.login == null) {
+                        logFile.write("ERROR: Snapshots need the SSH protocol without a tunnel.\n".getBytes());
+                        logFile.close();
+                        return -1;
+                    }
+
+                    existing.clear();
+                    errno = new Snapshots().list(b, cmd, existing, logFile);
+                    if (errno != 0) {
+                        stats = new RsyncStats();
+                        run.endpoint = cmd.endpoint;
+                        run.policy = cmd.policy;
+
+                        if (!failOver(servers, i, errno, logFile)) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    // files that didn't change are hard links into the last snapshot, relative to .incomplete
+                    cmd.options.add("--link-dest=../" + Snapshots.LATEST);
+                }
+
+                // transfer stats feed the run history and metered data usage
+                cmd.options.add("--stats");
+
+                // a first sync to an empty destination goes faster without rsync
+                if (b.direction == BackupItem.Direction.OUTGOING && cmd.login != null && !partial && retention == null &&
+                        PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(SettingsFragment.KEY_SEED, true)) {
+                    List<Manifest.Entry> seed = new Seeder(mContext).plan(b, cmd, logFile);
+                    if (seed != null) {
+                        runSeed(b, cmd, seed, logFile);
+                        seeded = true;
+                        // the rsync run is timed on its own
+                        run.start = System.currentTimeMillis();
+                    }
+                }
+
+                if (b.direction == BackupItem.Direction.OUTGOING && cmd.login != null && !partial && retention == null &&
+                        PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(SettingsFragment.KEY_DETECT_MOVES, true)) {
+                    detector = new MoveDetector(mContext);
+                    manifest = detector.detect(b, cmd, logFile);
+                }
+
+                /*
+                 * RUN PROCESS
+                 */
+
+                stats = new RsyncStats();
+
+                if (partial) {
+                    limitBandwidth(b, cmd);
+                    errno = new MediaChangeFeed(mContext).send(b, changes, cmd, this, logFile, stats);
+                } else if (b.isSharded()) {
+                    limitBandwidth(b, cmd);
+                    errno = runSharded(b, cmd, logFile, stats);
+                } else if (detector != null && !mirrored && !seeded && detector.canSendChanged(cmd.options)) {
+                    // only what changed since the last sync, the mirrors are better off with a batch of a full run
+                    limitBandwidth(b, cmd);
+                    errno = detector.sendChanged(cmd, this, logFile, stats);
+                } else {
+                    // the changes as a batch to replay on the mirrors, unless the seed sent most of them
+                    if (mirrored && !seeded && new Mirrors(mContext).canBatch(b, cmd)) {
+                        batch = Mirrors.getBatchFile(mContext, b);
+                    }
+                    if (batch != null) {
+                        cmd.options.add("--write-batch=" + batch.getAbsolutePath());
+                    }
+
+                    limitBandwidth(b, cmd);
+                    errno = runRsync(cmd, logFile, stats);
+                }
+
+                run.endpoint = cmd.endpoint;
+                run.policy = cmd.policy;
+
+                if (!failOver(servers, i, errno, logFile)) {
+                    break;
+                }
+            }
+
+            // name the snapshot, point latest to it and let the retention have the old ones
+            if (errno == 0 && retention != null) {
+                errno = new Snapshots().finish(b, last, run.start, existing, retention, logFile);
+            }
+
+            run.duration = System.currentTimeMillis() - run.start;
+            run.exitCode = errno;
+            run.setStats(stats);
+            new RunHistory(mContext).record(run);
+
+            // whatever was planned has happened now
+            TransferEstimator.invalidate(b);
+
+            // what moves are found against next time
+            if (errno == 0 && manifest != null) {
+                detector.record(b, login, manifest);
+            }
+            if (detector != null) {
+                detector.deleteChanged();
+            }
+
+            // and what the media index is read from
+            if (errno == 0 && changes != null) {
+                new MediaChangeFeed(mContext).commit(b, changes);
+            }
+
+            // and what the server is checked against
+            if (errno == 0 && token != null && !unchanged) {
+                new RemoteWatcher(mContext).record(b, login, token, tokenTime);
+            }
+
+            // the mirrors count too, the profile failed if any of its servers did
+            if (mirrored) {
+                boolean replayable = errno == 0 && batch != null && batch.exists() && (detector == null || !detector.hasFailed());
+                if (replayable && Mirrors.isTooBig(batch)) {
+                    logFile.write(("The batch came out at " + TransferEstimator.formatSize(batch.length()) +
+                            ", too big to keep; the mirrors are synced instead of replaying it\n").getBytes());
+                    replayable = false;
+                }
+                String moves = detector == null ? null : detector.getScript();
+
+                int ret = runMirrors(b, replayable ? batch : null, moves, generation, errno == 0, logFile);
+                if (errno == 0) {
+                    errno = ret;
+                }
+            }
+
+            if (batch != null) {
+                Mirrors.deleteBatch(batch);
+            }
+
+            // Show message how it ended.
+            if (errno != 0) {
+                logFile.write(("\nSync FAILED (error code " + errno + ").\n").getBytes());
+            } else {
+                logFile.write("\nSync complete.\n".getBytes());
+            }
+
+            logFile.close();
+
+            return errno;
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            BandwidthBudget.getInstance().release(b);
+        }
+    }
+
+    /*
+     * Send b to each of its mirrors side by side, after the run to its own
+     * server, which had generation. batch is what that run sent, null if
+     * there is none to replay; moves are the moves it made first. Each
+     * mirror logs to its own buffer, written to log in turn when all are
+     * done, then a line per mirror on how it went. Returns 0 if every
+     * mirror succeeded, else the error code of the first that failed.
+     */
+    private int runMirrors(final BackupItem b, final File batch, final String moves, final long generation, boolean synced, OutputStream log) throws IOException, InterruptedException {
+        final Mirrors mirrors = new Mirrors(mContext);
+        final List<String> names = Mirrors.parse(b.mirrors);
+        final int n = names.size();
+
+        // whatever happened, the server isn't what the mirrors saw anymore
+        long next = generation + 1;
+        mirrors.setGeneration(b, null, next);
+
+        final int[] results = new int[n];
+        final ByteArrayOutputStream[] logs = new ByteArrayOutputStream[n];
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < n; i++) {
+            final int k = i;
+            logs[k] = new ByteArrayOutputStream();
+
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    String name = names.get(k);
+                    boolean inStep = mirrors.getGeneration(b, name) == generation;
+
+                    try {
+                        results[k] = runMirror(b, name, inStep ? batch : null, moves, logs[k]);
+                    } catch (IOException | InterruptedException e) {
+                        Log.e(TAG, "Mirror " + name + " failed: " + e.toString());
+                        results[k] = -1;
+                    }
+                }
+            });
+
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        int errno = 0;
+        StringBuilder summary = new StringBuilder("\n");
+
+        for (int i = 0; i < n; i++) {
+            log.write(("\n--- Mirror " + names.get(i) + " ---\n\n").getBytes());
+            log.write(logs[i].toByteArray());
+
+            // a mirror is in step if it got everything the server did
+            mirrors.setGeneration(b, names.get(i), results[i] == 0 && synced ? next : -1);
+
+            if (results[i] != 0) {
+                summary.append("Mirror ").append(names.get(i)).append(": FAILED (error code ").append(results[i]).append(")\n");
+                if (errno == 0) {
+                    errno = results[i];
+                }
+            } else {
+                summary.append("Mirror ").append(names.get(i)).append(": complete\n");
+            }
+        }
+
+        log.write(summary.toString().getBytes());
+        return errno;
+    }
+
+    /*
+     * Send b to the server or pool mirror, by replaying batch there if there
+     * is one (after running moves), else by syncing it like b's own server.
+     * A replay that fails once the server is reached falls back to the sync.
+     * Recorded in the run history under the mirror's item name, so the
+     * estimates of b's own runs only go by b's server.
+     */
+    private int runMirror(BackupItem b, String mirror, File batch, String moves, OutputStream log) throws IOException, InterruptedException {
+        BackupItem item = Mirrors.getItem(b, mirror);
+
+        List<Server> servers = getServers(item, log);
+        if (servers == null) {
+            return -1;
+        }
+
+        for (int i = 0; ; i++) {
+            RsyncCommand cmd = new RsyncCommand();
+            int errno = buildRsyncCommand(item, servers.get(i), cmd, log);
+            if (errno != 0) {
+                return errno;
+            }
+
+            cmd.options.add("--stats");
+
+            RunHistory.Run run = new RunHistory.Run(item.name, System.currentTimeMillis(), isMeteredNetwork());
+            RsyncStats stats = new RsyncStats();
+            Object token = new Object();
+            boolean full = batch == null || cmd.login == null;
+
+            try {
+                if (!full && moves != null) {
+                    int ret = MoveDetector.runScript(cmd, b.destination, moves, log);
+                    if (ret != 0) {
+                        log.write(("Could not move files on the server (error code " + ret + "), syncing instead\n\n").getBytes());
+                        full = true;
+                    }
+                }
+
+                if (!full) {
+                    // the batch is throttled as it is sent
+                    throttleBandwidth(token, cmd);
+                    errno = new Mirrors(mContext).replay(item, cmd, batch, log, stats);
+                    run.policy = Mirrors.POLICY;
+
+                    if (errno != 0 && !isConnectFailure(errno)) {
+                        log.write(("\nCould not replay the batch (error code " + errno + "), syncing instead\n\n").getBytes());
+                        BandwidthBudget.getInstance().release(token);
+                        stats = new RsyncStats();
+                        full = true;
+                    }
+                }
+
+                if (full) {
+                    limitBandwidth(token, cmd);
+                    if (b.isSharded()) {
+                        errno = runSharded(item, cmd, log, stats);
+                    } else {
+                        errno = runRsync(cmd, log, stats);
+                    }
+                    run.policy = cmd.policy;
+                }
+            } finally {
+                BandwidthBudget.getInstance().release(token);
+            }
+
+            run.endpoint = cmd.endpoint;
+            run.duration = System.currentTimeMillis() - run.start;
+            run.exitCode = errno;
+            run.setStats(stats);
+            new RunHistory(mContext).record(run);
+
+            if (!failOver(servers, i, errno, log)) {
+                return errno;
+            }
+        }
+    }
+
+    /*
+     * Send entries of b to its empty destination as tar streams (see Seeder),
+     * recorded in the run history on its own so its rate can be told from
+     * rsync's. Whatever doesn't get there is left to the rsync run after it.
+     */
+    private void runSeed(BackupItem b, RsyncCommand cmd, List<Manifest.Entry> entries, OutputStream log) throws IOException, InterruptedException {
+        Seeder seeder = new Seeder(mContext);
+        RunHistory.Run run = new RunHistory.Run(b.name, System.currentTimeMillis(), isMeteredNetwork());
+        RsyncStats stats = new RsyncStats();
+
+        // tar streams draw from the budget
+        throttleBandwidth(b, cmd);
+
+        int errno = seeder.send(b, cmd, entries, log, stats);
+
+        run.duration = System.currentTimeMillis() - run.start;
+        run.exitCode = errno;
+        run.setStats(stats);
+        run.endpoint = cmd.endpoint;
+        run.policy = Seeder.POLICY;
+
+        if (errno != 0) {
+            log.write(("\nSeeding FAILED (error code " + errno + "), rsync sends the rest\n\n").getBytes());
+        } else {
+            log.write(("\n" + seeder.compare(run) + "\n\n").getBytes());
+        }
+
+        new RunHistory(mContext).record(run);
+    }
+
+    /*
+     * Check the server's copy of b file by file against the local one and
+     * send again whatever differs (see IntegrityVerifier). Logged and recorded
+     * in the run history like a sync.
+     */
+    public int runVerify(BackupItem b) {
+        try {
+            FileOutputStream logFile = mContext.openFileOutput(b.getLogFileName(), Context.MODE_PRIVATE);
+            logFile.write((new Date().toString() + " \n\nVerifying '" + b.name + "'\n\n").getBytes());
+
+            if (b.engine != BackupItem.Engine.RSYNC) {
+                logFile.write("ERROR: Chunked backups can't be verified file by file. Please use restore.sh in the chunk store.\n".getBytes());
+                logFile.close();
+                return -1;
+            }
+
+            List<Server> servers = getServers(b, logFile);
+            if (servers == null) {
+                logFile.close();
+                return -1;
+            }
+
+            RunHistory.Run run = new RunHistory.Run(b.name, System.currentTimeMillis(), isMeteredNetwork());
+            RsyncStats stats;
+            int errno;
+
+            // the files of a snapshot profile are in its latest snapshot
+            BackupItem target = b.hasSnapshots() ? Snapshots.getLatest(b) : b;
+
+            for (int i = 0; ; i++) {
+                RsyncCommand cmd = new RsyncCommand();
+                int ret = buildRsyncCommand(target, servers.get(i), cmd, logFile);
+                if (ret != 0) {
+                    logFile.close();
+                    return ret;
+                }
+
+                cmd.options.add("--stats");
+
+                stats = new RsyncStats();
+                errno = new IntegrityVerifier(mContext, this).verify(target, cmd, logFile, stats);
+
+                run.endpoint = cmd.endpoint;
+                run.policy = IntegrityVerifier.POLICY;
+
+                if (!failOver(servers, i, errno, logFile)) {
+                    break;
+                }
+            }
+
+            run.duration = System.currentTimeMillis() - run.start;
+            run.exitCode = errno;
+            run.setStats(stats);
+            new RunHistory(mContext).record(run);
+
+            if (errno != 0) {
+                logFile.write(("\nVerify FAILED (error code " + errno + ").\n").getBytes());
+            } else {
+                logFile.write("\nVerify complete.\n".getBytes());
+            }
+
+            logFile.close();
+
+            return errno;
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Run all profiles of batch with a single rsync invocation. Each profile
+     * gets its own log and run history entry; bytes that can't be put down to
+     * a file (file lists, checksums, protocol overhead) are split evenly, and
+     * the run's duration by bytes. Returns the exit code of every profile of
+     * the batch: rsync's, except where it only complained about files of
+     * other profiles (see ProfileBatch.getExitCode()). Incoming profiles whose
+     * sources are unchanged on the server are left out, as runBackup() does.
+     */
+    public Map<BackupItem, Integer> runBatch(ProfileBatch batch) {
+        Map<BackupItem, Integer> results = new LinkedHashMap<>();
+
+        if (batch.size() == 1) {
+            results.put(batch.getItems().get(0), runBackup(batch.getItems().get(0)));
+            return results;
+        }
+
+        Map<BackupItem, OutputStream> logs = new LinkedHashMap<>();
+        Object token = new Object();
+
+        try {
+            for (BackupItem b : batch.getItems()) {
+                FileOutputStream logFile = mContext.openFileOutput(b.getLogFileName(), Context.MODE_PRIVATE);
+                logs.put(b, logFile);
+
+                updateBackupTimestamp(b);
+                logFile.write((b.lastUpdate.toString() + " \n\n").getBytes());
+            }
+
+            BackupItem merged = batch.getMerged();
+            ProfileBatch.BatchLog log = new ProfileBatch.BatchLog(batch, logs);
+            log.write(("Sent in one run with: " + merged.name + "\n\n").getBytes());
+
+            List<Server> servers = getServers(merged, log);
+            if (servers == null) {
+                return failBatch(batch, logs, -1, results);
+            }
+
+            long start = System.currentTimeMillis();
+            boolean metered = isMeteredNetwork();
+            RsyncCommand cmd;
+            RsyncStats stats;
+            int errno;
+
+            // change tokens of the first server, what is recorded if the run gets through there
+            Map<BackupItem, String> tokens = null;
+            long tokenTime = 0;
+
+            for (int i = 0; ; i++) {
+                cmd = new RsyncCommand();
+                int ret = buildRsyncCommand(merged, servers.get(i), cmd, log);
+                if (ret == 0 && merged.direction == BackupItem.Direction.INCOMING) {
+                    ret = checkFreeSpace(merged, log);
+                }
+
+                if (ret != 0) {
+                    return failBatch(batch, logs, ret, results);
+                }
+
+                if (i == 0 && tokens == null && merged.direction == BackupItem.Direction.INCOMING && cmd.login != null &&
+                        PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(SettingsFragment.KEY_SKIP_UNCHANGED, true)) {
+                    tokens = new LinkedHashMap<>();
+                    tokenTime = System.currentTimeMillis();
+                    List<BackupItem> unchanged = new ArrayList<>();
+                    RemoteWatcher watcher = new RemoteWatcher(mContext);
+
+                    for (BackupItem b : batch.getItems()) {
+                        String t = watcher.getToken(b, cmd, logs.get(b));
+                        tokens.put(b, t);
+                        if (t != null && watcher.isUnchanged(b, cmd.login, t)) {
+                            unchanged.add(b);
+                        }
+                    }
+
+                    for (BackupItem b : unchanged) {
+                        OutputStream logFile = logs.remove(b);
+                        logFile.write("Server unchanged since the last sync, nothing to fetch\n".getBytes());
+
+                        RunHistory.Run run = new RunHistory.Run(b.name, start, metered);
+                        run.duration = System.currentTimeMillis() - start;
+                        run.exitCode = 0;
+                        run.endpoint = cmd.endpoint;
+                        run.policy = RemoteWatcher.POLICY;
+                        new RunHistory(mContext).record(run);
+
+                        results.put(b, 0);
+                        logFile.write("\nSync complete.\n".getBytes());
+                        logFile.close();
+                    }
+
+                    if (unchanged.size() == batch.size()) {
+                        return results;
+                    }
+
+                    // the rest is fetched as a smaller batch
+                    if (!unchanged.isEmpty()) {
+                        batch = batch.without(unchanged);
+                        merged = batch.getMerged();
+                        log = new ProfileBatch.BatchLog(batch, logs);
+                        i--;
+                        continue;
+                    }
+                }
+
+                cmd.options.add("--stats");
+                // names and sizes of the files sent, to tell the profiles apart
+                cmd.options.add("--out-format=" + ProfileBatch.OUT_FORMAT);
+
+                limitBandwidth(token, cmd);
+
+                /*
+                 * RUN PROCESS
+                 */
+
+                stats = new RsyncStats();
+                errno = runRsync(cmd, log, stats);
+
+                if (!failOver(servers, i, errno, log)) {
+                    break;
+                }
+
+                // fetched from another server, whose tokens weren't taken
+                tokens = null;
+            }
+
+            long duration = System.currentTimeMillis() - start;
+            int n = batch.size();
+
+            long attributed = 0;
+            for (BackupItem b : batch.getItems()) {
+                attributed += log.getResult(b).bytes;
+            }
+
+            // the file data goes one way, the rest is shared out
+            long dataSide = merged.direction == BackupItem.Direction.OUTGOING ? stats.bytesSent : stats.bytesReceived;
+            long otherSide = merged.direction == BackupItem.Direction.OUTGOING ? stats.bytesReceived : stats.bytesSent;
+            long overhead = Math.max(0, dataSide - attributed) / n;
+            long otherShare = Math.max(0, otherSide) / n;
+            long total = attributed + overhead * n + otherShare * n;
+
+            RunHistory history = new RunHistory(mContext);
+
+            for (BackupItem b : batch.getItems()) {
+                ProfileBatch.Result r = log.getResult(b);
+                int code = batch.getExitCode(b, log, errno);
+                results.put(b, code);
+
+                RunHistory.Run run = new RunHistory.Run(b.name, start, metered);
+                // time goes where the bytes went, so throughput and ETAs stay per profile
+                run.duration = total > 0 ? duration * (r.bytes + overhead + otherShare) / total : duration / n;
+                run.exitCode = code;
+                run.filesTransferred = r.files;
+                run.transferredSize = r.size;
+                run.endpoint = cmd.endpoint;
+                run.policy = cmd.policy;
+
+                if (merged.direction == BackupItem.Direction.OUTGOING) {
+                    run.bytesSent = r.bytes + overhead;
+                    run.bytesReceived = otherShare;
+                } else {
+                    run.bytesReceived = r.bytes + overhead;
+                    run.bytesSent = otherShare;
+                }
+
+                history.record(run);
+                TransferEstimator.invalidate(b);
+
+                // what the server is checked against next time
+                if (code == 0 && tokens != null && tokens.get(b) != null) {
+                    new RemoteWatcher(mContext).record(b, cmd.login, tokens.get(b), tokenTime);
+                }
+
+                OutputStream logFile = logs.get(b);
+                if (code != 0) {
+                    logFile.write(("\nSync FAILED (error code " + code + ").\n").getBytes());
+                } else {
+                    logFile.write("\nSync complete.\n".getBytes());
+                }
+            }
+
+            return results;
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            BandwidthBudget.getInstance().release(token);
+
+            for (OutputStream logFile : logs.values()) {
+                try {
+                    logFile.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close log: " + e.toString());
+                }
+            }
+        }
+    }
+
+    /* end every profile of batch with errno, adding them to results */
+    private static Map<BackupItem, Integer> failBatch(ProfileBatch batch, Map<BackupItem, OutputStream> logs, int errno,
+                                                      Map<BackupItem, Integer> results) throws IOException {
+        for (BackupItem b : batch.getItems()) {
+            results.put(b, errno);
+
+            OutputStream logFile = logs.get(b);
+            if (logFile != null) {
+                logFile.write(("\nSync FAILED (error code " + errno + ").\n").getBytes());
+            }
+        }
+
+        return results;
+    }
+
+    /*
+     * Whether a run on servers[i] that ended with errno should be tried again
+     * on the next server, which is then written to log.
+     */
+    private boolean failOver(List<Server> servers, int i, int errno, OutputStream log) throws IOException {
+        if (!isConnectFailure(errno) || i + 1 >= servers.size()) {
+            return false;
+        }
+
+        ServerPool.markDown(servers.get(i));
+        log.write(("\nCould not reach " + servers.get(i) + " (error code " + errno + "), trying " + servers.get(i + 1) + "\n\n").getBytes());
+        return true;
+    }
+
+    /*
+     * Keep root shells open until endRootSession(), so a batch of runs as root
+     * costs one su (one per concurrent shard) instead of one per run.
+     */
+    public void beginRootSession() {
+        synchronized (mRootShells) {
+            mRootSession = true;
+        }
+    }
+
+    public void endRootSession() {
+        synchronized (mRootShells) {
+            mRootSession = false;
+
+            for (RootShell shell : mRootShells) {
+                shell.close();
+            }
+            mRootShells.clear();
+        }
+    }
+
+    private RootShell takeRootShell() throws IOException {
+        synchronized (mRootShells) {
+            if (!mRootShells.isEmpty()) {
+                return mRootShells.remove(mRootShells.size() - 1);
+            }
+        }
+
+        return RootShell.open();
+    }
+
+    private void returnRootShell(RootShell shell) {
+        synchronized (mRootShells) {
+            if (mRootSession) {
+                mRootShells.add(shell);
+                return;
+            }
+        }
+
+        shell.close();
+    }
+
+    /* give rsync run with cmd run's share of the global bandwidth cap as --bwlimit, see runLimited() */
+    private static void limitBandwidth(Object run, RsyncCommand cmd) {
+        cmd.budget = run;
+    }
+
+    /* let streams sent by java with cmd draw from run's share as it changes (see BandwidthBudget.throttle()) */
+    private void throttleBandwidth(Object run, RsyncCommand cmd) throws InterruptedException {
+        BandwidthBudget.getInstance().acquire(run, getBandwidthCap(), BandwidthBudget.parseBwlimit(cmd.options), BandwidthBudget.FOLLOW);
+        cmd.budget = run;
+    }
+
+    /*
+     * Send the sources of b as up to b.shards rsync processes running side by
+     * side, each given its part of the tree with --files-from. Output of all
+     * shards goes to log, prefixed with the shard number. The shards split
+     * the run's one share of the bandwidth budget (cmd.budget). --files-from
+     * only deletes among the files listed, so with a --delete option a last
+     * pass that sends nothing deletes the rest. Returns 0 if every shard
+     * succeeded, else the exit code of the first one that failed.
+     */
+    private int runSharded(BackupItem b, RsyncCommand cmd, final OutputStream log, RsyncStats stats) throws IOException, InterruptedException {
+        List<ShardPlanner.Shard> shards;
+        try {
+            ShardPlanner planner = new ShardPlanner();
+            planner.setFilter(FilterRules.forProfile(mContext, b));
+            shards = planner.plan(b.sources, b.shards);
+        } catch (IOException e) {
+            log.write(("ERROR: " + e.getMessage() + "\n").getBytes());
+            return -1;
+        }
+
+        final int n = shards.size();
+        log.write(("Sending in " + n + " parallel streams\n\n").getBytes());
+
+        // the shards share the run's share, a restart stops all of them
+        final Object run = cmd.budget;
+        final Restart restart = cmd.as_root ? null : new Restart();
+        if (run != null) {
+            int bwlimit = BandwidthBudget.getInstance().acquire(run, getBandwidthCap(), BandwidthBudget.parseBwlimit(cmd.options), restart);
+            if (bwlimit > 0) {
+                log.write(("Bandwidth limit: " + bwlimit + " KB/s, " + Math.max(1, bwlimit / n) + " KB/s per stream\n\n").getBytes());
+            }
+        }
+
+        String destination = cmd.paths.get(cmd.paths.size() - 1);
+        final int[] results = new int[n];
+        final RsyncStats[] shardStats = new RsyncStats[n];
+        final int[] finished = {0};
+        List<Thread> threads = new ArrayList<>();
+        final List<File> fileLists = new ArrayList<>();
+
+        for (int i = 0; i < n; i++) {
+            final List<RsyncCommand> commands = new ArrayList<>();
+
+            for (ShardPlanner.Unit list : shards.get(i).getFileLists()) {
+                File f = new File(mContext.getCacheDir(), "shard_" + Uri.encode(b.name) + "_" + i + "_" + commands.size());
+                fileLists.add(f);
+
+                // NUL separated, file names may contain newlines
+                FileOutputStream out = new FileOutputStream(f);
+                for (String path : list.paths) {
+                    out.write(path.getBytes("UTF-8"));
+                    out.write(0);
+                }
+                out.close();
+
+                // --files-from turns off the recursion -a implies
+                RsyncCommand c = new RsyncCommand(cmd);
+                c.budget = null;
+                c.options.add("-r");
+                c.options.add("--from0");
+                c.options.add("--files-from=" + f.getAbsolutePath());
+                c.paths.clear();
+                c.paths.add(list.base);
+                c.paths.add(destination);
+                commands.add(c);
+            }
+
+            final int k = i;
+            final OutputStream shardLog = new ShardOutputStream(log, "[" + (k + 1) + "/" + n + "] ");
+            shardStats[k] = new RsyncStats();
+
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int ret = 0;
+                        for (RsyncCommand c : commands) {
+                            RsyncStats s;
+
+                            while (true) {
+                                int generation = restart == null ? 0 : restart.getGeneration();
+                                int share = run == null ? 0 : BandwidthBudget.getInstance().getShare(run);
+
+                                RsyncCommand r = new RsyncCommand(c);
+                                if (share > 0) {
+                                    r.options.add("--bwlimit=" + Math.max(1, share / n));
+                                }
+
+                                s = new RsyncStats();
+                                ret = runRsync(r, shardLog, s, restart, generation);
+                                if (restart == null || restart.getGeneration() == generation) {
+                                    break;
+                                }
+
+                                shardLog.write("Another run needs part of the bandwidth, starting rsync again with less\n".getBytes());
+                            }
+                            shardStats[k].add(s);
+
+                            if (ret != 0) {
+                                break;
+                            }
+                        }
+                        results[k] = ret;
+
+                        synchronized (finished) {
+                            finished[0]++;
+                            shardLog.write(("Stream finished with code " + ret + " (" + finished[0] + " of " + n + " done)\n").getBytes());
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        Log.e(TAG, "Shard " + (k + 1) + " failed: " + e.toString());
+                        results[k] = -1;
+                    }
+                }
+            });
+
+            threads.add(t);
+            t.start();
+        }
+
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } finally {
+            for (File f : fileLists) {
+                f.delete();
+            }
+        }
+
+        int errno = 0;
+        for (int i = 0; i < n; i++) {
+            stats.add(shardStats[i]);
+
+            if (errno == 0) {
+                errno = results[i];
+            }
+        }
+
+        if (errno == 0 && MoveDetector.deletes(cmd.options)) {
+            log.write("\nDeleting what is gone from the sources\n\n".getBytes());
+
+            // the whole tree, sending nothing
+            RsyncCommand d = new RsyncCommand(cmd);
+            d.options.add("--existing");
+            d.options.add("--ignore-existing");
+
+            RsyncStats s = new RsyncStats();
+            errno = runRsync(d, log, s);
+            stats.add(s);
+        }
+
+        return errno;
+    }
+
+    /* prefixes every line written by a shard, lines of different shards don't interleave */
+    private static class ShardOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final byte[] mPrefix;
+
+        ShardOutputStream(OutputStream out, String prefix) {
+            mOut = out;
+            mPrefix = prefix.getBytes();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (mOut) {
+                mOut.write(mPrefix);
+                mOut.write(b, off, len);
+            }
+        }
+    }
+
+    /*
+     * Refuse an INCOMING run whose planned transfer doesn't fit on the
+     * destination's filesystem. If no plan can be made, the run goes ahead
+     * and rsync reports whatever is wrong.
+     */
+    private int checkFreeSpace(BackupItem b, OutputStream log) throws IOException {
+        TransferEstimator estimator = new TransferEstimator(mContext, this);
+        long size;
+
+        // a dry run costs as much as the sync's own file list, so only without a recent size
+        TransferEstimator.Plan plan = TransferEstimator.getCachedPlan(b);
+        long recent = plan == null ? estimator.getRecentSize(b) : -1;
+
+        if (plan == null && recent >= 0) {
+            size = recent;
+            log.write(("Recent runs transferred up to " + TransferEstimator.formatSize(size) + "\n\n").getBytes());
+        } else {
+            if (plan == null) {
+                plan = estimator.getPlan(b);
+            }
+
+            if (plan == null) {
+                log.write("Could not estimate transfer size, skipping free space check.\n\n".getBytes());
+                return 0;
+            }
+
+            size = plan.transferredSize;
+            log.write((estimator.describe(b, plan) + "\n\n").getBytes());
+        }
+
+        long free = TransferEstimator.getUsableSpace(b.destination);
+        if (free < 0 || size + TransferEstimator.FREE_SPACE_MARGIN <= free) {
+            return 0;
+        }
+
+        log.write(("ERROR: Not enough free space on " + b.destination + ": transfer needs " +
+                   TransferEstimator.formatSize(size) + ", " +
+                   TransferEstimator.formatSize(free) + " available.\n").getBytes());
+        return ERROR_NO_SPACE;
+    }
+
+    /*
+     * Check whether b may run on the current network without going over its
+     * metered data quota. The size of the run comes from a fresh transfer plan
+     * if there is one, else from the profile's history, else from a dry run.
+     * Plans count file bytes, which are turned into bytes on the wire like
+     * the quota (see TransferEstimator.getWireBytes()).
+     */
+    public int checkDataQuota(BackupItem b) {
+        if (!b.hasMeteredQuota() || !isMeteredNetwork()) {
+            return 0;
+        }
+
+        RunHistory history = new RunHistory(mContext);
+        long quota = b.metered_quota * 1024 * 1024;
+        long used = history.getMeteredUsage(b.name, RunHistory.getPeriodStart(b.quota_period, System.currentTimeMillis()));
+        long estimate = history.estimateWireBytes(b.name);
+
+        TransferEstimator estimator = new TransferEstimator(mContext, this);
+        TransferEstimator.Plan plan = TransferEstimator.getCachedPlan(b);
+        if (plan == null && estimate < 0) {
+            plan = estimator.getPlan(b);
+        }
+
+        if (plan != null) {
+            estimate = estimator.getWireBytes(b, plan.transferredSize);
+        }
+
+        String reason = null;
+        if (estimate < 0) {
+            reason = "its transfer size could not be estimated";
+        } else if (used + estimate > quota) {
+            reason = "estimated " + (estimate / 1024) + " KB would exceed the remaining " +
+                     (Math.max(0, quota - used) / 1024) + " KB of its " + b.quota_period.name().toLowerCase() + " quota";
+        }
+
+        if (reason == null) {
+            return 0;
+        }
+
+        Log.d(TAG, "Deferring " + b.name + " until Wifi: " + reason);
+
+        try {
+            FileOutputStream logFile = mContext.openFileOutput(b.getLogFileName(), Context.MODE_PRIVATE);
+            logFile.write((new Date().toString() + " \n\n").getBytes());
+            logFile.write(("Deferred until Wifi is available: " + reason + ".\n").getBytes());
+            logFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write log for " + b.name + ": " + e.toString());
+        }
+
+        setRunOnWifi(true);
+        return ERROR_QUOTA_EXCEEDED;
+    }
+
+    public boolean isMeteredNetwork() {
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return cm != null && cm.isActiveNetworkMetered();
+    }
+
+    /*
+     * global bandwidth cap (KB/s) for the current network type, 0 if unlimited
+     */
+    public int getBandwidthCap() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+
+        String key = SettingsFragment.KEY_BWLIMIT_WIFI;
+        if (isMeteredNetwork()) {
+            key = SettingsFragment.KEY_BWLIMIT_METERED;
+        }
+
+        try {
+            return Integer.parseInt(prefs.getString(key, "0"));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid bandwidth limit for " + key + ": " + e.toString());
+            return 0;
+        }
+    }
+
+    public boolean canRunBackup() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        boolean wifi_only = prefs.getBoolean(SettingsFragment.KEY_WIFI_ONLY, false);
+        String wifi_name = prefs.getString(SettingsFragment.KEY_WIFI_NAME, "");
+
+        if (!wifi_only) {
+            return true;
+        }
+
+        String ssid = getWifiSsid();
+        if (ssid == null) {
+            return false;
+        }
+
+        if (wifi_name.equals("")) {
+	       return true;
+        }
+
+        Log.d(TAG, "ssid: " + ssid);
+        for (String name : wifi_name.split(";")) {
+            if (ssid.equals(name)) {
+                Log.d(TAG, ssid + " matches " + name);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /* name of the Wifi network we're connected to, or null if not connected */
+    public String getWifiSsid() {
+        WifiManager wifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+        if (!wifiManager.isWifiEnabled()) {
+            Log.d(TAG, "Wifi not enabled");
+            return null;
+        }
+
+        WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+        if (wifiInfo == null) {
+            Log.e(TAG, "Cannot get Wifi info from WifiManager");
+            return null;
+        }
+
+        SupplicantState state = wifiInfo.getSupplicantState();
+        if (state != SupplicantState.COMPLETED) {
+            Log.d(TAG, "SupplicantState.COMPLETED is false");
+            return null;
+        }
+
+        String ssid = wifiInfo.getSSID();
+        if (ssid.startsWith("\"")) {
+            ssid = ssid.replaceAll("^\"|\"$", "");
+        }
+
+        return ssid;
     }
 
     public void setRunOnWifi(boolean run) {
         SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(mContext).edit();
-        editor.putBoolean("RunOnWifi", true);
+        editor.putBoolean("RunOnWifi", run);
         editor.apply();
     }
 
@@ -516,5 +1972,7 @@ public class BackupHandler implements IBackupHandler {
 
     public void syncBackups() {}
     public void showLog(BackupItem b) {}
+    public void estimateBackup(BackupItem b) {}
+    public void verifyBackup(BackupItem b) {}
     public int editBackup(BackupItem b) {return 0;}
 }
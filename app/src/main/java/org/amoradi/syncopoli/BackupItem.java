@@ -20,6 +20,18 @@ class BackupItem implements Parcelable {
         OUTGOING
     };
 
+    public enum QuotaPeriod {
+        NONE,
+        DAILY,
+        MONTHLY
+    };
+
+    /* how an OUTGOING profile is stored on the server: rsync'd files, or chunks (see ChunkStore) */
+    public enum Engine {
+        RSYNC,
+        CHUNKS
+    };
+
     public String name;
     public String[] sources;
     public String destination;
@@ -28,6 +40,27 @@ class BackupItem implements Parcelable {
 
     public String rsync_options;
 
+    /* cap on data used over metered networks per quota_period, in MB */
+    public long metered_quota = 0;
+    public QuotaPeriod quota_period = QuotaPeriod.NONE;
+
+    /* parallel rsync streams for OUTGOING runs, 0 or 1 to send everything in one */
+    public int shards = 0;
+
+    /* name of the server or pool to use, "" for the one in the settings */
+    public String server = "";
+
+    /* rsync filter rules, one per line, see FilterRules */
+    public String filters = "";
+
+    /* other servers or pools an OUTGOING profile is sent to as well, see Mirrors */
+    public String mirrors = "";
+
+    public Engine engine = Engine.RSYNC;
+
+    /* snapshots an OUTGOING profile keeps on the server, like "24h 7d 4w", "" for none, see Snapshots */
+    public String snapshots = "";
+
     public BackupItem() {
     }
 
@@ -43,6 +76,14 @@ class BackupItem implements Parcelable {
         this.lastUpdate = other.lastUpdate;
         this.direction = other.direction;
         this.rsync_options = other.rsync_options;
+        this.metered_quota = other.metered_quota;
+        this.quota_period = other.quota_period;
+        this.shards = other.shards;
+        this.server = other.server;
+        this.filters = other.filters;
+        this.mirrors = other.mirrors;
+        this.engine = other.engine;
+        this.snapshots = other.snapshots;
     }
 
     @Override
@@ -58,6 +99,18 @@ class BackupItem implements Parcelable {
 		return 0;
 	}
 
+	public boolean hasMeteredQuota() {
+		return quota_period != QuotaPeriod.NONE && metered_quota > 0;
+	}
+
+	public boolean isSharded() {
+		return shards > 1 && direction == Direction.OUTGOING;
+	}
+
+	public boolean hasSnapshots() {
+		return direction == Direction.OUTGOING && engine == Engine.RSYNC && snapshots != null && !snapshots.trim().equals("");
+	}
+
 	public String getSourcesAsString() {
         if (sources != null) {
             return TextUtils.join("\n", sources);
@@ -96,6 +149,14 @@ class BackupItem implements Parcelable {
 		}
 
 		out.writeString(rsync_options);
+		out.writeLong(metered_quota);
+		out.writeString(quota_period.name());
+		out.writeInt(shards);
+		out.writeString(server);
+		out.writeString(filters);
+		out.writeString(mirrors);
+		out.writeString(engine.name());
+		out.writeString(snapshots);
 	}
 	
 	public static final Parcelable.Creator<BackupItem> CREATOR
@@ -124,6 +185,14 @@ class BackupItem implements Parcelable {
 			}
 
 			b.rsync_options = in.readString();
+			b.metered_quota = in.readLong();
+			b.quota_period = QuotaPeriod.valueOf(in.readString());
+			b.shards = in.readInt();
+			b.server = in.readString();
+			b.filters = in.readString();
+			b.mirrors = in.readString();
+			b.engine = Engine.valueOf(in.readString());
+			b.snapshots = in.readString();
 
 			return b;
 		}
@@ -18,18 +18,111 @@ public class BackupSyncOpenHelper extends SQLiteOpenHelper {
                    BackupSyncSchema.COLUMN_DESTINATION  + " text, " +
                    BackupSyncSchema.COLUMN_LAST_UPDATE  + " text, " +
                    BackupSyncSchema.COLUMN_DIRECTION    + " text, " +
-                   BackupSyncSchema.COLUMN_RSYNC_OPTIONS+ " text);");
+                   BackupSyncSchema.COLUMN_RSYNC_OPTIONS+ " text, " +
+                   BackupSyncSchema.COLUMN_METERED_QUOTA+ " integer default 0, " +
+                   BackupSyncSchema.COLUMN_QUOTA_PERIOD + " text default 'NONE', " +
+                   BackupSyncSchema.COLUMN_SHARDS       + " integer default 0, " +
+                   BackupSyncSchema.COLUMN_SERVER       + " text default '', " +
+                   BackupSyncSchema.COLUMN_FILTERS      + " text default '', " +
+                   BackupSyncSchema.COLUMN_MIRRORS      + " text default '', " +
+                   BackupSyncSchema.COLUMN_ENGINE       + " text default 'RSYNC', " +
+                   BackupSyncSchema.COLUMN_SNAPSHOTS    + " text default '');");
+
+        createHistoryTable(db);
+        createHashTable(db);
+    }
+
+    private void createHistoryTable(SQLiteDatabase db) {
+        db.execSQL("create table " + BackupSyncSchema.HISTORY_TABLE_NAME + " (" +
+                   BackupSyncSchema.HISTORY_COLUMN_PROFILE            + " text, " +
+                   BackupSyncSchema.HISTORY_COLUMN_START              + " integer, " +
+                   BackupSyncSchema.HISTORY_COLUMN_DURATION           + " integer, " +
+                   BackupSyncSchema.HISTORY_COLUMN_EXIT_CODE          + " integer, " +
+                   BackupSyncSchema.HISTORY_COLUMN_METERED            + " integer, " +
+                   BackupSyncSchema.HISTORY_COLUMN_BYTES_SENT         + " integer, " +
+                   BackupSyncSchema.HISTORY_COLUMN_BYTES_RECEIVED     + " integer, " +
+                   BackupSyncSchema.HISTORY_COLUMN_FILES_TRANSFERRED  + " integer, " +
+                   BackupSyncSchema.HISTORY_COLUMN_TRANSFERRED_SIZE   + " integer, " +
+                   BackupSyncSchema.HISTORY_COLUMN_ENDPOINT           + " text, " +
+                   BackupSyncSchema.HISTORY_COLUMN_POLICY             + " text, " +
+                   BackupSyncSchema.HISTORY_COLUMN_FILE_LIST_TIME     + " integer default 0);");
+    }
+
+    private void createHashTable(SQLiteDatabase db) {
+        db.execSQL("create table " + BackupSyncSchema.HASH_TABLE_NAME + " (" +
+                   BackupSyncSchema.HASH_COLUMN_PATH  + " text primary key, " +
+                   BackupSyncSchema.HASH_COLUMN_SIZE  + " integer, " +
+                   BackupSyncSchema.HASH_COLUMN_MTIME + " integer, " +
+                   BackupSyncSchema.HASH_COLUMN_HASH  + " text);");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion == 2) {
+        if (oldVersion < 2 || oldVersion > newVersion) {
+            db.execSQL("drop table if exists " + BackupSyncSchema.TABLE_NAME + ";");
+            db.execSQL("drop table if exists " + BackupSyncSchema.HISTORY_TABLE_NAME + ";");
+            db.execSQL("drop table if exists " + BackupSyncSchema.HASH_TABLE_NAME + ";");
+            onCreate(db);
+            return;
+        }
+
+        if (oldVersion < 3) {
             // missing COLUMN_RSYNC_OPTIONS
             db.execSQL("alter table " + BackupSyncSchema.TABLE_NAME + " add column " + BackupSyncSchema.COLUMN_RSYNC_OPTIONS + " text;");
             db.execSQL("update " + BackupSyncSchema.TABLE_NAME + " set " + BackupSyncSchema.COLUMN_RSYNC_OPTIONS + " = '';");
-        } else {
-            db.execSQL("drop table " + BackupSyncSchema.TABLE_NAME + ";");
-            onCreate(db);
+        }
+
+        if (oldVersion < 4) {
+            // metered quota and run history
+            db.execSQL("alter table " + BackupSyncSchema.TABLE_NAME + " add column " + BackupSyncSchema.COLUMN_METERED_QUOTA + " integer default 0;");
+            db.execSQL("alter table " + BackupSyncSchema.TABLE_NAME + " add column " + BackupSyncSchema.COLUMN_QUOTA_PERIOD + " text default 'NONE';");
+            createHistoryTable(db);
+        }
+
+        if (oldVersion < 5) {
+            // directory sharding
+            db.execSQL("alter table " + BackupSyncSchema.TABLE_NAME + " add column " + BackupSyncSchema.COLUMN_SHARDS + " integer default 0;");
+        }
+
+        if (oldVersion < 6) {
+            // server per profile
+            db.execSQL("alter table " + BackupSyncSchema.TABLE_NAME + " add column " + BackupSyncSchema.COLUMN_SERVER + " text default '';");
+        }
+
+        if (oldVersion < 7 && oldVersion >= 4) {
+            // endpoint and transfer policy of each run, new history tables already have them
+            db.execSQL("alter table " + BackupSyncSchema.HISTORY_TABLE_NAME + " add column " + BackupSyncSchema.HISTORY_COLUMN_ENDPOINT + " text;");
+            db.execSQL("alter table " + BackupSyncSchema.HISTORY_TABLE_NAME + " add column " + BackupSyncSchema.HISTORY_COLUMN_POLICY + " text;");
+        }
+
+        if (oldVersion < 8) {
+            // hashes of local files for verifying
+            createHashTable(db);
+        }
+
+        if (oldVersion < 9) {
+            // filter rules per profile
+            db.execSQL("alter table " + BackupSyncSchema.TABLE_NAME + " add column " + BackupSyncSchema.COLUMN_FILTERS + " text default '';");
+        }
+
+        if (oldVersion < 10) {
+            // more servers per profile
+            db.execSQL("alter table " + BackupSyncSchema.TABLE_NAME + " add column " + BackupSyncSchema.COLUMN_MIRRORS + " text default '';");
+        }
+
+        if (oldVersion < 11) {
+            // chunked backups
+            db.execSQL("alter table " + BackupSyncSchema.TABLE_NAME + " add column " + BackupSyncSchema.COLUMN_ENGINE + " text default 'RSYNC';");
+        }
+
+        if (oldVersion < 12) {
+            // snapshots on the server
+            db.execSQL("alter table " + BackupSyncSchema.TABLE_NAME + " add column " + BackupSyncSchema.COLUMN_SNAPSHOTS + " text default '';");
+        }
+
+        if (oldVersion < 13 && oldVersion >= 4) {
+            // how long each run spent on the file list
+            db.execSQL("alter table " + BackupSyncSchema.HISTORY_TABLE_NAME + " add column " + BackupSyncSchema.HISTORY_COLUMN_FILE_LIST_TIME + " integer default 0;");
         }
     }
 
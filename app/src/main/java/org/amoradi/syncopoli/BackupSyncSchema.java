@@ -2,7 +2,7 @@ package org.amoradi.syncopoli;
 
 public class BackupSyncSchema {
     public static final String DATABASE_NAME = "syncopoli";
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 13;
     public static final String TABLE_NAME = "backup_sync";
 
     public static final String COLUMN_TYPE = "type";
@@ -12,4 +12,34 @@ public class BackupSyncSchema {
     public static final String COLUMN_LAST_UPDATE = "last_update";
     public static final String COLUMN_DIRECTION = "direction";
     public static final String COLUMN_RSYNC_OPTIONS = "rsync_options";
+    public static final String COLUMN_METERED_QUOTA = "metered_quota";
+    public static final String COLUMN_QUOTA_PERIOD = "quota_period";
+    public static final String COLUMN_SHARDS = "shards";
+    public static final String COLUMN_SERVER = "server";
+    public static final String COLUMN_FILTERS = "filters";
+    public static final String COLUMN_MIRRORS = "mirrors";
+    public static final String COLUMN_ENGINE = "engine";
+    public static final String COLUMN_SNAPSHOTS = "snapshots";
+
+    public static final String HISTORY_TABLE_NAME = "run_history";
+
+    public static final String HISTORY_COLUMN_PROFILE = "profile";
+    public static final String HISTORY_COLUMN_START = "start";
+    public static final String HISTORY_COLUMN_DURATION = "duration";
+    public static final String HISTORY_COLUMN_EXIT_CODE = "exit_code";
+    public static final String HISTORY_COLUMN_METERED = "metered";
+    public static final String HISTORY_COLUMN_BYTES_SENT = "bytes_sent";
+    public static final String HISTORY_COLUMN_BYTES_RECEIVED = "bytes_received";
+    public static final String HISTORY_COLUMN_FILES_TRANSFERRED = "files_transferred";
+    public static final String HISTORY_COLUMN_TRANSFERRED_SIZE = "transferred_size";
+    public static final String HISTORY_COLUMN_ENDPOINT = "endpoint";
+    public static final String HISTORY_COLUMN_POLICY = "policy";
+    public static final String HISTORY_COLUMN_FILE_LIST_TIME = "file_list_time";
+
+    public static final String HASH_TABLE_NAME = "hash_cache";
+
+    public static final String HASH_COLUMN_PATH = "path";
+    public static final String HASH_COLUMN_SIZE = "size";
+    public static final String HASH_COLUMN_MTIME = "mtime";
+    public static final String HASH_COLUMN_HASH = "hash";
 }
@@ -0,0 +1,302 @@
+package org.amoradi.syncopoli;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Global bandwidth budget shared by every transfer running in this process.
+ *
+ * The cap (KiB/s) is split between the runs registered with acquire(), max-min
+ * fair: a run whose own --bwlimit is below its fair share keeps it and the
+ * rest goes to the others. The shares never add up to more than the cap, so a
+ * run that can't get MIN_SHARE waits in acquire() until another one ends.
+ *
+ * Transfers that move bytes through java (see throttle()) follow their share
+ * as it changes. rsync processes get theirs as --bwlimit, which rsync can't
+ * change once running: when a new run needs part of a share, the run's
+ * Listener is told to come down to the lower one (BackupHandler restarts
+ * rsync with it). A share that goes up is only used by the next start. Runs
+ * without a Listener (rsync through the root shell) can't come down, and
+ * keep their share to the end.
+ *
+ * A cap of 0 means unlimited.
+ */
+public class BandwidthBudget {
+    /* never hand out less than this (KiB/s), or a crowded budget stalls every run */
+    public static final int MIN_SHARE = 8;
+
+    public interface Listener {
+        /* the run has to come down to share (KiB/s) */
+        void onLowered(int share);
+    }
+
+    /* for runs throttled through throttle(), which follow their share by themselves */
+    public static final Listener FOLLOW = new Listener() {
+        @Override
+        public void onLowered(int share) {
+        }
+    };
+
+    private static class Share {
+        int requested;
+        int granted;
+        /* granted was set at least once */
+        boolean given = false;
+        Listener listener;
+
+        /* token bucket of throttle(), refilled at granted */
+        double tokens = 0;
+        long lastRefill;
+    }
+
+    private static BandwidthBudget sInstance;
+
+    private final Map<Object, Share> mShares = new LinkedHashMap<>();
+    private int mCap = 0;
+
+    /* for throttle() of runs that aren't registered */
+    private final Share mOther = new Share();
+
+    public static synchronized BandwidthBudget getInstance() {
+        if (sInstance == null) {
+            sInstance = new BandwidthBudget();
+        }
+
+        return sInstance;
+    }
+
+    /* clock of throttle(), in ns */
+    long now() {
+        return System.nanoTime();
+    }
+
+    /* wait for ms, or until the budget changes; called holding the lock */
+    void pause(long ms) throws InterruptedException {
+        wait(ms);
+    }
+
+    /* same as acquire(run, cap, requested, null): the share can't be lowered once given */
+    public int acquire(Object run, int cap, int requested) throws InterruptedException {
+        return acquire(run, cap, requested, null);
+    }
+
+    /*
+     * Register run and return the --bwlimit (KiB/s) it should use, or 0 if it
+     * is unrestricted. requested is the run's own --bwlimit (0 if none), which is
+     * never raised. listener is told when the share has to come down, null if
+     * it can't. Blocks while the cap has no room for the run.
+     */
+    public synchronized int acquire(Object run, int cap, int requested, Listener listener) throws InterruptedException {
+        setCap(cap);
+        mShares.remove(run);
+
+        Share s = new Share();
+        s.requested = requested;
+        s.listener = listener;
+        s.lastRefill = now();
+
+        while (mCap > 0 && !mShares.isEmpty() && getRoom() < MIN_SHARE) {
+            pause(0);
+        }
+
+        mShares.put(run, s);
+        rebalance();
+        return s.granted;
+    }
+
+    public synchronized void release(Object run) {
+        if (mShares.remove(run) != null) {
+            rebalance();
+        }
+        notifyAll();
+    }
+
+    public synchronized int getActiveRuns() {
+        return mShares.size();
+    }
+
+    public synchronized int getCap() {
+        return mCap;
+    }
+
+    /* the --bwlimit run was given, 0 if unrestricted or not registered */
+    public synchronized int getShare(Object run) {
+        Share s = mShares.get(run);
+        return s == null ? 0 : s.granted;
+    }
+
+    public synchronized void setCap(int cap) {
+        if (cap < 0) {
+            cap = 0;
+        }
+
+        if (cap != mCap) {
+            mCap = cap;
+            rebalance();
+        }
+    }
+
+    /* what fixed shares leave of the cap */
+    private int getPool() {
+        int pool = mCap;
+        for (Share s : mShares.values()) {
+            if (s.listener == null && s.given) {
+                pool -= s.granted;
+            }
+        }
+        return pool;
+    }
+
+    /* what a fair split of the cap would give s if it joined */
+    private int getRoom() {
+        int adjustable = 1;
+        for (Share o : mShares.values()) {
+            if (o.listener != null) {
+                adjustable++;
+            }
+        }
+        return getPool() / adjustable;
+    }
+
+    private static int getLimit(Share s) {
+        return s.requested > 0 ? s.requested : Integer.MAX_VALUE;
+    }
+
+    /*
+     * Split what fixed shares leave between the others, the smallest
+     * requests first, and tell those that have to come down.
+     */
+    private void rebalance() {
+        List<Share> shares = new ArrayList<>();
+        for (Share s : mShares.values()) {
+            // fixed shares are set once, when they are given
+            if (s.listener != null || !s.given) {
+                shares.add(s);
+            }
+        }
+
+        Collections.sort(shares, new Comparator<Share>() {
+            @Override
+            public int compare(Share a, Share b) {
+                return getLimit(a) < getLimit(b) ? -1 : (getLimit(a) == getLimit(b) ? 0 : 1);
+            }
+        });
+
+        int pool = getPool();
+        for (int i = 0; i < shares.size(); i++) {
+            Share s = shares.get(i);
+            int share = s.requested;
+
+            if (mCap > 0) {
+                share = Math.min(getLimit(s), Math.max(0, pool) / (shares.size() - i));
+                pool -= share;
+            }
+
+            if (!s.given || s.listener == FOLLOW) {
+                s.granted = share;
+                s.given = true;
+            } else if (share > 0 && (share < s.granted || s.granted == 0)) {
+                s.granted = share;
+                s.listener.onLowered(share);
+            }
+        }
+
+        notifyAll();
+    }
+
+    /*
+     * Block until run may send bytes without going over its share. The bucket
+     * holds at most one second worth of tokens, so idle periods can't be saved
+     * up into a burst that floods the link. A run that isn't registered has
+     * the whole cap.
+     */
+    public synchronized void throttle(Object run, long bytes) throws InterruptedException {
+        Share s = mShares.get(run);
+        if (s == null) {
+            s = mOther;
+            s.granted = mCap;
+        }
+
+        throttle(s, bytes);
+    }
+
+    private void throttle(Share s, long bytes) throws InterruptedException {
+        while (bytes > 0) {
+            if (s.granted == 0) {
+                return;
+            }
+
+            double rate = s.granted * 1024.0;
+            long now = now();
+            s.tokens = Math.min(rate, s.tokens + rate * (now - s.lastRefill) / 1e9);
+            s.lastRefill = now;
+
+            long take = (long) Math.min(bytes, s.tokens);
+            if (take > 0) {
+                s.tokens -= take;
+                bytes -= take;
+                continue;
+            }
+
+            long waitMs = (long) Math.ceil(Math.min(bytes, rate) / rate * 1000);
+            pause(Math.max(1, waitMs));
+        }
+    }
+
+    /*
+     * Parse the last --bwlimit given in args (rsync uses the last one), in KiB/s.
+     * Returns 0 if there is none or it can't be understood.
+     */
+    public static int parseBwlimit(Iterable<String> args) {
+        int limit = 0;
+        boolean next = false;
+
+        for (String a : args) {
+            String value = null;
+
+            if (next) {
+                value = a;
+                next = false;
+            } else if (a.equals("--bwlimit")) {
+                next = true;
+            } else if (a.startsWith("--bwlimit=")) {
+                value = a.substring("--bwlimit=".length());
+            }
+
+            if (value != null) {
+                limit = parseSize(value);
+            }
+        }
+
+        return limit;
+    }
+
+    private static int parseSize(String value) {
+        value = value.trim().toUpperCase();
+        int mult = 1;
+
+        if (value.endsWith("B")) {
+            value = value.substring(0, value.length() - 1);
+        }
+
+        if (value.endsWith("K")) {
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("M")) {
+            mult = 1024;
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("G")) {
+            mult = 1024 * 1024;
+            value = value.substring(0, value.length() - 1);
+        }
+
+        try {
+            return (int) (Double.parseDouble(value) * mult);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
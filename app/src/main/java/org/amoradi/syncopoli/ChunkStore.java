@@ -0,0 +1,722 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Backups of outgoing profiles as chunks (BackupItem.Engine.CHUNKS), kept
+ * in a store on the server that all such profiles logging in to it share.
+ * Files are cut into chunks by content (see Chunker), named by their
+ * SHA-256, and only chunks the store doesn't have yet are sent, packed
+ * together into files of up to PACK_SIZE. A chunk is stored once whichever
+ * file, profile or snapshot it turns up in.
+ *
+ * The store is a directory (KEY_CHUNK_STORE) on the server:
+ *
+ *   packs/ab/<pack>            chunks, one after the other
+ *   index/<pack>               "<chunk> <pack> <offset> <length>" per chunk
+ *   snapshots/<profile>/<time> "<mode> <size> <mtime ms> <chunk>,... <path>"
+ *                              per file, "-" for no chunks, \ and newlines
+ *                              in paths escaped as \\ and \n
+ *   restore.sh                 puts a snapshot back together as files
+ *
+ * Everything of a run goes in a single tar stream unpacked by tar -x over
+ * ssh, the snapshot last, under a dot name until tar is done. The phone
+ * keeps the index of the store and the last snapshot of each profile, so
+ * a file that didn't change since isn't read again. Index files of packs
+ * sent by other profiles or phones are fetched before each run.
+ */
+public class ChunkStore {
+    private static final String TAG = "Syncopoli";
+
+    /* in the run history for chunked backups */
+    public static final String POLICY = "chunks";
+
+    public static final String DEFAULT_STORE = "syncopoli-chunks";
+
+    static final long PACK_SIZE = 32L * 1024 * 1024;
+
+    static final String SNAPSHOT_HEADER = "# syncopoli snapshot 1";
+
+    /* index files fetched per ssh command */
+    private static final int FETCH_BATCH = 256;
+
+    static final String RESTORE_SCRIPT =
+            "#!/bin/sh\n" +
+            "# Puts a snapshot of this chunk store back together as files:\n" +
+            "#   sh restore.sh snapshots/PROFILE/SNAPSHOT TARGET\n" +
+            "# Needs awk, head and tail.\n" +
+            "[ $# -eq 2 ] || { echo 'usage: sh restore.sh snapshots/PROFILE/SNAPSHOT TARGET' >&2; exit 2; }\n" +
+            "t=$2\n" +
+            "case $t in /*) ;; *) t=$(pwd)/$t ;; esac\n" +
+            "cd \"$(dirname \"$0\")\" || exit 1\n" +
+            "[ -f \"$1\" ] || { echo \"no snapshot $1\" >&2; exit 1; }\n" +
+            "{ cat index/* 2>/dev/null; echo --; cat \"$1\"; } | awk -v t=\"$t\" '\n" +
+            "function q(s,   r, i) {\n" +
+            "  r = \"\"\n" +
+            "  while ((i = index(s, \"\\047\")) > 0) { r = r substr(s, 1, i - 1) \"\\047\\\\\\047\\047\"; s = substr(s, i + 1) }\n" +
+            "  return \"\\047\" r s \"\\047\"\n" +
+            "}\n" +
+            "# seconds since 1970 as touch -t takes them in UTC, POSIX touch has no -d @\n" +
+            "function stamp(s,   d, z, era, doe, yoe, y, doy, mp, m) {\n" +
+            "  d = int(s / 86400); if (d * 86400 > s) d--; s -= d * 86400\n" +
+            "  z = d + 719468; era = int(z / 146097); doe = z - era * 146097\n" +
+            "  yoe = int((doe - int(doe / 1460) + int(doe / 36524) - int(doe / 146096)) / 365)\n" +
+            "  doy = doe - (365 * yoe + int(yoe / 4) - int(yoe / 100)); mp = int((5 * doy + 2) / 153)\n" +
+            "  m = mp < 10 ? mp + 3 : mp - 9; y = yoe + era * 400 + (m <= 2)\n" +
+            "  return sprintf(\"%04d%02d%02d%02d%02d.%02d\", y, m, doy - int((153 * mp + 2) / 5) + 1, int(s / 3600), int(s % 3600 / 60), s % 60)\n" +
+            "}\n" +
+            "function unescape(s,   r, i, c) {\n" +
+            "  r = \"\"\n" +
+            "  for (i = 1; i <= length(s); i++) {\n" +
+            "    c = substr(s, i, 1)\n" +
+            "    if (c == \"\\\\\") { i++; c = substr(s, i, 1); if (c == \"n\") c = \"\\n\" }\n" +
+            "    r = r c\n" +
+            "  }\n" +
+            "  return r\n" +
+            "}\n" +
+            "!snap { if ($0 == \"--\") snap = 1; else if (NF == 4) { pack[$1] = $2; off[$1] = $3; len[$1] = $4 }; next }\n" +
+            "/^#/ { next }\n" +
+            "NF >= 5 {\n" +
+            "  p = $0\n" +
+            "  for (i = 0; i < 4; i++) sub(/^[^ ]+ /, \"\", p)\n" +
+            "  f = q(t \"/\" unescape(p))\n" +
+            "  print \"mkdir -p \\\"$(dirname \" f \")\\\" && : > \" f \" || exit 1\"\n" +
+            "  n = $4 == \"-\" ? 0 : split($4, c, \",\")\n" +
+            "  for (i = 1; i <= n; i++) {\n" +
+            "    if (!(c[i] in pack)) { print \"echo \" q(\"missing chunk \" c[i]) \" >&2; exit 1\"; continue }\n" +
+            "    print \"tail -c +\" (off[c[i]] + 1) \" packs/\" substr(pack[c[i]], 1, 2) \"/\" pack[c[i]] \" | head -c \" len[c[i]] \" >> \" f \" || exit 1\"\n" +
+            "  }\n" +
+            "  print \"chmod \" $1 \" \" f \"; TZ=UTC0 touch -t \" stamp(int($3 / 1000)) \" \" f\n" +
+            "}' | sh\n";
+
+    /* appends to the index files of the phone, shared by profiles */
+    private static final Object sIndexLock = new Object();
+
+    /* where a chunk is in the store */
+    static class Location {
+        final String pack;
+        final long offset;
+        final int length;
+
+        Location(String pack, long offset, int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /* a file of a snapshot */
+    static class Record {
+        String rel;
+        long size;
+        long mtime;
+        int mode;
+        List<String> chunks = new ArrayList<>();
+    }
+
+    private Context mContext;
+
+    public ChunkStore(Context ctx) {
+        mContext = ctx;
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static boolean isHash(String s) {
+        if (s.length() != 64) {
+            return false;
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0 || Character.isUpperCase(s.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String escape(String path) {
+        return path.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    static String unescape(String path) {
+        StringBuilder sb = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\\' && i + 1 < path.length()) {
+                c = path.charAt(++i);
+                if (c == 'n') {
+                    c = '\n';
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    static String format(Record r) {
+        StringBuilder chunks = new StringBuilder();
+        for (String c : r.chunks) {
+            chunks.append(chunks.length() > 0 ? "," : "").append(c);
+        }
+
+        return Integer.toOctalString(r.mode) + " " + r.size + " " + r.mtime + " " +
+                (r.chunks.isEmpty() ? "-" : chunks) + " " + escape(r.rel);
+    }
+
+    /* a line of a snapshot, null if it isn't one */
+    static Record parseRecord(String line) {
+        String[] f = line.split(" ", 5);
+        if (line.startsWith("#") || f.length != 5) {
+            return null;
+        }
+
+        Record r = new Record();
+        try {
+            r.mode = Integer.parseInt(f[0], 8);
+            r.size = Long.parseLong(f[1]);
+            r.mtime = Long.parseLong(f[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (!f[3].equals("-")) {
+            for (String c : f[3].split(",")) {
+                if (!isHash(c)) {
+                    return null;
+                }
+                r.chunks.add(c);
+            }
+        }
+
+        r.rel = unescape(f[4]);
+        return r;
+    }
+
+    /* a line of an index file into index, false if it isn't one (say cut short) */
+    static boolean parseLocation(String line, Map<String, Location> index) {
+        String[] f = line.split(" ");
+        if (f.length != 4 || !isHash(f[0]) || !isHash(f[1])) {
+            return false;
+        }
+
+        try {
+            index.put(f[0], new Location(f[1], Long.parseLong(f[2]), Integer.parseInt(f[3])));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private static List<String> readLines(File f) {
+        List<String> lines = new ArrayList<>();
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            reader.close();
+        } catch (FileNotFoundException e) {
+            // nothing kept yet
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + f + ": " + e.toString());
+        }
+
+        return lines;
+    }
+
+    static Map<String, Location> readIndex(File f) {
+        Map<String, Location> index = new HashMap<>();
+        for (String line : readLines(f)) {
+            parseLocation(line, index);
+        }
+        return index;
+    }
+
+    /* the files of a snapshot by path */
+    static Map<String, Record> readSnapshot(File f) {
+        Map<String, Record> records = new HashMap<>();
+        for (String line : readLines(f)) {
+            Record r = parseRecord(line);
+            if (r != null) {
+                records.put(r.rel, r);
+            }
+        }
+        return records;
+    }
+
+    static String getSnapshotName(long time) {
+        return new SimpleDateFormat("yyyy-MM-dd_HHmmss", Locale.ENGLISH).format(new Date(time));
+    }
+
+    /*
+     * The tar stream of a run: files go in with add(), their new chunks
+     * packed up in packFile until a pack is full, the snapshot is written
+     * to snapshotFile and goes in last with finish().
+     */
+    static class Writer {
+        private final TarWriter mTar;
+        private final File mPackFile;
+        private final File mSnapshotFile;
+        private final Map<String, Location> mKnown;
+        private final Map<String, Record> mPrevious;
+
+        private final MessageDigest mChunkDigest = sha256();
+        /* one buffer of Chunker.MAX_SIZE for all files */
+        private final Chunker mChunker = new Chunker(null);
+        private final MessageDigest mPackDigest = sha256();
+        private OutputStream mPack;
+        private long mPackSize = 0;
+        /* "<chunk> <offset> <length>" of the pack being filled */
+        private final List<String> mPackChunks = new ArrayList<>();
+        private final OutputStream mSnapshot;
+
+        /* chunks sent this run */
+        private final Set<String> mAdded = new HashSet<>();
+        private final List<String> mNewIndex = new ArrayList<>();
+
+        long files = 0;
+        long filesSent = 0;
+        long totalSize = 0;
+        long newBytes = 0;
+        int packs = 0;
+
+        Writer(TarWriter tar, File packFile, File snapshotFile, Map<String, Location> known, Map<String, Record> previous) throws IOException {
+            mTar = tar;
+            mPackFile = packFile;
+            mSnapshotFile = snapshotFile;
+            mKnown = known;
+            mPrevious = previous;
+
+            mPack = new BufferedOutputStream(new FileOutputStream(packFile), 256 * 1024);
+            mSnapshot = new BufferedOutputStream(new FileOutputStream(snapshotFile));
+            mSnapshot.write((SNAPSHOT_HEADER + "\n").getBytes("UTF-8"));
+        }
+
+        /* index lines of the packs sent */
+        List<String> getNewIndex() {
+            return mNewIndex;
+        }
+
+        private boolean isStored(String chunk) {
+            return mKnown.containsKey(chunk) || mAdded.contains(chunk);
+        }
+
+        private void flushPack() throws IOException {
+            mPack.close();
+
+            String id = hex(mPackDigest.digest());
+            long now = System.currentTimeMillis();
+            mTar.putFile("packs/" + id.substring(0, 2) + "/" + id, mPackFile, mPackSize, now, false);
+
+            StringBuilder sb = new StringBuilder();
+            for (String c : mPackChunks) {
+                String[] f = c.split(" ");
+                String line = f[0] + " " + id + " " + f[1] + " " + f[2];
+                sb.append(line).append('\n');
+                mNewIndex.add(line);
+            }
+            mTar.putData("index/" + id, sb.toString().getBytes("UTF-8"), now);
+
+            packs++;
+            mPackChunks.clear();
+            mPackSize = 0;
+            mPack = new BufferedOutputStream(new FileOutputStream(mPackFile), 256 * 1024);
+        }
+
+        private void addChunk(String id, byte[] data, int len) throws IOException {
+            if (mPackSize > 0 && mPackSize + len > PACK_SIZE) {
+                flushPack();
+            }
+
+            mPack.write(data, 0, len);
+            mPackDigest.update(data, 0, len);
+            mPackChunks.add(id + " " + mPackSize + " " + len);
+            mPackSize += len;
+            mAdded.add(id);
+            newBytes += len;
+        }
+
+        /*
+         * Add the file of e, from the last snapshot if it didn't change since,
+         * else read and cut into chunks. Returns false, leaving it out of the
+         * snapshot, if it couldn't be read.
+         */
+        boolean add(Manifest.Entry e, boolean executable) throws IOException {
+            Record r = new Record();
+            r.rel = e.rel;
+            r.mtime = e.mtime;
+            r.mode = executable ? 0755 : 0644;
+
+            Record prev = mPrevious.get(e.rel);
+            boolean reuse = prev != null && prev.size == e.size && prev.mtime == e.mtime;
+            for (int i = 0; reuse && i < prev.chunks.size(); i++) {
+                reuse = isStored(prev.chunks.get(i));
+            }
+
+            if (reuse) {
+                r.size = prev.size;
+                r.chunks.addAll(prev.chunks);
+            } else {
+                InputStream in;
+                try {
+                    in = new FileInputStream(e.path);
+                } catch (FileNotFoundException x) {
+                    return false;
+                }
+
+                boolean sent = false;
+                try {
+                    Chunker chunker = mChunker;
+                    chunker.reset(in);
+                    byte[] data = chunker.getBuffer();
+
+                    while (true) {
+                        int n;
+                        try {
+                            n = chunker.next();
+                        } catch (IOException x) {
+                            Log.d(TAG, "Could not read " + e.path + ": " + x.toString());
+                            return false;
+                        }
+
+                        if (n < 0) {
+                            break;
+                        }
+
+                        mChunkDigest.update(data, 0, n);
+                        String id = hex(mChunkDigest.digest());
+                        r.chunks.add(id);
+                        r.size += n;
+
+                        if (!isStored(id)) {
+                            addChunk(id, data, n);
+                            sent = true;
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+
+                if (sent) {
+                    filesSent++;
+                }
+            }
+
+            files++;
+            totalSize += r.size;
+            mSnapshot.write((format(r) + "\n").getBytes("UTF-8"));
+            return true;
+        }
+
+        /* send the last pack and the snapshot as name, and end the stream */
+        void finish(String name, long time) throws IOException {
+            if (mPackSize > 0) {
+                flushPack();
+            }
+            mPack.close();
+            mPackFile.delete();
+
+            mSnapshot.close();
+            mTar.putFile(name, mSnapshotFile, mSnapshotFile.length(), time, false);
+            mTar.putData("restore.sh", RESTORE_SCRIPT.getBytes("UTF-8"), time);
+            mTar.finish();
+        }
+    }
+
+    /* the store path on the server, as in the settings */
+    private String getStore() {
+        String store = PreferenceManager.getDefaultSharedPreferences(mContext).getString(SettingsFragment.KEY_CHUNK_STORE, DEFAULT_STORE).trim();
+        return store.equals("") ? DEFAULT_STORE : store;
+    }
+
+    private File getIndexFile(String login, String store) {
+        return new File(mContext.getFilesDir(), "chunkindex_" + Uri.encode(login + ":" + store));
+    }
+
+    /* the last snapshot of b the store has */
+    private static File getSnapshotFile(Context ctx, BackupItem b) {
+        return new File(ctx.getFilesDir(), "chunkfiles_" + Uri.encode(b.name));
+    }
+
+    public static void forget(Context ctx, BackupItem b) {
+        getSnapshotFile(ctx, b).delete();
+    }
+
+    private static void append(File f, List<String> lines) throws IOException {
+        synchronized (sIndexLock) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(f, true));
+            try {
+                for (String line : lines) {
+                    out.write((line + "\n").getBytes("UTF-8"));
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /* run command on the server cmd logs in to, its output to out, returns the exit code of ssh */
+    private static int runRemote(RsyncCommand cmd, String command, OutputStream out) throws IOException, InterruptedException {
+        List<String> args = cmd.getSshArgs();
+        args.add(cmd.login);
+        args.add(command);
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.directory(cmd.directory);
+        pb.environment().putAll(cmd.env);
+        pb.redirectErrorStream(true);
+
+        Process p = pb.start();
+        p.getOutputStream().close();
+
+        InputStream in = p.getInputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+
+        return p.waitFor();
+    }
+
+    /*
+     * Add to index, and indexFile, the index files in store the phone doesn't
+     * have yet: packs other profiles or phones sent, or that a run got
+     * through before it failed.
+     */
+    private int refresh(RsyncCommand cmd, String store, Map<String, Location> index, File indexFile, OutputStream log) throws IOException, InterruptedException {
+        String dir = RemoteWatcher.quoteSource(store) + "/index";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int ret = runRemote(cmd, "cd " + dir + " 2>/dev/null || exit 0; ls", out);
+        if (ret != 0) {
+            log.write(("Could not look at the chunk store (error code " + ret + ")\n").getBytes());
+            log.write(out.toByteArray());
+            return ret;
+        }
+
+        Set<String> packs = new HashSet<>();
+        for (Location l : index.values()) {
+            packs.add(l.pack);
+        }
+
+        List<String> missing = new ArrayList<>();
+        for (String name : out.toString("UTF-8").split("\n")) {
+            name = name.trim();
+            if (isHash(name) && !packs.contains(name)) {
+                missing.add(name);
+            }
+        }
+
+        for (int i = 0; i < missing.size(); i += FETCH_BATCH) {
+            StringBuilder command = new StringBuilder("cd " + dir + " && cat");
+            for (String name : missing.subList(i, Math.min(missing.size(), i + FETCH_BATCH))) {
+                command.append(' ').append(name);
+            }
+
+            out.reset();
+            ret = runRemote(cmd, command.toString(), out);
+            if (ret != 0) {
+                log.write(("Could not read the chunk store's index (error code " + ret + ")\n").getBytes());
+                log.write(out.toByteArray());
+                return ret;
+            }
+
+            List<String> lines = new ArrayList<>();
+            for (String line : out.toString("UTF-8").split("\n")) {
+                if (parseLocation(line, index)) {
+                    lines.add(line);
+                }
+            }
+            append(indexFile, lines);
+        }
+
+        if (!missing.isEmpty()) {
+            log.write(("Chunk store: " + missing.size() + " packs sent from elsewhere\n").getBytes());
+        }
+
+        return 0;
+    }
+
+    /*
+     * Back up b to the store on the server cmd logs in to, as a new snapshot.
+     * Transfer counts go to stats. Returns the exit code of ssh (tar's, if
+     * it got that far), or 23 like rsync if some files couldn't be read.
+     */
+    public int backup(BackupItem b, RsyncCommand cmd, final OutputStream log, RsyncStats stats) throws IOException, InterruptedException {
+        if (b.direction != BackupItem.Direction.OUTGOING) {
+            log.write("ERROR: Chunked backups only go to the server. Please store incoming profiles as files.\n".getBytes());
+            return -1;
+        }
+
+        if (cmd.login == null) {
+            log.write("ERROR: Chunked backups need the SSH protocol without a tunnel.\n".getBytes());
+            return -1;
+        }
+
+        String store = getStore();
+        File indexFile = getIndexFile(cmd.login, store);
+        Map<String, Location> index = readIndex(indexFile);
+
+        int ret = refresh(cmd, store, index, indexFile, log);
+        if (ret != 0) {
+            return ret;
+        }
+
+        List<Manifest.Entry> entries;
+        try {
+            entries = Manifest.scan(b, FilterRules.forProfile(mContext, b));
+        } catch (IllegalArgumentException e) {
+            log.write(("ERROR: " + e.getMessage() + "\n").getBytes());
+            return -1;
+        }
+
+        long time = System.currentTimeMillis();
+        String dir = "snapshots/" + Uri.encode(b.name) + "/";
+        String name = getSnapshotName(time);
+        String command = "mkdir -p " + RemoteWatcher.quoteSource(store) + " && cd " + RemoteWatcher.quoteSource(store) +
+                " && tar -xf - && mv -f " + RootShell.quote(dir + "." + name) + " " + RootShell.quote(dir + name);
+
+        log.write(("Backing up " + entries.size() + " files to the chunk store " + store + " as " + dir + name + "\n\n").getBytes());
+
+        List<String> args = cmd.getSshArgs();
+        args.add(cmd.login);
+        args.add(command);
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.directory(cmd.directory);
+        pb.environment().putAll(cmd.env);
+        pb.redirectErrorStream(true);
+
+        final Process p = pb.start();
+
+        // whatever ssh and tar have to say
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        synchronized (log) {
+                            log.write((line + "\n").getBytes());
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not read chunk store output: " + e.toString());
+                }
+            }
+        });
+        reader.start();
+
+        File packFile = new File(mContext.getCacheDir(), "pack_" + Uri.encode(b.name));
+        File snapshotFile = new File(mContext.getCacheDir(), "snapshot_" + Uri.encode(b.name));
+        TarWriter tar = new TarWriter(new Seeder.ThrottledOutputStream(new BufferedOutputStream(p.getOutputStream(), 64 * 1024), cmd.budget));
+        Writer writer = null;
+        boolean complete = false;
+        List<String> skipped = new ArrayList<>();
+
+        try {
+            writer = new Writer(tar, packFile, snapshotFile, index, readSnapshot(getSnapshotFile(mContext, b)));
+
+            for (Manifest.Entry e : entries) {
+                if (!writer.add(e, new File(e.path).canExecute())) {
+                    skipped.add(e.path);
+                }
+            }
+
+            writer.finish(dir + "." + name, time);
+            p.getOutputStream().close();
+            complete = true;
+        } catch (IOException e) {
+            // the other side went away, its exit code tells why
+            Log.d(TAG, "Chunk stream ended: " + e.toString());
+            p.destroy();
+        } finally {
+            packFile.delete();
+        }
+
+        int errno = p.waitFor();
+        reader.join();
+        if (errno == 0 && !complete) {
+            errno = -1;
+        }
+
+        stats.files = entries.size();
+        stats.totalSize = writer == null ? 0 : writer.totalSize;
+        stats.filesTransferred = writer == null ? 0 : writer.filesSent;
+        stats.transferredSize = writer == null ? 0 : writer.newBytes;
+        stats.bytesSent = tar.getWritten();
+        stats.bytesReceived = 0;
+
+        if (errno == 0) {
+            // what the store has now, and what the next run starts from
+            append(indexFile, writer.getNewIndex());
+            File last = getSnapshotFile(mContext, b);
+            if (!snapshotFile.renameTo(last)) {
+                last.delete();
+            }
+
+            log.write(String.format(Locale.ENGLISH, "Snapshot %s: %d files, %.1f MB, %.1f MB of it new in %d packs\n",
+                    dir + name, writer.files, writer.totalSize / 1048576.0, writer.newBytes / 1048576.0, writer.packs).getBytes());
+
+            for (String path : skipped) {
+                log.write(("Could not read " + path + "\n").getBytes());
+            }
+
+            if (!skipped.isEmpty()) {
+                // partial transfer due to error, as rsync has it
+                errno = 23;
+            }
+        }
+
+        snapshotFile.delete();
+        return errno;
+    }
+}
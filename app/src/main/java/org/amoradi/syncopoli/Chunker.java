@@ -0,0 +1,102 @@
+package org.amoradi.syncopoli;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Content defined chunking: cuts a stream where a rolling hash of the last
+ * 64 bytes has its top CUT_BITS bits clear, so an insert or delete moves
+ * only the cuts next to it and the chunks after it are found again. The
+ * hash is a gear hash (each byte shifts the hash left and adds a random
+ * number for the byte), as in FastCDC. Chunks are at least MIN_SIZE and at
+ * most MAX_SIZE bytes, about MIN_SIZE + 2^CUT_BITS on average.
+ *
+ * The table and the sizes decide where files are cut, and so which chunks
+ * a store already has: changing them makes every file new again.
+ */
+public class Chunker {
+    static final int MIN_SIZE = 256 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+    static final int CUT_BITS = 20;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // splitmix64 from a fixed seed
+        long x = 0x53796e636f706f6cL;
+        for (int i = 0; i < GEAR.length; i++) {
+            x += 0x9e3779b97f4a7c15L;
+            long z = x;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private InputStream mIn;
+    private final byte[] mBuffer = new byte[MAX_SIZE];
+    /* bytes in mBuffer, and the length of the chunk last returned at its start */
+    private int mFill = 0;
+    private int mLast = 0;
+    private boolean mEnd = false;
+
+    public Chunker(InputStream in) {
+        mIn = in;
+    }
+
+    /* start over on in, keeping the buffer */
+    public void reset(InputStream in) {
+        mIn = in;
+        mFill = 0;
+        mLast = 0;
+        mEnd = false;
+    }
+
+    /* holds the chunk next() returned, from index 0 */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /* where the first chunk of data[0..len) ends */
+    static int findCut(byte[] data, int len) {
+        if (len <= MIN_SIZE) {
+            return len;
+        }
+
+        int end = Math.min(len, MAX_SIZE);
+        long hash = 0;
+        // the hash only depends on the last 64 bytes, those before MIN_SIZE are enough
+        for (int i = MIN_SIZE - 64; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if (i >= MIN_SIZE && (hash >>> (64 - CUT_BITS)) == 0) {
+                return i + 1;
+            }
+        }
+
+        return end;
+    }
+
+    /* length of the next chunk, at the start of getBuffer(), -1 at the end of the stream */
+    public int next() throws IOException {
+        // drop the chunk returned last
+        System.arraycopy(mBuffer, mLast, mBuffer, 0, mFill - mLast);
+        mFill -= mLast;
+        mLast = 0;
+
+        while (!mEnd && mFill < mBuffer.length) {
+            int n = mIn.read(mBuffer, mFill, mBuffer.length - mFill);
+            if (n < 0) {
+                mEnd = true;
+            } else {
+                mFill += n;
+            }
+        }
+
+        if (mFill == 0) {
+            return -1;
+        }
+
+        mLast = findCut(mBuffer, mFill);
+        return mLast;
+    }
+}
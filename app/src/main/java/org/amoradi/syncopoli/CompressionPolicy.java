@@ -0,0 +1,454 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/*
+ * Decides whether compressing a profile's transfer is worth it, judging by
+ * what its files are made of. A sample of the local tree is taken by
+ * extension; a few files of each extension are compressed in part to see how
+ * much they shrink and how fast this device does it. Compression then pays
+ * off when the bytes it saves take longer to send than it takes to compress
+ * them.
+ *
+ * Extensions that hardly shrink go on the --skip-compress list, together with
+ * rsync's own list which giving the option replaces.
+ *
+ * Samples are kept in the preferences with the time they were taken, and
+ * only real runs take new ones: dry runs and the remote watcher make do
+ * with what is there.
+ */
+public class CompressionPolicy {
+    /* samples are kept this long per profile, trees don't change character quickly */
+    public static final long SAMPLE_TTL = 24 * 60 * 60 * 1000;
+
+    private static final String PREF_SAMPLE = "CompressionSample_";
+
+    /* files looked at per sample, and files per extension compressed in part */
+    private static final int SAMPLE_FILES = 2000;
+    private static final int PROBES_PER_EXTENSION = 3;
+    private static final int PROBE_EXTENSIONS = 16;
+    private static final int PROBE_BYTES = 64 * 1024;
+
+    /* extensions shrinking less than this are skipped */
+    private static final double MIN_SAVING = 0.05;
+
+    /* compress only if the whole transfer shrinks by at least this much */
+    private static final double WORTH_SAVING = 0.1;
+
+    /* rsync's default --skip-compress list, which the option replaces */
+    static final String[] RSYNC_SKIP = {
+        "3g2", "3gp", "7z", "aac", "ace", "apk", "avi", "bz2", "deb", "dmg", "ear", "f4v", "flac", "flv",
+        "gpg", "gz", "iso", "jar", "jpeg", "jpg", "lrz", "lz", "lz4", "lzma", "lzo", "m1a", "m1v", "m2a",
+        "m2ts", "m2v", "m4a", "m4b", "m4p", "m4r", "m4v", "mka", "mkv", "mov", "mp1", "mp2", "mp3", "mp4",
+        "mpa", "mpeg", "mpg", "mpv", "mts", "odb", "odf", "odg", "odi", "odm", "odp", "ods", "odt", "oga",
+        "ogg", "ogm", "ogv", "ogx", "opus", "otg", "oth", "otp", "ots", "ott", "oxt", "png", "qt", "rar",
+        "rpm", "rz", "rzip", "spx", "squashfs", "sxc", "sxd", "sxg", "sxm", "sxw", "sz", "tbz", "tbz2",
+        "tgz", "tlz", "ts", "txz", "tzo", "vob", "war", "webm", "webp", "xz", "z", "zip", "zst"
+    };
+
+    public static class Sample {
+        public long created;
+        public long bytes;
+        /* bytes per extension ("" for none) */
+        public Map<String, Long> extensionBytes = new HashMap<>();
+        /* compressed size / size of the probed parts, per extension probed */
+        public Map<String, Double> ratios = new HashMap<>();
+        /* bytes/s compressing at level 1 and 6, -1 if nothing was probed */
+        public long rateFast = -1;
+        public long rateDefault = -1;
+        public double ratioFast = 1;
+        public double ratioDefault = 1;
+
+        public boolean isFresh() {
+            long age = System.currentTimeMillis() - created;
+            return age >= 0 && age < SAMPLE_TTL;
+        }
+
+        /* header line, then a line per extension: name, bytes and ratio if probed */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(created).append(':').append(bytes).append(':').append(rateFast).append(':').append(rateDefault)
+                    .append(':').append(ratioFast).append(':').append(ratioDefault);
+
+            for (Map.Entry<String, Long> e : extensionBytes.entrySet()) {
+                // can't be told apart from the separators, and too odd to matter
+                if (e.getKey().indexOf('\t') >= 0 || e.getKey().indexOf('\n') >= 0) {
+                    continue;
+                }
+
+                Double r = ratios.get(e.getKey());
+                sb.append('\n').append(e.getKey()).append('\t').append(e.getValue()).append('\t').append(r == null ? "" : r.toString());
+            }
+
+            return sb.toString();
+        }
+
+        /* a sample as toString() wrote it, null if it can't be read */
+        static Sample parse(String s) {
+            if (s == null) {
+                return null;
+            }
+
+            String[] lines = s.split("\n");
+            String[] head = lines[0].split(":");
+            if (head.length != 6) {
+                return null;
+            }
+
+            Sample sample = new Sample();
+            try {
+                sample.created = Long.parseLong(head[0]);
+                sample.bytes = Long.parseLong(head[1]);
+                sample.rateFast = Long.parseLong(head[2]);
+                sample.rateDefault = Long.parseLong(head[3]);
+                sample.ratioFast = Double.parseDouble(head[4]);
+                sample.ratioDefault = Double.parseDouble(head[5]);
+
+                for (int i = 1; i < lines.length; i++) {
+                    String[] parts = lines[i].split("\t", -1);
+                    if (parts.length != 3) {
+                        return null;
+                    }
+
+                    sample.extensionBytes.put(parts[0], Long.parseLong(parts[1]));
+                    if (!parts[2].equals("")) {
+                        sample.ratios.put(parts[0], Double.parseDouble(parts[2]));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            return sample;
+        }
+
+        /* expected compressed size / size of the whole sample at level 1 or 6 */
+        public double getRatio(boolean best) {
+            if (bytes == 0) {
+                return 1;
+            }
+
+            double compressed = 0;
+            for (Map.Entry<String, Long> e : extensionBytes.entrySet()) {
+                Double r = ratios.get(e.getKey());
+                if (r == null || isSkipped(e.getKey())) {
+                    compressed += e.getValue();
+                } else {
+                    // the level 6 ratio shifted by how much better level 6 did overall
+                    double scale = best || ratioDefault <= 0 ? 1 : ratioFast / ratioDefault;
+                    compressed += e.getValue() * Math.min(1, r * scale);
+                }
+            }
+
+            return compressed / bytes;
+        }
+
+        /* share of the bytes in files that are compressed at all */
+        public double getCompressibleShare() {
+            if (bytes == 0) {
+                return 0;
+            }
+
+            long compressible = 0;
+            for (Map.Entry<String, Long> e : extensionBytes.entrySet()) {
+                if (!isSkipped(e.getKey())) {
+                    compressible += e.getValue();
+                }
+            }
+
+            return (double) compressible / bytes;
+        }
+
+        /* extensions that should not be compressed: rsync's list and those found not to shrink */
+        public boolean isSkipped(String ext) {
+            if (Arrays.asList(RSYNC_SKIP).contains(ext)) {
+                return true;
+            }
+
+            Double r = ratios.get(ext);
+            return r != null && r > 1 - MIN_SAVING;
+        }
+
+        public List<String> getSkipList() {
+            Set<String> skip = new HashSet<>(Arrays.asList(RSYNC_SKIP));
+            for (Map.Entry<String, Double> e : ratios.entrySet()) {
+                if (!e.getKey().equals("") && e.getValue() > 1 - MIN_SAVING) {
+                    skip.add(e.getKey());
+                }
+            }
+
+            List<String> list = new ArrayList<>(skip);
+            Collections.sort(list);
+            return list;
+        }
+    }
+
+    public static class Decision {
+        /* 0 for no compression */
+        public int level;
+        public double saving;
+        public String skipCompress;
+
+        public String describe() {
+            if (level == 0) {
+                return String.format(Locale.ENGLISH, "no compression (would save %d%%)", Math.round(saving * 100));
+            }
+
+            return String.format(Locale.ENGLISH, "compression level %d (saves about %d%%)", level, Math.round(saving * 100));
+        }
+    }
+
+    private Context mContext;
+
+    public CompressionPolicy(Context ctx) {
+        mContext = ctx;
+    }
+
+    static String getExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || dot == name.length() - 1) {
+            return "";
+        }
+
+        return name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    /*
+     * Sample of the local paths, kept per set of paths. A new one is only
+     * taken if take is set, leaving out what filter excludes; else null when
+     * there is no fresh one.
+     */
+    public Sample getSample(List<String> paths, ParallelWalker.Filter filter, boolean take) {
+        String key = PREF_SAMPLE + Integer.toHexString(paths.toString().hashCode());
+
+        Sample s = Sample.parse(PreferenceManager.getDefaultSharedPreferences(mContext).getString(key, null));
+        if (s != null && s.isFresh()) {
+            return s;
+        }
+
+        if (!take) {
+            return null;
+        }
+
+        s = sample(paths, filter);
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit().putString(key, s.toString()).apply();
+        return s;
+    }
+
+    /*
+     * paths are the roots of the transfer, as rsync sources: with a trailing
+     * slash their contents are at the top, as the filter sees it.
+     */
+    static Sample sample(List<String> paths, ParallelWalker.Filter filter) {
+        final Sample s = new Sample();
+        s.created = System.currentTimeMillis();
+
+        final Map<String, List<File>> byExtension = new HashMap<>();
+        final ParallelWalker walker = new ParallelWalker();
+        walker.setFilter(filter);
+        final int[] files = {0};
+
+        ParallelWalker.Listener listener = new ParallelWalker.Listener() {
+            @Override
+            public void onFile(String rel, File file, long size, long mtime) {
+                synchronized (s) {
+                    if (files[0] >= SAMPLE_FILES) {
+                        return;
+                    }
+
+                    files[0]++;
+                    String ext = getExtension(file.getName());
+                    Long b = s.extensionBytes.get(ext);
+                    s.extensionBytes.put(ext, (b == null ? 0 : b) + size);
+                    s.bytes += size;
+
+                    List<File> list = byExtension.get(ext);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        byExtension.put(ext, list);
+                    }
+                    if (list.size() < PROBES_PER_EXTENSION) {
+                        list.add(file);
+                    }
+
+                    if (files[0] == SAMPLE_FILES) {
+                        walker.cancel();
+                    }
+                }
+            }
+        };
+
+        try {
+            for (String p : paths) {
+                if (files[0] < SAMPLE_FILES) {
+                    walker.walk(new File(p), ShardPlanner.getRelative(p), listener);
+                }
+            }
+        } catch (InterruptedException e) {
+            // make do with what was found, the caller sees the interrupt
+            Thread.currentThread().interrupt();
+        }
+
+        // probe the extensions holding the most data
+        List<String> extensions = new ArrayList<>(s.extensionBytes.keySet());
+        final Map<String, Long> sizes = s.extensionBytes;
+        Collections.sort(extensions, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long x = sizes.get(a);
+                long y = sizes.get(b);
+                return x > y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        Deflater fast = new Deflater(1);
+        Deflater normal = new Deflater(6);
+        byte[] out = new byte[PROBE_BYTES + 1024];
+        long in = 0, outFast = 0, outDefault = 0, nsFast = 0, nsDefault = 0;
+
+        for (String ext : extensions.subList(0, Math.min(PROBE_EXTENSIONS, extensions.size()))) {
+            if (Arrays.asList(RSYNC_SKIP).contains(ext)) {
+                continue;
+            }
+
+            long extIn = 0, extOut = 0;
+            for (File f : byExtension.get(ext)) {
+                byte[] data = readMiddle(f);
+                if (data == null || data.length == 0) {
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                long c1 = deflate(fast, data, out);
+                nsFast += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long c6 = deflate(normal, data, out);
+                nsDefault += System.nanoTime() - start;
+
+                in += data.length;
+                outFast += c1;
+                outDefault += c6;
+
+                extIn += data.length;
+                extOut += c6;
+            }
+
+            if (extIn > 0) {
+                s.ratios.put(ext, (double) extOut / extIn);
+            }
+        }
+
+        fast.end();
+        normal.end();
+
+        if (in > 0) {
+            s.rateFast = in * 1000L * 1000 * 1000 / Math.max(1, nsFast);
+            s.rateDefault = in * 1000L * 1000 * 1000 / Math.max(1, nsDefault);
+            s.ratioFast = (double) outFast / in;
+            s.ratioDefault = (double) outDefault / in;
+        }
+
+        return s;
+    }
+
+    private static long deflate(Deflater d, byte[] data, byte[] out) {
+        d.reset();
+        d.setInput(data);
+        d.finish();
+
+        long n = 0;
+        while (!d.finished()) {
+            n += d.deflate(out);
+        }
+
+        return n;
+    }
+
+    /* up to PROBE_BYTES from the middle of f, past any header */
+    private static byte[] readMiddle(File f) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                long len = raf.length();
+                int n = (int) Math.min(PROBE_BYTES, len);
+                byte[] data = new byte[n];
+                raf.seek((len - n) / 2);
+                raf.readFully(data);
+                return data;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Whether and how hard to compress a transfer of sample over a link of
+     * link bytes/s (<= 0 if unknown). Sending takes about the longer of
+     * compressing and sending the compressed data, as rsync does both at once.
+     */
+    public static Decision decide(Sample s, long link) {
+        Decision d = new Decision();
+        d.skipCompress = join(s.getSkipList());
+
+        double ratioFast = s.getRatio(false);
+        double ratioDefault = s.getRatio(true);
+        d.saving = 1 - ratioDefault;
+
+        if (s.rateFast <= 0 || 1 - ratioFast < WORTH_SAVING) {
+            return d;
+        }
+
+        if (link <= 0) {
+            // nothing known about the link: compress lightly, it rarely hurts much
+            d.level = 1;
+            d.saving = 1 - ratioFast;
+            return d;
+        }
+
+        // seconds per byte of the sample for each choice
+        double plain = 1.0 / link;
+        double fast = Math.max(1.0 / s.rateFast, ratioFast / link);
+        double normal = Math.max(1.0 / s.rateDefault, ratioDefault / link);
+
+        if (normal < fast && normal < plain) {
+            d.level = 6;
+        } else if (fast < plain) {
+            d.level = 1;
+            d.saving = 1 - ratioFast;
+        }
+
+        return d;
+    }
+
+    private static String join(List<String> names) {
+        StringBuilder sb = new StringBuilder();
+        for (String n : names) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(n);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,187 @@
+package org.amoradi.syncopoli;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Another address the server can be reached at, used only on the networks its
+ * rules match. One per line, e.g.
+ *
+ *   192.168.1.10 ssid=Home;Home-5G subnet=192.168.1.0/24
+ *   nas.local:2222 mdns=nas.local
+ *
+ * ssid matches any of the listed networks, subnet any of the device's own
+ * addresses, mdns a name answering multicast DNS on the local network. All
+ * rules given must match. With mdns, an endpoint host equal to the mDNS name
+ * is replaced by the address it resolved to.
+ *
+ * An endpoint belongs to the server in the settings unless server= names
+ * another one.
+ */
+public class Endpoint {
+    public String host;
+    /* 0 for the server's port */
+    public int port = 0;
+
+    public List<String> ssids = new ArrayList<>();
+    public List<Subnet> subnets = new ArrayList<>();
+    public String mdns;
+    public String server = "";
+
+    public static List<Endpoint> parseList(String text) {
+        List<Endpoint> endpoints = new ArrayList<>();
+
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.equals("") || line.startsWith("#")) {
+                continue;
+            }
+
+            endpoints.add(parse(line));
+        }
+
+        return endpoints;
+    }
+
+    public static Endpoint parse(String line) throws IllegalArgumentException {
+        String[] parts = line.trim().split("\\s+");
+        Endpoint e = new Endpoint();
+
+        String address = parts[0];
+        if (address.startsWith("[")) {
+            int close = address.indexOf(']');
+            if (close < 0) {
+                throw new IllegalArgumentException("Unterminated [ in endpoint: " + line);
+            }
+
+            e.host = address.substring(1, close);
+            if (address.length() > close + 1) {
+                if (address.charAt(close + 1) != ':') {
+                    throw new IllegalArgumentException("Bad endpoint address: " + address);
+                }
+                e.port = parsePort(address.substring(close + 2));
+            }
+        } else if (address.indexOf(':') >= 0 && address.indexOf(':') == address.lastIndexOf(':')) {
+            e.host = address.substring(0, address.indexOf(':'));
+            e.port = parsePort(address.substring(address.indexOf(':') + 1));
+        } else {
+            e.host = address;
+        }
+
+        for (int i = 1; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Bad endpoint rule: " + parts[i]);
+            }
+
+            String key = parts[i].substring(0, eq);
+            String value = parts[i].substring(eq + 1);
+
+            if (key.equals("ssid")) {
+                e.ssids.addAll(Arrays.asList(value.split(";")));
+            } else if (key.equals("subnet")) {
+                for (String s : value.split(";")) {
+                    e.subnets.add(new Subnet(s));
+                }
+            } else if (key.equals("mdns")) {
+                e.mdns = value;
+            } else if (key.equals("server")) {
+                e.server = value;
+            } else {
+                throw new IllegalArgumentException("Unknown endpoint rule: " + key);
+            }
+        }
+
+        return e;
+    }
+
+    private static int parsePort(String s) {
+        try {
+            int port = Integer.parseInt(s);
+            if (port <= 0 || port > 65535) {
+                throw new IllegalArgumentException("Bad port: " + s);
+            }
+            return port;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad port: " + s);
+        }
+    }
+
+    public static class Subnet {
+        private byte[] mNetwork;
+        private int mPrefix;
+
+        /* "a.b.c.d/n" or an IPv6 literal with prefix length */
+        public Subnet(String cidr) throws IllegalArgumentException {
+            int slash = cidr.indexOf('/');
+            if (slash < 0) {
+                throw new IllegalArgumentException("Subnet without prefix length: " + cidr);
+            }
+
+            String address = cidr.substring(0, slash);
+            // only literals, never a DNS lookup
+            if (!address.matches("[0-9a-fA-F.:]+")) {
+                throw new IllegalArgumentException("Bad subnet address: " + cidr);
+            }
+
+            try {
+                mNetwork = InetAddress.getByName(address).getAddress();
+                mPrefix = Integer.parseInt(cidr.substring(slash + 1));
+            } catch (UnknownHostException | NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad subnet: " + cidr);
+            }
+
+            if (mPrefix < 0 || mPrefix > mNetwork.length * 8) {
+                throw new IllegalArgumentException("Bad prefix length: " + cidr);
+            }
+        }
+
+        public boolean contains(InetAddress a) {
+            byte[] addr = a.getAddress();
+            if (addr.length != mNetwork.length) {
+                return false;
+            }
+
+            for (int bit = 0; bit < mPrefix; bit++) {
+                int mask = 0x80 >> (bit % 8);
+                if ((addr[bit / 8] & mask) != (mNetwork[bit / 8] & mask)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /*
+     * Whether the ssid and subnet rules match the current network. ssid is
+     * null when not on Wifi. The mdns rule is checked by the caller.
+     */
+    public boolean matches(String ssid, List<InetAddress> localAddresses) {
+        if (!ssids.isEmpty() && (ssid == null || !ssids.contains(ssid))) {
+            return false;
+        }
+
+        if (subnets.isEmpty()) {
+            return true;
+        }
+
+        for (Subnet subnet : subnets) {
+            for (InetAddress a : localAddresses) {
+                if (subnet.contains(a)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return host + (port > 0 ? ":" + port : "");
+    }
+}
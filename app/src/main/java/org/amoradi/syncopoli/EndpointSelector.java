@@ -0,0 +1,252 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Picks the address to reach the server at on the current network: the
+ * endpoints whose rules match are probed together with the server address,
+ * and the first to accept a connection wins. A matching endpoint answering
+ * within LAN_MARGIN of the server address still wins over it: a router
+ * that loops its public address back (hairpin NAT) can answer as fast,
+ * but then carries all of the traffic. The choice is remembered for
+ * CACHE_TIME per network, so runs in quick succession don't probe again.
+ *
+ * With no endpoint matching, nothing is probed and the server address is used.
+ */
+public class EndpointSelector {
+    private static final String TAG = "Syncopoli";
+
+    private static final long CACHE_TIME = 60 * 1000;
+    private static final int CONNECT_TIMEOUT = 2000;
+
+    /* how much later than the server address an endpoint may answer and still be chosen */
+    static final long LAN_MARGIN = 100;
+
+    public static class Choice {
+        public String host;
+        public int port;
+        /* connect time in ms, -1 if nothing was probed */
+        public long latency = -1;
+        /* the endpoint chosen, null for the server address */
+        public Endpoint endpoint;
+
+        long chosen;
+        String network;
+    }
+
+    /* last choice per server */
+    private static final Map<String, Choice> sChoices = new HashMap<>();
+
+    private Context mContext;
+
+    public EndpointSelector(Context ctx) {
+        mContext = ctx;
+    }
+
+    /* ssid is null when not on Wifi */
+    public Choice select(String server, int port, List<Endpoint> endpoints, String ssid) {
+        List<InetAddress> local = getLocalAddresses();
+        String network = ssid + " " + local + " " + endpoints;
+
+        synchronized (sChoices) {
+            Choice last = sChoices.get(server + ":" + port);
+            if (last != null && last.network.equals(network) && System.currentTimeMillis() - last.chosen < CACHE_TIME) {
+                return last;
+            }
+        }
+
+        List<Choice> candidates = new ArrayList<>();
+
+        for (Endpoint e : endpoints) {
+            if (!e.matches(ssid, local)) {
+                continue;
+            }
+
+            Choice c = new Choice();
+            c.endpoint = e;
+            c.host = e.host;
+            c.port = e.port > 0 ? e.port : port;
+
+            if (e.mdns != null) {
+                InetAddress a = resolveMulticast(e.mdns);
+                if (a == null) {
+                    Log.d(TAG, "Endpoint " + e + " skipped, " + e.mdns + " not found");
+                    continue;
+                }
+
+                if (e.host.equalsIgnoreCase(e.mdns)) {
+                    c.host = a.getHostAddress();
+                }
+            }
+
+            candidates.add(c);
+        }
+
+        Choice fallback = new Choice();
+        fallback.host = server;
+        fallback.port = port;
+
+        Choice choice = fallback;
+        if (!candidates.isEmpty()) {
+            candidates.add(fallback);
+            Choice fastest = probe(candidates);
+            if (fastest != null) {
+                choice = fastest;
+            }
+        }
+
+        choice.chosen = System.currentTimeMillis();
+        choice.network = network;
+
+        synchronized (sChoices) {
+            sChoices.put(server + ":" + port, choice);
+        }
+
+        return choice;
+    }
+
+    public static void invalidate() {
+        synchronized (sChoices) {
+            sChoices.clear();
+        }
+    }
+
+    private InetAddress resolveMulticast(String name) {
+        WifiManager wifiManager = (WifiManager) mContext.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        WifiManager.MulticastLock lock = null;
+
+        if (wifiManager != null) {
+            lock = wifiManager.createMulticastLock("Syncopoli");
+            lock.setReferenceCounted(false);
+            lock.acquire();
+        }
+
+        try {
+            return MulticastDns.resolve(name);
+        } finally {
+            if (lock != null) {
+                lock.release();
+            }
+        }
+    }
+
+    static List<InetAddress> getLocalAddresses() {
+        List<InetAddress> addresses = new ArrayList<>();
+
+        try {
+            List<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
+            for (NetworkInterface ni : interfaces) {
+                if (!ni.isUp() || ni.isLoopback()) {
+                    continue;
+                }
+                addresses.addAll(Collections.list(ni.getInetAddresses()));
+            }
+        } catch (SocketException | NullPointerException e) {
+            Log.e(TAG, "Could not list network interfaces: " + e.toString());
+        }
+
+        return addresses;
+    }
+
+    /* of the candidates that answered, in the order they did: the first endpoint, else the first */
+    static Choice pick(List<Choice> answered) {
+        for (Choice c : answered) {
+            if (c.endpoint != null) {
+                return c;
+            }
+        }
+
+        return answered.isEmpty() ? null : answered.get(0);
+    }
+
+    /*
+     * Connect to all candidates at once and pick() from those that answered
+     * once an endpoint did, LAN_MARGIN after the server address did, or all
+     * are done.
+     */
+    static Choice probe(List<Choice> candidates) {
+        final Object lock = new Object();
+        final List<Choice> answered = new ArrayList<>();
+        final int[] failed = {0};
+        final int total = candidates.size();
+        final long start = System.currentTimeMillis();
+
+        synchronized (lock) {
+            for (final Choice c : candidates) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Socket s = new Socket();
+
+                        try {
+                            s.connect(new InetSocketAddress(c.host, c.port), CONNECT_TIMEOUT);
+
+                            synchronized (lock) {
+                                c.latency = System.currentTimeMillis() - start;
+                                answered.add(c);
+                                lock.notifyAll();
+                            }
+                        } catch (IOException e) {
+                            Log.d(TAG, "Endpoint " + c.host + ":" + c.port + " unreachable: " + e.toString());
+
+                            synchronized (lock) {
+                                failed[0]++;
+                                lock.notifyAll();
+                            }
+                        } finally {
+                            try {
+                                s.close();
+                            } catch (IOException e) {
+                                Log.d(TAG, "Could not close probe socket: " + e.toString());
+                            }
+                        }
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            }
+
+            long deadline = -1;
+            while (true) {
+                Choice best = pick(answered);
+                if ((best != null && best.endpoint != null) || answered.size() + failed[0] >= total) {
+                    return best;
+                }
+
+                try {
+                    if (best == null) {
+                        lock.wait();
+                        continue;
+                    }
+
+                    // only the server address so far, give the endpoints a little longer
+                    if (deadline < 0) {
+                        deadline = System.currentTimeMillis() + LAN_MARGIN;
+                    }
+
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        return best;
+                    }
+                    lock.wait(left);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.amoradi.syncopoli;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * MD5 of files, as md5sum on the server prints it. Files are mapped into
+ * memory a window at a time rather than copied through a buffer, and several
+ * are hashed at once, one per core, since a single MD5 stream can't keep up
+ * with flash storage on most phones.
+ */
+public class FileHasher {
+    /* mapped at once; large files are hashed in windows to keep address space free */
+    static final long WINDOW = 16 * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static String hash(File f) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel ch = in.getChannel();
+            long size = ch.size();
+
+            for (long pos = 0; pos < size; pos += WINDOW) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+                md.update(buf);
+            }
+        } finally {
+            in.close();
+        }
+
+        return toHex(md.digest());
+    }
+
+    public static String toHex(byte[] digest) {
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    /*
+     * Hash entries on threads threads, setting their hash. Entries that can't
+     * be read keep a null hash, and why goes to errors (if not null). Returns
+     * the number hashed.
+     */
+    public static int hashAll(List<HashCache.Entry> entries, int threads, List<String> errors) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Boolean>> results = new ArrayList<>();
+        final List<String> failed = errors == null ? null : Collections.synchronizedList(errors);
+
+        for (final HashCache.Entry e : entries) {
+            results.add(pool.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        e.hash = hash(new File(e.path));
+                        return true;
+                    } catch (IOException x) {
+                        if (failed != null) {
+                            failed.add(e.path + ": " + x.toString());
+                        }
+                        return false;
+                    }
+                }
+            }));
+        }
+
+        int hashed = 0;
+        try {
+            for (Future<Boolean> f : results) {
+                if (f.get()) {
+                    hashed++;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return hashed;
+    }
+}
@@ -0,0 +1,792 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Include and exclude rules of a profile, compiled to be matched against
+ * every file a scan comes across. They follow rsync's filter rules, and
+ * rsync is given the same rules as a merge file (see write()), so a scan
+ * leaves out exactly what rsync leaves out:
+ *
+ *   - PATTERN, exclude PATTERN   leave out what matches, and all below it
+ *   + PATTERN, include PATTERN   keep what matches, whatever later rules say
+ *   !, clear                     forget the rules so far
+ *
+ * The first rule that matches decides, and what no rule matches is kept. A
+ * pattern starting with / is anchored at the top of the transfer, others
+ * match the end of a path. One ending with / only matches directories. *,
+ * ? and [...] don't match a /, ** does, and dir/*** is dir and all below.
+ *
+ * Patterns are split at / into segments and put into two tries, one of
+ * anchored patterns read from the top of a path and one of the others read
+ * from its end backwards, so that a path is only ever tried against the
+ * rules that share its segments. Literal segments are looked up in a hash
+ * map. Segments with wildcards are matched by a small automaton, one bit
+ * per state, and indexed by the literal text they end with.
+ */
+public class FilterRules implements ParallelWalker.Filter {
+    private static final String TAG = "Syncopoli";
+
+    private static final int NONE = Integer.MAX_VALUE;
+
+    /*
+     * A shell pattern as rsync reads it. Matching runs all states of the
+     * automaton at once as bits of a long, a handful of operations per
+     * character without ever backtracking; patterns too long for that are
+     * matched by trying each way a star could go.
+     */
+    static class Glob {
+        private static final byte LITERAL = 0;
+        private static final byte ANY = 1;
+        private static final byte CLASS = 2;
+        private static final byte STAR = 3;
+        private static final byte STARSTAR = 4;
+
+        private String mPattern;
+        private byte[] mTypes;
+        private char[] mChars;
+        private String[] mClasses;
+        private boolean[] mNegated;
+        private int mCount;
+
+        private boolean mWild;
+        /* literal text after the last wildcard, all of it if there is none */
+        private String mTail;
+
+        private long mStars;
+        private long mCrossing;
+        private long mAny;
+        private int[] mClassTokens;
+        private char[] mLiteralChars;
+        private long[] mLiteralMasks;
+
+        Glob(String pattern) {
+            mPattern = pattern;
+            int len = pattern.length();
+            mTypes = new byte[len];
+            mChars = new char[len];
+            mClasses = new String[len];
+            mNegated = new boolean[len];
+
+            StringBuilder tail = new StringBuilder();
+            int i = 0;
+
+            while (i < len) {
+                char c = pattern.charAt(i);
+
+                if (c == '\\' && i + 1 < len) {
+                    literal(pattern.charAt(i + 1), tail);
+                    i += 2;
+                } else if (c == '*') {
+                    int j = i;
+                    while (j < len && pattern.charAt(j) == '*') {
+                        j++;
+                    }
+
+                    byte type = j - i > 1 ? STARSTAR : STAR;
+                    if (mCount > 0 && (mTypes[mCount - 1] == STAR || mTypes[mCount - 1] == STARSTAR)) {
+                        // a star next to a star adds nothing
+                        if (type == STARSTAR) {
+                            mTypes[mCount - 1] = STARSTAR;
+                        }
+                    } else {
+                        mTypes[mCount++] = type;
+                    }
+
+                    mWild = true;
+                    tail.setLength(0);
+                    i = j;
+                } else if (c == '?') {
+                    mTypes[mCount++] = ANY;
+                    mWild = true;
+                    tail.setLength(0);
+                    i++;
+                } else if (c == '[' && getClassEnd(pattern, i) > 0) {
+                    int end = getClassEnd(pattern, i);
+                    int start = i + 1;
+                    if (pattern.charAt(start) == '!' || pattern.charAt(start) == '^') {
+                        mNegated[mCount] = true;
+                        start++;
+                    }
+
+                    mClasses[mCount] = pattern.substring(start, end);
+                    mTypes[mCount++] = CLASS;
+                    mWild = true;
+                    tail.setLength(0);
+                    i = end + 1;
+                } else {
+                    literal(c, tail);
+                    i++;
+                }
+            }
+
+            mTail = tail.toString();
+
+            if (mCount < 64) {
+                compileMasks();
+            }
+        }
+
+        private void literal(char c, StringBuilder tail) {
+            mChars[mCount] = c;
+            mTypes[mCount++] = LITERAL;
+            tail.append(c);
+        }
+
+        /* index of the ] closing the class opened at start, -1 if it isn't closed */
+        private static int getClassEnd(String pattern, int start) {
+            int j = start + 1;
+            if (j < pattern.length() && (pattern.charAt(j) == '!' || pattern.charAt(j) == '^')) {
+                j++;
+            }
+            if (j < pattern.length() && pattern.charAt(j) == ']') {
+                j++;
+            }
+            while (j < pattern.length() && pattern.charAt(j) != ']') {
+                j++;
+            }
+
+            return j < pattern.length() ? j : -1;
+        }
+
+        private void compileMasks() {
+            List<Integer> classes = new ArrayList<>();
+            Map<Character, Long> literals = new HashMap<>();
+
+            for (int t = 0; t < mCount; t++) {
+                long bit = 1L << t;
+                switch (mTypes[t]) {
+                    case STARSTAR:
+                        mCrossing |= bit;
+                        mStars |= bit;
+                        break;
+                    case STAR:
+                        mStars |= bit;
+                        break;
+                    case ANY:
+                        mAny |= bit;
+                        break;
+                    case CLASS:
+                        classes.add(t);
+                        break;
+                    default:
+                        Long m = literals.get(mChars[t]);
+                        literals.put(mChars[t], (m == null ? 0 : m) | bit);
+                }
+            }
+
+            mClassTokens = new int[classes.size()];
+            for (int k = 0; k < mClassTokens.length; k++) {
+                mClassTokens[k] = classes.get(k);
+            }
+
+            mLiteralChars = new char[literals.size()];
+            mLiteralMasks = new long[literals.size()];
+            int k = 0;
+            for (Map.Entry<Character, Long> e : literals.entrySet()) {
+                mLiteralChars[k] = e.getKey();
+                mLiteralMasks[k++] = e.getValue();
+            }
+        }
+
+        String getPattern() {
+            return mPattern;
+        }
+
+        boolean isLiteral() {
+            return !mWild;
+        }
+
+        String getTail() {
+            return mTail;
+        }
+
+        private boolean inClass(int t, char c) {
+            String body = mClasses[t];
+            boolean found = false;
+
+            for (int k = 0; k < body.length() && !found; k++) {
+                if (k + 2 < body.length() && body.charAt(k + 1) == '-') {
+                    found = c >= body.charAt(k) && c <= body.charAt(k + 2);
+                    k += 2;
+                } else {
+                    found = c == body.charAt(k);
+                }
+            }
+
+            return found != mNegated[t];
+        }
+
+        private boolean accepts(int t, char c) {
+            switch (mTypes[t]) {
+                case LITERAL:
+                    return mChars[t] == c;
+                case ANY:
+                    return c != '/';
+                case CLASS:
+                    return c != '/' && inClass(t, c);
+                default:
+                    return false;
+            }
+        }
+
+        /* states taking c to the next one */
+        private long getMask(char c) {
+            long m = 0;
+            for (int k = 0; k < mLiteralChars.length; k++) {
+                if (mLiteralChars[k] == c) {
+                    m = mLiteralMasks[k];
+                    break;
+                }
+            }
+
+            if (c != '/') {
+                m |= mAny;
+                for (int t : mClassTokens) {
+                    if (inClass(t, c)) {
+                        m |= 1L << t;
+                    }
+                }
+            }
+
+            return m;
+        }
+
+        /* a star may match nothing, so reaching it is reaching past it */
+        private long skipStars(long states) {
+            return states | ((states & mStars) << 1);
+        }
+
+        boolean matches(String s) {
+            return matches(s, 0, s.length());
+        }
+
+        boolean matches(String s, int from, int to) {
+            if (mCount >= 64) {
+                return matchFrom(0, s, from, to);
+            }
+
+            long states = skipStars(1L);
+            for (int i = from; i < to && states != 0; i++) {
+                char c = s.charAt(i);
+                long stay = states & (c == '/' ? mCrossing : mStars);
+                states = skipStars(stay | ((states & getMask(c)) << 1));
+            }
+
+            return (states & (1L << mCount)) != 0;
+        }
+
+        private boolean matchFrom(int t, String s, int i, int to) {
+            while (t < mCount) {
+                if (mTypes[t] == STAR || mTypes[t] == STARSTAR) {
+                    for (int k = i; k <= to; k++) {
+                        if (matchFrom(t + 1, s, k, to)) {
+                            return true;
+                        }
+                        if (k < to && mTypes[t] == STAR && s.charAt(k) == '/') {
+                            return false;
+                        }
+                    }
+                    return false;
+                }
+
+                if (i >= to || !accepts(t, s.charAt(i))) {
+                    return false;
+                }
+
+                t++;
+                i++;
+            }
+
+            return i == to;
+        }
+    }
+
+    static class Rule {
+        boolean include;
+        boolean anchored;
+        boolean directoryOnly;
+        /* the pattern without leading and trailing /, each a whole path to match */
+        Glob[] globs;
+
+        boolean matches(String rel, boolean directory) {
+            if (directoryOnly && !directory) {
+                return false;
+            }
+
+            for (Glob g : globs) {
+                if (g.matches(rel)) {
+                    return true;
+                }
+
+                if (!anchored) {
+                    for (int i = rel.indexOf('/'); i >= 0; i = rel.indexOf('/', i + 1)) {
+                        if (g.matches(rel, i + 1, rel.length())) {
+                            return true;
+                        }
+                    }
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private static class Edge {
+        Glob glob;
+        Node node = new Node();
+
+        Edge(Glob glob) {
+            this.glob = glob;
+        }
+    }
+
+    private static class Node {
+        Map<String, Node> literals;
+        /* by pattern, to share nodes between rules */
+        Map<String, Edge> globs;
+        /* edges by the literal text their segment ends with, and the lengths of those */
+        Map<String, List<Edge>> byTail;
+        int[] tailLengths = new int[0];
+        List<Edge> untailed;
+        /* a segment that is just **, one or more segments of a path */
+        Node starStar;
+
+        /* first rule ending here, for files and for directories */
+        int fileRule = NONE;
+        int directoryRule = NONE;
+
+        Node child(String segment) {
+            if (segment.equals("**")) {
+                if (starStar == null) {
+                    starStar = new Node();
+                }
+                return starStar;
+            }
+
+            Glob g = new Glob(segment);
+
+            if (g.isLiteral()) {
+                if (literals == null) {
+                    literals = new HashMap<>();
+                }
+
+                Node n = literals.get(g.getTail());
+                if (n == null) {
+                    n = new Node();
+                    literals.put(g.getTail(), n);
+                }
+                return n;
+            }
+
+            if (globs == null) {
+                globs = new HashMap<>();
+                byTail = new HashMap<>();
+                untailed = new ArrayList<>();
+            }
+
+            Edge e = globs.get(segment);
+            if (e != null) {
+                return e.node;
+            }
+
+            e = new Edge(g);
+            globs.put(segment, e);
+
+            String tail = g.getTail();
+            if (tail.equals("")) {
+                untailed.add(e);
+            } else {
+                List<Edge> list = byTail.get(tail);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byTail.put(tail, list);
+
+                    if (Arrays.binarySearch(tailLengths, tail.length()) < 0) {
+                        tailLengths = Arrays.copyOf(tailLengths, tailLengths.length + 1);
+                        tailLengths[tailLengths.length - 1] = tail.length();
+                        Arrays.sort(tailLengths);
+                    }
+                }
+                list.add(e);
+            }
+
+            return e.node;
+        }
+    }
+
+    private List<Rule> mRules = new ArrayList<>();
+    private Node mAnchored = new Node();
+    private Node mFloating = new Node();
+    /* rules with ** inside a segment, only matched as whole paths */
+    private List<Integer> mGeneral = new ArrayList<>();
+
+    /*
+     * Compile rules, one per line as in an rsync merge file. Blank lines and
+     * lines starting with # or ; are skipped. Throws IllegalArgumentException
+     * for a rule that isn't an include, exclude or clear.
+     */
+    public FilterRules(List<String> lines) {
+        for (String line : lines) {
+            Rule r = parse(line);
+            if (r == null) {
+                continue;
+            }
+
+            if (r.globs == null) {
+                mRules.clear();
+            } else {
+                mRules.add(r);
+            }
+        }
+
+        for (int i = 0; i < mRules.size(); i++) {
+            add(i, mRules.get(i));
+        }
+    }
+
+    public FilterRules(String rules) {
+        this(split(rules));
+    }
+
+    static List<String> split(String rules) {
+        List<String> lines = new ArrayList<>();
+        if (rules == null) {
+            return lines;
+        }
+
+        for (String line : rules.split("\n")) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            lines.add(line);
+        }
+
+        return lines;
+    }
+
+    public int size() {
+        return mRules.size();
+    }
+
+    private static String strip(String line, String prefix) {
+        return line.startsWith(prefix) ? line.substring(prefix.length()) : null;
+    }
+
+    /* the rule on line, one without globs for a clear, null for nothing */
+    private static Rule parse(String line) {
+        int start = 0;
+        while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+            start++;
+        }
+        line = line.substring(start);
+
+        if (line.equals("") || line.startsWith("#") || line.startsWith(";")) {
+            return null;
+        }
+
+        Rule r = new Rule();
+        if (line.equals("!") || line.equals("clear")) {
+            return r;
+        }
+
+        String pattern;
+        if ((pattern = strip(line, "- ")) != null || (pattern = strip(line, "exclude ")) != null) {
+            r.include = false;
+        } else if ((pattern = strip(line, "+ ")) != null || (pattern = strip(line, "include ")) != null) {
+            r.include = true;
+        } else {
+            throw new IllegalArgumentException("Unsupported filter rule: " + line);
+        }
+
+        r.anchored = pattern.startsWith("/");
+        if (r.anchored) {
+            pattern = pattern.substring(1);
+        }
+
+        r.directoryOnly = pattern.endsWith("/");
+        if (r.directoryOnly) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+
+        if (pattern.equals("")) {
+            throw new IllegalArgumentException("Empty pattern in filter rule: " + line);
+        }
+
+        if (pattern.equals("***")) {
+            r.globs = new Glob[] {new Glob("**")};
+        } else if (pattern.endsWith("/***")) {
+            String base = pattern.substring(0, pattern.length() - 4);
+            r.globs = new Glob[] {new Glob(base), new Glob(base + "/**")};
+        } else {
+            r.globs = new Glob[] {new Glob(pattern)};
+        }
+
+        return r;
+    }
+
+    private void add(int index, Rule r) {
+        for (Glob g : r.globs) {
+            String[] segments = g.getPattern().split("/", -1);
+
+            for (String s : segments) {
+                if (s.contains("**") && !s.equals("**")) {
+                    mGeneral.add(index);
+                    return;
+                }
+            }
+        }
+
+        for (Glob g : r.globs) {
+            String[] segments = g.getPattern().split("/", -1);
+            Node n = r.anchored ? mAnchored : mFloating;
+
+            if (r.anchored) {
+                for (String s : segments) {
+                    n = n.child(s);
+                }
+            } else {
+                for (int i = segments.length - 1; i >= 0; i--) {
+                    n = n.child(segments[i]);
+                }
+            }
+
+            n.directoryRule = Math.min(n.directoryRule, index);
+            if (!r.directoryOnly) {
+                n.fileRule = Math.min(n.fileRule, index);
+            }
+        }
+    }
+
+    /*
+     * First rule matching the path of the segments from pos on, going by
+     * step, that comes before best. Anchored rules must use up the path,
+     * the others may leave leading segments.
+     */
+    private int match(Node node, String[] segments, int pos, int step, boolean anchored, boolean directory, int best) {
+        boolean end = pos < 0 || pos >= segments.length;
+
+        if (end || !anchored) {
+            best = Math.min(best, directory ? node.directoryRule : node.fileRule);
+        }
+
+        if (end) {
+            return best;
+        }
+
+        String s = segments[pos];
+
+        if (node.literals != null) {
+            Node n = node.literals.get(s);
+            if (n != null) {
+                best = match(n, segments, pos + step, step, anchored, directory, best);
+            }
+        }
+
+        if (node.globs != null) {
+            for (int length : node.tailLengths) {
+                if (length > s.length()) {
+                    break;
+                }
+
+                List<Edge> edges = node.byTail.get(s.substring(s.length() - length));
+                if (edges == null) {
+                    continue;
+                }
+
+                for (Edge e : edges) {
+                    if (e.glob.matches(s)) {
+                        best = match(e.node, segments, pos + step, step, anchored, directory, best);
+                    }
+                }
+            }
+
+            for (Edge e : node.untailed) {
+                if (e.glob.matches(s)) {
+                    best = match(e.node, segments, pos + step, step, anchored, directory, best);
+                }
+            }
+        }
+
+        if (node.starStar != null) {
+            for (int p = pos + step; p >= -1 && p <= segments.length; p += step) {
+                best = match(node.starStar, segments, p, step, anchored, directory, best);
+            }
+        }
+
+        return best;
+    }
+
+    /* index of the first rule matching rel, NONE if none does */
+    int getFirstMatch(String rel, boolean directory) {
+        String[] segments = rel.split("/");
+
+        int best = match(mAnchored, segments, 0, 1, true, directory, NONE);
+        best = match(mFloating, segments, segments.length - 1, -1, false, directory, best);
+
+        for (int i : mGeneral) {
+            if (i >= best) {
+                break;
+            }
+            if (mRules.get(i).matches(rel, directory)) {
+                best = i;
+            }
+        }
+
+        return best;
+    }
+
+    /* the same as getFirstMatch(), one rule after the other */
+    int getFirstMatchLinear(String rel, boolean directory) {
+        for (int i = 0; i < mRules.size(); i++) {
+            if (mRules.get(i).matches(rel, directory)) {
+                return i;
+            }
+        }
+
+        return NONE;
+    }
+
+    @Override
+    public boolean excludes(String rel, boolean directory) {
+        int i = getFirstMatch(rel, directory);
+        return i != NONE && !mRules.get(i).include;
+    }
+
+    /* whether rel is left out, itself or by a directory above it */
+    public boolean isExcluded(String rel, boolean directory) {
+        for (int i = rel.indexOf('/'); i > 0; i = rel.indexOf('/', i + 1)) {
+            if (excludes(rel.substring(0, i), true)) {
+                return true;
+            }
+        }
+
+        return excludes(rel, directory);
+    }
+
+    /*
+     * Filter rules as given with --exclude, --include and --filter in options.
+     * Relative --exclude-from and --include-from files are read from
+     * directory, where rsync runs.
+     */
+    static List<String> fromOptions(List<String> options, File directory) {
+        List<String> rules = new ArrayList<>();
+
+        for (int i = 0; i < options.size(); i++) {
+            String o = options.get(i);
+            String value = null;
+            String name = o;
+
+            int eq = o.indexOf('=');
+            if (o.startsWith("--") && eq > 0) {
+                name = o.substring(0, eq);
+                value = o.substring(eq + 1);
+            } else if ((o.equals("--exclude") || o.equals("--include") || o.equals("--filter") || o.equals("-f") ||
+                    o.equals("--exclude-from") || o.equals("--include-from")) && i + 1 < options.size()) {
+                value = options.get(++i);
+            }
+
+            if (value == null) {
+                continue;
+            }
+
+            if (name.equals("--exclude")) {
+                rules.add("- " + value);
+            } else if (name.equals("--include")) {
+                rules.add("+ " + value);
+            } else if (name.equals("--filter") || name.equals("-f")) {
+                // merge and per-directory rules are left to rsync
+                if (value.startsWith("- ") || value.startsWith("+ ") || value.startsWith("exclude ") ||
+                        value.startsWith("include ") || value.equals("!") || value.equals("clear")) {
+                    rules.add(value);
+                }
+            } else if (name.equals("--exclude-from") || name.equals("--include-from")) {
+                String prefix = name.equals("--exclude-from") ? "- " : "+ ";
+                File f = new File(value);
+                if (!f.isAbsolute()) {
+                    f = new File(directory, value);
+                }
+
+                for (String line : readLines(f)) {
+                    if (!line.equals("") && !line.startsWith("#") && !line.startsWith(";")) {
+                        rules.add(prefix + line);
+                    }
+                }
+            }
+        }
+
+        return rules;
+    }
+
+    private static List<String> readLines(File f) {
+        List<String> lines = new ArrayList<>();
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            reader.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read filter file " + f + ": " + e.toString());
+        }
+
+        return lines;
+    }
+
+    /*
+     * The rules rsync applies to b: those of the profile, then those in the
+     * rsync options of the settings and of the profile, in the order they
+     * are on rsync's command line.
+     */
+    public static FilterRules forProfile(Context ctx, BackupItem b) {
+        List<String> rules = split(b.filters);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        String options = prefs.getString(SettingsFragment.KEY_RSYNC_OPTIONS, "");
+        if (!options.equals("")) {
+            rules.addAll(fromOptions(ArgumentTokenizer.tokenize(options), ctx.getFilesDir()));
+        }
+
+        if (b.rsync_options != null && !b.rsync_options.equals("")) {
+            rules.addAll(fromOptions(ArgumentTokenizer.tokenize(b.rsync_options), ctx.getFilesDir()));
+        }
+
+        return new FilterRules(rules);
+    }
+
+    public static File getFilterFile(Context ctx, BackupItem b) {
+        return new File(ctx.getFilesDir(), "filter_" + Uri.encode(b.name));
+    }
+
+    /* write the rules of b for rsync to merge, after checking they compile */
+    public static void write(BackupItem b, File f) throws IOException {
+        new FilterRules(b.filters);
+
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            for (String line : split(b.filters)) {
+                out.write((line + "\n").getBytes("UTF-8"));
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
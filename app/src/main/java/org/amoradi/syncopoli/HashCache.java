@@ -0,0 +1,104 @@
+package org.amoradi.syncopoli;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.util.List;
+
+/*
+ * MD5 of local files, keyed by path and only valid while size and mtime are
+ * those the file had when it was hashed. A file that hasn't changed since is
+ * never read again.
+ */
+public class HashCache {
+    public static class Entry {
+        public String path;
+        public long size;
+        public long mtime;
+        /* null until looked up or hashed */
+        public String hash;
+
+        public Entry(File f) {
+            path = f.getAbsolutePath();
+            size = f.length();
+            mtime = f.lastModified();
+        }
+
+        public Entry(String path, long size, long mtime) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    private Context mContext;
+
+    public HashCache(Context ctx) {
+        mContext = ctx;
+    }
+
+    /* set the hash of every entry the cache has an up to date one for, returns how many */
+    public int fill(List<Entry> entries) {
+        BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        int found = 0;
+
+        for (Entry e : entries) {
+            Cursor c = db.query(
+                    BackupSyncSchema.HASH_TABLE_NAME,
+                    null,
+                    BackupSyncSchema.HASH_COLUMN_PATH + " = ?",
+                    new String[] {e.path},
+                    null,
+                    null,
+                    null
+            );
+
+            if (c.moveToFirst() &&
+                    c.getLong(c.getColumnIndex(BackupSyncSchema.HASH_COLUMN_SIZE)) == e.size &&
+                    c.getLong(c.getColumnIndex(BackupSyncSchema.HASH_COLUMN_MTIME)) == e.mtime) {
+                e.hash = c.getString(c.getColumnIndex(BackupSyncSchema.HASH_COLUMN_HASH));
+                found++;
+            }
+
+            c.close();
+        }
+
+        db.close();
+        dbHelper.close();
+
+        return found;
+    }
+
+    /* remember the hashes of entries that have one */
+    public void store(List<Entry> entries) {
+        BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            for (Entry e : entries) {
+                if (e.hash == null) {
+                    continue;
+                }
+
+                ContentValues values = new ContentValues();
+                values.put(BackupSyncSchema.HASH_COLUMN_PATH, e.path);
+                values.put(BackupSyncSchema.HASH_COLUMN_SIZE, e.size);
+                values.put(BackupSyncSchema.HASH_COLUMN_MTIME, e.mtime);
+                values.put(BackupSyncSchema.HASH_COLUMN_HASH, e.hash);
+
+                db.insertWithOnConflict(BackupSyncSchema.HASH_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        db.close();
+        dbHelper.close();
+    }
+}
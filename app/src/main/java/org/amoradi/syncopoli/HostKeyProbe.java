@@ -0,0 +1,387 @@
+package org.amoradi.syncopoli;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Fetches a server's ssh host key without spawning dropbear: runs the SSH
+ * transport protocol (RFC 4253) up to the server's key exchange reply,
+ * which carries the host key, and hangs up. curve25519 (RFC 8731), ECDH
+ * (RFC 5656) and group14 Diffie-Hellman are offered, so servers that dropped
+ * the older methods answer too.
+ *
+ * The signature in the reply isn't checked, so the key is only good for
+ * showing its fingerprint to the user to compare; dropbear verifies the
+ * server holds the matching private key on every real connection.
+ */
+public class HostKeyProbe {
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT = 10 * 1000;
+
+    private static final int SSH_MSG_IGNORE = 2;
+    private static final int SSH_MSG_DEBUG = 4;
+    private static final int SSH_MSG_KEXINIT = 20;
+    /* also SSH_MSG_KEX_ECDH_INIT and _REPLY, which carry the host key at the same place */
+    private static final int SSH_MSG_KEXDH_INIT = 30;
+    private static final int SSH_MSG_KEXDH_REPLY = 31;
+
+    private static final String KEX_ALGORITHMS = "curve25519-sha256,curve25519-sha256@libssh.org," +
+            "ecdh-sha2-nistp256,ecdh-sha2-nistp384,ecdh-sha2-nistp521," +
+            "diffie-hellman-group14-sha256,diffie-hellman-group14-sha1";
+
+    /* same preference as dropbear, so we store the key type dropbear will ask for */
+    private static final String HOST_KEY_ALGORITHMS =
+            "ssh-ed25519,ecdsa-sha2-nistp256,ecdsa-sha2-nistp384,ecdsa-sha2-nistp521,rsa-sha2-256,ssh-rsa,ssh-dss";
+
+    /* RFC 3526 2048-bit MODP group 14 */
+    private static final BigInteger GROUP14_P = new BigInteger(
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD1" +
+            "29024E088A67CC74020BBEA63B139B22514A08798E3404DD" +
+            "EF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245" +
+            "E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED" +
+            "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3D" +
+            "C2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F" +
+            "83655D23DCA3AD961C62F356208552BB9ED529077096966D" +
+            "670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B" +
+            "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9" +
+            "DE2BCBF6955817183995497CEA956AE515D2261898FA0510" +
+            "15728E5A8AACAA68FFFFFFFFFFFFFFFF", 16);
+    private static final BigInteger GROUP14_G = BigInteger.valueOf(2);
+
+    /* RFC 7748 curve25519: p = 2^255 - 19 and (A - 2) / 4 */
+    private static final BigInteger X25519_P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+    private static final BigInteger X25519_A24 = BigInteger.valueOf(121665);
+
+    public static class HostKey {
+        public String keyType;
+        public byte[] key;
+
+        public String getFingerprint() {
+            return KnownHosts.getFingerprint(key);
+        }
+    }
+
+    private String mHost;
+    private int mPort;
+
+    public HostKeyProbe(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    public HostKey probe() throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+            s.setSoTimeout(READ_TIMEOUT);
+
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+
+            out.write("SSH-2.0-Syncopoli_probe\r\n".getBytes());
+            out.flush();
+            readVersion(in);
+
+            byte[] serverKexInit = readPacket(in, SSH_MSG_KEXINIT);
+            List<String> serverKex = getNameList(serverKexInit, 0);
+            List<String> serverHostKeys = getNameList(serverKexInit, 1);
+
+            String kex = negotiate(KEX_ALGORITHMS, serverKex);
+            if (kex == null) {
+                throw new IOException("No common key exchange method with server, it offers " + serverKex);
+            }
+
+            if (negotiate(HOST_KEY_ALGORITHMS, serverHostKeys) == null) {
+                throw new IOException("No common host key type with server, it offers " + serverHostKeys);
+            }
+
+            writePacket(out, buildKexInit());
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream dh = new DataOutputStream(buf);
+            dh.writeByte(SSH_MSG_KEXDH_INIT);
+            writeBytes(dh, getPublicValue(kex));
+            writePacket(out, buf.toByteArray());
+
+            byte[] reply = readPacket(in, SSH_MSG_KEXDH_REPLY);
+            DataInputStream r = new DataInputStream(new ByteArrayInputStream(reply, 1, reply.length - 1));
+
+            HostKey hk = new HostKey();
+            hk.key = readBytes(r);
+            hk.keyType = new String(readBytes(new DataInputStream(new ByteArrayInputStream(hk.key))));
+            return hk;
+        } finally {
+            s.close();
+        }
+    }
+
+    /*
+     * Our side of the key exchange: a public key, or e for Diffie-Hellman.
+     * The private half is thrown away, we hang up before it would be needed.
+     */
+    private static byte[] getPublicValue(String kex) throws IOException {
+        SecureRandom random = new SecureRandom();
+
+        if (kex.startsWith("curve25519-sha256")) {
+            byte[] k = new byte[32];
+            random.nextBytes(k);
+            byte[] base = new byte[32];
+            base[0] = 9;
+            return x25519(k, base);
+        }
+
+        if (kex.startsWith("ecdh-sha2-nistp")) {
+            String bits = kex.substring("ecdh-sha2-nistp".length());
+            try {
+                KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
+                gen.initialize(new ECGenParameterSpec("secp" + bits + "r1"), random);
+                ECPublicKey key = (ECPublicKey) gen.generateKeyPair().getPublic();
+
+                // uncompressed point (SEC1 2.3.3): 4, x, y
+                int len = (key.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+                byte[] point = new byte[1 + 2 * len];
+                point[0] = 4;
+                toUnsigned(key.getW().getAffineX(), point, 1, len);
+                toUnsigned(key.getW().getAffineY(), point, 1 + len, len);
+                return point;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not make a key for " + kex + ": " + e.toString());
+            }
+        }
+
+        BigInteger x = new BigInteger(512, random);
+        return GROUP14_G.modPow(x, GROUP14_P).toByteArray();
+    }
+
+    /* n, big-endian, in len bytes of buf from off */
+    private static void toUnsigned(BigInteger n, byte[] buf, int off, int len) {
+        byte[] b = n.toByteArray();
+        int skip = Math.max(0, b.length - len);
+        System.arraycopy(b, skip, buf, off + len - (b.length - skip), b.length - skip);
+    }
+
+    /* RFC 7748 X25519: scalar k times the point with u-coordinate u, both little-endian */
+    static byte[] x25519(byte[] k, byte[] u) {
+        byte[] scalar = Arrays.copyOf(k, 32);
+        scalar[0] &= 248;
+        scalar[31] &= 127;
+        scalar[31] |= 64;
+
+        byte[] coord = Arrays.copyOf(u, 32);
+        coord[31] &= 127;
+
+        BigInteger p = X25519_P;
+        BigInteger x1 = fromLittleEndian(coord).mod(p);
+        BigInteger x2 = BigInteger.ONE;
+        BigInteger z2 = BigInteger.ZERO;
+        BigInteger x3 = x1;
+        BigInteger z3 = BigInteger.ONE;
+        boolean swap = false;
+
+        // Montgomery ladder
+        BigInteger n = fromLittleEndian(scalar);
+        for (int t = 254; t >= 0; t--) {
+            boolean bit = n.testBit(t);
+            if (swap != bit) {
+                BigInteger tmp = x2;
+                x2 = x3;
+                x3 = tmp;
+                tmp = z2;
+                z2 = z3;
+                z3 = tmp;
+            }
+            swap = bit;
+
+            BigInteger a = x2.add(z2);
+            BigInteger aa = a.multiply(a).mod(p);
+            BigInteger b = x2.subtract(z2);
+            BigInteger bb = b.multiply(b).mod(p);
+            BigInteger e = aa.subtract(bb);
+            BigInteger c = x3.add(z3);
+            BigInteger d = x3.subtract(z3);
+            BigInteger da = d.multiply(a).mod(p);
+            BigInteger cb = c.multiply(b).mod(p);
+
+            x3 = da.add(cb).pow(2).mod(p);
+            z3 = x1.multiply(da.subtract(cb).pow(2)).mod(p);
+            x2 = aa.multiply(bb).mod(p);
+            z2 = e.multiply(aa.add(X25519_A24.multiply(e))).mod(p);
+        }
+
+        if (swap) {
+            x2 = x3;
+            z2 = z3;
+        }
+
+        BigInteger r = x2.multiply(z2.modPow(p.subtract(BigInteger.valueOf(2)), p)).mod(p);
+
+        byte[] out = new byte[32];
+        toUnsigned(r, out, 0, 32);
+        reverse(out);
+        return out;
+    }
+
+    private static BigInteger fromLittleEndian(byte[] b) {
+        byte[] be = b.clone();
+        reverse(be);
+        return new BigInteger(1, be);
+    }
+
+    private static void reverse(byte[] b) {
+        for (int i = 0; i < b.length / 2; i++) {
+            byte t = b[i];
+            b[i] = b[b.length - 1 - i];
+            b[b.length - 1 - i] = t;
+        }
+    }
+
+    /* servers may send other lines before their version string */
+    private static void readVersion(InputStream in) throws IOException {
+        for (int lines = 0; lines < 50; lines++) {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("Server closed connection before sending its version");
+                }
+                if (sb.length() < 255) {
+                    sb.append((char) c);
+                }
+            }
+
+            if (sb.toString().startsWith("SSH-")) {
+                if (!sb.toString().startsWith("SSH-2.0-") && !sb.toString().startsWith("SSH-1.99-")) {
+                    throw new IOException("Unsupported ssh version: " + sb.toString().trim());
+                }
+                return;
+            }
+        }
+
+        throw new IOException("No ssh version string from server");
+    }
+
+    private static String negotiate(String ours, List<String> theirs) {
+        for (String a : ours.split(",")) {
+            if (theirs.contains(a)) {
+                return a;
+            }
+        }
+
+        return null;
+    }
+
+    /* the n-th name-list of a KEXINIT payload */
+    private static List<String> getNameList(byte[] kexinit, int n) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(kexinit, 17, kexinit.length - 17));
+
+        byte[] list = null;
+        for (int i = 0; i <= n; i++) {
+            list = readBytes(in);
+        }
+
+        return Arrays.asList(new String(list).split(","));
+    }
+
+    private static byte[] buildKexInit() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+
+        byte[] cookie = new byte[16];
+        new SecureRandom().nextBytes(cookie);
+
+        out.writeByte(SSH_MSG_KEXINIT);
+        out.write(cookie);
+        writeString(out, KEX_ALGORITHMS);
+        writeString(out, HOST_KEY_ALGORITHMS);
+        writeString(out, "aes128-ctr,aes256-ctr");
+        writeString(out, "aes128-ctr,aes256-ctr");
+        writeString(out, "hmac-sha2-256,hmac-sha1");
+        writeString(out, "hmac-sha2-256,hmac-sha1");
+        writeString(out, "none");
+        writeString(out, "none");
+        writeString(out, "");
+        writeString(out, "");
+        out.writeBoolean(false);
+        out.writeInt(0);
+
+        return buf.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes());
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > 64 * 1024) {
+            throw new IOException("Bad string length in server packet: " + len);
+        }
+
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+
+    /* unencrypted binary packet: length, padding length, payload, padding */
+    private static void writePacket(OutputStream out, byte[] payload) throws IOException {
+        int padding = 8 - (payload.length + 5) % 8;
+        if (padding < 4) {
+            padding += 8;
+        }
+
+        DataOutputStream d = new DataOutputStream(out);
+        d.writeInt(payload.length + padding + 1);
+        d.writeByte(padding);
+        d.write(payload);
+        d.write(new byte[padding]);
+        d.flush();
+    }
+
+    /* payload of the next packet of the given type, skipping ignore and debug messages */
+    private static byte[] readPacket(DataInputStream in, int type) throws IOException {
+        while (true) {
+            int len = in.readInt();
+            if (len < 5 || len > 256 * 1024) {
+                throw new IOException("Bad packet length from server: " + len);
+            }
+
+            int padding = in.readUnsignedByte();
+            if (len - padding - 1 < 1) {
+                throw new IOException("Bad padding length from server: " + padding);
+            }
+
+            byte[] payload = new byte[len - padding - 1];
+            in.readFully(payload);
+            in.readFully(new byte[padding]);
+
+            int t = payload[0] & 0xff;
+            if (t == type) {
+                return payload;
+            }
+
+            if (t != SSH_MSG_IGNORE && t != SSH_MSG_DEBUG) {
+                throw new IOException("Unexpected message " + t + " from server, expected " + type);
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.amoradi.syncopoli;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Resolves the server name once per TTL and picks the address to use by
+ * racing connections to all of its addresses, IPv6 first with IPv4 attempts
+ * starting shortly after (happy eyeballs, RFC 8305). rsync and ssh are then
+ * given the winning address, so neither resolving again nor a broken IPv6
+ * route costs anything on the following runs. The attempts still connecting
+ * when one wins are aborted.
+ */
+public class HostResolver {
+    private static final String TAG = "Syncopoli";
+
+    public static final long TTL = 5 * 60 * 1000;
+
+    /* head start of each attempt over the next one */
+    private static final long ATTEMPT_DELAY = 250;
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+
+    public static class Result {
+        public String host;
+        public InetAddress address;
+        /* connect time in ms of address, -1 if it wasn't measured */
+        public long latency;
+        public long resolved;
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() - resolved < TTL;
+        }
+
+        /* the address as rsync wants it in a host spec, IPv6 in brackets */
+        public String getHostSpec() {
+            String literal = getLiteral();
+            if (address instanceof Inet6Address) {
+                return "[" + literal + "]";
+            }
+
+            return literal;
+        }
+
+        public String getLiteral() {
+            return address.getHostAddress();
+        }
+    }
+
+    private static HostResolver sInstance;
+
+    private final Map<String, Result> mCache = new HashMap<>();
+
+    public static synchronized HostResolver getInstance() {
+        if (sInstance == null) {
+            sInstance = new HostResolver();
+        }
+
+        return sInstance;
+    }
+
+    /*
+     * Fastest working address of host, from the cache if fresh. Returns null
+     * if host can't be resolved or none of its addresses accept connections
+     * on port; callers then just use the name and let rsync report the error.
+     */
+    public Result resolve(String host, int port) {
+        synchronized (mCache) {
+            Result r = mCache.get(host + ":" + port);
+            if (r != null && r.isFresh()) {
+                return r;
+            }
+        }
+
+        InetAddress[] addresses;
+        try {
+            addresses = InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            Log.e(TAG, "Could not resolve " + host + ": " + e.toString());
+            return null;
+        }
+
+        List<InetAddress> ordered = order(addresses);
+        Result r;
+
+        if (ordered.size() == 1) {
+            // nothing to race, and needless connects look like scans to tools like sshguard
+            r = new Result();
+            r.host = host;
+            r.address = ordered.get(0);
+            r.latency = -1;
+            r.resolved = System.currentTimeMillis();
+        } else {
+            List<String> errors = new ArrayList<>();
+            r = race(host, ordered, port, errors);
+
+            for (String e : errors) {
+                Log.d(TAG, e);
+            }
+
+            if (r != null) {
+                Log.d(TAG, host + " -> " + r.getLiteral() + " (" + r.latency + " ms)");
+            }
+        }
+
+        if (r == null) {
+            return null;
+        }
+
+        synchronized (mCache) {
+            mCache.put(host + ":" + port, r);
+        }
+
+        return r;
+    }
+
+    public void invalidate(String host, int port) {
+        synchronized (mCache) {
+            mCache.remove(host + ":" + port);
+        }
+    }
+
+    /* alternate IPv6 and IPv4, starting with IPv6 */
+    static List<InetAddress> order(InetAddress[] addresses) {
+        List<InetAddress> v6 = new ArrayList<>();
+        List<InetAddress> v4 = new ArrayList<>();
+
+        for (InetAddress a : addresses) {
+            // scoped link-local addresses don't survive being put on a command line
+            if (a instanceof Inet6Address && ((Inet6Address) a).getScopeId() != 0) {
+                continue;
+            }
+
+            if (a instanceof Inet6Address) {
+                v6.add(a);
+            } else {
+                v4.add(a);
+            }
+        }
+
+        List<InetAddress> ordered = new ArrayList<>();
+        for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+            if (i < v6.size()) {
+                ordered.add(v6.get(i));
+            }
+            if (i < v4.size()) {
+                ordered.add(v4.get(i));
+            }
+        }
+
+        return ordered;
+    }
+
+    /*
+     * Connect to addresses, each starting ATTEMPT_DELAY after the one before
+     * unless that failed sooner, and return the first to get through; null if
+     * none does. Why the others failed goes to errors. The sockets of
+     * attempts still running when one wins are closed, which aborts them.
+     */
+    static Result race(final String host, List<InetAddress> addresses, final int port, final List<String> errors) {
+        final Object lock = new Object();
+        final Result[] winner = new Result[1];
+        final int[] failed = {0};
+        final int total = addresses.size();
+        final List<Socket> sockets = new ArrayList<>();
+
+        synchronized (lock) {
+            try {
+                for (final InetAddress a : addresses) {
+                    final Socket s = new Socket();
+                    sockets.add(s);
+
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            long start = System.currentTimeMillis();
+
+                            try {
+                                s.connect(new InetSocketAddress(a, port), CONNECT_TIMEOUT);
+                                long ms = System.currentTimeMillis() - start;
+
+                                synchronized (lock) {
+                                    if (winner[0] == null) {
+                                        Result r = new Result();
+                                        r.host = host;
+                                        r.address = a;
+                                        r.latency = ms;
+                                        r.resolved = System.currentTimeMillis();
+                                        winner[0] = r;
+                                    }
+                                    lock.notifyAll();
+                                }
+                            } catch (IOException e) {
+                                synchronized (lock) {
+                                    // a loser closed under us isn't worth mentioning
+                                    if (winner[0] == null) {
+                                        errors.add("Connect to " + a.getHostAddress() + " failed: " + e.toString());
+                                    }
+                                    failed[0]++;
+                                    lock.notifyAll();
+                                }
+                            } finally {
+                                close(s);
+                            }
+                        }
+                    });
+                    t.setDaemon(true);
+                    t.start();
+
+                    // give this attempt a head start, unless it already failed
+                    long deadline = System.currentTimeMillis() + ATTEMPT_DELAY;
+                    int failedBefore = failed[0];
+                    while (winner[0] == null && failed[0] == failedBefore && System.currentTimeMillis() < deadline) {
+                        lock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                    }
+
+                    if (winner[0] != null) {
+                        break;
+                    }
+                }
+
+                while (winner[0] == null && failed[0] < total) {
+                    lock.wait();
+                }
+
+                return winner[0];
+            } catch (InterruptedException e) {
+                return null;
+            } finally {
+                for (Socket s : sockets) {
+                    close(s);
+                }
+            }
+        }
+    }
+
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+}
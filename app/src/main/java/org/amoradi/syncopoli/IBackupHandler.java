@@ -10,6 +10,8 @@ public interface IBackupHandler {
     int updateBackup(String old_name, BackupItem bi);
     int runBackup(BackupItem bi);
     void showLog(BackupItem bi);
+    void estimateBackup(BackupItem bi);
+    void verifyBackup(BackupItem bi);
     void updateBackupTimestamp(BackupItem bi);
     void updateBackupList();
     List<BackupItem> getBackups();
@@ -6,4 +6,6 @@ interface IBackupItemClickHandler {
     void onBackupCopy(int pos);
     void onBackupDelete(int pos);
     void onBackupRun(int pos);
+    void onBackupEstimate(int pos);
+    void onBackupVerify(int pos);
 }
@@ -0,0 +1,348 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Checks that what a profile sent is intact on the server, without rsync's
+ * --checksum reading every byte on both ends one file after the other.
+ *
+ * Local files are hashed in parallel, and only when they changed since they
+ * were last hashed (see HashCache). The server hashes its copies with
+ * md5sum, in one ssh command per source that is given the file names on
+ * its input. Files whose hashes differ, or that are missing on the
+ * server, are sent again with --ignore-times, and nothing else is.
+ */
+public class IntegrityVerifier {
+    private static final String TAG = "Syncopoli";
+
+    /* recorded as the policy of verify runs in the run history */
+    public static final String POLICY = "verify";
+
+    /* local files below localBase that belong at the same relative path below remoteBase */
+    public static class Group {
+        public String localBase;
+        public String remoteBase;
+        /* sorted, with the size and mtime of each file in entries */
+        public List<String> paths = new ArrayList<>();
+        public List<HashCache.Entry> entries = new ArrayList<>();
+    }
+
+    private Context mContext;
+    private BackupHandler mHandler;
+
+    public IntegrityVerifier(Context ctx, BackupHandler handler) {
+        mContext = ctx;
+        mHandler = handler;
+    }
+
+    /* directory of a remote source that rsync puts it in relative to, "" for the login directory */
+    static String getRemoteBase(String source) {
+        if (source.endsWith("/")) {
+            return source;
+        }
+
+        int slash = source.lastIndexOf('/');
+        if (slash < 0) {
+            return "";
+        }
+
+        return slash == 0 ? "/" : source.substring(0, slash);
+    }
+
+    /* the local files of b that filter keeps, and where they are on the server */
+    static List<Group> plan(BackupItem b, ParallelWalker.Filter filter) throws InterruptedException {
+        List<Group> groups = new ArrayList<>();
+
+        for (String s : b.sources) {
+            Group g = new Group();
+
+            if (b.direction == BackupItem.Direction.OUTGOING) {
+                g.localBase = ShardPlanner.getBase(s);
+                g.remoteBase = b.destination;
+            } else {
+                g.localBase = b.destination;
+                g.remoteBase = getRemoteBase(s);
+            }
+
+            final Map<String, HashCache.Entry> files = new TreeMap<>();
+            String rel = ShardPlanner.getRelative(s);
+
+            ParallelWalker walker = new ParallelWalker();
+            walker.setFilter(filter);
+            walker.walk(rel.equals("") ? new File(g.localBase) : new File(g.localBase, rel), rel, new ParallelWalker.Listener() {
+                @Override
+                public void onFile(String rel, File file, long size, long mtime) {
+                    HashCache.Entry e = new HashCache.Entry(file.getAbsolutePath(), size, mtime);
+                    synchronized (files) {
+                        files.put(rel, e);
+                    }
+                }
+            });
+
+            g.paths.addAll(files.keySet());
+            g.entries.addAll(files.values());
+            groups.add(g);
+        }
+
+        return groups;
+    }
+
+    /*
+     * Add a line of md5sum output to sums. Names with a newline or backslash
+     * are escaped by md5sum, which marks the line with a leading backslash.
+     */
+    static void parseSumLine(String line, Map<String, String> sums) {
+        boolean escaped = line.startsWith("\\");
+        if (escaped) {
+            line = line.substring(1);
+        }
+
+        // hash, then " " and " " or "*" (binary mode)
+        if (line.length() < 35 || line.charAt(32) != ' ') {
+            return;
+        }
+
+        String hash = line.substring(0, 32).toLowerCase(Locale.ENGLISH);
+        String name = line.substring(34);
+
+        if (escaped) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c == '\\' && i + 1 < name.length()) {
+                    char n = name.charAt(++i);
+                    sb.append(n == 'n' ? '\n' : n);
+                } else {
+                    sb.append(c);
+                }
+            }
+            name = sb.toString();
+        }
+
+        sums.put(name, hash);
+    }
+
+    /* the user@host: part of the rsync paths of cmd */
+    private static String getRemotePrefix(BackupItem b, RsyncCommand cmd) {
+        if (b.direction == BackupItem.Direction.OUTGOING) {
+            String spec = cmd.paths.get(cmd.paths.size() - 1);
+            return spec.substring(0, spec.length() - b.destination.length());
+        }
+
+        String spec = cmd.paths.get(0);
+        return spec.substring(0, spec.length() - b.sources[0].length());
+    }
+
+    /*
+     * Verify b against the server cmd (built for b) goes to, sending again
+     * what differs. Returns 0 or the first error code of ssh or rsync.
+     */
+    public int verify(BackupItem b, RsyncCommand cmd, OutputStream log, RsyncStats stats) throws IOException, InterruptedException {
+        if (cmd.login == null) {
+            log.write("ERROR: Verifying needs the SSH protocol without a tunnel, the server's hashes are computed over ssh\n".getBytes());
+            return -1;
+        }
+
+        List<Group> groups = plan(b, FilterRules.forProfile(mContext, b));
+        List<HashCache.Entry> all = new ArrayList<>();
+        for (Group g : groups) {
+            all.addAll(g.entries);
+        }
+
+        HashCache cache = new HashCache(mContext);
+        int cached = cache.fill(all);
+
+        List<HashCache.Entry> missing = new ArrayList<>();
+        for (HashCache.Entry e : all) {
+            if (e.hash == null) {
+                missing.add(e);
+            }
+        }
+
+        List<String> unreadable = new ArrayList<>();
+        int hashed = FileHasher.hashAll(missing, Runtime.getRuntime().availableProcessors(), unreadable);
+        cache.store(missing);
+
+        for (String u : unreadable) {
+            log.write(("Could not hash " + u + "\n").getBytes());
+        }
+
+        log.write(("Local files: " + all.size() + " (" + cached + " unchanged, " + hashed + " hashed" +
+                (missing.size() > hashed ? ", " + (missing.size() - hashed) + " unreadable" : "") + ")\n").getBytes());
+
+        String prefix = getRemotePrefix(b, cmd);
+        int errno = 0;
+
+        for (int k = 0; k < groups.size(); k++) {
+            Group g = groups.get(k);
+            if (g.paths.isEmpty()) {
+                continue;
+            }
+
+            Map<String, String> sums = new HashMap<>();
+            int ret = hashRemote(cmd, g, sums, log);
+            if (ret != 0) {
+                return ret;
+            }
+
+            List<String> differ = new ArrayList<>();
+            for (int i = 0; i < g.paths.size(); i++) {
+                String local = g.entries.get(i).hash;
+                if (local != null && !local.equals(sums.get(g.paths.get(i)))) {
+                    differ.add(g.paths.get(i));
+                }
+            }
+
+            log.write(("Server files checked: " + sums.size() + " of " + g.paths.size() + " below " +
+                    (g.remoteBase.equals("") ? "the login directory" : g.remoteBase) + ", " + differ.size() + " differ\n").getBytes());
+
+            if (differ.isEmpty()) {
+                continue;
+            }
+
+            for (String p : differ) {
+                log.write(("  " + p + "\n").getBytes());
+            }
+            log.write("\n".getBytes());
+
+            File list = new File(mContext.getCacheDir(), "verify_" + Uri.encode(b.name) + "_" + k);
+            FileOutputStream out = new FileOutputStream(list);
+            for (String p : differ) {
+                out.write(p.getBytes("UTF-8"));
+                out.write(0);
+            }
+            out.close();
+
+            // the quick check would pass these by, same size and time
+            RsyncCommand c = new RsyncCommand(cmd);
+            c.options.add("-r");
+            c.options.add("--from0");
+            c.options.add("--files-from=" + list.getAbsolutePath());
+            c.options.add("--ignore-times");
+            c.paths.clear();
+
+            if (b.direction == BackupItem.Direction.OUTGOING) {
+                c.paths.add(g.localBase);
+                c.paths.add(cmd.paths.get(cmd.paths.size() - 1));
+            } else {
+                c.paths.add(prefix + g.remoteBase);
+                c.paths.add(g.localBase);
+            }
+
+            try {
+                ret = mHandler.runRsync(c, log, stats);
+            } finally {
+                list.delete();
+            }
+
+            if (ret != 0 && errno == 0) {
+                errno = ret;
+            }
+        }
+
+        return errno;
+    }
+
+    /* remote command hashing the files named on its input below remoteBase, which may start with ~/ */
+    static String getHashCommand(String remoteBase) {
+        return "cd " + (remoteBase.equals("") ? "." : RemoteWatcher.quoteSource(remoteBase)) + " && xargs -0 md5sum --";
+    }
+
+    /* md5sum of the files of g on the server, by relative path */
+    private int hashRemote(RsyncCommand cmd, final Group g, Map<String, String> sums, OutputStream log) throws IOException, InterruptedException {
+        List<String> args = cmd.getSshArgs();
+        args.add(cmd.login);
+        args.add(getHashCommand(g.remoteBase));
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.directory(cmd.directory);
+        pb.environment().putAll(cmd.env);
+
+        final Process p = pb.start();
+
+        // names go in while sums come out, neither side may block on the other
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = new BufferedOutputStream(p.getOutputStream());
+                    for (String path : g.paths) {
+                        out.write(path.getBytes("UTF-8"));
+                        out.write(0);
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not send file names: " + e.toString());
+                }
+            }
+        });
+
+        final List<String> errors = new ArrayList<>();
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        synchronized (errors) {
+                            errors.add(line);
+                        }
+                    }
+                    reader.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "ssh error output closed: " + e.toString());
+                }
+            }
+        });
+
+        writer.start();
+        drain.start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            parseSumLine(line, sums);
+        }
+        reader.close();
+
+        writer.join();
+        drain.join();
+        p.waitFor();
+
+        int ret = p.exitValue();
+
+        // missing files only show up as errors of md5sum (xargs exits with 123)
+        if (ret != 0 && ret != 123) {
+            for (String e : errors) {
+                log.write((e + "\n").getBytes());
+            }
+
+            if (ret == 127) {
+                log.write("ERROR: md5sum or xargs missing on the server\n".getBytes());
+            } else {
+                log.write(("ERROR: Could not hash files on the server (error code " + ret + ")\n").getBytes());
+            }
+
+            return ret;
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,287 @@
+package org.amoradi.syncopoli;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The known_hosts file dropbear checks host keys against, with an in-memory
+ * index by host name. Lines are of the form "host[,host...] keytype base64key".
+ *
+ * Changes are written to a temporary file which then replaces known_hosts,
+ * so dropbear never sees a half written file.
+ *
+ * Entries are by host name alone, the port isn't part of them: that is how
+ * dropbear looks keys up.
+ */
+public class KnownHosts {
+    private static final String TAG = "Syncopoli";
+
+    public static class Entry {
+        public String keyType;
+        public byte[] key;
+
+        public String getFingerprint() {
+            return KnownHosts.getFingerprint(key);
+        }
+    }
+
+    private static final Map<String, KnownHosts> sInstances = new HashMap<>();
+
+    private File mFile;
+    private long mLoadedModified = -1;
+
+    /* every line of the file, kept so entries we don't understand survive a rewrite */
+    private List<String> mLines = new ArrayList<>();
+    private Map<String, List<Entry>> mIndex = new HashMap<>();
+
+    private KnownHosts(File file) {
+        mFile = file;
+    }
+
+    public static KnownHosts getInstance(File file) {
+        synchronized (sInstances) {
+            KnownHosts k = sInstances.get(file.getAbsolutePath());
+            if (k == null) {
+                k = new KnownHosts(file);
+                sInstances.put(file.getAbsolutePath(), k);
+            }
+
+            return k;
+        }
+    }
+
+    /* dropbear (or a previous version of us) may have changed the file behind our back */
+    private void reloadIfChanged() {
+        long modified = mFile.exists() ? mFile.lastModified() : 0;
+        if (modified == mLoadedModified) {
+            return;
+        }
+
+        mLines.clear();
+        mIndex.clear();
+        mLoadedModified = modified;
+
+        if (modified == 0) {
+            return;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile)));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mLines.add(line);
+                index(line);
+            }
+            reader.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + mFile.getAbsolutePath() + ": " + e.toString());
+        }
+    }
+
+    private void index(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length < 3 || parts[0].startsWith("#")) {
+            return;
+        }
+
+        Entry e = new Entry();
+        e.keyType = parts[1];
+        e.key = decode(parts[2]);
+        if (e.key == null) {
+            // not ours to fix, the line is kept as it is
+            return;
+        }
+
+        for (String host : parts[0].split(",")) {
+            List<Entry> entries = mIndex.get(host);
+            if (entries == null) {
+                entries = new ArrayList<>();
+                mIndex.put(host, entries);
+            }
+            entries.add(e);
+        }
+    }
+
+    public synchronized List<Entry> getEntries(String host) {
+        reloadIfChanged();
+
+        List<Entry> entries = mIndex.get(host);
+        if (entries == null) {
+            return new ArrayList<>();
+        }
+
+        return new ArrayList<>(entries);
+    }
+
+    public synchronized boolean isTrusted(String host, String keyType, byte[] key) {
+        for (Entry e : getEntries(host)) {
+            if (e.keyType.equals(keyType) && Arrays.equals(e.key, key)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /* trust key for host, replacing any other key of the same type it had */
+    public synchronized void add(String host, String keyType, byte[] key) throws IOException {
+        reloadIfChanged();
+
+        List<String> lines = new ArrayList<>();
+        for (String line : mLines) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length >= 2 && parts[0].equals(host) && parts[1].equals(keyType)) {
+                continue;
+            }
+            lines.add(line);
+        }
+
+        lines.add(host + " " + keyType + " " + encode(key));
+        write(lines);
+    }
+
+    /*
+     * Trust for alias (e.g. an address of host) every key host is trusted
+     * with, since dropbear looks keys up by the name it was given.
+     */
+    public synchronized void addAlias(String alias, String host) throws IOException {
+        List<Entry> missing = new ArrayList<>();
+        for (Entry e : getEntries(host)) {
+            if (!isTrusted(alias, e.keyType, e.key)) {
+                missing.add(e);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>(mLines);
+        for (Entry e : missing) {
+            lines.add(alias + " " + e.keyType + " " + encode(e.key));
+        }
+        write(lines);
+    }
+
+    public synchronized void clear() throws IOException {
+        write(new ArrayList<String>());
+    }
+
+    private void write(List<String> lines) throws IOException {
+        File dir = mFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir.getAbsolutePath());
+        }
+
+        File tmp = new File(dir, mFile.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            for (String line : lines) {
+                out.write((line + "\n").getBytes());
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + mFile.getAbsolutePath());
+        }
+
+        mLines = lines;
+        mIndex.clear();
+        for (String line : lines) {
+            index(line);
+        }
+        mLoadedModified = mFile.lastModified();
+    }
+
+    private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /* base64 with padding, as in known_hosts */
+    static String encode(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            int n = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length) {
+                n |= (data[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < data.length) {
+                n |= data[i + 2] & 0xff;
+            }
+
+            sb.append(BASE64.charAt(n >> 18 & 63));
+            sb.append(BASE64.charAt(n >> 12 & 63));
+            sb.append(i + 1 < data.length ? BASE64.charAt(n >> 6 & 63) : '=');
+            sb.append(i + 2 < data.length ? BASE64.charAt(n & 63) : '=');
+        }
+
+        return sb.toString();
+    }
+
+    /* null if s isn't base64 */
+    static byte[] decode(String s) {
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == '=' && s.length() - end < 2) {
+            end--;
+        }
+
+        if (s.length() % 4 != 0 || end % 4 == 1) {
+            return null;
+        }
+
+        byte[] data = new byte[end * 3 / 4];
+        int n = 0;
+        int bits = 0;
+        int pos = 0;
+        for (int i = 0; i < end; i++) {
+            int v = BASE64.indexOf(s.charAt(i));
+            if (v < 0) {
+                return null;
+            }
+
+            n = n << 6 | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                data[pos++] = (byte) (n >> bits);
+            }
+        }
+
+        return data;
+    }
+
+    /* md5 fingerprint in the form dropbear prints, e.g. "ab:cd:ef:..." */
+    public static String getFingerprint(byte[] key) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest(key)) {
+            if (sb.length() > 0) {
+                sb.append(':');
+            }
+            sb.append(String.format("%02x", b & 0xff));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,557 @@
+package org.amoradi.syncopoli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * The local files of a profile as they were at its last successful sync:
+ * for each file its path below the destination, size, mtime and MD5 (if it
+ * was hashed). A profile may have millions of files, so this is kept in a
+ * file made to be read in place rather than loaded:
+ *
+ *   header     magic, version, count, offset of paths, end of file
+ *   sizes      count longs
+ *   mtimes     count longs
+ *   hashes     count times 16 bytes, all zero if not hashed
+ *   paths      per entry: bytes shared with the previous path, length of
+ *              the rest and the rest (UTF-8)
+ *
+ * Paths are sorted by byte, which makes neighbours share long prefixes and
+ * lets two manifests be compared in one pass (see diff()). The Reader maps
+ * the file and walks it with a cursor, without allocating per entry. Paths
+ * are only ever read in order, so there is no index to look one up by.
+ */
+public class Manifest {
+    private static final int MAGIC = 0x53594e4d;
+    private static final int VERSION = 3;
+    private static final int HEADER = 28;
+
+    private static final int HASH_BYTES = 16;
+
+    /* a file as found by a scan, before it is written */
+    public static class Entry {
+        /* absolute local path */
+        public String path;
+        /* path below the destination */
+        public String rel;
+        public long size;
+        public long mtime;
+        /* hex MD5, null if not hashed */
+        public String hash;
+
+        public Entry(String path, String rel, long size, long mtime) {
+            this.path = path;
+            this.rel = rel;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    /* the order of paths in a manifest: by code point, which is the order of their UTF-8 bytes */
+    public static final Comparator<String> PATH_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int i = 0;
+            int j = 0;
+
+            while (i < a.length() && j < b.length()) {
+                int x = a.codePointAt(i);
+                int y = b.codePointAt(j);
+                if (x != y) {
+                    return x < y ? -1 : 1;
+                }
+
+                i += Character.charCount(x);
+                j += Character.charCount(y);
+            }
+
+            return (a.length() - i) - (b.length() - j);
+        }
+    };
+
+    public static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return PATH_ORDER.compare(a.rel, b.rel);
+        }
+    };
+
+    /*
+     * The local files of an outgoing profile as they are now, sorted as they
+     * go into a manifest. Of two sources sending a file to the same path
+     * only the first is kept. Files filter excludes are left out.
+     */
+    public static List<Entry> scan(BackupItem b, ParallelWalker.Filter filter) throws InterruptedException {
+        List<Entry> entries = new ArrayList<>();
+
+        for (IntegrityVerifier.Group g : IntegrityVerifier.plan(b, filter)) {
+            for (int i = 0; i < g.paths.size(); i++) {
+                HashCache.Entry e = g.entries.get(i);
+                entries.add(new Entry(e.path, g.paths.get(i), e.size, e.mtime));
+            }
+        }
+
+        // stable, the first source stays in front of a duplicate
+        Collections.sort(entries, ENTRY_ORDER);
+
+        List<Entry> unique = new ArrayList<>(entries.size());
+        for (Entry e : entries) {
+            if (unique.isEmpty() || !unique.get(unique.size() - 1).rel.equals(e.rel)) {
+                unique.add(e);
+            }
+        }
+
+        return unique;
+    }
+
+    /* write entries, sorted and without duplicates, to f */
+    public static void write(File f, List<Entry> entries) throws IOException {
+        Writer w = new Writer(f, entries.size());
+        try {
+            for (Entry e : entries) {
+                w.add(e.rel, e.size, e.mtime, e.hash == null ? null : fromHex(e.hash));
+            }
+        } catch (IOException | RuntimeException e) {
+            w.abort();
+            throw e;
+        }
+        w.close();
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] b = new byte[hex.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return b;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static int compare(byte[] a, int alen, byte[] b, int blen) {
+        int n = Math.min(alen, blen);
+        for (int i = 0; i < n; i++) {
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+            if (x != y) {
+                return x < y ? -1 : 1;
+            }
+        }
+
+        return alen - blen;
+    }
+
+    /*
+     * Writes a manifest of a known number of entries, added in order. Every
+     * section is written at its place as entries come, through small
+     * buffers, so nothing grows with the number of entries. The file only
+     * replaces an existing one once it is complete.
+     */
+    public static class Writer {
+        private static final int BUFFER = 64 * 1024;
+
+        private File mFile;
+        private File mTmp;
+        private RandomAccessFile mRaf;
+        private FileChannel mChannel;
+
+        private int mCount;
+        private int mWritten;
+
+        private long mPathsStart;
+
+        private ByteBuffer mSizes = ByteBuffer.allocate(BUFFER);
+        private ByteBuffer mMtimes = ByteBuffer.allocate(BUFFER);
+        private ByteBuffer mHashes = ByteBuffer.allocate(BUFFER);
+        private ByteBuffer mPaths = ByteBuffer.allocate(BUFFER);
+        private long mSizesPos;
+        private long mMtimesPos;
+        private long mHashesPos;
+        private long mPathsPos;
+
+        private byte[] mPrev = new byte[0];
+
+        public Writer(File f, int count) throws IOException {
+            mFile = f;
+            mTmp = new File(f.getPath() + ".tmp");
+            mRaf = new RandomAccessFile(mTmp, "rw");
+            mRaf.setLength(0);
+            mChannel = mRaf.getChannel();
+            mCount = count;
+
+            mSizesPos = HEADER;
+            mMtimesPos = mSizesPos + 8L * count;
+            mHashesPos = mMtimesPos + 8L * count;
+            mPathsStart = mHashesPos + (long) HASH_BYTES * count;
+            mPathsPos = mPathsStart;
+        }
+
+        private long flush(ByteBuffer b, long pos) throws IOException {
+            b.flip();
+            while (b.hasRemaining()) {
+                pos += mChannel.write(b, pos);
+            }
+            b.clear();
+            return pos;
+        }
+
+        private void putVarint(int v) throws IOException {
+            if (mPaths.remaining() < 5) {
+                mPathsPos = flush(mPaths, mPathsPos);
+            }
+
+            while ((v & ~0x7f) != 0) {
+                mPaths.put((byte) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            mPaths.put((byte) v);
+        }
+
+        /* add the entry for rel, which must come after the last one added; hash may be null */
+        public void add(String rel, long size, long mtime, byte[] hash) throws IOException {
+            byte[] path = utf8(rel);
+
+            if (mWritten >= mCount) {
+                throw new IllegalStateException("More entries than announced");
+            }
+            if (mWritten > 0 && compare(mPrev, mPrev.length, path, path.length) >= 0) {
+                throw new IllegalArgumentException("Paths out of order: " + rel);
+            }
+
+            int shared = 0;
+            int n = Math.min(mPrev.length, path.length);
+            while (shared < n && mPrev[shared] == path[shared]) {
+                shared++;
+            }
+
+            putVarint(shared);
+            putVarint(path.length - shared);
+
+            int len = path.length - shared;
+            if (mPaths.remaining() < len) {
+                mPathsPos = flush(mPaths, mPathsPos);
+            }
+            if (len > mPaths.capacity()) {
+                mPathsPos += mChannel.write(ByteBuffer.wrap(path, shared, len), mPathsPos);
+            } else {
+                mPaths.put(path, shared, len);
+            }
+
+            if (mSizes.remaining() < 8) {
+                mSizesPos = flush(mSizes, mSizesPos);
+                mMtimesPos = flush(mMtimes, mMtimesPos);
+            }
+            mSizes.putLong(size);
+            mMtimes.putLong(mtime);
+
+            if (mHashes.remaining() < HASH_BYTES) {
+                mHashesPos = flush(mHashes, mHashesPos);
+            }
+            if (hash != null) {
+                mHashes.put(hash, 0, HASH_BYTES);
+            } else {
+                mHashes.put(new byte[HASH_BYTES]);
+            }
+
+            mPrev = path;
+            mWritten++;
+        }
+
+        public void close() throws IOException {
+            if (mWritten != mCount) {
+                abort();
+                throw new IOException("Manifest got " + mWritten + " of " + mCount + " entries");
+            }
+
+            flush(mSizes, mSizesPos);
+            flush(mMtimes, mMtimesPos);
+            flush(mHashes, mHashesPos);
+            long end = flush(mPaths, mPathsPos);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(mCount).putLong(mPathsStart).putLong(end);
+            header.flip();
+            mChannel.write(header, 0);
+
+            mRaf.close();
+
+            if (!mTmp.renameTo(mFile)) {
+                mTmp.delete();
+                throw new IOException("Could not replace " + mFile);
+            }
+        }
+
+        public void abort() {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                // only the temporary file is affected
+            }
+            mTmp.delete();
+        }
+    }
+
+    /*
+     * A cursor over a manifest mapped into memory. next() moves to the next
+     * entry in path order, whose path is then in a reused buffer and whose
+     * other fields are read straight from the mapping.
+     */
+    public static class Reader {
+        private RandomAccessFile mRaf;
+        private MappedByteBuffer mBuf;
+
+        private int mCount;
+        private int mPathsStart;
+        private int mSizesOff;
+        private int mMtimesOff;
+        private int mHashesOff;
+
+        private int mIndex;
+        private int mPos;
+        private byte[] mPath = new byte[256];
+        private int mPathLen;
+
+        private Reader() {
+        }
+
+        /* the manifest in f, null if there is none */
+        public static Reader open(File f) throws IOException {
+            if (!f.exists()) {
+                return null;
+            }
+
+            Reader r = new Reader();
+            r.mRaf = new RandomAccessFile(f, "r");
+
+            try {
+                FileChannel ch = r.mRaf.getChannel();
+                if (ch.size() < HEADER || ch.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Bad manifest size " + ch.size());
+                }
+
+                r.mBuf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (r.mBuf.getInt(0) != MAGIC || r.mBuf.getInt(4) != VERSION) {
+                    throw new IOException("Not a manifest of this version: " + f);
+                }
+
+                r.mCount = r.mBuf.getInt(8);
+                r.mPathsStart = (int) r.mBuf.getLong(12);
+                if (r.mBuf.getLong(20) != ch.size()) {
+                    throw new IOException("Truncated manifest: " + f);
+                }
+
+                r.mSizesOff = HEADER;
+                r.mMtimesOff = r.mSizesOff + 8 * r.mCount;
+                r.mHashesOff = r.mMtimesOff + 8 * r.mCount;
+            } catch (IOException e) {
+                r.mRaf.close();
+                throw e;
+            }
+
+            r.rewind();
+            return r;
+        }
+
+        public void close() throws IOException {
+            mRaf.close();
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /* before the first entry again */
+        public void rewind() {
+            mIndex = -1;
+            mPos = mPathsStart;
+            mPathLen = 0;
+        }
+
+        private int readVarint() {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mBuf.get(mPos++);
+                v |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return v;
+        }
+
+        public boolean next() {
+            if (mIndex + 1 >= mCount) {
+                mIndex = mCount;
+                return false;
+            }
+
+            mIndex++;
+
+            int shared = readVarint();
+            int len = readVarint();
+
+            if (shared + len > mPath.length) {
+                byte[] bigger = new byte[Math.max(shared + len, mPath.length * 2)];
+                System.arraycopy(mPath, 0, bigger, 0, shared);
+                mPath = bigger;
+            }
+
+            mBuf.position(mPos);
+            mBuf.get(mPath, shared, len);
+            mPos += len;
+            mPathLen = shared + len;
+
+            return true;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public String getPath() {
+            try {
+                return new String(mPath, 0, mPathLen, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public long getSize() {
+            return mBuf.getLong(mSizesOff + 8 * mIndex);
+        }
+
+        public long getMtime() {
+            return mBuf.getLong(mMtimesOff + 8 * mIndex);
+        }
+
+        public boolean hasHash() {
+            int off = mHashesOff + HASH_BYTES * mIndex;
+            for (int i = 0; i < HASH_BYTES; i++) {
+                if (mBuf.get(off + i) != 0) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /* whether this entry and that of other have the same hash, false if either has none */
+        public boolean sameHash(Reader other) {
+            if (!hasHash() || !other.hasHash()) {
+                return false;
+            }
+
+            int a = mHashesOff + HASH_BYTES * mIndex;
+            int b = other.mHashesOff + HASH_BYTES * other.mIndex;
+            for (int i = 0; i < HASH_BYTES; i++) {
+                if (mBuf.get(a + i) != other.mBuf.get(b + i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /* hex MD5 of this entry, null if it has none */
+        public String getHash() {
+            if (!hasHash()) {
+                return null;
+            }
+
+            byte[] hash = new byte[HASH_BYTES];
+            for (int i = 0; i < HASH_BYTES; i++) {
+                hash[i] = mBuf.get(mHashesOff + HASH_BYTES * mIndex + i);
+            }
+
+            return FileHasher.toHex(hash);
+        }
+
+        int comparePath(Reader other) {
+            return compare(mPath, mPathLen, other.mPath, other.mPathLen);
+        }
+    }
+
+    public interface DiffListener {
+        /* before is at an entry after hasn't */
+        void onRemoved(Reader before) throws IOException;
+        /* after is at an entry before hasn't */
+        void onAdded(Reader after) throws IOException;
+        /* both are at the same path, whose size, mtime or hash differ */
+        void onChanged(Reader before, Reader after) throws IOException;
+    }
+
+    /* walk both manifests side by side once, reporting how after differs from before */
+    public static void diff(Reader before, Reader after, DiffListener listener) throws IOException {
+        before.rewind();
+        after.rewind();
+
+        boolean hasBefore = before.next();
+        boolean hasAfter = after.next();
+
+        while (hasBefore || hasAfter) {
+            int c = !hasBefore ? 1 : (!hasAfter ? -1 : before.comparePath(after));
+
+            if (c < 0) {
+                listener.onRemoved(before);
+                hasBefore = before.next();
+            } else if (c > 0) {
+                listener.onAdded(after);
+                hasAfter = after.next();
+            } else {
+                if (before.getSize() != after.getSize() || before.getMtime() != after.getMtime() ||
+                        (before.hasHash() && after.hasHash() && !before.sameHash(after))) {
+                    listener.onChanged(before, after);
+                }
+                hasBefore = before.next();
+                hasAfter = after.next();
+            }
+        }
+    }
+
+    /*
+     * Write the paths of after that are new or changed since before to out,
+     * NUL separated as rsync's --files-from with --from0 reads them. Returns
+     * how many were written.
+     */
+    public static int writeChanged(Reader before, Reader after, final OutputStream out) throws IOException {
+        final int[] n = {0};
+
+        diff(before, after, new DiffListener() {
+            @Override
+            public void onRemoved(Reader before) {
+            }
+
+            @Override
+            public void onAdded(Reader after) throws IOException {
+                out.write(after.mPath, 0, after.mPathLen);
+                out.write(0);
+                n[0]++;
+            }
+
+            @Override
+            public void onChanged(Reader before, Reader after) throws IOException {
+                onAdded(after);
+            }
+        });
+
+        return n[0];
+    }
+}
@@ -0,0 +1,424 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/*
+ * What changed in the sources of a media profile since its last sync, as
+ * told by the platform's media index rather than found by walking every
+ * directory. A media profile is an outgoing one whose sources all lie in
+ * DCIM, Pictures or Movies, without --delete (the index doesn't keep what
+ * it removed).
+ *
+ * After each successful sync a watermark is kept for the profile: the
+ * highest _id and date_modified in the index. Files with a higher _id were
+ * added since, files with a later date_modified were changed, and only
+ * those are sent next time. The watermark is dropped, and the next run
+ * goes through all files, when the profile changed, the index was rebuilt
+ * (its highest _id went down) or the last run through all files is older
+ * than FULL_SCAN_AGE, which also catches files the index never saw.
+ *
+ * A content observer notes when the index last changed, so while the app
+ * is running a sync with nothing new doesn't even query it.
+ */
+public class MediaChangeFeed {
+    private static final String TAG = "Syncopoli";
+
+    /* a full run at least this often, for what the index misses */
+    static final long FULL_SCAN_AGE = 7 * 24 * 3600 * 1000L;
+
+    private static final String PREF_WATERMARK = "media_watermark_";
+
+    /* as Environment.DIRECTORY_*, which aren't constants the compiler can fold in */
+    static final String[] MEDIA_DIRS = {"DCIM", "Pictures", "Movies"};
+
+    private static volatile long sObservedSince = 0;
+    private static volatile long sLastChange = 0;
+
+    /* the index as of a sync */
+    static class Watermark {
+        long maxId;
+        /* seconds, as the index keeps it */
+        long maxModified;
+        long time;
+        /* when all files were last gone through */
+        long fullTime;
+        String key;
+
+        Watermark(long maxId, long maxModified, long time, long fullTime, String key) {
+            this.maxId = maxId;
+            this.maxModified = maxModified;
+            this.time = time;
+            this.fullTime = fullTime;
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return maxId + ":" + maxModified + ":" + time + ":" + fullTime + ":" + key;
+        }
+
+        static Watermark parse(String s) {
+            if (s == null) {
+                return null;
+            }
+
+            String[] parts = s.split(":", 5);
+            if (parts.length < 5) {
+                return null;
+            }
+
+            try {
+                return new Watermark(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                        Long.parseLong(parts[3]), parts[4]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    public static class Changes {
+        /* why every file has to be looked at, null if paths is all that changed */
+        public String fullReason;
+        /* changed files relative to their base (see ShardPlanner.getBase()), by base */
+        public Map<String, List<String>> paths = new LinkedHashMap<>();
+        Watermark next;
+
+        public boolean isFull() {
+            return fullReason != null;
+        }
+
+        public int size() {
+            int n = 0;
+            for (List<String> l : paths.values()) {
+                n += l.size();
+            }
+            return n;
+        }
+    }
+
+    private Context mContext;
+
+    public MediaChangeFeed(Context ctx) {
+        mContext = ctx;
+    }
+
+    /* start noting changes of the index, for as long as the process lives */
+    public static void register(Context ctx) {
+        if (sObservedSince != 0) {
+            return;
+        }
+
+        ContentObserver observer = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                sLastChange = System.currentTimeMillis();
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                sLastChange = System.currentTimeMillis();
+            }
+        };
+
+        try {
+            ctx.getContentResolver().registerContentObserver(MediaStore.Files.getContentUri("external"), true, observer);
+            sObservedSince = System.currentTimeMillis();
+        } catch (SecurityException e) {
+            Log.e(TAG, "Could not observe media: " + e.toString());
+        }
+    }
+
+    /* a profile is changed by anything that changes which files go where */
+    private static String getKey(BackupItem b, List<String> options) {
+        String k = b.getSourcesAsString() + "\n" + b.destination + "\n" + options + "\n" + b.filters;
+        return Integer.toHexString(k.hashCode());
+    }
+
+    static boolean isMediaSource(String source, String storage) {
+        for (String dir : MEDIA_DIRS) {
+            String root = storage + "/" + dir;
+            if (source.equals(root) || source.startsWith(root + "/")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /* path with symlinks resolved (/sdcard is one), as is if that fails */
+    static String getCanonical(String path) {
+        try {
+            return new File(path).getCanonicalPath();
+        } catch (IOException e) {
+            return path;
+        }
+    }
+
+    /* options are the ones rsync is run with, the app's and the profile's */
+    public static boolean isMediaProfile(BackupItem b, List<String> options) {
+        return isMediaProfile(b, options, getCanonical(Environment.getExternalStorageDirectory().getAbsolutePath()));
+    }
+
+    static boolean isMediaProfile(BackupItem b, List<String> options, String storage) {
+        if (b.direction != BackupItem.Direction.OUTGOING || b.isSharded() || b.sources == null || b.sources.length == 0) {
+            return false;
+        }
+
+        if (MoveDetector.deletes(options)) {
+            return false;
+        }
+
+        for (String s : b.sources) {
+            if (!isMediaSource(getCanonical(s), storage)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * path, as the index has it, under source as the profile names it; null
+     * if it isn't in source. Either may go through symlinks.
+     */
+    static String toSource(String source, String path) {
+        String top = source.endsWith("/") ? source.substring(0, source.length() - 1) : source;
+        String canonical = getCanonical(top);
+        path = getCanonical(path);
+
+        if (!path.startsWith(canonical + "/")) {
+            return null;
+        }
+
+        return top + path.substring(canonical.length());
+    }
+
+    /* path as rsync names it when sending source, null if it isn't in source */
+    static String getRelative(String source, String path) {
+        String base = ShardPlanner.getBase(source);
+        String rel = ShardPlanner.getRelative(source);
+        String top = rel.equals("") ? base : (base.endsWith("/") ? base : base + "/") + rel;
+
+        if (top.endsWith("/")) {
+            top = top.substring(0, top.length() - 1);
+        }
+        if (!path.startsWith(top + "/")) {
+            return null;
+        }
+
+        String below = path.substring(top.length() + 1);
+        return rel.equals("") ? below : rel + "/" + below;
+    }
+
+    /* why saved can't be built on, null if it can */
+    static String getInvalidReason(Watermark saved, Watermark now, long time) {
+        if (saved == null) {
+            return "no earlier sync to start from";
+        }
+        if (!saved.key.equals(now.key)) {
+            return "the profile changed";
+        }
+        if (now.maxId < saved.maxId) {
+            return "the media index was rebuilt";
+        }
+        if (time - saved.fullTime > FULL_SCAN_AGE || time < saved.fullTime) {
+            return "the last full run is more than " + FULL_SCAN_AGE / (24 * 3600 * 1000L) + " days ago";
+        }
+
+        return null;
+    }
+
+    private Watermark load(BackupItem b) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return Watermark.parse(prefs.getString(PREF_WATERMARK + b.name, null));
+    }
+
+    /* highest _id and date_modified in the index, null if it can't be read */
+    private Watermark query(BackupItem b, List<String> options) {
+        long[] max = new long[2];
+        Uri uri = MediaStore.Files.getContentUri("external");
+
+        String[] columns = {MediaStore.MediaColumns._ID, MediaStore.MediaColumns.DATE_MODIFIED};
+        for (int i = 0; i < columns.length; i++) {
+            Cursor c = mContext.getContentResolver().query(uri, new String[] {columns[i]}, null, null, columns[i] + " DESC");
+            if (c == null) {
+                return null;
+            }
+
+            try {
+                if (c.moveToFirst()) {
+                    max[i] = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        long time = System.currentTimeMillis();
+        return new Watermark(max[0], max[1], time, time, getKey(b, options));
+    }
+
+    /*
+     * The files of b added or changed since its last sync that filter keeps,
+     * or why all of them have to be looked at. Null if b isn't a media
+     * profile or the index can't be read.
+     */
+    public Changes getChanges(BackupItem b, List<String> options, FilterRules filter) {
+        if (!isMediaProfile(b, options)) {
+            return null;
+        }
+
+        Watermark saved = load(b);
+
+        // the observer saw the whole time since the last sync go by quietly
+        if (saved != null && getInvalidReason(saved, saved, System.currentTimeMillis()) == null &&
+                saved.key.equals(getKey(b, options)) && sObservedSince != 0 && sObservedSince <= saved.time && sLastChange < saved.time) {
+            Changes changes = new Changes();
+            changes.next = saved;
+            return changes;
+        }
+
+        Watermark now;
+        try {
+            now = query(b, options);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Could not read the media index: " + e.toString());
+            return null;
+        }
+
+        if (now == null) {
+            return null;
+        }
+
+        Changes changes = new Changes();
+        changes.next = now;
+        changes.fullReason = getInvalidReason(saved, now, now.time);
+
+        if (changes.isFull()) {
+            return changes;
+        }
+
+        now.fullTime = saved.fullTime;
+
+        Map<String, TreeSet<String>> found = new LinkedHashMap<>();
+        Cursor c = mContext.getContentResolver().query(
+                MediaStore.Files.getContentUri("external"),
+                new String[] {MediaStore.MediaColumns.DATA},
+                // same second as the watermark, to be safe, rsync skips what is already there
+                MediaStore.MediaColumns._ID + " > ? OR " + MediaStore.MediaColumns.DATE_MODIFIED + " >= ?",
+                new String[] {Long.toString(saved.maxId), Long.toString(saved.maxModified)},
+                null);
+
+        if (c == null) {
+            changes.fullReason = "the media index can't be read";
+            return changes;
+        }
+
+        try {
+            while (c.moveToNext()) {
+                String path = c.getString(0);
+                if (path == null || !new File(path).isFile()) {
+                    continue;
+                }
+
+                for (String s : b.sources) {
+                    String local = toSource(s, path);
+                    String rel = local == null ? null : getRelative(s, local);
+                    if (rel == null || filter.isExcluded(rel, false)) {
+                        continue;
+                    }
+
+                    String base = ShardPlanner.getBase(s);
+                    TreeSet<String> set = found.get(base);
+                    if (set == null) {
+                        set = new TreeSet<>();
+                        found.put(base, set);
+                    }
+                    set.add(rel);
+                    break;
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        for (Map.Entry<String, TreeSet<String>> e : found.entrySet()) {
+            changes.paths.put(e.getKey(), new ArrayList<>(e.getValue()));
+        }
+
+        return changes;
+    }
+
+    /* start from changes next time, once the run they were sent in succeeded */
+    public void commit(BackupItem b, Changes changes) {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_WATERMARK + b.name, changes.next.toString())
+                .apply();
+    }
+
+    public static void forget(Context ctx, BackupItem b) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit().remove(PREF_WATERMARK + b.name).apply();
+    }
+
+    /*
+     * Send the changed files with cmd (built for b), one rsync per base
+     * directory given the list of them. Returns 0 or the first error code.
+     */
+    public int send(BackupItem b, Changes changes, RsyncCommand cmd, BackupHandler handler, OutputStream log, RsyncStats stats) throws IOException, InterruptedException {
+        log.write(String.format(Locale.ENGLISH, "Media index: %d files added or changed since the last sync\n\n", changes.size()).getBytes());
+
+        int errno = 0;
+        int k = 0;
+
+        for (Map.Entry<String, List<String>> e : changes.paths.entrySet()) {
+            File list = new File(mContext.getCacheDir(), "media_" + Uri.encode(b.name) + "_" + k++);
+            FileOutputStream out = new FileOutputStream(list);
+            for (String p : e.getValue()) {
+                out.write(p.getBytes("UTF-8"));
+                out.write(0);
+            }
+            out.close();
+
+            RsyncCommand c = new RsyncCommand(cmd);
+            c.options.add("--from0");
+            c.options.add("--files-from=" + list.getAbsolutePath());
+            c.paths.clear();
+            c.paths.add(e.getKey());
+            c.paths.add(cmd.paths.get(cmd.paths.size() - 1));
+
+            int ret;
+            try {
+                ret = handler.runRsync(c, log, stats);
+            } finally {
+                list.delete();
+            }
+
+            if (ret != 0 && errno == 0) {
+                errno = ret;
+            }
+        }
+
+        return errno;
+    }
+}
@@ -0,0 +1,330 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * The other servers an outgoing profile is sent to (BackupItem.mirrors),
+ * named like its server in Other servers and with the same destination.
+ *
+ * The run to the profile's own server writes what it sends as an rsync
+ * batch (--write-batch). A mirror whose files were the same as that
+ * server's before the run gets the batch replayed with rsync --read-batch
+ * on it over ssh: no file list, no checksums, just the changes. Whether a
+ * mirror is in step is kept as a generation per destination, counted up
+ * by every run; a mirror that failed, or that can't be replayed to, gets a
+ * sync of its own.
+ */
+public class Mirrors {
+    private static final String TAG = "Syncopoli";
+
+    /* in the run history for replayed batches */
+    public static final String POLICY = "replay";
+
+    /* a batch holds all the run sends, it isn't written for runs bigger than this */
+    static final long MAX_BATCH = 256L * 1024 * 1024;
+
+    /* room a file takes in a batch besides its data, for the file list and block tokens */
+    static final long BATCH_FILE_BYTES = 256;
+
+    /* recent runs of the profile a batch is sized by, without a plan */
+    private static final int BATCH_RUNS = 3;
+
+    private static final String PREF_GENERATION = "mirror_generation_";
+
+    /* options that name local files or only make sense to the sending side */
+    private static final List<String> LOCAL_OPTIONS = Arrays.asList(
+            "--exclude", "--include", "--filter", "-f", "--exclude-from", "--include-from",
+            "--write-batch", "--only-write-batch", "--read-batch", "--files-from", "--bwlimit",
+            "--out-format", "--log-file", "--password-file", "--rsync-path", "--port", "-e", "--rsh");
+
+    private Context mContext;
+
+    public Mirrors(Context ctx) {
+        mContext = ctx;
+    }
+
+    /* names of the servers or pools in mirrors, separated by commas or spaces */
+    public static List<String> parse(String mirrors) {
+        List<String> names = new ArrayList<>();
+        if (mirrors == null) {
+            return names;
+        }
+
+        for (String name : mirrors.split("[,\\s]+")) {
+            if (!name.equals("") && !names.contains(name)) {
+                names.add(name);
+            }
+        }
+
+        return names;
+    }
+
+    /*
+     * b as sent to mirror. It has a name of its own so the files kept per
+     * profile, like its filter rules, aren't shared with runs beside it.
+     */
+    public static BackupItem getItem(BackupItem b, String mirror) {
+        BackupItem item = new BackupItem(b);
+        item.name = b.name + "/" + mirror;
+        item.server = mirror;
+        item.mirrors = "";
+        return item;
+    }
+
+    public static File getBatchFile(Context ctx, BackupItem b) {
+        return new File(ctx.getCacheDir(), "batch_" + Uri.encode(b.name));
+    }
+
+    /* rsync writes a shell script next to the batch as well */
+    public static void deleteBatch(File f) {
+        f.delete();
+        new File(f.getPath() + ".sh").delete();
+    }
+
+    /*
+     * Whether the run of b with cmd should write a batch for its mirrors:
+     * there are some, rsync isn't run as root (which can't write to the
+     * app's cache) and the run looks small enough to keep. Its size comes
+     * from a plan still fresh from the dry run the user started, else from
+     * the largest of its recent runs; a profile that never ran doesn't get
+     * one, its first run sends everything. No dry run is made for it, the
+     * batch is dropped after the run if it came out too big (see isTooBig()).
+     */
+    public boolean canBatch(BackupItem b, RsyncCommand cmd) {
+        if (parse(b.mirrors).isEmpty() || cmd.as_root) {
+            return false;
+        }
+
+        TransferEstimator.Plan plan = TransferEstimator.getCachedPlan(b);
+        long size = plan != null ? getBatchSize(plan) : getBatchSize(new RunHistory(mContext).getRuns(b.name, BATCH_RUNS));
+        if (size < 0) {
+            return false;
+        }
+
+        return fits(size, mContext.getCacheDir().getUsableSpace());
+    }
+
+    /* how big the batch of a run going by plan gets, at most */
+    static long getBatchSize(TransferEstimator.Plan plan) {
+        return plan.transferredSize + plan.files * BATCH_FILE_BYTES;
+    }
+
+    /* how big the batch of a run like the largest of runs gets, -1 without any */
+    static long getBatchSize(List<RunHistory.Run> runs) {
+        long size = -1;
+        for (RunHistory.Run r : runs) {
+            size = Math.max(size, r.transferredSize + r.filesTransferred * BATCH_FILE_BYTES);
+        }
+        return size;
+    }
+
+    /* whether the batch the run wrote is over MAX_BATCH after all, and only worth a sync of each mirror */
+    public static boolean isTooBig(File batch) {
+        return batch.length() > MAX_BATCH;
+    }
+
+    /* whether a batch of size fits in MAX_BATCH and, twice over, in usable bytes of cache */
+    static boolean fits(long size, long usable) {
+        return size <= MAX_BATCH && usable > 2 * size;
+    }
+
+    private static String getGenerationKey(BackupItem b, String mirror) {
+        return PREF_GENERATION + b.name + (mirror == null ? "" : "/" + mirror);
+    }
+
+    /*
+     * Generation of the profile's own server (mirror null), or of a mirror:
+     * the one of the run that left it like the profile's server, -1 if none.
+     */
+    public long getGeneration(BackupItem b, String mirror) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return prefs.getLong(getGenerationKey(b, mirror), mirror == null ? 0 : -1);
+    }
+
+    public void setGeneration(BackupItem b, String mirror, long generation) {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putLong(getGenerationKey(b, mirror), generation)
+                .apply();
+    }
+
+    public static void forget(Context ctx, BackupItem b) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        SharedPreferences.Editor editor = prefs.edit();
+
+        String own = getGenerationKey(b, null);
+        for (String key : prefs.getAll().keySet()) {
+            if (key.equals(own) || key.startsWith(own + "/")) {
+                editor.remove(key);
+            }
+        }
+
+        editor.apply();
+    }
+
+    /*
+     * The filter rules of b and of options, for the receiving side of a
+     * replay. directory is where the run's rsync ran.
+     */
+    static List<String> getRules(BackupItem b, List<String> options, File directory) {
+        List<String> rules = new ArrayList<>();
+        for (String line : FilterRules.split(b.filters)) {
+            if (!line.trim().equals("")) {
+                rules.add(line);
+            }
+        }
+
+        rules.addAll(FilterRules.fromOptions(options, directory));
+        return rules;
+    }
+
+    /* options to rsync --read-batch on the server, those of the run but LOCAL_OPTIONS */
+    static List<String> getReplayOptions(List<String> options) {
+        List<String> replay = new ArrayList<>();
+
+        for (int i = 0; i < options.size(); i++) {
+            String o = options.get(i);
+            int eq = o.indexOf('=');
+            String name = o.startsWith("--") && eq > 0 ? o.substring(0, eq) : o;
+
+            if (!LOCAL_OPTIONS.contains(name)) {
+                replay.add(o);
+            } else if (name.equals(o) && i + 1 < options.size()) {
+                // the value comes as the next argument
+                i++;
+            }
+        }
+
+        return replay;
+    }
+
+    /* rsync on the server, as --rsync-path has it */
+    static String getRsyncPath(List<String> options) {
+        String path = "rsync";
+
+        for (int i = 0; i < options.size(); i++) {
+            String o = options.get(i);
+            if (o.startsWith("--rsync-path=")) {
+                path = o.substring("--rsync-path=".length());
+            } else if (o.equals("--rsync-path") && i + 1 < options.size()) {
+                path = options.get(++i);
+            }
+        }
+
+        return path;
+    }
+
+    /*
+     * Shell command replaying the batch read from stdin into destination,
+     * with rules written to a temporary merge file so --delete spares what
+     * they exclude.
+     */
+    static String getReplayCommand(String rsyncPath, List<String> options, List<String> rules, String destination) {
+        StringBuilder sb = new StringBuilder();
+
+        if (!rules.isEmpty()) {
+            sb.append("f=$(mktemp) || exit 1; printf '%s\\n'");
+            for (String r : rules) {
+                sb.append(' ').append(RootShell.quote(r));
+            }
+            sb.append(" > \"$f\"; ");
+        }
+
+        // --rsync-path may be a command line of its own
+        sb.append(rsyncPath).append(" --read-batch=-");
+        for (String o : options) {
+            sb.append(' ').append(RootShell.quote(o));
+        }
+
+        if (!rules.isEmpty()) {
+            sb.append(" --filter=\". $f\"");
+        }
+
+        sb.append(' ').append(destination.equals("") ? "." : RemoteWatcher.quoteSource(destination));
+
+        if (!rules.isEmpty()) {
+            sb.append("; r=$?; rm -f \"$f\"; exit $r");
+        }
+
+        return sb.toString();
+    }
+
+    /*
+     * Replay batch, written by the run of b, on the server cmd logs in to.
+     * rsync's output goes to log and stats. Returns the exit code of ssh.
+     */
+    public int replay(BackupItem b, RsyncCommand cmd, final File batch, OutputStream log, RsyncStats stats) throws IOException, InterruptedException {
+        String command = getReplayCommand(getRsyncPath(cmd.options), getReplayOptions(cmd.options),
+                getRules(b, cmd.options, cmd.directory), b.destination);
+
+        List<String> args = cmd.getSshArgs();
+        args.add(cmd.login);
+        args.add(command);
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.directory(cmd.directory);
+        pb.environment().putAll(cmd.env);
+        pb.redirectErrorStream(true);
+
+        log.write(("Replaying the batch (" + (batch.length() / 1024) + " KB)\n\n").getBytes());
+        final Object budget = cmd.budget;
+
+        final Process p = pb.start();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = new Seeder.ThrottledOutputStream(p.getOutputStream(), budget);
+                byte[] buf = new byte[64 * 1024];
+
+                try {
+                    InputStream in = new FileInputStream(batch);
+                    try {
+                        int n;
+                        while ((n = in.read(buf)) > 0) {
+                            out.write(buf, 0, n);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    // the other side went away, its exit code tells why
+                    Log.d(TAG, "Batch stream ended: " + e.toString());
+                    p.destroy();
+                }
+            }
+        });
+        writer.start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            log.write((line + "\n").getBytes());
+            stats.feed(line);
+        }
+        reader.close();
+
+        int ret = p.waitFor();
+        writer.join();
+
+        stats.bytesSent = batch.length();
+        stats.bytesReceived = 0;
+
+        return ret;
+    }
+}
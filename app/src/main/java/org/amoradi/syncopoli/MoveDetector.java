@@ -0,0 +1,514 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Finds files of an outgoing profile that were moved or renamed since its
+ * last sync and moves them on the server too, before rsync runs. rsync only
+ * sees a deleted file and a new one, and sends the new one again in full.
+ *
+ * A file is taken to be moved when a file gone since the last sync (see
+ * Manifest) and a file new since then have the same size and MD5. Hashes of
+ * gone files are those kept in the manifest, which is why files are hashed
+ * when it is recorded; files smaller than MIN_SIZE aren't worth it. New
+ * files are only hashed when a gone file has their size.
+ *
+ * All moves go to the server as one shell script over one ssh command. Each
+ * only happens if the old file is still there and the new one isn't. Without
+ * --delete the old file is kept, the new one is a hard link (or a copy).
+ *
+ * The same comparison gives the files added or changed since the last sync.
+ * When all of them come from one directory, rsync is only given those (see
+ * sendChanged()) and doesn't go through the others here or on the server.
+ * Not when removed files would have to be deleted on the server, and not
+ * for longer than FULL_SCAN_AGE, so what changed on the server alone is
+ * caught by a full run.
+ */
+public class MoveDetector {
+    private static final String TAG = "Syncopoli";
+
+    /* smaller files are sent again rather than hashed */
+    static final long MIN_SIZE = 256 * 1024;
+
+    /* a run through all files at least this often */
+    static final long FULL_SCAN_AGE = 7 * 24 * 3600 * 1000L;
+
+    private static final String PREF_FULL = "manifest_full_";
+
+    public static class Move {
+        /* paths below the destination */
+        public String from;
+        public String to;
+        public long size;
+
+        Move(String from, String to, long size) {
+            this.from = from;
+            this.to = to;
+            this.size = size;
+        }
+    }
+
+    /* what a move may be made of: hashed files gone since the last sync, and new files of their sizes */
+    static class Candidates {
+        /* paths by size and hash */
+        Map<String, LinkedList<String>> gone = new HashMap<>();
+        Set<Long> goneSizes = new HashSet<>();
+        /* entries of the current scan, to be hashed */
+        List<Manifest.Entry> added = new ArrayList<>();
+        /* files gone since the last sync, of any size */
+        int removed;
+    }
+
+    private Context mContext;
+
+    /* the moves detect() made on the server, and whether they failed, for its mirrors */
+    private String mScript;
+    private boolean mFailed = false;
+    private int mMoved;
+
+    /* the files added or changed since the last sync, below mBase, if they can be sent alone */
+    private File mChanged;
+    private int mChangedCount;
+    private String mBase;
+    private int mRemoved;
+    private boolean mSentChanged = false;
+
+    public MoveDetector(Context ctx) {
+        mContext = ctx;
+    }
+
+    public static File getManifestFile(Context ctx, BackupItem b) {
+        return new File(ctx.getFilesDir(), "manifest_" + Uri.encode(b.name));
+    }
+
+    private static String key(long size, String hash) {
+        return size + ":" + hash;
+    }
+
+    /*
+     * Compare the manifest of the last sync with current, the manifest of
+     * entries (the scan it was written from). Only what differs is looked at.
+     */
+    static Candidates getCandidates(Manifest.Reader previous, Manifest.Reader current, final List<Manifest.Entry> entries) throws IOException {
+        final Candidates c = new Candidates();
+        final List<Manifest.Entry> added = new ArrayList<>();
+
+        Manifest.diff(previous, current, new Manifest.DiffListener() {
+            @Override
+            public void onRemoved(Manifest.Reader before) {
+                c.removed++;
+                if (before.getSize() < MIN_SIZE || !before.hasHash()) {
+                    return;
+                }
+
+                String k = key(before.getSize(), before.getHash());
+                LinkedList<String> list = c.gone.get(k);
+                if (list == null) {
+                    list = new LinkedList<>();
+                    c.gone.put(k, list);
+                }
+                list.add(before.getPath());
+                c.goneSizes.add(before.getSize());
+            }
+
+            @Override
+            public void onAdded(Manifest.Reader after) {
+                if (after.getSize() >= MIN_SIZE) {
+                    added.add(entries.get(after.getIndex()));
+                }
+            }
+
+            @Override
+            public void onChanged(Manifest.Reader before, Manifest.Reader after) {
+            }
+        });
+
+        for (Manifest.Entry e : added) {
+            if (c.goneSizes.contains(e.size)) {
+                c.added.add(e);
+            }
+        }
+
+        return c;
+    }
+
+    /* pair gone files with hashed new ones of the same size and hash */
+    static List<Move> match(Candidates c) {
+        List<Move> moves = new ArrayList<>();
+
+        for (Manifest.Entry e : c.added) {
+            if (e.hash == null) {
+                continue;
+            }
+
+            LinkedList<String> list = c.gone.get(key(e.size, e.hash));
+            if (list == null || list.isEmpty()) {
+                continue;
+            }
+
+            moves.add(new Move(list.removeFirst(), e.rel, e.size));
+        }
+
+        return moves;
+    }
+
+    static boolean deletes(List<String> options) {
+        for (String o : options) {
+            if (o.equals("--del") || o.startsWith("--delete")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /* shell commands making the server's copy of move.from appear at move.to */
+    static String getScript(List<Move> moves, boolean delete) {
+        StringBuilder sb = new StringBuilder();
+
+        for (Move m : moves) {
+            String from = RootShell.quote(m.from);
+            String to = RootShell.quote(m.to);
+
+            sb.append("[ -f ").append(from).append(" ] && [ ! -e ").append(to).append(" ]");
+
+            int slash = m.to.lastIndexOf('/');
+            if (slash > 0) {
+                sb.append(" && mkdir -p ").append(RootShell.quote(m.to.substring(0, slash)));
+            }
+
+            if (delete) {
+                sb.append(" && mv ").append(from).append(' ').append(to);
+            } else {
+                sb.append(" && { ln ").append(from).append(' ').append(to).append(" 2>/dev/null || cp -p ")
+                        .append(from).append(' ').append(to).append("; }");
+            }
+
+            sb.append('\n');
+        }
+
+        sb.append("exit 0\n");
+        return sb.toString();
+    }
+
+    /* set the hash of entries, from the cache or else computed */
+    private void hash(List<Manifest.Entry> entries) throws InterruptedException {
+        List<HashCache.Entry> list = new ArrayList<>();
+        for (Manifest.Entry e : entries) {
+            list.add(new HashCache.Entry(e.path, e.size, e.mtime));
+        }
+
+        HashCache cache = new HashCache(mContext);
+        cache.fill(list);
+
+        List<HashCache.Entry> missing = new ArrayList<>();
+        for (HashCache.Entry e : list) {
+            if (e.hash == null) {
+                missing.add(e);
+            }
+        }
+
+        List<String> unreadable = new ArrayList<>();
+        FileHasher.hashAll(missing, Runtime.getRuntime().availableProcessors(), unreadable);
+        cache.store(missing);
+
+        for (String u : unreadable) {
+            Log.d(TAG, "Could not hash " + u);
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            entries.get(i).hash = list.get(i).hash;
+        }
+    }
+
+    /*
+     * Move on the server what was moved here since the last sync of b to
+     * where cmd (built for b) sends it. Returns the local files as they are
+     * now, to be recorded once the sync succeeded.
+     */
+    public List<Manifest.Entry> detect(BackupItem b, RsyncCommand cmd, OutputStream log) throws IOException, InterruptedException {
+        List<Manifest.Entry> current = Manifest.scan(b, FilterRules.forProfile(mContext, b));
+
+        Manifest.Reader previous;
+        try {
+            previous = Manifest.Reader.open(getManifestFile(mContext, b));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read manifest of " + b.name + ": " + e.toString());
+            previous = null;
+        }
+
+        if (previous == null) {
+            return current;
+        }
+
+        List<Move> moves;
+        File scan = new File(mContext.getCacheDir(), "scan_" + Uri.encode(b.name));
+        try {
+            Manifest.write(scan, current);
+            Manifest.Reader now = Manifest.Reader.open(scan);
+
+            Candidates c;
+            try {
+                c = getCandidates(previous, now, current);
+
+                String base = getBase(current);
+                if (base != null && isFullRecent(b, cmd.login)) {
+                    mChanged = getChangedFile(mContext, b);
+                    FileOutputStream out = new FileOutputStream(mChanged);
+                    try {
+                        mChangedCount = Manifest.writeChanged(previous, now, out);
+                    } finally {
+                        out.close();
+                    }
+                    mBase = base;
+                    mRemoved = c.removed;
+                }
+            } finally {
+                now.close();
+            }
+
+            if (c.added.isEmpty()) {
+                return current;
+            }
+
+            hash(c.added);
+            moves = match(c);
+        } finally {
+            previous.close();
+            scan.delete();
+        }
+
+        if (moves.isEmpty()) {
+            return current;
+        }
+
+        long bytes = 0;
+        for (Move m : moves) {
+            bytes += m.size;
+        }
+
+        log.write(("Moving " + moves.size() + " files (" + TransferEstimator.formatSize(bytes) +
+                ") on the server instead of sending them again\n").getBytes());
+
+        String script = getScript(moves, deletes(cmd.options));
+        int ret = runScript(cmd, b.destination, script, log);
+        if (ret != 0) {
+            // nothing lost, rsync sends them instead
+            log.write(("Could not move files on the server (error code " + ret + ")\n").getBytes());
+            mFailed = true;
+        } else {
+            mScript = script;
+            mMoved = moves.size();
+        }
+
+        log.write("\n".getBytes());
+        return current;
+    }
+
+    /* the moves made by the last detect(), null if none were */
+    public String getScript() {
+        return mScript;
+    }
+
+    /* whether the last detect() left the server in a state nobody knows */
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    private static File getChangedFile(Context ctx, BackupItem b) {
+        return new File(ctx.getCacheDir(), "changed_" + Uri.encode(b.name));
+    }
+
+    /* the local directory all of entries are below with their paths, null if they aren't all below one */
+    static String getBase(List<Manifest.Entry> entries) {
+        String base = null;
+        for (Manifest.Entry e : entries) {
+            if (!e.path.endsWith(e.rel)) {
+                return null;
+            }
+
+            String b = e.path.substring(0, e.path.length() - e.rel.length());
+            if (base == null) {
+                base = b;
+            } else if (!base.equals(b)) {
+                return null;
+            }
+        }
+
+        return base;
+    }
+
+    private static String getFullKey(BackupItem b, String login) {
+        // like the change token, the state only holds for the same profile on the same server
+        return RemoteWatcher.getKey(b, login);
+    }
+
+    /* whether b last went through all of its files to login less than FULL_SCAN_AGE ago */
+    private boolean isFullRecent(BackupItem b, String login) {
+        String saved = PreferenceManager.getDefaultSharedPreferences(mContext).getString(PREF_FULL + b.name, null);
+        if (saved == null) {
+            return false;
+        }
+
+        String[] parts = saved.split(":", 2);
+        if (parts.length < 2 || !parts[1].equals(getFullKey(b, login))) {
+            return false;
+        }
+
+        long time;
+        try {
+            time = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        return time <= now && now - time < FULL_SCAN_AGE;
+    }
+
+    /*
+     * Whether a run with options may only send the files added or changed
+     * since the last sync: detect() found which, and there is nothing gone
+     * that --delete would have to delete on the server, besides what the
+     * moves took care of.
+     */
+    public boolean canSendChanged(List<String> options) {
+        if (mChanged == null) {
+            return false;
+        }
+
+        return !deletes(options) || (!mFailed && mRemoved <= mMoved);
+    }
+
+    /*
+     * Send the files added or changed since the last sync with cmd (built
+     * for b), given to rsync with --files-from. Returns rsync's exit code.
+     */
+    public int sendChanged(RsyncCommand cmd, BackupHandler handler, OutputStream log, RsyncStats stats) throws IOException, InterruptedException {
+        mSentChanged = true;
+
+        log.write(("Manifest: " + mChangedCount + " files added or changed since the last sync\n\n").getBytes());
+        if (mChangedCount == 0) {
+            deleteChanged();
+            return 0;
+        }
+
+        RsyncCommand c = new RsyncCommand(cmd);
+        // nothing is left to delete, and rsync refuses --delete without going through directories
+        for (int i = c.options.size() - 1; i >= 0; i--) {
+            if (deletes(Arrays.asList(c.options.get(i)))) {
+                c.options.remove(i);
+            }
+        }
+        c.options.add("--from0");
+        c.options.add("--files-from=" + mChanged.getAbsolutePath());
+        c.paths.clear();
+        c.paths.add(mBase);
+        c.paths.add(cmd.paths.get(cmd.paths.size() - 1));
+
+        try {
+            return handler.runRsync(c, log, stats);
+        } finally {
+            deleteChanged();
+        }
+    }
+
+    /* drop the list of changed files, whether it was sent or not */
+    public void deleteChanged() {
+        if (mChanged != null) {
+            mChanged.delete();
+            mChanged = null;
+        }
+    }
+
+    /*
+     * Keep current as the state of b's last sync to login, with hashes of
+     * the files moves are looked for among. A run that went through all
+     * files starts the time until the next one has to.
+     */
+    public void record(BackupItem b, String login, List<Manifest.Entry> current) throws IOException, InterruptedException {
+        if (!mSentChanged) {
+            PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                    .putString(PREF_FULL + b.name, System.currentTimeMillis() + ":" + getFullKey(b, login))
+                    .apply();
+        }
+
+        List<Manifest.Entry> large = new ArrayList<>();
+        for (Manifest.Entry e : current) {
+            if (e.size >= MIN_SIZE) {
+                large.add(e);
+            }
+        }
+
+        hash(large);
+        Manifest.write(getManifestFile(mContext, b), current);
+    }
+
+    /* remote command running the script on its input in directory, which may start with ~/ */
+    public static void forget(Context ctx, BackupItem b) {
+        getManifestFile(ctx, b).delete();
+        getChangedFile(ctx, b).delete();
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit().remove(PREF_FULL + b.name).apply();
+    }
+
+    static String getRemoteCommand(String directory) {
+        return "cd " + (directory.equals("") ? "." : RemoteWatcher.quoteSource(directory)) + " && sh";
+    }
+
+    static int runScript(RsyncCommand cmd, String directory, final String script, OutputStream log) throws IOException, InterruptedException {
+        List<String> args = cmd.getSshArgs();
+        args.add(cmd.login);
+        args.add(getRemoteCommand(directory));
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.directory(cmd.directory);
+        pb.redirectErrorStream(true);
+        pb.environment().putAll(cmd.env);
+
+        final Process p = pb.start();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = p.getOutputStream();
+                    out.write(script.getBytes("UTF-8"));
+                    out.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not send moves: " + e.toString());
+                }
+            }
+        });
+        writer.start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            log.write((line + "\n").getBytes());
+        }
+        reader.close();
+
+        writer.join();
+        p.waitFor();
+
+        return p.exitValue();
+    }
+}
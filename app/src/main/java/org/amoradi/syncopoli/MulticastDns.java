@@ -0,0 +1,183 @@
+package org.amoradi.syncopoli;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+
+/*
+ * Just enough multicast DNS (RFC 6762) to look up the IPv4 address of a
+ * ".local" name: one query for its A record, answered or not within TIMEOUT.
+ * The caller has to hold a Wifi multicast lock, or most devices drop the
+ * answer.
+ */
+public class MulticastDns {
+    private static final String TAG = "Syncopoli";
+
+    private static final String GROUP = "224.0.0.251";
+    private static final int PORT = 5353;
+    private static final int TIMEOUT = 1000;
+
+    private static final int TYPE_A = 1;
+    private static final int CLASS_IN = 1;
+    /* ask for a unicast reply, see RFC 6762 section 5.4 */
+    private static final int CLASS_QU = 0x8000;
+
+    /* address of name, or null if nobody answered */
+    public static InetAddress resolve(String name) {
+        MulticastSocket socket = null;
+
+        try {
+            InetAddress group = InetAddress.getByName(GROUP);
+            socket = new MulticastSocket();
+            socket.setSoTimeout(TIMEOUT);
+            socket.setTimeToLive(255);
+
+            byte[] query = buildQuery(name);
+            socket.send(new DatagramPacket(query, query.length, group, PORT));
+
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            byte[] buf = new byte[9000];
+
+            while (System.currentTimeMillis() < deadline) {
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                socket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                socket.receive(p);
+
+                InetAddress a = parseAnswer(buf, p.getLength(), name);
+                if (a != null) {
+                    return a;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            Log.d(TAG, "No mDNS answer for " + name);
+        } catch (IOException e) {
+            Log.e(TAG, "mDNS lookup of " + name + " failed: " + e.toString());
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+
+        return null;
+    }
+
+    static byte[] buildQuery(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // id, flags, 1 question, no answer/authority/additional records
+        out.write(new byte[] {0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0});
+        writeName(out, name);
+        writeShort(out, TYPE_A);
+        writeShort(out, CLASS_IN | CLASS_QU);
+
+        return out.toByteArray();
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String name) throws IOException {
+        for (String label : name.split("\\.")) {
+            byte[] b = label.getBytes("UTF-8");
+            if (b.length == 0 || b.length > 63) {
+                throw new IOException("Bad DNS name: " + name);
+            }
+            out.write(b.length);
+            out.write(b);
+        }
+        out.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int v) {
+        out.write((v >> 8) & 0xff);
+        out.write(v & 0xff);
+    }
+
+    private static int readShort(byte[] buf, int off) {
+        return ((buf[off] & 0xff) << 8) | (buf[off + 1] & 0xff);
+    }
+
+    /* read a possibly compressed name at off into sb, returns the offset after it */
+    private static int readName(byte[] buf, int len, int off, StringBuilder sb) throws IOException {
+        int end = -1;
+
+        for (int jumps = 0; jumps < 32; ) {
+            if (off >= len) {
+                throw new IOException("Truncated DNS name");
+            }
+
+            int l = buf[off] & 0xff;
+            if (l == 0) {
+                return end >= 0 ? end : off + 1;
+            }
+
+            if ((l & 0xc0) == 0xc0) {
+                if (off + 1 >= len) {
+                    throw new IOException("Truncated DNS pointer");
+                }
+                if (end < 0) {
+                    end = off + 2;
+                }
+                off = ((l & 0x3f) << 8) | (buf[off + 1] & 0xff);
+                jumps++;
+                continue;
+            }
+
+            if (off + 1 + l > len) {
+                throw new IOException("Truncated DNS label");
+            }
+
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(new String(buf, off + 1, l, "UTF-8"));
+            off += 1 + l;
+        }
+
+        throw new IOException("DNS name pointer loop");
+    }
+
+    /* the A record for name in a response, if there is one */
+    static InetAddress parseAnswer(byte[] buf, int len, String name) throws IOException {
+        if (len < 12 || (buf[2] & 0x80) == 0) {
+            // not a response
+            return null;
+        }
+
+        int questions = readShort(buf, 4);
+        int records = readShort(buf, 6) + readShort(buf, 8) + readShort(buf, 10);
+        int off = 12;
+
+        for (int i = 0; i < questions; i++) {
+            off = readName(buf, len, off, new StringBuilder()) + 4;
+        }
+
+        for (int i = 0; i < records; i++) {
+            StringBuilder rname = new StringBuilder();
+            off = readName(buf, len, off, rname);
+            if (off + 10 > len) {
+                return null;
+            }
+
+            int type = readShort(buf, off);
+            int rdlength = readShort(buf, off + 8);
+            off += 10;
+
+            if (off + rdlength > len) {
+                return null;
+            }
+
+            if (type == TYPE_A && rdlength == 4 && rname.toString().equalsIgnoreCase(name)) {
+                byte[] addr = new byte[4];
+                System.arraycopy(buf, off, addr, 0, 4);
+                return InetAddress.getByAddress(addr);
+            }
+
+            off += rdlength;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,272 @@
+package org.amoradi.syncopoli;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Walks a directory tree on several threads and hands every file to a
+ * listener as soon as it is found. On shared storage a walk is bound by the
+ * latency of each directory listing and stat, not by CPU, so more of them in
+ * flight at once is what makes it faster.
+ *
+ * Each thread keeps its own queue of directories still to list, takes the
+ * newest from it and, once it runs dry, steals the oldest from another
+ * thread's queue, i.e. the biggest piece of work left. Only directories are
+ * ever queued, so memory stays bounded by the directories pending rather
+ * than the files found. ForkJoinPool would do the same but needs API 21.
+ *
+ * Directories a filter excludes are never entered. Symbolic links to
+ * directories are not followed, like rsync -a.
+ */
+public class ParallelWalker {
+    private static final String TAG = "Syncopoli";
+
+    /* listings wait on storage, not CPU, so more threads than cores pay off */
+    public static final int DEFAULT_THREADS = Math.min(16, 4 * Runtime.getRuntime().availableProcessors());
+
+    public interface Filter {
+        /* whether rel (relative to where the walk started) is left out, with all below it */
+        boolean excludes(String rel, boolean directory);
+    }
+
+    public interface Listener {
+        /* called from any of the threads, possibly at the same time */
+        void onFile(String rel, File file, long size, long mtime);
+    }
+
+    /* a Listener that is also told of every directory entered, the root first */
+    public interface DirectoryListener extends Listener {
+        /* before any file in dir, and from any of the threads like onFile() */
+        void onDirectory(String rel, File dir);
+    }
+
+    private static class Task {
+        File dir;
+        String rel;
+
+        Task(File dir, String rel) {
+            this.dir = dir;
+            this.rel = rel;
+        }
+    }
+
+    private final int mThreads;
+    private Filter mFilter;
+
+    private List<ArrayDeque<Task>> mQueues;
+    private final Object mLock = new Object();
+    /* directories queued or being listed */
+    private int mPending;
+    private RuntimeException mError;
+    private volatile boolean mCancelled;
+
+    public ParallelWalker() {
+        this(DEFAULT_THREADS);
+    }
+
+    public ParallelWalker(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+    public void setFilter(Filter filter) {
+        mFilter = filter;
+    }
+
+    /*
+     * End the walk under way, e.g. from a listener that has seen enough: walk()
+     * returns once the listings in progress stop at their next entry.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    private static String child(String rel, String name) {
+        return rel.equals("") ? name : rel + "/" + name;
+    }
+
+    /*
+     * Walk root, whose files are reported as rel/... ("" for just their names
+     * below root). Returns once every file was reported. One walk at a time.
+     */
+    public void walk(File root, String rel, final Listener listener) throws InterruptedException {
+        if (mFilter != null && !rel.equals("") && mFilter.excludes(rel, root.isDirectory())) {
+            return;
+        }
+
+        if (root.isFile()) {
+            listener.onFile(rel, root, root.length(), root.lastModified());
+            return;
+        }
+
+        if (!root.isDirectory()) {
+            return;
+        }
+
+        mQueues = new ArrayList<>();
+        for (int i = 0; i < mThreads; i++) {
+            mQueues.add(new ArrayDeque<Task>());
+        }
+
+        mPending = 1;
+        mError = null;
+        mCancelled = false;
+        mQueues.get(0).add(new Task(root, rel));
+
+        if (listener instanceof DirectoryListener) {
+            ((DirectoryListener) listener).onDirectory(rel, root);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < mThreads; i++) {
+            final int k = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(k, listener);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        }
+
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    private Task take(int k) {
+        ArrayDeque<Task> own = mQueues.get(k);
+        synchronized (own) {
+            Task t = own.pollLast();
+            if (t != null) {
+                return t;
+            }
+        }
+
+        for (int i = 1; i < mThreads; i++) {
+            ArrayDeque<Task> other = mQueues.get((k + i) % mThreads);
+            synchronized (other) {
+                Task t = other.pollFirst();
+                if (t != null) {
+                    return t;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private void work(int k, Listener listener) {
+        while (!mCancelled) {
+            Task t = take(k);
+
+            if (t == null) {
+                synchronized (mLock) {
+                    if (mPending == 0 || mCancelled) {
+                        return;
+                    }
+
+                    try {
+                        // woken as soon as a directory is queued or the walk ends
+                        mLock.wait(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            try {
+                list(k, t, listener);
+            } catch (RuntimeException e) {
+                synchronized (mLock) {
+                    if (mError == null) {
+                        mError = e;
+                    }
+                }
+            } finally {
+                synchronized (mLock) {
+                    mPending--;
+                    if (mPending == 0) {
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private void list(int k, Task t, Listener listener) {
+        String[] names = t.dir.list();
+        if (names == null) {
+            Log.d(TAG, "Could not list " + t.dir);
+            return;
+        }
+
+        String canonical = null;
+
+        for (String name : names) {
+            if (mCancelled) {
+                return;
+            }
+
+            File f = new File(t.dir, name);
+            String rel = child(t.rel, name);
+
+            if (f.isDirectory()) {
+                if (mFilter != null && mFilter.excludes(rel, true)) {
+                    continue;
+                }
+
+                try {
+                    if (canonical == null) {
+                        canonical = t.dir.getCanonicalPath();
+                    }
+                    if (!f.getCanonicalPath().equals(canonical + (canonical.endsWith("/") ? "" : "/") + name)) {
+                        continue;
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not resolve " + f + ": " + e.toString());
+                    continue;
+                }
+
+                if (listener instanceof DirectoryListener) {
+                    ((DirectoryListener) listener).onDirectory(rel, f);
+                }
+
+                ArrayDeque<Task> own = mQueues.get(k);
+                synchronized (mLock) {
+                    mPending++;
+                }
+                synchronized (own) {
+                    own.addLast(new Task(f, rel));
+                }
+                synchronized (mLock) {
+                    mLock.notify();
+                }
+            } else if (f.isFile()) {
+                if (mFilter != null && mFilter.excludes(rel, false)) {
+                    continue;
+                }
+
+                listener.onFile(rel, f, f.length(), f.lastModified());
+            }
+        }
+    }
+}
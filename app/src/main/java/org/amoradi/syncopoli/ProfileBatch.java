@@ -0,0 +1,290 @@
+package org.amoradi.syncopoli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Profiles that can be sent with a single rsync invocation, saving a process
+ * start, key exchange and authentication per profile.
+ *
+ * Profiles are compatible when they go the same way, to the same server and
+ * destination, with the same options. Their sources can then simply be given
+ * to one rsync. To tell afterwards which
+ * profile a file belonged to, every source must name a directory or file
+ * (no trailing slash) and no two sources may share a name; the first path
+ * segment rsync prints for a file is then the name of its source.
+ */
+public class ProfileBatch {
+    /* length, bytes transferred and name of every file rsync sends */
+    public static final String OUT_FORMAT = "%l %b %n";
+
+    private static final Pattern OUT_PATTERN = Pattern.compile("^(\\d+) (\\d+) (.*)$");
+
+    /* rsync's complaints about a file, which it names in double quotes */
+    private static final Pattern ERROR_PATTERN = Pattern.compile("^(rsync: |file has vanished: )[^\"]*\"([^\"]+)\".*$");
+
+    /* rsync exit codes for files that couldn't be sent or vanished, the rest went */
+    public static final int PARTIAL = 23;
+    public static final int VANISHED = 24;
+
+    public static class Result {
+        public long files;
+        public long size;
+        public long bytes;
+        /* files rsync complained about */
+        public int errors;
+    }
+
+    private List<BackupItem> mItems = new ArrayList<>();
+    private Map<String, BackupItem> mOwners = new LinkedHashMap<>();
+
+    public List<BackupItem> getItems() {
+        return mItems;
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    private static String getKey(BackupItem b) {
+        return b.server + "\n" + b.direction + "\n" + b.destination + "\n" + b.rsync_options + "\n" + b.filters;
+    }
+
+    private static boolean canBatch(BackupItem b) {
+        // mirrors are sent after the profile's own run (see Mirrors), chunks don't go through rsync,
+        // snapshots each have their own directory (see Snapshots)
+        if (b.isSharded() || b.sources == null || !Mirrors.parse(b.mirrors).isEmpty() || b.engine != BackupItem.Engine.RSYNC ||
+                b.hasSnapshots()) {
+            return false;
+        }
+
+        for (String s : b.sources) {
+            if (s.endsWith("/") || getName(s).equals("")) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /* last path segment of a local or remote source */
+    private static String getName(String source) {
+        return new File(source).getName();
+    }
+
+    private boolean add(BackupItem b) {
+        Set<String> names = new HashSet<>();
+        for (String s : b.sources) {
+            String name = getName(s);
+            if (mOwners.containsKey(name) || !names.add(name)) {
+                return false;
+            }
+        }
+
+        for (String name : names) {
+            mOwners.put(name, b);
+        }
+
+        mItems.add(b);
+        return true;
+    }
+
+    /*
+     * Group items into batches, keeping their order as far as possible. Items
+     * that can't share an invocation end up in a batch of their own.
+     */
+    public static List<ProfileBatch> group(List<BackupItem> items) {
+        List<ProfileBatch> batches = new ArrayList<>();
+        Map<String, List<ProfileBatch>> byKey = new LinkedHashMap<>();
+
+        for (BackupItem b : items) {
+            if (!canBatch(b)) {
+                ProfileBatch single = new ProfileBatch();
+                single.mItems.add(b);
+                batches.add(single);
+                continue;
+            }
+
+            String key = getKey(b);
+            List<ProfileBatch> candidates = byKey.get(key);
+            if (candidates == null) {
+                candidates = new ArrayList<>();
+                byKey.put(key, candidates);
+            }
+
+            boolean added = false;
+            for (ProfileBatch batch : candidates) {
+                if (batch.add(b)) {
+                    added = true;
+                    break;
+                }
+            }
+
+            if (!added) {
+                ProfileBatch batch = new ProfileBatch();
+                batch.add(b);
+                candidates.add(batch);
+                batches.add(batch);
+            }
+        }
+
+        return batches;
+    }
+
+    /* the batch without items, which must leave at least one */
+    public ProfileBatch without(Collection<BackupItem> items) {
+        ProfileBatch batch = new ProfileBatch();
+        for (BackupItem b : mItems) {
+            if (!items.contains(b)) {
+                batch.add(b);
+            }
+        }
+
+        return batch;
+    }
+
+    /* a profile carrying the sources of the whole batch, to build the command from */
+    public BackupItem getMerged() {
+        BackupItem first = mItems.get(0);
+        BackupItem merged = new BackupItem(first);
+
+        List<String> sources = new ArrayList<>();
+        StringBuilder name = new StringBuilder();
+        for (BackupItem b : mItems) {
+            for (String s : b.sources) {
+                sources.add(s);
+            }
+
+            if (name.length() > 0) {
+                name.append(", ");
+            }
+            name.append(b.name);
+        }
+
+        merged.name = name.toString();
+        merged.sources = sources.toArray(new String[sources.size()]);
+        return merged;
+    }
+
+    /* profile owning the file rsync printed as path, null if it can't be told */
+    public BackupItem getOwner(String path) {
+        int slash = path.indexOf('/');
+        String name = slash < 0 ? path : path.substring(0, slash);
+        return mOwners.get(name);
+    }
+
+    /* profile owning the file rsync named in an error, by its full path or like getOwner() */
+    public BackupItem getErrorOwner(String path) {
+        for (BackupItem b : mItems) {
+            for (String s : b.sources) {
+                if (path.equals(s) || path.startsWith(s + "/")) {
+                    return b;
+                }
+            }
+        }
+
+        return path.startsWith("/") ? null : getOwner(path);
+    }
+
+    /*
+     * Exit code of rsync, which ended with errno, for b. rsync only tells
+     * partial transfers apart by file: when every file it complained about is
+     * known, profiles with none of them succeeded.
+     */
+    public int getExitCode(BackupItem b, BatchLog log, int errno) {
+        if ((errno != PARTIAL && errno != VANISHED) || log.getUnattributedErrors() > 0) {
+            return errno;
+        }
+
+        int errors = 0;
+        for (BackupItem i : mItems) {
+            errors += log.getResult(i).errors;
+        }
+
+        return errors == 0 || log.getResult(b).errors > 0 ? errno : 0;
+    }
+
+    /*
+     * Log of the whole batch: lines about a file go to the log of the profile
+     * owning it, everything else to every profile's log. Each write is
+     * expected to be one line, as BackupHandler.runRsync writes them.
+     */
+    public static class BatchLog extends OutputStream {
+        private ProfileBatch mBatch;
+        private Map<BackupItem, OutputStream> mLogs;
+        private Map<BackupItem, Result> mResults = new LinkedHashMap<>();
+        private int mUnattributed = 0;
+
+        public BatchLog(ProfileBatch batch, Map<BackupItem, OutputStream> logs) {
+            mBatch = batch;
+            mLogs = logs;
+
+            for (BackupItem b : batch.mItems) {
+                mResults.put(b, new Result());
+            }
+        }
+
+        public Result getResult(BackupItem b) {
+            return mResults.get(b);
+        }
+
+        /* complaints about files of no profile in particular */
+        public int getUnattributedErrors() {
+            return mUnattributed;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            String line = new String(b, off, len);
+            String path = line.trim();
+
+            BackupItem owner = null;
+            Matcher m = OUT_PATTERN.matcher(path);
+            if (m.matches()) {
+                path = m.group(3);
+                owner = mBatch.getOwner(path);
+                line = path + "\n";
+
+                if (owner != null && !path.endsWith("/")) {
+                    Result r = mResults.get(owner);
+                    r.files++;
+                    r.size += Long.parseLong(m.group(1));
+                    r.bytes += Long.parseLong(m.group(2));
+                }
+            } else if (path.startsWith("deleting ")) {
+                owner = mBatch.getOwner(path.substring("deleting ".length()));
+            } else if ((m = ERROR_PATTERN.matcher(path)).matches()) {
+                owner = mBatch.getErrorOwner(m.group(2));
+                if (owner != null) {
+                    mResults.get(owner).errors++;
+                } else {
+                    mUnattributed++;
+                }
+            }
+
+            if (owner != null) {
+                mLogs.get(owner).write(line.getBytes());
+                return;
+            }
+
+            for (OutputStream log : mLogs.values()) {
+                log.write(line.getBytes());
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.amoradi.syncopoli;
+
+import android.app.Notification;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Keeps an ssh command running on the server of every incoming profile that
+ * prints a line when its sources change (see RemoteWatcher), and syncs the
+ * profile shortly after. Runs in the foreground while KEY_WATCH_REMOTE is on
+ * and there is a profile to watch, and stops once the last watch gives up.
+ */
+public class RemoteWatchService extends Service {
+    private static final String TAG = "Syncopoli";
+
+    /* changes coming in closer than this are fetched together */
+    static final long SETTLE_TIME = 10 * 1000;
+    /* but not put off longer than this */
+    static final long MAX_DELAY = 60 * 1000;
+    /* seconds between tokens on servers without inotifywait */
+    static final int POLL_INTERVAL = 60;
+
+    private static final long MIN_BACKOFF = 5 * 1000;
+    private static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+    private final List<Watch> mWatches = new ArrayList<>();
+    private Handler mHandler;
+
+    /* start or stop the service as the settings and profiles have it now */
+    public static void update(Context ctx) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        Intent i = new Intent(ctx, RemoteWatchService.class);
+
+        boolean watch = false;
+        if (prefs.getBoolean(SettingsFragment.KEY_WATCH_REMOTE, false)) {
+            RemoteWatcher watcher = new RemoteWatcher(ctx);
+            for (BackupItem b : new BackupHandler(ctx).getBackups()) {
+                if (watcher.isWatchable(b)) {
+                    watch = true;
+                    break;
+                }
+            }
+        }
+
+        if (watch) {
+            ContextCompat.startForegroundService(ctx, i);
+        } else {
+            ctx.stopService(i);
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        int notif_icon = R.drawable.ic_action_refresh_bitmap;
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            notif_icon = R.drawable.ic_action_refresh;
+        }
+
+        Notification notif = new NotificationCompat.Builder(getApplicationContext(), App.SYNC_CHANNEL_ID)
+                .setSmallIcon(notif_icon)
+                .setOngoing(true)
+                .setContentTitle("Syncopoli")
+                .setContentText("Watching servers for changes")
+                .build();
+
+        startForeground(App.WATCH_NOTIF_ID, notif);
+
+        // profiles may have changed since the last start
+        stopWatches();
+
+        RemoteWatcher watcher = new RemoteWatcher(getApplicationContext());
+        for (BackupItem b : new BackupHandler(getApplicationContext()).getBackups()) {
+            if (watcher.isWatchable(b)) {
+                Watch w = new Watch(b);
+                mWatches.add(w);
+                w.start();
+            }
+        }
+
+        if (mWatches.isEmpty()) {
+            stopForeground(true);
+            stopSelf();
+        }
+
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        stopWatches();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /* on the main thread, like every other change of mWatches */
+    private void onWatchEnded(Watch w) {
+        mWatches.remove(w);
+
+        if (mWatches.isEmpty()) {
+            Log.d(TAG, "Nothing left to watch");
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    private void stopWatches() {
+        for (Watch w : mWatches) {
+            w.cancel();
+        }
+        mWatches.clear();
+    }
+
+    /* the watch of one profile, reconnecting until cancelled */
+    private class Watch extends Thread {
+        private final BackupItem mItem;
+        private volatile boolean mCancelled = false;
+        private volatile Process mProcess;
+        private long mFirstChange = 0;
+
+        private final Runnable mSync = new Runnable() {
+            @Override
+            public void run() {
+                mFirstChange = 0;
+                if (mCancelled) {
+                    return;
+                }
+
+                Log.d(TAG, "Server changed, syncing " + mItem.name);
+
+                Intent i = new Intent(getApplicationContext(), BackupReceiver.class);
+                i.setAction("org.amoradi.syncopoli.SYNC_PROFILE");
+                i.putExtra("profile_name", mItem.name);
+                sendBroadcast(i);
+            }
+        };
+
+        private final Runnable mChange = new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                if (mFirstChange == 0) {
+                    mFirstChange = now;
+                }
+
+                mHandler.removeCallbacks(mSync);
+                mHandler.postDelayed(mSync, Math.max(0, Math.min(SETTLE_TIME, mFirstChange + MAX_DELAY - now)));
+            }
+        };
+
+        Watch(BackupItem b) {
+            mItem = b;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mHandler.removeCallbacks(mSync);
+            mHandler.removeCallbacks(mChange);
+
+            Process p = mProcess;
+            if (p != null) {
+                p.destroy();
+            }
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            try {
+                watch();
+            } finally {
+                if (!mCancelled) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onWatchEnded(Watch.this);
+                        }
+                    });
+                }
+            }
+        }
+
+        private void watch() {
+            long backoff = MIN_BACKOFF;
+            boolean connected = false;
+
+            while (!mCancelled) {
+                long start = System.currentTimeMillis();
+
+                try {
+                    RsyncCommand cmd = new RsyncCommand();
+                    ByteArrayOutputStream log = new ByteArrayOutputStream();
+                    int ret = new BackupHandler(getApplicationContext()).buildRsyncCommand(mItem, cmd, log);
+
+                    if (ret == 0 && cmd.login == null) {
+                        // no plain ssh login to run the watch on, nothing will change that
+                        Log.e(TAG, "ERROR: Can't watch the server of " + mItem.name + " without an ssh login");
+                        return;
+                    }
+
+                    if (ret != 0) {
+                        // the settings or the network may get better, try again after the backoff
+                        throw new IOException("could not build the command: " + log.toString().trim());
+                    }
+
+                    List<String> args = cmd.getSshArgs();
+                    args.add(cmd.login);
+                    args.add(RemoteWatcher.getWatchScript(mItem.sources, POLL_INTERVAL));
+
+                    ProcessBuilder pb = new ProcessBuilder(args);
+                    pb.directory(cmd.directory);
+                    pb.environment().putAll(cmd.env);
+                    pb.redirectErrorStream(true);
+
+                    mProcess = pb.start();
+                    mProcess.getOutputStream().close();
+
+                    // what changed while nobody was watching
+                    if (connected) {
+                        mHandler.post(mChange);
+                    }
+                    connected = true;
+
+                    ret = RemoteWatcher.readChanges(mProcess, new Runnable() {
+                        @Override
+                        public void run() {
+                            mHandler.post(mChange);
+                        }
+                    });
+
+                    Log.d(TAG, "Watch of " + mItem.name + " ended with " + ret);
+                } catch (IOException e) {
+                    Log.d(TAG, "Watch of " + mItem.name + " failed: " + e.toString());
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    Process p = mProcess;
+                    if (p != null) {
+                        p.destroy();
+                    }
+                    mProcess = null;
+                }
+
+                // a watch that ran a while was fine, start over
+                if (System.currentTimeMillis() - start > MAX_BACKOFF) {
+                    backoff = MIN_BACKOFF;
+                }
+
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Whether the sources of an incoming profile changed on the server since
+ * its last sync, without rsync going through them. One ssh command lists
+ * every file of each source with its type, size and modification time and
+ * hands the listing to md5sum, so only a line per source comes back: the
+ * change token. While the token is the one of the last successful sync
+ * there is nothing to fetch. Like rsync's quick check, a file rewritten
+ * with the same size and time goes unnoticed.
+ *
+ * A directory's time only changes with its entries, not with what is
+ * written into its files, so the listing goes down to every file rather
+ * than stopping at the directories.
+ *
+ * The token is only trusted for MAX_AGE, so files removed or changed on
+ * the phone come back at least that often.
+ */
+public class RemoteWatcher {
+    private static final String TAG = "Syncopoli";
+
+    static final long MAX_AGE = 7 * 24 * 3600 * 1000L;
+
+    /* in the run history for runs that found nothing to fetch */
+    public static final String POLICY = "unchanged";
+
+    private static final String PREF_TOKEN = "remote_token_";
+
+    /* how the server lists files: GNU find, GNU ls or any ls (times to the minute) */
+    private static final String LISTER =
+            "if find . -maxdepth 0 -printf '' >/dev/null 2>&1; then l=find; " +
+            "elif ls -d --full-time . >/dev/null 2>&1; then l='ls --full-time'; " +
+            "else l=ls; fi; ";
+
+    private Context mContext;
+
+    public RemoteWatcher(Context ctx) {
+        mContext = ctx;
+    }
+
+    /* source quoted for the remote shell, which rsync's remote paths go through too */
+    static String quoteSource(String source) {
+        if (source.equals("~")) {
+            return "~";
+        }
+        if (source.startsWith("~/")) {
+            return "~/" + RootShell.quote(source.substring(2));
+        }
+
+        return RootShell.quote(source);
+    }
+
+    private static String getSourceList(String[] sources) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : sources) {
+            sb.append(' ').append(quoteSource(s));
+        }
+        return sb.toString();
+    }
+
+    /* remote command printing one md5sum line per source */
+    static String getTokenScript(String[] sources) {
+        return LISTER + "for d in" + getSourceList(sources) + "; do " +
+                "case $l in find) find \"$d\" -printf '%y %s %T@ %p\\n';; *) $l -lnRa \"$d\";; esac 2>/dev/null | md5sum; " +
+                "done";
+    }
+
+    /*
+     * Remote command that prints a line whenever the sources change, for as
+     * long as it runs: inotifywait if the server has it and can watch all of
+     * the sources, otherwise the token taken again every interval seconds.
+     */
+    static String getWatchScript(String[] sources, int interval) {
+        String list = getSourceList(sources);
+
+        return "if command -v inotifywait >/dev/null 2>&1; then " +
+                "inotifywait -m -r -q -e close_write,attrib,create,delete,moved_to,moved_from --format . " + list.substring(1) + "; fi; " +
+                "t() { " + getTokenScript(sources) + "; }; " +
+                "last=$(t); while sleep " + interval + "; do n=$(t); if [ \"$n\" != \"$last\" ]; then echo .; last=$n; fi; done";
+    }
+
+    /* the token in output of the token script for count sources, null if it isn't one */
+    static String parseToken(String output, int count) {
+        List<String> sums = new ArrayList<>();
+
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (line.equals("")) {
+                continue;
+            }
+            if (line.length() < 32 || !line.substring(0, 32).matches("[0-9a-fA-F]{32}")) {
+                return null;
+            }
+            sums.add(line.substring(0, 32).toLowerCase(Locale.ENGLISH));
+        }
+
+        if (sums.size() != count) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String s : sums) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    /* a token only holds for the same profile on the same server */
+    static String getKey(BackupItem b, String login) {
+        String k = login + "\n" + b.getSourcesAsString() + "\n" + b.destination + "\n" + b.rsync_options + "\n" + b.filters;
+        return Integer.toHexString(k.hashCode());
+    }
+
+    /* whether the token saved as saved still stands for key at time */
+    static boolean matches(String saved, String key, String token, long time) {
+        if (saved == null) {
+            return false;
+        }
+
+        String[] parts = saved.split(":", 3);
+        if (parts.length < 3) {
+            return false;
+        }
+
+        long then;
+        try {
+            then = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        return time >= then && time - then <= MAX_AGE && parts[1].equals(key) && parts[2].equals(token);
+    }
+
+    /*
+     * The change token of the sources of b on the server cmd (built for b)
+     * logs in to, null if there is no plain ssh login or the server can't
+     * give one. Problems are written to log.
+     */
+    public String getToken(BackupItem b, RsyncCommand cmd, OutputStream log) throws IOException, InterruptedException {
+        if (cmd.login == null || b.sources == null || b.sources.length == 0) {
+            return null;
+        }
+
+        List<String> args = cmd.getSshArgs();
+        args.add(cmd.login);
+        args.add(getTokenScript(b.sources));
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.directory(cmd.directory);
+        pb.environment().putAll(cmd.env);
+
+        Process p = pb.start();
+        p.getOutputStream().close();
+
+        final InputStream err = p.getErrorStream();
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] buf = new byte[4096];
+                    int n;
+                    while ((n = err.read(buf)) > 0) {
+                        errors.write(buf, 0, n);
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not read ssh errors: " + e.toString());
+                }
+            }
+        });
+        reader.start();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = p.getInputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+
+        int ret = p.waitFor();
+        reader.join();
+
+        if (ret != 0) {
+            log.write(("Could not check the server for changes (error code " + ret + ")\n").getBytes());
+            log.write(errors.toByteArray());
+            log.write("\n".getBytes());
+            return null;
+        }
+
+        String token = parseToken(out.toString("UTF-8"), b.sources.length);
+        if (token == null) {
+            log.write("Could not check the server for changes, md5sum missing?\n\n".getBytes());
+        }
+
+        return token;
+    }
+
+    /* whether token is what the sources of b were at their last sync from login */
+    public boolean isUnchanged(BackupItem b, String login, String token) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return matches(prefs.getString(PREF_TOKEN + b.name, null), getKey(b, login), token, System.currentTimeMillis());
+    }
+
+    /* token was taken before a sync of b from login that succeeded */
+    public void record(BackupItem b, String login, String token, long time) {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_TOKEN + b.name, time + ":" + getKey(b, login) + ":" + token)
+                .apply();
+    }
+
+    public static void forget(Context ctx, BackupItem b) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit().remove(PREF_TOKEN + b.name).apply();
+    }
+
+    /*
+     * Whether the server of b can be watched, see RemoteWatchService: the
+     * watch needs a plain ssh login, which rsync daemons and the tunnel to
+     * them (tunnelPort above 0) don't give.
+     */
+    static boolean isWatchable(BackupItem b, Server server, int tunnelPort) {
+        return b.direction == BackupItem.Direction.INCOMING && b.sources != null && b.sources.length > 0 &&
+                server.protocol.equals("SSH") && tunnelPort <= 0;
+    }
+
+    /*
+     * isWatchable() with every server b may run on and the tunnel of the
+     * settings. Only the saved server list is read, members of a pool aren't
+     * probed, so this is quick enough for the main thread; whichever member
+     * a run picks has to be watchable.
+     */
+    public boolean isWatchable(BackupItem b) {
+        if (b.direction != BackupItem.Direction.INCOMING) {
+            return false;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        Server defaults = Server.getDefault(prefs);
+
+        List<Server> members;
+        if (b.server == null || b.server.equals("")) {
+            members = new ArrayList<>();
+            members.add(defaults);
+        } else {
+            try {
+                members = Server.findMembers(Server.parseList(prefs.getString(SettingsFragment.KEY_SERVERS, ""), defaults), b.server);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        int tunnelPort = 0;
+        try {
+            tunnelPort = Integer.parseInt(prefs.getString(SettingsFragment.KEY_TUNNEL_PORT, "0"));
+        } catch (NumberFormatException e) {
+            // buildRsyncCommand() goes without a tunnel too
+        }
+
+        return isWatchable(b, members, tunnelPort);
+    }
+
+    /* whether b is watchable on each of members, false without any */
+    static boolean isWatchable(BackupItem b, List<Server> members, int tunnelPort) {
+        if (members.isEmpty()) {
+            return false;
+        }
+
+        for (Server s : members) {
+            if (!isWatchable(b, s, tunnelPort)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * Calls listener.run() for every change the watch script reports, until
+     * the process ends. Anything else it prints (ssh errors) is only logged.
+     * Returns its exit code.
+     */
+    static int readChanges(Process p, Runnable listener) throws IOException, InterruptedException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(".")) {
+                listener.run();
+            } else {
+                Log.d(TAG, "watch: " + line);
+            }
+        }
+
+        return p.waitFor();
+    }
+}
@@ -0,0 +1,176 @@
+package org.amoradi.syncopoli;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A root shell kept open so several commands can be run as root with a single
+ * su, i.e. a single trip through the su manager's authorization.
+ *
+ * Every argument is single-quoted before being sent, and each command is
+ * followed by a line holding a random marker and the command's exit code,
+ * which tells where its output ends. Commands read /dev/null as stdin so they
+ * can't eat the commands that follow them. The marker line also holds the
+ * command's number: output still coming from a command whose run() gave up
+ * early is skipped by the next one.
+ */
+public class RootShell {
+    private static final String TAG = "Syncopoli";
+
+    public interface OutputListener {
+        void onLine(String line) throws IOException;
+    }
+
+    private Process mProcess;
+    private OutputStream mInput;
+    private BufferedReader mOutput;
+    private String mMarker;
+    /* number of the last command sent, and of the last one that ended */
+    private long mSent = 0;
+    private long mDone = 0;
+
+    private RootShell() {
+    }
+
+    /* start su and make sure we really are root */
+    public static RootShell open() throws IOException {
+        RootShell shell = start("su");
+
+        final StringBuilder uid = new StringBuilder();
+        int ret = shell.run(Arrays.asList("id", "-u"), null, null, new OutputListener() {
+            @Override
+            public void onLine(String line) {
+                uid.append(line.trim());
+            }
+        });
+
+        if (ret != 0 || !uid.toString().equals("0")) {
+            shell.close();
+            throw new IOException("su did not give a root shell (uid " + uid + ")");
+        }
+
+        return shell;
+    }
+
+    /* start command as the shell, as is */
+    static RootShell start(String... command) throws IOException {
+        RootShell shell = new RootShell();
+
+        byte[] random = new byte[8];
+        new SecureRandom().nextBytes(random);
+
+        StringBuilder marker = new StringBuilder("__syncopoli_");
+        for (byte b : random) {
+            marker.append(String.format("%02x", b & 0xff));
+        }
+        shell.mMarker = marker.append("__").toString();
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        shell.mProcess = pb.start();
+        shell.mInput = shell.mProcess.getOutputStream();
+        shell.mOutput = new BufferedReader(new InputStreamReader(shell.mProcess.getInputStream()));
+
+        return shell;
+    }
+
+    /* quote s for the shell: everything inside single quotes is literal except ' itself */
+    public static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    /*
+     * Run args in directory (if not null) with env added to the environment,
+     * passing every line of its output (stdout and stderr) to listener.
+     * Returns the command's exit code.
+     */
+    public synchronized int run(List<String> args, Map<String, String> env, File directory, OutputListener listener) throws IOException {
+        List<String> parts = new ArrayList<>();
+
+        if (directory != null) {
+            parts.add("cd " + quote(directory.getAbsolutePath()));
+        }
+
+        if (env != null) {
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                parts.add("export " + e.getKey() + "=" + quote(e.getValue()));
+            }
+        }
+
+        StringBuilder exec = new StringBuilder("exec");
+        for (String a : args) {
+            exec.append(" ").append(quote(a));
+        }
+        parts.add(exec.toString());
+
+        StringBuilder line = new StringBuilder("(");
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                line.append(" && ");
+            }
+            line.append(parts.get(i));
+        }
+        long id = ++mSent;
+        line.append(") </dev/null 2>&1; printf '%s %d %d\\n' ").append(mMarker).append(" ").append(id).append(" $?\n");
+
+        mInput.write(line.toString().getBytes("UTF-8"));
+        mInput.flush();
+
+        String temp;
+        while ((temp = mOutput.readLine()) != null) {
+            // the rest of a command given up on
+            boolean stale = mDone < id - 1;
+
+            int i = temp.indexOf(mMarker);
+            if (i < 0) {
+                if (!stale) {
+                    listener.onLine(temp);
+                }
+                continue;
+            }
+
+            // output that didn't end in a newline shares the marker's line
+            if (i > 0 && !stale) {
+                listener.onLine(temp.substring(0, i));
+            }
+
+            String[] end = temp.substring(i + mMarker.length()).trim().split(" ");
+            try {
+                mDone = Long.parseLong(end[0]);
+                if (mDone == id) {
+                    return Integer.parseInt(end[1]);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Garbled exit code from root shell: " + temp);
+            }
+        }
+
+        throw new IOException("Root shell exited unexpectedly");
+    }
+
+    public synchronized void close() {
+        if (mProcess == null) {
+            return;
+        }
+
+        try {
+            mInput.write("exit\n".getBytes());
+            mInput.flush();
+        } catch (IOException e) {
+            Log.d(TAG, "Root shell already gone: " + e.toString());
+        }
+
+        mProcess.destroy();
+        mProcess = null;
+    }
+}
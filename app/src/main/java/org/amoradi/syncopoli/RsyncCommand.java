@@ -0,0 +1,90 @@
+package org.amoradi.syncopoli;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * An rsync invocation, kept in parts so options can still be added after the
+ * command has been put together from the settings and the profile.
+ */
+public class RsyncCommand {
+    private static final String TAG = "Syncopoli";
+
+    public String rsyncPath;
+    public File directory;
+    public boolean as_root = false;
+
+    public List<String> options = new ArrayList<>();
+    /* -e <ssh command> or --port=<port> */
+    public List<String> transport = new ArrayList<>();
+    /* sources followed by the destination */
+    public List<String> paths = new ArrayList<>();
+
+    public Map<String, String> env = new HashMap<>();
+
+    /* set when rsync reaches the server's daemon through a shared ssh tunnel */
+    public SshTunnel tunnel;
+
+    /* user@host the -e ssh command logs in as, null if rsync doesn't run over ssh */
+    public String login;
+    /* the -e ssh command as arguments, empty if rsync doesn't run over ssh */
+    public List<String> ssh = new ArrayList<>();
+
+    /* host:port of the server rsync connects to, by name, and the TransferPolicy in use */
+    public String endpoint;
+    public String policy;
+
+    /* the run in BandwidthBudget whose share rsync gets as --bwlimit, null for none */
+    public Object budget;
+
+    public RsyncCommand() {
+    }
+
+    public RsyncCommand(RsyncCommand other) {
+        rsyncPath = other.rsyncPath;
+        directory = other.directory;
+        as_root = other.as_root;
+        options.addAll(other.options);
+        transport.addAll(other.transport);
+        paths.addAll(other.paths);
+        env.putAll(other.env);
+        tunnel = other.tunnel;
+        login = other.login;
+        ssh.addAll(other.ssh);
+        endpoint = other.endpoint;
+        policy = other.policy;
+        budget = other.budget;
+    }
+
+    public List<String> getArgs() {
+        List<String> args = new ArrayList<>();
+        args.add(rsyncPath);
+        args.addAll(options);
+        args.addAll(transport);
+        args.addAll(paths);
+        return args;
+    }
+
+    /* a copy of ssh, for running commands of our own on the server as login */
+    public List<String> getSshArgs() {
+        return new ArrayList<>(ssh);
+    }
+
+    /* rsync started directly; as_root commands are run through a RootShell instead */
+    public ProcessBuilder toProcessBuilder() {
+        List<String> args = getArgs();
+        Log.d(TAG, "rsync exec: " + args.toString());
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.directory(directory);
+        pb.redirectErrorStream(true);
+        pb.environment().putAll(env);
+
+        return pb;
+    }
+}
@@ -0,0 +1,119 @@
+package org.amoradi.syncopoli;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Collects the summary rsync prints with --stats. Feed it every output line;
+ * lines that aren't part of the summary are ignored.
+ *
+ * Handles both the rsync 3.1+ format (thousands separators, "regular files")
+ * and the older one.
+ */
+public class RsyncStats {
+    private static final Pattern STAT_PATTERN = Pattern.compile("^([A-Za-z ]+): ([\\d,.]+)([KMGT])?( bytes)?.*$");
+    private static final Pattern TIME_PATTERN = Pattern.compile("^File list (generation|transfer) time: (\\d+)[.,](\\d+) seconds.*$");
+
+    public long files = -1;
+    public long filesTransferred = -1;
+    public long totalSize = -1;
+    public long transferredSize = -1;
+    public long literalData = -1;
+    public long bytesSent = -1;
+    public long bytesReceived = -1;
+    /* ms spent making and sending the file list, before any file data moved */
+    public long fileListTime = -1;
+
+    public boolean feed(String line) {
+        Matcher t = TIME_PATTERN.matcher(line.trim());
+        if (t.matches()) {
+            long ms = Long.parseLong(t.group(2)) * 1000 + Math.round(Double.parseDouble("0." + t.group(3)) * 1000);
+            fileListTime = Math.max(0, fileListTime) + ms;
+            return true;
+        }
+
+        Matcher m = STAT_PATTERN.matcher(line.trim());
+        if (!m.matches()) {
+            return false;
+        }
+
+        long value;
+        try {
+            value = parseNumber(m.group(2), m.group(3));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        String key = m.group(1);
+
+        if (key.equals("Number of files")) {
+            files = value;
+        } else if (key.equals("Number of regular files transferred") || key.equals("Number of files transferred")) {
+            filesTransferred = value;
+        } else if (key.equals("Total file size")) {
+            totalSize = value;
+        } else if (key.equals("Total transferred file size")) {
+            transferredSize = value;
+        } else if (key.equals("Literal data")) {
+            literalData = value;
+        } else if (key.equals("Total bytes sent")) {
+            bytesSent = value;
+        } else if (key.equals("Total bytes received")) {
+            bytesReceived = value;
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    /*
+     * plain numbers carry thousands separators (',' or '.' depending on locale),
+     * --human-readable ones a decimal point and a unit suffix, in units of
+     * 1000 as a single -h gives them
+     */
+    private static long parseNumber(String number, String suffix) {
+        if (suffix == null) {
+            return Long.parseLong(number.replace(",", "").replace(".", ""));
+        }
+
+        double mult = 1000;
+        for (char c : "KMGT".toCharArray()) {
+            if (suffix.charAt(0) == c) {
+                break;
+            }
+            mult *= 1000;
+        }
+
+        return (long) (Double.parseDouble(number.replace(",", ".")) * mult);
+    }
+
+    /* sum of several runs, e.g. the shards of one profile; unknown values count as 0 */
+    public void add(RsyncStats other) {
+        files = sum(files, other.files);
+        filesTransferred = sum(filesTransferred, other.filesTransferred);
+        totalSize = sum(totalSize, other.totalSize);
+        transferredSize = sum(transferredSize, other.transferredSize);
+        literalData = sum(literalData, other.literalData);
+        bytesSent = sum(bytesSent, other.bytesSent);
+        bytesReceived = sum(bytesReceived, other.bytesReceived);
+        fileListTime = sum(fileListTime, other.fileListTime);
+    }
+
+    private static long sum(long a, long b) {
+        if (a < 0 && b < 0) {
+            return -1;
+        }
+
+        return Math.max(0, a) + Math.max(0, b);
+    }
+
+    public boolean isComplete() {
+        return bytesSent >= 0 && bytesReceived >= 0;
+    }
+
+    /* bytes that went over the wire in either direction */
+    public long getWireBytes() {
+        return Math.max(0, bytesSent) + Math.max(0, bytesReceived);
+    }
+}
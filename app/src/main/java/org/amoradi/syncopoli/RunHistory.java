@@ -0,0 +1,242 @@
+package org.amoradi.syncopoli;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/*
+ * One row per profile run with the transfer stats rsync reported. Doubles as
+ * the data usage ledger for metered quotas. Runs to a mirror of a profile
+ * are kept as "profile/mirror" (see Mirrors.getItem()); they count towards
+ * the profile's quota and go with it when it is renamed or removed.
+ */
+public class RunHistory {
+    /* runs looked at when estimating the size of the next one */
+    private static final int ESTIMATE_RUNS = 3;
+
+    public static class Run {
+        public String profile;
+        public long start;
+        public long duration;
+        public int exitCode;
+        public boolean metered;
+        public long bytesSent;
+        public long bytesReceived;
+        public long filesTransferred;
+        public long transferredSize;
+        /* ms of duration spent on the file list, see getTransferTime() */
+        public long fileListTime;
+        /* host:port rsync connected to, null if unknown */
+        public String endpoint;
+        /* TransferPolicy the run used */
+        public String policy;
+
+        public Run() {
+        }
+
+        public Run(String profile, long start, boolean metered) {
+            this.profile = profile;
+            this.start = start;
+            this.metered = metered;
+        }
+
+        public void setStats(RsyncStats stats) {
+            bytesSent = Math.max(0, stats.bytesSent);
+            bytesReceived = Math.max(0, stats.bytesReceived);
+            filesTransferred = Math.max(0, stats.filesTransferred);
+            transferredSize = Math.max(0, stats.transferredSize);
+            fileListTime = Math.max(0, stats.fileListTime);
+        }
+
+        public long getWireBytes() {
+            return bytesSent + bytesReceived;
+        }
+
+        /* ms the file data was moving: the run less its file list phase, as --stats tells it */
+        public long getTransferTime() {
+            return fileListTime > 0 && fileListTime < duration ? duration - fileListTime : duration;
+        }
+    }
+
+    private Context mContext;
+
+    public RunHistory(Context ctx) {
+        mContext = ctx;
+    }
+
+    public void record(Run r) {
+        BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(BackupSyncSchema.HISTORY_COLUMN_PROFILE, r.profile);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_START, r.start);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_DURATION, r.duration);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_EXIT_CODE, r.exitCode);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_METERED, r.metered ? 1 : 0);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_BYTES_SENT, r.bytesSent);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_BYTES_RECEIVED, r.bytesReceived);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_FILES_TRANSFERRED, r.filesTransferred);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_TRANSFERRED_SIZE, r.transferredSize);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_ENDPOINT, r.endpoint);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_POLICY, r.policy);
+        values.put(BackupSyncSchema.HISTORY_COLUMN_FILE_LIST_TIME, r.fileListTime);
+
+        db.insert(BackupSyncSchema.HISTORY_TABLE_NAME, null, values);
+        db.close();
+        dbHelper.close();
+    }
+
+    public List<Run> getRuns(String profile, int limit) {
+        return query(BackupSyncSchema.HISTORY_COLUMN_PROFILE, profile, limit);
+    }
+
+    /* latest runs of any profile to endpoint */
+    public List<Run> getEndpointRuns(String endpoint, int limit) {
+        return query(BackupSyncSchema.HISTORY_COLUMN_ENDPOINT, endpoint, limit);
+    }
+
+    private List<Run> query(String column, String value, int limit) {
+        List<Run> runs = new ArrayList<>();
+
+        BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        Cursor c = db.query(
+                BackupSyncSchema.HISTORY_TABLE_NAME,
+                null,
+                column + " = ?",
+                new String[] {value},
+                null,
+                null,
+                BackupSyncSchema.HISTORY_COLUMN_START + " DESC",
+                Integer.toString(limit)
+        );
+
+        while (c.moveToNext()) {
+            Run r = new Run();
+            r.profile = c.getString(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_PROFILE));
+            r.start = c.getLong(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_START));
+            r.duration = c.getLong(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_DURATION));
+            r.exitCode = c.getInt(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_EXIT_CODE));
+            r.metered = c.getInt(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_METERED)) != 0;
+            r.bytesSent = c.getLong(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_BYTES_SENT));
+            r.bytesReceived = c.getLong(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_BYTES_RECEIVED));
+            r.filesTransferred = c.getLong(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_FILES_TRANSFERRED));
+            r.transferredSize = c.getLong(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_TRANSFERRED_SIZE));
+            r.endpoint = c.getString(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_ENDPOINT));
+            r.policy = c.getString(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_POLICY));
+            r.fileListTime = c.getLong(c.getColumnIndex(BackupSyncSchema.HISTORY_COLUMN_FILE_LIST_TIME));
+            runs.add(r);
+        }
+
+        c.close();
+        db.close();
+        dbHelper.close();
+
+        return runs;
+    }
+
+    /* rows of profile and its mirrors, taking name, the length of name/ and name/ */
+    private static final String PROFILE_AND_MIRRORS = "(" + BackupSyncSchema.HISTORY_COLUMN_PROFILE + " = ? or substr(" +
+            BackupSyncSchema.HISTORY_COLUMN_PROFILE + ", 1, ?) = ?)";
+
+    private static String[] getProfileArgs(String profile, String... more) {
+        String[] args = new String[3 + more.length];
+        args[0] = profile;
+        args[1] = Integer.toString(profile.length() + 1);
+        args[2] = profile + "/";
+        System.arraycopy(more, 0, args, 3, more.length);
+        return args;
+    }
+
+    /* bytes used on metered networks by profile and its mirrors since the given time */
+    public long getMeteredUsage(String profile, long since) {
+        BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        Cursor c = db.rawQuery(
+                "select sum(" + BackupSyncSchema.HISTORY_COLUMN_BYTES_SENT + " + " +
+                BackupSyncSchema.HISTORY_COLUMN_BYTES_RECEIVED + ") from " +
+                BackupSyncSchema.HISTORY_TABLE_NAME + " where " +
+                PROFILE_AND_MIRRORS + " and " +
+                BackupSyncSchema.HISTORY_COLUMN_METERED + " = 1 and " +
+                BackupSyncSchema.HISTORY_COLUMN_START + " >= ?",
+                getProfileArgs(profile, Long.toString(since))
+        );
+
+        long used = 0;
+        if (c.moveToFirst() && !c.isNull(0)) {
+            used = c.getLong(0);
+        }
+
+        c.close();
+        db.close();
+        dbHelper.close();
+
+        return used;
+    }
+
+    /*
+     * Guess how many bytes the next run of profile will move, from the largest
+     * of its recent runs. Returns -1 if the profile never ran.
+     */
+    public long estimateWireBytes(String profile) {
+        long estimate = -1;
+
+        for (Run r : getRuns(profile, ESTIMATE_RUNS)) {
+            estimate = Math.max(estimate, r.getWireBytes());
+        }
+
+        return estimate;
+    }
+
+    public void renameProfile(String oldName, String newName) {
+        BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(BackupSyncSchema.HISTORY_COLUMN_PROFILE, newName);
+
+        db.update(BackupSyncSchema.HISTORY_TABLE_NAME, values,
+                  BackupSyncSchema.HISTORY_COLUMN_PROFILE + " = ?", new String[] {oldName});
+
+        // and its mirrors, keeping the part after the name
+        db.execSQL("update " + BackupSyncSchema.HISTORY_TABLE_NAME + " set " +
+                   BackupSyncSchema.HISTORY_COLUMN_PROFILE + " = ? || substr(" + BackupSyncSchema.HISTORY_COLUMN_PROFILE + ", ?) where substr(" +
+                   BackupSyncSchema.HISTORY_COLUMN_PROFILE + ", 1, ?) = ?",
+                   new Object[] {newName, oldName.length() + 1, oldName.length() + 1, oldName + "/"});
+        db.close();
+        dbHelper.close();
+    }
+
+    public void removeProfile(String name) {
+        BackupSyncOpenHelper dbHelper = new BackupSyncOpenHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        db.delete(BackupSyncSchema.HISTORY_TABLE_NAME, PROFILE_AND_MIRRORS, getProfileArgs(name));
+        db.close();
+        dbHelper.close();
+    }
+
+    /* start of the current quota period, in ms since epoch */
+    public static long getPeriodStart(BackupItem.QuotaPeriod period, long now) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(now);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+
+        if (period == BackupItem.QuotaPeriod.MONTHLY) {
+            cal.set(Calendar.DAY_OF_MONTH, 1);
+        }
+
+        return cal.getTimeInMillis();
+    }
+}
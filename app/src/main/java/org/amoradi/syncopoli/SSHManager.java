@@ -1,41 +1,36 @@
 package org.amoradi.syncopoli;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class SSHManager {
     private static final String TAG = "Syncopoli";
 
     private Context mContext;
 
-    /* This needs the patched version of dropbear!
-     * see gitlab.com/fengshaun/android-dropbear commit f49af1902d3d683c59a7445746fa3a35cd07ef33
-     * Format: Fingerprint: md5 ab:cd:ef:...
+    /*
+     * last key probed per host, so the one the user saw is the one that gets
+     * trusted; by host alone, like known_hosts
      */
-    private Pattern mFingerprintPattern = Pattern.compile("^Fingerprint: [\\w\\d]+ ([\\w:]+)$");
-    private Pattern mAcceptedPattern = Pattern.compile("^Accepted fingerprint$");
+    private static final Map<String, HostKeyProbe.HostKey> sProbedKeys = new HashMap<>();
 
     private String host;
     private String port;
 
     SSHManager(Context ctx) throws NumberFormatException {
-        mContext = ctx;
+        this(ctx, Server.getDefault(PreferenceManager.getDefaultSharedPreferences(ctx)));
+    }
 
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
-        host = sp.getString(SettingsFragment.KEY_SERVER_ADDRESS, "");
-        port = sp.getString(SettingsFragment.KEY_PORT, "22");
+    SSHManager(Context ctx, Server server) throws NumberFormatException {
+        mContext = ctx;
+        host = server.address;
+        port = server.port;
 
         try {
             Integer.parseInt(port);
@@ -45,161 +40,73 @@ public class SSHManager {
         }
     }
 
-    public String getRemoteHostFingerprint() {
-        List<String> args = new ArrayList<>();
-
-        File f = new File(mContext.getFilesDir(), "ssh");
-        args.add(f.getAbsolutePath());
-
-        args.add("-p");
-        args.add(port);
-        /* this option is added in patched version of dropbear
-         * -C make dropbear print remote host fingerprint and exit, which is what we want
-         */
-        args.add("-C");
-        args.add(host);
-
-        ProcessBuilder pb = new ProcessBuilder(args);
-        pb.directory(mContext.getFilesDir());
-        pb.redirectErrorStream(true);
-
-        // Set environment (make sure we have reasonable $HOME, so ssh can store keys)
-        Map<String, String> env = pb.environment();
-        env.put("HOME", mContext.getFilesDir().getAbsolutePath());
+    /* host:port as shown to the user */
+    public String getHost() {
+        return host + ":" + port;
+    }
 
-        /*
-         * RUN PROCESS
-         */
+    private KnownHosts getKnownHosts() {
+        return KnownHosts.getInstance(new File(mContext.getFilesDir().getAbsolutePath() + "/.ssh/", "known_hosts"));
+    }
 
-        Process process;
+    public String getRemoteHostFingerprint() {
+        HostKeyProbe.HostKey key;
         try {
-            process = pb.start();
+            key = new HostKeyProbe(host, Integer.parseInt(port)).probe();
         } catch (IOException e) {
-            Log.e(TAG, "Could not run ssh: " + e.toString());
+            Log.e(TAG, "Could not get host key of " + host + ":" + port + ": " + e.toString());
             return null;
         }
 
-        /*
-         * GET STDOUT/STDERR
-         */
-
-        String temp;
-        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-
-        /* Read STDOUT & STDERR */
-        try {
-            while ((temp = reader.readLine()) != null) {
-                Log.e(TAG, temp + "\n");
-
-                Matcher m = mFingerprintPattern.matcher(temp);
-                if (m.matches()) {
-                    Log.e(TAG, "MATCHES FINGERPRINT: " + m.group(1));
-                    String fp = m.group(1);
-
-                    try {
-                        process.waitFor();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, e.toString());
-                    }
-
-                    return fp;
-                }
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Could not read/write from ssh process");
-            return null;
+        synchronized (sProbedKeys) {
+            sProbedKeys.put(host, key);
         }
 
-        Log.e(TAG, "Unknown error occurred when trying to communicate with ssh process");
-        return null;
+        Log.d(TAG, "Host key of " + host + ": " + key.keyType + " " + key.getFingerprint());
+        return key.getFingerprint();
     }
 
-    public boolean acceptHostKeyFingerprint(String fingerprint) {
-        List<String> args = new ArrayList<>();
-
-        File f = new File(mContext.getFilesDir(), "ssh");
-        args.add(f.getAbsolutePath());
-
-        args.add("-p");
-        args.add(port);
-        /* this option is added in patched version of dropbear
-         * -C make dropbear print remote host fingerprint and exit, which is what we want
-         */
-        args.add("-Z");
-        args.add(fingerprint);
-        args.add(host);
+    /* whether the host's key, as last probed, is in known_hosts; reads the file, so not on the UI thread */
+    public boolean isHostKeyTrusted() {
+        HostKeyProbe.HostKey key;
+        synchronized (sProbedKeys) {
+            key = sProbedKeys.get(host);
+        }
 
-        ProcessBuilder pb = new ProcessBuilder(args);
-        pb.directory(mContext.getFilesDir());
-        pb.redirectErrorStream(true);
+        if (key == null) {
+            return !getKnownHosts().getEntries(host).isEmpty();
+        }
 
-        // Set environment (make sure we have reasonable $HOME, so ssh can store keys)
-        Map<String, String> env = pb.environment();
-        env.put("HOME", mContext.getFilesDir().getAbsolutePath());
+        return getKnownHosts().isTrusted(host, key.keyType, key.key);
+    }
 
-        /*
-         * RUN PROCESS
-         */
+    public boolean acceptHostKeyFingerprint(String fingerprint) {
+        HostKeyProbe.HostKey key;
+        synchronized (sProbedKeys) {
+            key = sProbedKeys.get(host);
+        }
 
-        Process process;
-        try {
-            process = pb.start();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not run ssh: " + e.toString());
+        if (key == null || !key.getFingerprint().equals(fingerprint)) {
+            Log.e(TAG, "Fingerprint " + fingerprint + " is not the one last seen for " + host);
             return false;
         }
 
-        /*
-         * GET STDOUT/STDERR
-         */
-
-        String temp;
-        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-
-        /* Read STDOUT & STDERR */
         try {
-            while ((temp = reader.readLine()) != null) {
-                Log.e(TAG, temp + "\n");
-
-                Matcher m = mAcceptedPattern.matcher(temp);
-                if (m.matches()) {
-                    Log.e(TAG, "Fingerprint accepted");
-
-                    try {
-                        process.waitFor();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, e.toString());
-                    }
-
-                    return true;
-                }
-            }
+            getKnownHosts().add(host, key.keyType, key.key);
         } catch (IOException e) {
-            Log.e(TAG, "Could not read/write from ssh process");
+            Log.e(TAG, "Could not save host key: " + e.toString());
             return false;
         }
 
-        Log.e(TAG, "Unknown error occurred when trying to communicate with ssh process");
-        return false;
+        Log.i(TAG, "Accepted fingerprint " + fingerprint + " for " + host);
+        return true;
     }
 
     public boolean clearAcceptedHostKeyFingerprints() {
-        String filename = "known_hosts";
-        File acceptedFingerprintsFile = new File(mContext.getFilesDir().getAbsolutePath() + "/.ssh/",
-                                                 filename);
-
-        if (!acceptedFingerprintsFile.delete()) {
-            Log.e(TAG, "Failed to delete " + acceptedFingerprintsFile.getAbsolutePath());
-            return false;
-        }
-
         try {
-            if (!acceptedFingerprintsFile.createNewFile()) {
-                Log.e(TAG, "Failed to create new " + filename + " file: file already exists after being deleted: " + acceptedFingerprintsFile.getAbsolutePath());
-                return false;
-            }
+            getKnownHosts().clear();
         } catch (IOException e) {
-            Log.e(TAG, "Failed to create new " + filename + " file: " + e.toString());
+            Log.e(TAG, "Failed to clear known_hosts: " + e.toString());
             return false;
         }
 
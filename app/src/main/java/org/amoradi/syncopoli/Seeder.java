@@ -0,0 +1,333 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * The first sync of an outgoing profile to an empty destination, as tar
+ * streams rather than rsync. With nothing on the server to compare against,
+ * rsync's file list and per file round trips are all cost; a tar stream is
+ * just the files. The files are shared out by size over CHANNELS ssh
+ * connections, each running tar -x in the destination. rsync runs right
+ * after as usual and only finds the files that changed in the meantime, or
+ * that couldn't be read, and the permissions and times of directories.
+ */
+public class Seeder {
+    private static final String TAG = "Syncopoli";
+
+    /* in the run history for seeding runs */
+    public static final String POLICY = "seed";
+
+    /* fewer files than this and rsync's overhead doesn't matter */
+    static final int MIN_FILES = 1000;
+
+    static final int CHANNELS = 4;
+
+    private Context mContext;
+
+    public Seeder(Context ctx) {
+        mContext = ctx;
+    }
+
+    /* draws from the share of run in BandwidthBudget, which counts the profile's own --bwlimit */
+    static class ThrottledOutputStream extends FilterOutputStream {
+        private final Object mRun;
+
+        ThrottledOutputStream(OutputStream out, Object run) {
+            super(out);
+            mRun = run;
+        }
+
+        private void throttle(long bytes) throws IOException {
+            try {
+                BandwidthBudget.getInstance().throttle(mRun, bytes);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throttle(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            throttle(len);
+            out.write(b, off, len);
+        }
+    }
+
+    /* destination as the remote shell should see it */
+    private static String getDestination(BackupItem b) {
+        return b.destination.equals("") ? "." : RemoteWatcher.quoteSource(b.destination);
+    }
+
+    /*
+     * Share entries out over n channels, biggest file first to the channel
+     * with the fewest bytes so far. Each channel's files are in path order.
+     */
+    static List<List<Manifest.Entry>> split(List<Manifest.Entry> entries, int n) {
+        List<Manifest.Entry> bySize = new ArrayList<>(entries);
+        Collections.sort(bySize, new Comparator<Manifest.Entry>() {
+            @Override
+            public int compare(Manifest.Entry a, Manifest.Entry b) {
+                return a.size < b.size ? 1 : (a.size > b.size ? -1 : 0);
+            }
+        });
+
+        List<List<Manifest.Entry>> channels = new ArrayList<>();
+        long[] load = new long[n];
+        for (int i = 0; i < n; i++) {
+            channels.add(new ArrayList<Manifest.Entry>());
+        }
+
+        for (Manifest.Entry e : bySize) {
+            int min = 0;
+            for (int i = 1; i < n; i++) {
+                if (load[i] < load[min]) {
+                    min = i;
+                }
+            }
+
+            channels.get(min).add(e);
+            // a header per file, whatever its size
+            load[min] += e.size + TarWriter.BLOCK;
+        }
+
+        for (List<Manifest.Entry> c : channels) {
+            Collections.sort(c, Manifest.ENTRY_ORDER);
+        }
+
+        return channels;
+    }
+
+    private static List<String> getArgs(RsyncCommand cmd, String command) {
+        List<String> args = cmd.getSshArgs();
+        args.add(cmd.login);
+        args.add(command);
+        return args;
+    }
+
+    /* whether the destination of b is missing or empty on the server cmd logs in to */
+    private boolean isEmpty(BackupItem b, RsyncCommand cmd, OutputStream log) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(getArgs(cmd, "cd " + getDestination(b) + " 2>/dev/null || exit 0; ls -A | head -n 1"));
+        pb.directory(cmd.directory);
+        pb.environment().putAll(cmd.env);
+        pb.redirectErrorStream(true);
+
+        Process p = pb.start();
+        p.getOutputStream().close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = p.getInputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+
+        int ret = p.waitFor();
+        if (ret != 0) {
+            log.write(("Could not look at the destination (error code " + ret + ")\n").getBytes());
+            log.write(out.toByteArray());
+            log.write("\n".getBytes());
+            return false;
+        }
+
+        return out.toString("UTF-8").trim().equals("");
+    }
+
+    /*
+     * The files of b to send as tar streams, null if rsync should send them:
+     * b synced before, there is no plain ssh login, the destination isn't
+     * empty or there are too few files to bother.
+     */
+    public List<Manifest.Entry> plan(BackupItem b, RsyncCommand cmd, OutputStream log) throws IOException, InterruptedException {
+        // files only root can read are left to rsync
+        if (b.direction != BackupItem.Direction.OUTGOING || cmd.login == null || cmd.as_root) {
+            return null;
+        }
+
+        for (RunHistory.Run r : new RunHistory(mContext).getRuns(b.name, 20)) {
+            if (r.exitCode == 0) {
+                return null;
+            }
+        }
+
+        if (!isEmpty(b, cmd, log)) {
+            return null;
+        }
+
+        List<Manifest.Entry> entries;
+        try {
+            entries = Manifest.scan(b, FilterRules.forProfile(mContext, b));
+        } catch (IllegalArgumentException e) {
+            // bad filter rules, buildRsyncCommand() reports them
+            return null;
+        }
+
+        if (entries.size() < MIN_FILES) {
+            return null;
+        }
+
+        return entries;
+    }
+
+    /*
+     * Send entries (see plan()) with cmd, built for b. Transfer counts go to
+     * stats. Returns 0 if every stream was unpacked, else the first error
+     * code of ssh or tar.
+     */
+    public int send(BackupItem b, RsyncCommand cmd, List<Manifest.Entry> entries, final OutputStream log, RsyncStats stats) throws IOException, InterruptedException {
+        List<List<Manifest.Entry>> channels = split(entries, Math.min(CHANNELS, entries.size()));
+        final int n = channels.size();
+        final Object budget = cmd.budget;
+
+        long total = 0;
+        for (Manifest.Entry e : entries) {
+            total += e.size;
+        }
+
+        log.write(String.format(Locale.ENGLISH, "Destination is empty, seeding %d files (%.1f MB) as %d tar streams\n\n",
+                entries.size(), total / 1048576.0, n).getBytes());
+
+        final String command = "mkdir -p " + getDestination(b) + " && cd " + getDestination(b) + " && tar -xf -";
+        final int[] results = new int[n];
+        final long[] written = new long[n];
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < n; i++) {
+            final int k = i;
+            final List<Manifest.Entry> files = channels.get(i);
+
+            ProcessBuilder pb = new ProcessBuilder(getArgs(cmd, command));
+            pb.directory(cmd.directory);
+            pb.environment().putAll(cmd.env);
+            pb.redirectErrorStream(true);
+
+            final Process p = pb.start();
+
+            // whatever ssh and tar have to say
+            final Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            synchronized (log) {
+                                log.write(("[seed " + k + "] " + line + "\n").getBytes());
+                            }
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "Could not read seed output: " + e.toString());
+                    }
+                }
+            });
+            reader.start();
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    TarWriter tar = new TarWriter(new ThrottledOutputStream(p.getOutputStream(), budget));
+                    try {
+                        for (Manifest.Entry e : files) {
+                            File f = new File(e.path);
+                            try {
+                                tar.putFile(e.rel, f, e.size, e.mtime, f.canExecute());
+                            } catch (FileNotFoundException x) {
+                                // gone or unreadable, rsync will tell
+                                Log.d(TAG, "Not seeded: " + e.path);
+                            }
+                        }
+                        tar.finish();
+                        p.getOutputStream().close();
+                    } catch (IOException e) {
+                        // the other side went away, its exit code tells why
+                        Log.d(TAG, "Seed stream " + k + " ended: " + e.toString());
+                        p.destroy();
+                    }
+
+                    try {
+                        results[k] = p.waitFor();
+                        reader.join();
+                    } catch (InterruptedException e) {
+                        p.destroy();
+                        results[k] = -1;
+                    }
+                    written[k] = tar.getWritten();
+                }
+            });
+            writer.start();
+            threads.add(writer);
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        int errno = 0;
+        long bytes = 0;
+        for (int i = 0; i < n; i++) {
+            bytes += written[i];
+            if (results[i] != 0 && errno == 0) {
+                errno = results[i];
+            }
+        }
+
+        stats.bytesSent = bytes;
+        stats.bytesReceived = 0;
+        stats.files = entries.size();
+        stats.filesTransferred = entries.size();
+        stats.totalSize = total;
+        stats.transferredSize = total;
+
+        return errno;
+    }
+
+    /* bytes per second of the run */
+    static double getRate(RunHistory.Run r) {
+        return r.duration <= 0 ? 0 : r.transferredSize * 1000.0 / r.duration;
+    }
+
+    /*
+     * Rate of the seed run against the rsync runs to the same endpoint that
+     * sent at least a few megabytes, for the log.
+     */
+    public String compare(RunHistory.Run seed) {
+        List<RunHistory.Run> runs = seed.endpoint == null ? new ArrayList<RunHistory.Run>() : new RunHistory(mContext).getEndpointRuns(seed.endpoint, 20);
+
+        double sum = 0;
+        int count = 0;
+        for (RunHistory.Run r : runs) {
+            if (r.exitCode == 0 && !POLICY.equals(r.policy) && r.transferredSize >= 4 * 1048576 && r.duration > 0) {
+                sum += getRate(r);
+                count++;
+            }
+        }
+
+        String s = String.format(Locale.ENGLISH, "Seeded at %.1f MB/s", getRate(seed) / 1048576.0);
+        if (count > 0) {
+            s += String.format(Locale.ENGLISH, ", rsync to this server averaged %.1f MB/s", sum / count / 1048576.0);
+        }
+
+        return s;
+    }
+}
@@ -0,0 +1,151 @@
+package org.amoradi.syncopoli;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A server profiles can be sent to. The one in the settings has no name and
+ * is used by profiles that don't name another. Others are defined one per
+ * line, e.g.
+ *
+ *   nas 192.168.1.10
+ *   mirror1 backup1.example.com:2222 user=phone key=/sdcard/id_rsa pool=offsite
+ *   mirror2 backup2.example.com:873 protocol=Rsync password=secret pool=offsite
+ *   old 10.0.0.8 cipher=aes128-ctr mac=hmac-sha1
+ *
+ * Anything not given is taken from the settings. Servers with the same pool
+ * hold the same data; a profile naming the pool goes to whichever of them
+ * answers fastest, and fails over to the others.
+ */
+public class Server {
+    /* "" for the server in the settings */
+    public String name = "";
+    public String address;
+    public String port;
+    public String protocol;
+    public String username;
+    public String rsyncPassword;
+    public String sshPassword;
+    public String privateKey;
+    public String pool = "";
+    /* ssh -c and -m lists, "" for the ones tuned for this device */
+    public String ciphers = "";
+    public String macs = "";
+
+    public static Server getDefault(SharedPreferences prefs) {
+        Server s = new Server();
+        s.address = prefs.getString(SettingsFragment.KEY_SERVER_ADDRESS, "");
+        s.port = prefs.getString(SettingsFragment.KEY_PORT, "22");
+        s.protocol = prefs.getString(SettingsFragment.KEY_PROTOCOL, "SSH");
+        s.username = prefs.getString(SettingsFragment.KEY_RSYNC_USERNAME, "");
+        s.rsyncPassword = prefs.getString(SettingsFragment.KEY_RSYNC_PASSWORD, "");
+        s.sshPassword = prefs.getString(SettingsFragment.KEY_SSH_PASSWORD, "");
+        s.privateKey = prefs.getString(SettingsFragment.KEY_PRIVATE_KEY, "");
+        s.ciphers = prefs.getString(SettingsFragment.KEY_SSH_CIPHERS, "").trim();
+        s.macs = prefs.getString(SettingsFragment.KEY_SSH_MACS, "").trim();
+        return s;
+    }
+
+    public static List<Server> parseList(String text, Server defaults) throws IllegalArgumentException {
+        List<Server> servers = new ArrayList<>();
+
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.equals("") || line.startsWith("#")) {
+                continue;
+            }
+
+            Server s = parse(line, defaults);
+            for (Server other : servers) {
+                if (other.name.equals(s.name)) {
+                    throw new IllegalArgumentException("Server defined twice: " + s.name);
+                }
+            }
+
+            servers.add(s);
+        }
+
+        return servers;
+    }
+
+    public static Server parse(String line, Server defaults) throws IllegalArgumentException {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Server without address: " + line);
+        }
+
+        Server s = new Server();
+        s.name = parts[0];
+        s.protocol = defaults.protocol;
+        s.username = defaults.username;
+        s.rsyncPassword = defaults.rsyncPassword;
+        s.sshPassword = defaults.sshPassword;
+        s.privateKey = defaults.privateKey;
+        s.ciphers = defaults.ciphers;
+        s.macs = defaults.macs;
+
+        // same address syntax as endpoints
+        Endpoint address = Endpoint.parse(parts[1]);
+        s.address = address.host;
+        s.port = address.port > 0 ? Integer.toString(address.port) : "";
+
+        for (int i = 2; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Bad server option: " + parts[i]);
+            }
+
+            String key = parts[i].substring(0, eq);
+            String value = parts[i].substring(eq + 1);
+
+            if (key.equals("protocol")) {
+                if (!value.equals("SSH") && !value.equals("Rsync")) {
+                    throw new IllegalArgumentException("Unknown protocol: " + value);
+                }
+                s.protocol = value;
+            } else if (key.equals("user")) {
+                s.username = value;
+            } else if (key.equals("password")) {
+                s.rsyncPassword = value;
+                s.sshPassword = value;
+            } else if (key.equals("key")) {
+                s.privateKey = value;
+            } else if (key.equals("pool")) {
+                s.pool = value;
+            } else if (key.equals("cipher")) {
+                s.ciphers = value;
+            } else if (key.equals("mac")) {
+                s.macs = value;
+            } else {
+                throw new IllegalArgumentException("Unknown server option: " + key);
+            }
+        }
+
+        if (s.port.equals("")) {
+            s.port = s.protocol.equals(defaults.protocol) ? defaults.port : (s.protocol.equals("SSH") ? "22" : "873");
+        }
+
+        return s;
+    }
+
+    /* the servers a profile naming name goes to: the server itself, or all of a pool */
+    public static List<Server> findMembers(List<Server> servers, String name) {
+        List<Server> members = new ArrayList<>();
+
+        for (Server s : servers) {
+            if (s.name.equals(name) || s.pool.equals(name)) {
+                members.add(s);
+            }
+        }
+
+        return members;
+    }
+
+    @Override
+    public String toString() {
+        String address = this.address.indexOf(':') >= 0 ? "[" + this.address + "]" : this.address;
+        return (name.equals("") ? "" : name + " (") + address + ":" + port + (name.equals("") ? "" : ")");
+    }
+}
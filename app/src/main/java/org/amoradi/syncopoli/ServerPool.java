@@ -0,0 +1,133 @@
+package org.amoradi.syncopoli;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Health and connect time of pool members, probed at most once per TTL.
+ * Members are tried fastest first; one found down, by a probe or by a run
+ * failing to connect, goes to the back until its next probe.
+ */
+public class ServerPool {
+    private static final String TAG = "Syncopoli";
+
+    public static final long TTL = 5 * 60 * 1000;
+    private static final int CONNECT_TIMEOUT = 3000;
+
+    /* connect time in ms, -1 if down */
+    private static class Status {
+        long latency;
+        long probed;
+    }
+
+    private static final Map<String, Status> sStatus = new HashMap<>();
+
+    private static String getKey(Server s) {
+        return s.address + ":" + s.port;
+    }
+
+    /*
+     * members in the order to try them. A pool of one isn't probed, rsync
+     * finds out soon enough whether it's there.
+     */
+    public static List<Server> order(List<Server> members) {
+        List<Server> ordered = new ArrayList<>(members);
+        if (ordered.size() < 2) {
+            return ordered;
+        }
+
+        List<Server> stale = new ArrayList<>();
+        synchronized (sStatus) {
+            for (Server s : ordered) {
+                Status st = sStatus.get(getKey(s));
+                if (st == null || System.currentTimeMillis() - st.probed > TTL) {
+                    stale.add(s);
+                }
+            }
+        }
+
+        probe(stale);
+
+        final Map<String, Long> latencies = new HashMap<>();
+        synchronized (sStatus) {
+            for (Server s : ordered) {
+                Status st = sStatus.get(getKey(s));
+                latencies.put(getKey(s), st == null || st.latency < 0 ? Long.MAX_VALUE : st.latency);
+            }
+        }
+
+        // stable, so members that are down keep their configured order
+        Collections.sort(ordered, new Comparator<Server>() {
+            @Override
+            public int compare(Server a, Server b) {
+                return latencies.get(getKey(a)).compareTo(latencies.get(getKey(b)));
+            }
+        });
+
+        return ordered;
+    }
+
+    /* s failed to connect, try the others first for a while */
+    public static void markDown(Server s) {
+        synchronized (sStatus) {
+            Status st = new Status();
+            st.latency = -1;
+            st.probed = System.currentTimeMillis();
+            sStatus.put(getKey(s), st);
+        }
+    }
+
+    private static void probe(List<Server> servers) {
+        List<Thread> threads = new ArrayList<>();
+
+        for (final Server s : servers) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Status st = new Status();
+                    long start = System.currentTimeMillis();
+                    Socket socket = new Socket();
+
+                    try {
+                        socket.connect(new InetSocketAddress(s.address, Integer.parseInt(s.port)), CONNECT_TIMEOUT);
+                        st.latency = System.currentTimeMillis() - start;
+                    } catch (IOException | NumberFormatException e) {
+                        Log.d(TAG, "Server " + s + " is down: " + e.toString());
+                        st.latency = -1;
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            Log.d(TAG, "Could not close probe socket: " + e.toString());
+                        }
+                    }
+
+                    st.probed = System.currentTimeMillis();
+                    synchronized (sStatus) {
+                        sStatus.put(getKey(s), st);
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
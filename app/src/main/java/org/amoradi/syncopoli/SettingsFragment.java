@@ -13,6 +13,10 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.widget.Toast;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 
 public class SettingsFragment extends PreferenceFragment implements SharedPreferences.OnSharedPreferenceChangeListener {
     private static final String TAG = "Syncopoli";
@@ -31,6 +35,20 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public final static String KEY_VERIFY_HOST = "pref_key_verify_host"; // String
     public final static String KEY_CLEAR_HOSTS = "pref_key_clear_hosts"; // String
     public final static String KEY_AS_ROOT = "pref_key_as_root"; // boolean
+    public final static String KEY_BWLIMIT_WIFI = "pref_key_bwlimit_wifi"; // int
+    public final static String KEY_BWLIMIT_METERED = "pref_key_bwlimit_metered"; // int
+    public final static String KEY_TUNNEL_PORT = "pref_key_tunnel_port"; // int
+    public final static String KEY_ENDPOINTS = "pref_key_endpoints"; // String
+    public final static String KEY_SERVERS = "pref_key_servers"; // String
+    public final static String KEY_SSH_CIPHERS = "pref_key_ssh_ciphers"; // String
+    public final static String KEY_SSH_MACS = "pref_key_ssh_macs"; // String
+    public final static String KEY_TUNE_SSH = "pref_key_tune_ssh"; // String
+    public final static String KEY_DETECT_MOVES = "pref_key_detect_moves"; // boolean
+    public final static String KEY_MEDIA_FEED = "pref_key_media_feed"; // boolean
+    public final static String KEY_SKIP_UNCHANGED = "pref_key_skip_unchanged"; // boolean
+    public final static String KEY_WATCH_REMOTE = "pref_key_watch_remote"; // boolean
+    public final static String KEY_SEED = "pref_key_seed"; // boolean
+    public final static String KEY_CHUNK_STORE = "pref_key_chunk_store"; // String
     public final static String KEY_VERSION_CODE = "pref_key_version_code";
 
 	private final static int DEFAULT_RSYNC_PORT = 873;
@@ -48,7 +66,20 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         KEY_SSH_PASSWORD,
         KEY_WIFI_ONLY,
         KEY_WIFI_NAME,
-        KEY_AS_ROOT
+        KEY_AS_ROOT,
+        KEY_BWLIMIT_WIFI,
+        KEY_BWLIMIT_METERED,
+        KEY_TUNNEL_PORT,
+        KEY_ENDPOINTS,
+        KEY_SERVERS,
+        KEY_SSH_CIPHERS,
+        KEY_SSH_MACS,
+        KEY_DETECT_MOVES,
+        KEY_MEDIA_FEED,
+        KEY_SKIP_UNCHANGED,
+        KEY_WATCH_REMOTE,
+        KEY_SEED,
+        KEY_CHUNK_STORE
     };
 
     @Override
@@ -57,6 +88,15 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             return;
         }
 
+        if (key.equals(KEY_WATCH_REMOTE)) {
+            RemoteWatchService.update(getActivity());
+            return;
+        }
+
+        if (key.equals(KEY_ENDPOINTS) || key.equals(KEY_SERVER_ADDRESS) || key.equals(KEY_SERVERS)) {
+            EndpointSelector.invalidate();
+        }
+
 		/*
 		 * if user is changing the protocol and leaves the port as default, then we change
 		 * the port to match the default for the protocol selected. Else, if the user has
@@ -98,6 +138,20 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 			} else {
                 p.setSummary("");
             }
+		} else if (key.equals(KEY_SERVERS)) {
+            // only the names, the lines may hold passwords
+            StringBuilder names = new StringBuilder();
+            for (String line : prefs.getString(key, "").split("\n")) {
+                String name = line.trim().split("\\s+")[0];
+                if (name.equals("") || name.startsWith("#")) {
+                    continue;
+                }
+                if (names.length() > 0) {
+                    names.append(", ");
+                }
+                names.append(name);
+            }
+            findPreference(key).setSummary(names.toString());
 		} else {
             Preference pref = findPreference(key);
             String summary = sharedPreferences.getString(key, "Not set");
@@ -118,7 +172,16 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         verifyButton.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
             @Override
             public boolean onPreferenceClick(Preference preference) {
-                new GetHostFingerprintTask(getActivity().getWindow().getContext()).execute();
+                new GetHostFingerprintTask(getActivity().getWindow().getContext(), getSshHosts()).execute();
+                return true;
+            }
+        });
+
+        Preference tuneButton = findPreference(KEY_TUNE_SSH);
+        tuneButton.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                new TuneSshTask(getActivity().getWindow().getContext()).execute();
                 return true;
             }
         });
@@ -142,9 +205,32 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         menu.findItem(R.id.action_run).setVisible(false);
     }
 
+    /* the server in the settings, then every other server using SSH */
+    private List<SSHManager> getSshHosts() {
+        Context ctx = getActivity().getWindow().getContext();
+        SharedPreferences sp = getPreferenceScreen().getSharedPreferences();
+        Server defaults = Server.getDefault(sp);
+
+        List<SSHManager> hosts = new ArrayList<>();
+        hosts.add(new SSHManager(ctx, defaults));
+
+        try {
+            for (Server s : Server.parseList(sp.getString(KEY_SERVERS, ""), defaults)) {
+                if (s.protocol.equals("SSH")) {
+                    hosts.add(new SSHManager(ctx, s));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(ctx, e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+
+        return hosts;
+    }
+
     private void initializeSummaries() {
         String[] keys = {KEY_SERVER_ADDRESS, KEY_PROTOCOL, KEY_RSYNC_USERNAME,
-		KEY_RSYNC_OPTIONS, KEY_PRIVATE_KEY, KEY_PORT, KEY_FREQUENCY};
+		KEY_RSYNC_OPTIONS, KEY_PRIVATE_KEY, KEY_PORT, KEY_FREQUENCY, KEY_BWLIMIT_WIFI,
+		KEY_BWLIMIT_METERED, KEY_TUNNEL_PORT, KEY_SERVERS, KEY_SSH_CIPHERS, KEY_SSH_MACS, KEY_CHUNK_STORE};
         SharedPreferences sp = getPreferenceScreen().getSharedPreferences();
 
         for (String key : keys) {
@@ -157,9 +243,9 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 		private SSHManager sshman;
 		private String fingerprint;
 
-		AcceptHostFingerprintTask(Context ctx, String fp) {
+		AcceptHostFingerprintTask(Context ctx, SSHManager ssh, String fp) {
 		    mContext = ctx;
-		    sshman = new SSHManager(mContext);
+		    sshman = ssh;
             fingerprint = fp;
         }
 
@@ -179,6 +265,46 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         }
 	}
 
+	private class TuneSshTask extends AsyncTask<Void, Void, String> {
+        private Context mContext;
+        private Server mServer;
+        private String mError;
+
+        TuneSshTask(Context ctx) {
+            mContext = ctx;
+            mServer = Server.getDefault(getPreferenceScreen().getSharedPreferences());
+        }
+
+        @Override
+        protected void onPreExecute() {
+            Toast.makeText(mContext, "Timing ciphers against " + mServer + ", this takes a while", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            try {
+                return new SshTuner(mContext).tune(mServer);
+            } catch (IOException e) {
+                Log.e(TAG, "SSH tuning failed: " + e.toString());
+                mError = e.getMessage();
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            if (result == null) {
+                Toast.makeText(mContext, "Tuning failed: " + mError, Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            AlertDialog.Builder builder = new AlertDialog.Builder(mContext, R.style.AppTheme);
+            builder.setMessage(result);
+            builder.setPositiveButton("OK", null);
+            builder.show();
+        }
+    }
+
 	private class ClearHostsTask extends AsyncTask<Void, String, Boolean> {
         private Context mContext;
         private SSHManager sshman;
@@ -206,21 +332,37 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     private class GetHostFingerprintTask extends AsyncTask<Void, String, String> {
         private Context mContext;
         private SSHManager sshman;
+        /* hosts to verify after this one */
+        private List<SSHManager> mNext;
+        /* the probed key is in known_hosts already */
+        private boolean mTrusted = false;
 
-        GetHostFingerprintTask(Context ctx) {
+        GetHostFingerprintTask(Context ctx, List<SSHManager> hosts) {
             mContext = ctx;
-            sshman = new SSHManager(mContext);
+            sshman = hosts.get(0);
+            mNext = hosts.subList(1, hosts.size());
+        }
+
+        private void verifyNext() {
+            if (!mNext.isEmpty()) {
+                new GetHostFingerprintTask(mContext, mNext).execute();
+            }
         }
 
         @Override
         protected String doInBackground(Void... params) {
-            return sshman.getRemoteHostFingerprint();
+            String fingerprint = sshman.getRemoteHostFingerprint();
+            if (fingerprint != null) {
+                mTrusted = sshman.isHostKeyTrusted();
+            }
+            return fingerprint;
         }
 
         @Override
         protected void onPostExecute(final String result) {
             if (result == null) {
-                Toast.makeText(mContext, "Failed to verify host.", Toast.LENGTH_SHORT).show();
+                Toast.makeText(mContext, "Failed to verify host " + sshman.getHost() + ".", Toast.LENGTH_SHORT).show();
+                verifyNext();
                 return;
             }
 
@@ -229,17 +371,24 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                 public void onClick(DialogInterface dialog, int which) {
                     switch (which){
                         case DialogInterface.BUTTON_POSITIVE:
-                            new AcceptHostFingerprintTask(mContext, result).execute();
+                            new AcceptHostFingerprintTask(mContext, sshman, result).execute();
                             break;
 
                         case DialogInterface.BUTTON_NEGATIVE:
                             break;
                     }
+
+                    verifyNext();
                 }
             };
 
+            String message = "Does the following fingerprint match the host " + sshman.getHost() + "?\n" + result;
+            if (mTrusted) {
+                message = "This host key is already trusted.\n\n" + message;
+            }
+
             AlertDialog.Builder builder = new AlertDialog.Builder(mContext, R.style.AppTheme);
-            builder.setMessage("Does the following fingerprint match the host?\n" + result);
+            builder.setMessage(message);
             builder.setPositiveButton("Yes", dialogClickListener);
             builder.setNegativeButton("No", dialogClickListener);
             builder.show();
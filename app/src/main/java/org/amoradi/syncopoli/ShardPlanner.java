@@ -0,0 +1,310 @@
+package org.amoradi.syncopoli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Splits the local sources of a profile into N shards of about the same cost,
+ * so each can be sent by its own rsync process with --files-from.
+ *
+ * The cost of a file is its size plus a fixed per-file overhead, since with
+ * many small files rsync's time goes into the file list and per-file round
+ * trips rather than into moving bytes. Directories that are too expensive to
+ * go into one shard are split into their children; the files directly inside
+ * such a directory are grouped into chunks.
+ *
+ * Sources are scanned with a ParallelWalker, as with many files the scan
+ * takes longer than the planning by far. What the profile's filter leaves
+ * out counts for nothing.
+ */
+public class ShardPlanner {
+    /* rough cost of one file in bytes-equivalent, regardless of size */
+    public static final long PER_FILE_COST = 16 * 1024;
+
+    /* a shard's share of the total is split further when a unit exceeds target / SPLIT_FACTOR */
+    private static final int SPLIT_FACTOR = 4;
+
+    /* Part of a source, relative to base, that goes into a single shard as a whole */
+    public static class Unit {
+        public String base;
+        public List<String> paths = new ArrayList<>();
+        public long cost;
+    }
+
+    public static class Shard {
+        public long cost;
+        public List<Unit> units = new ArrayList<>();
+
+        /* the units of this shard grouped by base, as one --files-from list each */
+        public List<Unit> getFileLists() {
+            List<Unit> lists = new ArrayList<>();
+
+            for (Unit u : units) {
+                Unit list = null;
+                for (Unit l : lists) {
+                    if (l.base.equals(u.base)) {
+                        list = l;
+                        break;
+                    }
+                }
+
+                if (list == null) {
+                    list = new Unit();
+                    list.base = u.base;
+                    lists.add(list);
+                }
+
+                list.paths.addAll(u.paths);
+                list.cost += u.cost;
+            }
+
+            return lists;
+        }
+    }
+
+    private ParallelWalker.Filter mFilter;
+
+    private static class DirNode {
+        File dir;
+        String rel;
+        long cost;
+        List<DirNode> subdirs = new ArrayList<>();
+    }
+
+    /* a source with a trailing slash sends its contents, otherwise the directory itself */
+    public static String getBase(String source) {
+        if (source.endsWith("/")) {
+            return source;
+        }
+
+        String parent = new File(source).getParent();
+        if (parent == null) {
+            return "/";
+        }
+
+        return parent;
+    }
+
+    static String getRelative(String source) {
+        if (source.endsWith("/")) {
+            return "";
+        }
+
+        return new File(source).getName();
+    }
+
+    /* the filter rsync is given, or null */
+    public void setFilter(ParallelWalker.Filter filter) {
+        mFilter = filter;
+    }
+
+    public List<Shard> plan(String[] sources, int n) throws IOException, InterruptedException {
+        List<DirNode> roots = new ArrayList<>();
+        List<String> bases = new ArrayList<>();
+        long total = 0;
+
+        for (String s : sources) {
+            File f = new File(s);
+            if (!f.exists()) {
+                throw new IOException("Source does not exist: " + s);
+            }
+
+            DirNode root = scan(f, getRelative(s));
+            if (root == null) {
+                continue;
+            }
+
+            roots.add(root);
+            bases.add(getBase(s));
+            total += root.cost;
+        }
+
+        long target = Math.max(1, total / n / SPLIT_FACTOR);
+
+        List<Unit> units = new ArrayList<>();
+        for (int i = 0; i < roots.size(); i++) {
+            split(roots.get(i), bases.get(i), target, units);
+        }
+
+        return assign(units, n);
+    }
+
+    /* longest processing time first: biggest unit to the currently cheapest shard */
+    private static List<Shard> assign(List<Unit> units, int n) {
+        Collections.sort(units, new Comparator<Unit>() {
+            @Override
+            public int compare(Unit a, Unit b) {
+                return a.cost < b.cost ? 1 : (a.cost > b.cost ? -1 : 0);
+            }
+        });
+
+        List<Shard> shards = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            shards.add(new Shard());
+        }
+
+        for (Unit u : units) {
+            Shard cheapest = shards.get(0);
+            for (Shard s : shards) {
+                if (s.cost < cheapest.cost) {
+                    cheapest = s;
+                }
+            }
+
+            cheapest.units.add(u);
+            cheapest.cost += u.cost;
+        }
+
+        List<Shard> used = new ArrayList<>();
+        for (Shard s : shards) {
+            if (!s.units.isEmpty()) {
+                used.add(s);
+            }
+        }
+
+        return used;
+    }
+
+    private void split(DirNode node, String base, long target, List<Unit> units) {
+        if (node.cost <= target || !node.dir.isDirectory() || isSymlink(node.dir)) {
+            Unit u = new Unit();
+            u.base = base;
+            u.paths.add(node.rel.equals("") ? "." : node.rel);
+            u.cost = node.cost;
+            units.add(u);
+            return;
+        }
+
+        for (DirNode sub : node.subdirs) {
+            split(sub, base, target, units);
+        }
+
+        /* files directly in node, in chunks of about target */
+        File[] files = node.dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files);
+
+        Unit chunk = null;
+        for (File f : files) {
+            if (f.isDirectory() && !isSymlink(f)) {
+                continue;
+            }
+
+            if (mFilter != null && mFilter.excludes(join(node.rel, f.getName()), f.isDirectory())) {
+                continue;
+            }
+
+            if (chunk == null) {
+                chunk = new Unit();
+                chunk.base = base;
+            }
+
+            chunk.paths.add(join(node.rel, f.getName()));
+            chunk.cost += f.length() + PER_FILE_COST;
+
+            if (chunk.cost >= target) {
+                units.add(chunk);
+                chunk = null;
+            }
+        }
+
+        if (chunk != null) {
+            units.add(chunk);
+        }
+    }
+
+    /* null if the filter leaves out f as a whole */
+    private DirNode scan(File f, String rel) throws InterruptedException {
+        if (mFilter != null && !rel.equals("") && mFilter.excludes(rel, f.isDirectory())) {
+            return null;
+        }
+
+        if (!f.isDirectory() || isSymlink(f)) {
+            DirNode node = new DirNode();
+            node.dir = f;
+            node.rel = rel;
+            node.cost = f.length() + PER_FILE_COST;
+            return node;
+        }
+
+        // every directory by rel, each with the cost of what is directly in it
+        final Map<String, DirNode> nodes = new HashMap<>();
+        ParallelWalker walker = new ParallelWalker();
+        walker.setFilter(mFilter);
+        walker.walk(f, rel, new ParallelWalker.DirectoryListener() {
+            @Override
+            public void onDirectory(String rel, File dir) {
+                DirNode node = new DirNode();
+                node.dir = dir;
+                node.rel = rel;
+                node.cost = PER_FILE_COST;
+
+                synchronized (nodes) {
+                    nodes.put(rel, node);
+                }
+            }
+
+            @Override
+            public void onFile(String rel, File file, long size, long mtime) {
+                synchronized (nodes) {
+                    nodes.get(getParent(rel)).cost += size + PER_FILE_COST;
+                }
+            }
+        });
+
+        // deepest first, so a directory is complete before it is added to its parent
+        List<DirNode> sorted = new ArrayList<>(nodes.values());
+        Collections.sort(sorted, new Comparator<DirNode>() {
+            @Override
+            public int compare(DirNode a, DirNode b) {
+                return b.rel.compareTo(a.rel);
+            }
+        });
+
+        for (DirNode node : sorted) {
+            if (node.rel.equals(rel)) {
+                continue;
+            }
+
+            DirNode parent = nodes.get(getParent(node.rel));
+            parent.subdirs.add(0, node);
+            parent.cost += node.cost;
+        }
+
+        return nodes.get(rel);
+    }
+
+    private static String getParent(String rel) {
+        int slash = rel.lastIndexOf('/');
+        return slash < 0 ? "" : rel.substring(0, slash);
+    }
+
+    private static String join(String rel, String name) {
+        if (rel.equals("")) {
+            return name;
+        }
+
+        return rel + "/" + name;
+    }
+
+    /* rsync copies symlinks as links (-l), so they must not be followed */
+    static boolean isSymlink(File f) {
+        try {
+            File parent = f.getParentFile();
+            File canonical = parent == null ? f : new File(parent.getCanonicalFile(), f.getName());
+            return !canonical.getCanonicalFile().equals(canonical.getAbsoluteFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package org.amoradi.syncopoli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+/*
+ * Snapshots of an outgoing profile (BackupItem.snapshots): each run goes to
+ * a new directory in the destination, named by its time, with files that
+ * didn't change hard linked to the previous one (rsync --link-dest), so a
+ * snapshot only takes the space of what changed. rsync writes to
+ * .incomplete, which a failed run leaves for the next one to carry on
+ * with; once it's done the directory gets its name, the symlink latest
+ * points to it, and the snapshots the retention doesn't keep are removed,
+ * all in one ssh command.
+ *
+ * The retention is like "24h 7d 4w": the newest snapshot of each of the
+ * last 24 hours, 7 days and 4 weeks that have one. The newest snapshot and
+ * the one just made are always kept. Names are in UTC, so a change of time
+ * zone or daylight saving time can't reorder them.
+ */
+public class Snapshots {
+    static final String LATEST = "latest";
+    static final String INCOMPLETE = ".incomplete";
+
+    private static final String NAME_FORMAT = "yyyy-MM-dd_HHmmss";
+
+    /* how many hourly, daily and weekly snapshots to keep */
+    static class Retention {
+        int hourly = 0;
+        int daily = 0;
+        int weekly = 0;
+    }
+
+    /* spec as in the profile, IllegalArgumentException if it can't be read */
+    static Retention parseRetention(String spec) {
+        Retention r = new Retention();
+
+        for (String s : spec.trim().split("[,\\s]+")) {
+            if (s.length() < 2) {
+                throw new IllegalArgumentException("Can't read snapshot retention '" + spec + "', it should be like 24h 7d 4w");
+            }
+
+            int n;
+            try {
+                n = Integer.parseInt(s.substring(0, s.length() - 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Can't read snapshot retention '" + spec + "', it should be like 24h 7d 4w");
+            }
+
+            switch (Character.toLowerCase(s.charAt(s.length() - 1))) {
+                case 'h':
+                    r.hourly = n;
+                    break;
+                case 'd':
+                    r.daily = n;
+                    break;
+                case 'w':
+                    r.weekly = n;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Can't read snapshot retention '" + spec + "', it should be like 24h 7d 4w");
+            }
+        }
+
+        return r;
+    }
+
+    static String getName(long time) {
+        SimpleDateFormat f = new SimpleDateFormat(NAME_FORMAT, Locale.ENGLISH);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f.format(new Date(time));
+    }
+
+    /* time of a snapshot name, read as UTC so days and hours stay as named; -1 if it isn't one */
+    static long parseName(String name) {
+        if (!name.matches("\\d{4}-\\d{2}-\\d{2}_\\d{6}")) {
+            return -1;
+        }
+
+        SimpleDateFormat f = new SimpleDateFormat(NAME_FORMAT, Locale.ENGLISH);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        f.setLenient(false);
+
+        try {
+            return f.parse(name).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /* the newest of names in each of the last n periods that have one */
+    private static void keep(List<String> newestFirst, long period, long offset, int n, Set<String> kept) {
+        long last = Long.MIN_VALUE;
+        int count = 0;
+
+        for (String name : newestFirst) {
+            if (count >= n) {
+                break;
+            }
+
+            long bucket = (parseName(name) + offset) / period;
+            if (bucket != last) {
+                kept.add(name);
+                last = bucket;
+                count++;
+            }
+        }
+    }
+
+    /*
+     * The snapshots of names that r doesn't keep, oldest first. current, the
+     * one just made, is kept even if the clock went back and it isn't the
+     * newest.
+     */
+    static List<String> getExpired(List<String> names, String current, Retention r) {
+        List<String> snapshots = new ArrayList<>();
+        for (String name : names) {
+            if (parseName(name) >= 0) {
+                snapshots.add(name);
+            }
+        }
+
+        // names sort by time
+        Collections.sort(snapshots, Collections.reverseOrder());
+
+        Set<String> kept = new HashSet<>();
+        kept.add(current);
+        if (!snapshots.isEmpty()) {
+            kept.add(snapshots.get(0));
+        }
+
+        long hour = 60 * 60 * 1000L;
+        keep(snapshots, hour, 0, r.hourly, kept);
+        keep(snapshots, 24 * hour, 0, r.daily, kept);
+        // weeks from Monday, 1970-01-01 was a Thursday
+        keep(snapshots, 7 * 24 * hour, 3 * 24 * hour, r.weekly, kept);
+
+        List<String> expired = new ArrayList<>();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            if (!kept.contains(snapshots.get(i))) {
+                expired.add(snapshots.get(i));
+            }
+        }
+
+        return expired;
+    }
+
+    private static String join(String destination, String name) {
+        if (destination.equals("")) {
+            return name;
+        }
+
+        return destination.endsWith("/") ? destination + name : destination + "/" + name;
+    }
+
+    /* b as rsync sends it: into the snapshot being made */
+    public static BackupItem getIncomplete(BackupItem b) {
+        BackupItem item = new BackupItem(b);
+        item.destination = join(b.destination, INCOMPLETE);
+        return item;
+    }
+
+    /* b as the latest snapshot has it, to compare against */
+    public static BackupItem getLatest(BackupItem b) {
+        BackupItem item = new BackupItem(b);
+        item.destination = join(b.destination, LATEST);
+        return item;
+    }
+
+    /* destination as the remote shell should see it */
+    private static String getDestination(BackupItem b) {
+        return b.destination.equals("") ? "." : RemoteWatcher.quoteSource(b.destination);
+    }
+
+    /*
+     * Shell command that names the finished snapshot, points latest to it
+     * and removes the expired ones. It fails if a snapshot of that name is
+     * already there, which mv would move it into. mv -T swaps the link in
+     * one step where there is one, else it is removed and made again.
+     */
+    static String getFinishScript(String destination, String name, List<String> expired) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("cd ").append(destination)
+                .append(" && test ! -e ").append(name).append(" && test ! -L ").append(name)
+                .append(" && mv ").append(INCOMPLETE).append(' ').append(name)
+                .append(" && rm -f .latest.new && ln -s ").append(name).append(" .latest.new")
+                .append(" && { mv -Tf .latest.new ").append(LATEST).append(" 2>/dev/null || { rm -f ").append(LATEST)
+                .append(" && mv .latest.new ").append(LATEST).append("; }; }");
+
+        if (!expired.isEmpty()) {
+            sb.append(" && rm -rf --");
+            for (String e : expired) {
+                sb.append(' ').append(RootShell.quote(e));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static int runRemote(RsyncCommand cmd, String command, OutputStream out) throws IOException, InterruptedException {
+        List<String> args = cmd.getSshArgs();
+        args.add(cmd.login);
+        args.add(command);
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.directory(cmd.directory);
+        pb.environment().putAll(cmd.env);
+        pb.redirectErrorStream(true);
+
+        Process p = pb.start();
+        p.getOutputStream().close();
+
+        InputStream in = p.getInputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+
+        return p.waitFor();
+    }
+
+    /*
+     * Make the destination of b on the server cmd logs in to if it's missing
+     * and add the names in it to names. Returns the exit code of ssh.
+     */
+    public int list(BackupItem b, RsyncCommand cmd, List<String> names, OutputStream log) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int ret = runRemote(cmd, "mkdir -p " + getDestination(b) + " && cd " + getDestination(b) + " && ls -A", out);
+
+        if (ret != 0) {
+            log.write(("Could not look at the snapshots (error code " + ret + ")\n").getBytes());
+            log.write(out.toByteArray());
+            log.write("\n".getBytes());
+            return ret;
+        }
+
+        for (String name : out.toString("UTF-8").split("\n")) {
+            if (!name.trim().equals("")) {
+                names.add(name.trim());
+            }
+        }
+
+        if (names.contains(INCOMPLETE)) {
+            log.write("Carrying on with the snapshot a failed run left\n".getBytes());
+        }
+
+        return 0;
+    }
+
+    /*
+     * Finish the snapshot rsync made of b at time, then remove what
+     * retention r doesn't keep of it and existing (see list()). Returns the
+     * exit code of ssh.
+     */
+    public int finish(BackupItem b, RsyncCommand cmd, long time, List<String> existing, Retention r, OutputStream log) throws IOException, InterruptedException {
+        String name = getName(time);
+        List<String> names = new ArrayList<>(existing);
+        names.add(name);
+        List<String> expired = getExpired(names, name, r);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int ret = runRemote(cmd, getFinishScript(getDestination(b), name, expired), out);
+        log.write(out.toByteArray());
+
+        if (ret != 0) {
+            log.write(("\nCould not finish snapshot " + name + " (error code " + ret + ")\n").getBytes());
+            return ret;
+        }
+
+        log.write(("\nSnapshot " + name + " is now " + LATEST + "\n").getBytes());
+        if (!expired.isEmpty()) {
+            log.write(("Removed " + expired.size() + " old snapshots: " + expired + "\n").getBytes());
+        }
+
+        return 0;
+    }
+}
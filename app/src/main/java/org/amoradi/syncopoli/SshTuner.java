@@ -0,0 +1,360 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Finds the fastest secure cipher and MAC of the bundled dropbear on this
+ * device, by timing data sent through ssh to "cat > /dev/null" on a server
+ * with each of them. On slow ARM cores encryption, not the network, limits
+ * ssh throughput, and dropbear otherwise just takes the first algorithm both
+ * sides know.
+ *
+ * The result is kept per device and ssh binary, as the preferred order of
+ * ciphers and MACs, so a server lacking the fastest one still negotiates
+ * the next. Ciphers or MACs set for a server replace it.
+ */
+public class SshTuner {
+    private static final String TAG = "Syncopoli";
+
+    /* only these are ever chosen, whatever else dropbear was built with */
+    static final String[] SECURE_CIPHERS = {
+        "chacha20-poly1305@openssh.com",
+        "aes128-gcm@openssh.com",
+        "aes256-gcm@openssh.com",
+        "aes128-ctr",
+        "aes192-ctr",
+        "aes256-ctr"
+    };
+
+    static final String[] SECURE_MACS = {
+        "hmac-sha2-256",
+        "hmac-sha2-512",
+        "hmac-sha1"
+    };
+
+    /* sent with every algorithm; the first MB isn't timed, it covers login */
+    private static final int PAYLOAD = 16 * 1024 * 1024;
+    private static final int UNTIMED = 1024 * 1024;
+
+    /* below this difference between fastest and slowest the link is what limits */
+    private static final double MIN_GAIN = 1.1;
+
+    private static final String PREF_CIPHERS = "SshCiphers";
+    private static final String PREF_MACS = "SshMacs";
+    private static final String PREF_DEVICE = "SshTunedDevice";
+
+    private Context mContext;
+    private File mSsh;
+
+    public SshTuner(Context ctx) {
+        mContext = ctx;
+        mSsh = new File(ctx.getFilesDir(), "ssh");
+    }
+
+    /* identifies this device and ssh binary, the results only hold for both */
+    private String getDevice() {
+        return Build.CPU_ABI + "/" + Build.MODEL + "/" + mSsh.length();
+    }
+
+    /* AEAD ciphers authenticate themselves, no MAC is used with them */
+    static boolean isAead(String cipher) {
+        return cipher.startsWith("chacha20-") || cipher.contains("-gcm");
+    }
+
+    /* names from the output of "ssh -c help" or "ssh -m help" */
+    static List<String> parseHelp(String output) {
+        List<String> names = new ArrayList<>();
+        boolean list = false;
+
+        for (String line : output.split("\n")) {
+            if (line.contains("Available")) {
+                list = true;
+                line = line.substring(line.indexOf(':') + 1);
+            }
+
+            if (!list) {
+                continue;
+            }
+
+            for (String name : line.trim().split("[,\\s]+")) {
+                if (!name.equals("")) {
+                    names.add(name);
+                }
+            }
+        }
+
+        return names;
+    }
+
+    /* entries of secure that available has, in the order of secure */
+    static List<String> filterSecure(List<String> available, String[] secure) {
+        List<String> names = new ArrayList<>();
+        for (String s : secure) {
+            if (available.contains(s)) {
+                names.add(s);
+            }
+        }
+
+        return names;
+    }
+
+    private List<String> listAvailable(String flag) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(mSsh.getAbsolutePath(), flag, "help");
+        pb.redirectErrorStream(true);
+        pb.environment().put("HOME", mContext.getFilesDir().getAbsolutePath());
+
+        Process p = pb.start();
+        StringBuilder out = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            out.append(line).append('\n');
+        }
+        reader.close();
+
+        try {
+            p.waitFor();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+
+        return parseHelp(out.toString());
+    }
+
+    /* ssh arguments for server without the algorithms, as rsync would run it */
+    private List<String> getSshArgs(Server server) {
+        List<String> args = new ArrayList<>();
+        args.add(mSsh.getAbsolutePath());
+        args.add("-p");
+        args.add(server.port);
+
+        if (!server.privateKey.equals("")) {
+            args.add("-i");
+            args.add(server.privateKey);
+        }
+
+        return args;
+    }
+
+    /* bytes/s sent through ssh to server with cipher and mac (null for none), -1 if it failed */
+    private long measure(Server server, String cipher, String mac) throws IOException {
+        List<String> args = getSshArgs(server);
+        args.add("-c");
+        args.add(cipher);
+        if (mac != null) {
+            args.add("-m");
+            args.add(mac);
+        }
+        args.add(server.username + "@" + server.address);
+        args.add("cat > /dev/null");
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.redirectErrorStream(true);
+        pb.environment().put("HOME", mContext.getFilesDir().getAbsolutePath());
+        if (server.privateKey.equals("") && !server.sshPassword.equals("")) {
+            pb.environment().put("DROPBEAR_PASSWORD", server.sshPassword);
+        }
+
+        final Process p = pb.start();
+
+        // drain output so ssh never blocks on it
+        Thread drain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = p.getInputStream();
+                    byte[] buf = new byte[4096];
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        Log.d(TAG, "ssh: " + new String(buf, 0, n).trim());
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "ssh output closed: " + e.toString());
+                }
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+
+        byte[] buf = new byte[64 * 1024];
+        long start = 0;
+        OutputStream out = p.getOutputStream();
+
+        try {
+            for (int sent = 0; sent < PAYLOAD; sent += buf.length) {
+                out.write(buf);
+                if (sent + buf.length == UNTIMED) {
+                    start = System.nanoTime();
+                }
+            }
+            out.close();
+            p.waitFor();
+        } catch (IOException e) {
+            Log.d(TAG, "ssh with " + cipher + "/" + mac + " failed: " + e.toString());
+            p.destroy();
+            return -1;
+        } catch (InterruptedException e) {
+            p.destroy();
+            throw new IOException("Interrupted");
+        }
+
+        if (p.exitValue() != 0 || start == 0) {
+            return -1;
+        }
+
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        return (PAYLOAD - UNTIMED) * 1000L * 1000 * 1000 / elapsed;
+    }
+
+    /*
+     * Time the secure algorithms against server and keep the order found.
+     * The MAC is picked first with a non-AEAD cipher, then every cipher is
+     * timed with it, so a tuning costs one login per algorithm rather than
+     * per combination. Returns a summary for the user.
+     */
+    public String tune(Server server) throws IOException {
+        if (!mSsh.exists()) {
+            throw new IOException("ssh binary missing");
+        }
+
+        List<String> ciphers = filterSecure(listAvailable("-c"), SECURE_CIPHERS);
+        List<String> macs = filterSecure(listAvailable("-m"), SECURE_MACS);
+        if (ciphers.isEmpty()) {
+            throw new IOException("ssh offers none of the known secure ciphers");
+        }
+
+        String macCipher = null;
+        for (String c : ciphers) {
+            if (!isAead(c)) {
+                macCipher = c;
+                break;
+            }
+        }
+
+        final Map<String, Long> macRates = new HashMap<>();
+        if (macCipher != null) {
+            for (String m : macs) {
+                macRates.put(m, measure(server, macCipher, m));
+            }
+        }
+
+        List<String> macOrder = sortByRate(macs, macRates);
+        String mac = macOrder.isEmpty() || macRates.get(macOrder.get(0)) <= 0 ? null : macOrder.get(0);
+
+        final Map<String, Long> cipherRates = new HashMap<>();
+        for (String c : ciphers) {
+            if (!isAead(c) && mac == null) {
+                continue;
+            }
+
+            if (c.equals(macCipher) && mac != null) {
+                cipherRates.put(c, macRates.get(mac));
+            } else {
+                cipherRates.put(c, measure(server, c, isAead(c) ? null : mac));
+            }
+        }
+
+        List<String> cipherOrder = sortByRate(ciphers, cipherRates);
+        long best = cipherRates.containsKey(cipherOrder.get(0)) ? cipherRates.get(cipherOrder.get(0)) : -1;
+        if (best <= 0) {
+            throw new IOException("Could not send data to " + server + " with any cipher, see logcat");
+        }
+
+        long worst = best;
+        for (Long rate : cipherRates.values()) {
+            if (rate > 0) {
+                worst = Math.min(worst, rate);
+            }
+        }
+
+        StringBuilder summary = new StringBuilder();
+        for (String c : cipherOrder) {
+            Long rate = cipherRates.get(c);
+            if (rate != null && rate > 0) {
+                summary.append(String.format(Locale.ENGLISH, "%s: %s/s\n", c, TransferEstimator.formatSize(rate)));
+            }
+        }
+
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+
+        if (best < worst * MIN_GAIN) {
+            // the link limits, keep dropbear's own order
+            editor.remove(PREF_CIPHERS).remove(PREF_MACS).remove(PREF_DEVICE).apply();
+            return summary + "No cipher is clearly faster, keeping the default order.";
+        }
+
+        editor.putString(PREF_CIPHERS, join(cipherOrder))
+                .putString(PREF_MACS, join(macOrder))
+                .putString(PREF_DEVICE, getDevice())
+                .apply();
+
+        return summary + "Using " + cipherOrder.get(0) + (mac != null && !isAead(cipherOrder.get(0)) ? " with " + mac : "") + ".";
+    }
+
+    private static List<String> sortByRate(List<String> names, final Map<String, Long> rates) {
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long ra = rates.containsKey(a) ? rates.get(a) : -1;
+                long rb = rates.containsKey(b) ? rates.get(b) : -1;
+                return rb < ra ? -1 : (rb == ra ? 0 : 1);
+            }
+        });
+
+        return sorted;
+    }
+
+    private static String join(List<String> names) {
+        StringBuilder sb = new StringBuilder();
+        for (String n : names) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(n);
+        }
+
+        return sb.toString();
+    }
+
+    /*
+     * -c and -m arguments for ssh to server: the server's own setting, else
+     * the tuned order for this device, else nothing.
+     */
+    public List<String> getArgs(Server server) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        boolean tuned = getDevice().equals(prefs.getString(PREF_DEVICE, ""));
+
+        String ciphers = !server.ciphers.equals("") ? server.ciphers : (tuned ? prefs.getString(PREF_CIPHERS, "") : "");
+        String macs = !server.macs.equals("") ? server.macs : (tuned ? prefs.getString(PREF_MACS, "") : "");
+
+        List<String> args = new ArrayList<>();
+        if (!ciphers.equals("")) {
+            args.addAll(Arrays.asList("-c", ciphers));
+        }
+        if (!macs.equals("")) {
+            args.addAll(Arrays.asList("-m", macs));
+        }
+
+        return args;
+    }
+}
@@ -0,0 +1,260 @@
+package org.amoradi.syncopoli;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/*
+ * Long-lived dropbear connection forwarding a local port to the rsync daemon
+ * on the server, so consecutive rsync runs connect to localhost instead of
+ * each starting ssh, exchanging keys and logging in.
+ *
+ * Runs using the tunnel take a reference with acquire() and give it back with
+ * release(). The connection is checked before every run and reopened if it
+ * died, and closed once nobody has used it for IDLE_TIMEOUT.
+ */
+public class SshTunnel {
+    private static final String TAG = "Syncopoli";
+
+    public static final long IDLE_TIMEOUT = 60 * 1000;
+
+    /* how long to wait for the forward to come up */
+    private static final long CONNECT_TIMEOUT = 15 * 1000;
+
+    /* dropbear keepalive interval, seconds */
+    private static final String KEEPALIVE = "30";
+
+    private static final Map<String, SshTunnel> sTunnels = new HashMap<>();
+    private static final Timer sTimer = new Timer("SshTunnel", true);
+
+    private List<String> mArgs;
+    private Map<String, String> mEnv;
+    private File mDirectory;
+    private String mTarget;
+    private int mRemotePort;
+
+    private int mLocalPort = 0;
+    private Process mProcess;
+    private int mUsers = 0;
+    private TimerTask mIdleTask;
+
+    private SshTunnel(List<String> args, Map<String, String> env, File directory, String target, int remotePort) {
+        mArgs = args;
+        mEnv = env;
+        mDirectory = directory;
+        mTarget = target;
+        mRemotePort = remotePort;
+    }
+
+    /*
+     * Tunnel to the rsync daemon listening on remotePort on the server. sshArgs
+     * is the ssh command without destination, e.g. {ssh, -p, 22, -i, key}.
+     */
+    public static SshTunnel get(List<String> sshArgs, Map<String, String> env, File directory, String target, int remotePort) {
+        String key = sshArgs.toString() + " " + target + ":" + remotePort;
+
+        synchronized (sTunnels) {
+            SshTunnel t = sTunnels.get(key);
+            if (t == null) {
+                t = new SshTunnel(new ArrayList<>(sshArgs), new HashMap<>(env), directory, target, remotePort);
+                sTunnels.put(key, t);
+            }
+
+            return t;
+        }
+    }
+
+    /* close the tunnels nobody holds now, rather than when they time out */
+    public static void closeIdle() {
+        synchronized (sTunnels) {
+            for (SshTunnel t : sTunnels.values()) {
+                t.closeIfIdle();
+            }
+        }
+    }
+
+    private synchronized void closeIfIdle() {
+        if (mUsers == 0) {
+            close();
+        }
+    }
+
+    public synchronized int getLocalPort() {
+        return mLocalPort;
+    }
+
+    /* make sure the tunnel is up and keep it open until release() */
+    public synchronized void acquire() throws IOException {
+        if (mIdleTask != null) {
+            mIdleTask.cancel();
+            mIdleTask = null;
+        }
+
+        ensureOpen();
+        mUsers++;
+    }
+
+    public synchronized void release() {
+        if (mUsers > 0) {
+            mUsers--;
+        }
+
+        if (mUsers > 0 || mProcess == null) {
+            return;
+        }
+
+        mIdleTask = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (SshTunnel.this) {
+                    if (mUsers == 0) {
+                        Log.d(TAG, "Closing idle tunnel to " + mTarget);
+                        close();
+                    }
+                }
+            }
+        };
+        sTimer.schedule(mIdleTask, IDLE_TIMEOUT);
+    }
+
+    /* open the tunnel if it isn't, or if it stopped answering; doesn't take a reference */
+    public synchronized void ensureOpen() throws IOException {
+        if (mProcess != null && isHealthy()) {
+            return;
+        }
+
+        close();
+        open();
+    }
+
+    public synchronized void close() {
+        if (mIdleTask != null) {
+            mIdleTask.cancel();
+            mIdleTask = null;
+        }
+
+        if (mProcess != null) {
+            mProcess.destroy();
+            mProcess = null;
+        }
+    }
+
+    private boolean isRunning() {
+        try {
+            mProcess.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /* the forward is up and the daemon behind it greets us */
+    private boolean isHealthy() {
+        if (!isRunning()) {
+            return false;
+        }
+
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress("127.0.0.1", mLocalPort), 2000);
+            s.setSoTimeout(5000);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            String greeting = reader.readLine();
+            return greeting != null && greeting.startsWith("@RSYNCD:");
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close tunnel probe: " + e.toString());
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        // keep the port across reopens, commands already built refer to it
+        if (mLocalPort == 0) {
+            ServerSocket ss = new ServerSocket(0);
+            mLocalPort = ss.getLocalPort();
+            ss.close();
+        }
+
+        List<String> args = new ArrayList<>(mArgs);
+        args.add("-N");
+        args.add("-K");
+        args.add(KEEPALIVE);
+        args.add("-L");
+        args.add("127.0.0.1:" + mLocalPort + ":127.0.0.1:" + mRemotePort);
+        args.add(mTarget);
+
+        Log.d(TAG, "tunnel exec: " + args.toString());
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.directory(mDirectory);
+        pb.redirectErrorStream(true);
+        pb.environment().putAll(mEnv);
+
+        mProcess = pb.start();
+
+        // drain dropbear's output so it can never block on a full pipe
+        final Process p = mProcess;
+        final StringBuilder output = new StringBuilder();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                String line;
+                try {
+                    while ((line = r.readLine()) != null) {
+                        Log.v(TAG, "tunnel: " + line);
+                        synchronized (output) {
+                            output.append(line).append("\n");
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "Tunnel output closed: " + e.toString());
+                }
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (!isRunning()) {
+                break;
+            }
+
+            if (isHealthy()) {
+                Log.d(TAG, "Tunnel to " + mTarget + " open on port " + mLocalPort);
+                return;
+            }
+
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        close();
+
+        synchronized (output) {
+            throw new IOException("Could not open tunnel to rsync daemon on " + mTarget + ":" + mRemotePort + "\n" + output);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.amoradi.syncopoli;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/*
+ * Regular files as a tar stream (POSIX ustar), for tar -x on the server.
+ * Names that don't fit the ustar name and prefix fields get a pax header
+ * ahead of them, sizes of 8 GiB and up are written in base-256 as GNU tar
+ * does; GNU and busybox tar read both. Leading directories aren't written,
+ * tar creates them when extracting.
+ *
+ * A file is written with the size it had when listed. If it shrank since it
+ * is padded with zeros, if it grew the rest is left out; either way its
+ * time differs on the server and rsync sends it again.
+ */
+public class TarWriter {
+    static final int BLOCK = 512;
+
+    /* largest size the 11 octal digits of a ustar header hold */
+    static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[64 * 1024];
+    private long mWritten = 0;
+
+    public TarWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    /* bytes written so far, headers and padding included */
+    public long getWritten() {
+        return mWritten;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String s = Long.toOctalString(value);
+        // digits, then a NUL
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int k = s.length() - digits + i;
+            header[offset + i] = (byte) (k < 0 ? '0' : s.charAt(k));
+        }
+        header[offset + digits] = 0;
+    }
+
+    private static void putBase256(byte[] header, int offset, int length, long value) {
+        for (int i = length - 1; i > 0; i--) {
+            header[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+        header[offset] = (byte) 0x80;
+    }
+
+    private static void putBytes(byte[] header, int offset, byte[] value) {
+        System.arraycopy(value, 0, header, offset, value.length);
+    }
+
+    /*
+     * Index in name (UTF-8) of the slash to split it at into ustar prefix
+     * and name, -1 if it fits the name field whole, -2 if it can't be split.
+     */
+    static int getSplit(byte[] name) {
+        if (name.length <= 100) {
+            return -1;
+        }
+
+        for (int i = Math.min(name.length - 2, 155); i >= 0; i--) {
+            if (name[i] == '/' && name.length - i - 1 <= 100) {
+                return i;
+            }
+        }
+
+        return -2;
+    }
+
+    /* a pax record, whose length counts its own digits */
+    static String getPaxRecord(String key, String value) {
+        int rest = utf8(" " + key + "=" + value + "\n").length;
+        int len = rest + 1;
+        while (Integer.toString(len).length() + rest != len) {
+            len = Integer.toString(len).length() + rest;
+        }
+
+        return len + " " + key + "=" + value + "\n";
+    }
+
+    static byte[] getHeader(byte[] name, long size, long mtime, int mode, char type) {
+        byte[] header = new byte[BLOCK];
+
+        int split = getSplit(name);
+        if (split < 0) {
+            putBytes(header, 0, Arrays.copyOf(name, Math.min(name.length, 100)));
+        } else {
+            putBytes(header, 345, Arrays.copyOfRange(name, 0, split));
+            putBytes(header, 0, Arrays.copyOfRange(name, split + 1, name.length));
+        }
+
+        putOctal(header, 100, 8, mode);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+
+        if (size > MAX_OCTAL_SIZE) {
+            putBase256(header, 124, 12, size);
+        } else {
+            putOctal(header, 124, 12, size);
+        }
+
+        putOctal(header, 136, 12, Math.max(0, mtime));
+        header[156] = (byte) type;
+        putBytes(header, 257, utf8("ustar"));
+        header[263] = '0';
+        header[264] = '0';
+
+        // the checksum is taken with its own field as spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        putOctal(header, 148, 7, sum);
+        header[155] = ' ';
+
+        return header;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        mOut.write(b, off, len);
+        mWritten += len;
+    }
+
+    private void pad(long size) throws IOException {
+        int rest = (int) (size % BLOCK);
+        if (rest != 0) {
+            write(new byte[BLOCK - rest], 0, BLOCK - rest);
+        }
+    }
+
+    /* add f as name, size bytes long, mtime in ms */
+    public void putFile(String name, File f, long size, long mtime, boolean executable) throws IOException {
+        // before anything is written, a file that can't be read is left out
+        InputStream in = new FileInputStream(f);
+        try {
+            putFile(name, in, size, mtime, executable);
+        } finally {
+            in.close();
+        }
+    }
+
+    /* add data as name, mtime in ms */
+    public void putData(String name, byte[] data, long mtime) throws IOException {
+        putFile(name, new ByteArrayInputStream(data), data.length, mtime, false);
+    }
+
+    private void putFile(String name, InputStream in, long size, long mtime, boolean executable) throws IOException {
+        byte[] n = utf8(name);
+
+        if (getSplit(n) == -2) {
+            byte[] pax = utf8(getPaxRecord("path", name));
+            byte[] paxName = utf8("PaxHeaders/" + name.substring(name.lastIndexOf('/') + 1));
+            write(getHeader(Arrays.copyOf(paxName, Math.min(paxName.length, 100)), pax.length, mtime / 1000, 0644, 'x'), 0, BLOCK);
+            write(pax, 0, pax.length);
+            pad(pax.length);
+            n = Arrays.copyOf(n, 100);
+        }
+
+        write(getHeader(n, size, mtime / 1000, executable ? 0755 : 0644, '0'), 0, BLOCK);
+
+        long left = size;
+        while (left > 0) {
+            int r = in.read(mBuffer, 0, (int) Math.min(mBuffer.length, left));
+            if (r < 0) {
+                break;
+            }
+            write(mBuffer, 0, r);
+            left -= r;
+        }
+
+        // shrank while being read
+        Arrays.fill(mBuffer, (byte) 0);
+        while (left > 0) {
+            int r = (int) Math.min(mBuffer.length, left);
+            write(mBuffer, 0, r);
+            left -= r;
+        }
+
+        pad(size);
+    }
+
+    /* end of archive: two empty blocks */
+    public void finish() throws IOException {
+        write(new byte[2 * BLOCK], 0, 2 * BLOCK);
+        mOut.flush();
+    }
+}
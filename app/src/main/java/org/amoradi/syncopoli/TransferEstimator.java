@@ -0,0 +1,299 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Works out what a run of a profile would transfer by running it with
+ * --dry-run --stats. Plans are cached for a short while, since making one
+ * costs a full file list exchange with the server; checks that run before
+ * every sync make do with the profile's recent runs where they can (see
+ * getRecentSize()).
+ */
+public class TransferEstimator {
+    private static final String TAG = "Syncopoli";
+
+    public static final long PLAN_TTL = 10 * 60 * 1000;
+
+    /* room left over on the destination for rsync's temporary files */
+    public static final long FREE_SPACE_MARGIN = 16 * 1024 * 1024;
+
+    /* runs looked at to work out the usual throughput */
+    private static final int THROUGHPUT_RUNS = 5;
+
+    /* runs moving less than this say more about latency than throughput */
+    private static final long THROUGHPUT_MIN_BYTES = 1024 * 1024;
+
+    /* successful runs this recent stand in for a dry run */
+    public static final long RECENT_TTL = 24 * 60 * 60 * 1000;
+
+    /* runs looked at for the size of the next one and for what compression saves */
+    private static final int RECENT_RUNS = 5;
+
+    public static class Plan {
+        public long created;
+        public long files;
+        public long filesTransferred;
+        public long totalSize;
+        public long transferredSize;
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() - created < PLAN_TTL;
+        }
+    }
+
+    private static final Map<String, Plan> sPlans = new HashMap<>();
+
+    private Context mContext;
+    private BackupHandler mHandler;
+
+    public TransferEstimator(Context ctx, BackupHandler handler) {
+        mContext = ctx;
+        mHandler = handler;
+    }
+
+    /* a plan stays valid only as long as the profile it was made for is unchanged */
+    private static String getKey(BackupItem b) {
+        return b.name + "\n" + b.direction + "\n" + b.getSourcesAsString() + "\n" + b.destination + "\n" + b.rsync_options + "\n" + b.filters;
+    }
+
+    static void putPlan(BackupItem b, Plan p) {
+        synchronized (sPlans) {
+            sPlans.put(getKey(b), p);
+        }
+    }
+
+    public static Plan getCachedPlan(BackupItem b) {
+        synchronized (sPlans) {
+            Plan p = sPlans.get(getKey(b));
+            if (p != null && p.isFresh()) {
+                return p;
+            }
+
+            return null;
+        }
+    }
+
+    public static void invalidate(BackupItem b) {
+        synchronized (sPlans) {
+            sPlans.remove(getKey(b));
+        }
+    }
+
+    /* cached plan for b, or a new one from a dry run; null if the dry run fails */
+    public Plan getPlan(BackupItem b) {
+        // chunks don't go through rsync, a dry run says nothing about them
+        if (b.engine != BackupItem.Engine.RSYNC) {
+            return null;
+        }
+
+        Plan p = getCachedPlan(b);
+        if (p != null) {
+            return p;
+        }
+
+        RsyncCommand cmd = new RsyncCommand();
+        RsyncStats stats = new RsyncStats();
+        int ret;
+
+        try {
+            // a snapshot run sends what differs from the latest snapshot
+            if (mHandler.buildRsyncCommand(b.hasSnapshots() ? Snapshots.getLatest(b) : b, cmd, new LogOutputStream()) != 0) {
+                return null;
+            }
+
+            cmd.options.add("--dry-run");
+            cmd.options.add("--stats");
+
+            ret = mHandler.runRsync(cmd, null, stats);
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Dry run of " + b.name + " failed: " + e.toString());
+            return null;
+        }
+
+        if (ret != 0 || stats.transferredSize < 0) {
+            Log.e(TAG, "Dry run of " + b.name + " failed with error code " + ret);
+            return null;
+        }
+
+        p = new Plan();
+        p.created = System.currentTimeMillis();
+        p.files = Math.max(0, stats.files);
+        p.filesTransferred = Math.max(0, stats.filesTransferred);
+        p.totalSize = Math.max(0, stats.totalSize);
+        p.transferredSize = stats.transferredSize;
+
+        putPlan(b, p);
+
+        return p;
+    }
+
+    /*
+     * File bytes the next run of b will transfer, going by the largest of its
+     * successful runs in the last RECENT_TTL; -1 if it has none.
+     */
+    public long getRecentSize(BackupItem b) {
+        return getRecentSize(new RunHistory(mContext).getRuns(b.name, RECENT_RUNS), System.currentTimeMillis());
+    }
+
+    static long getRecentSize(List<RunHistory.Run> runs, long now) {
+        long size = -1;
+
+        for (RunHistory.Run r : runs) {
+            if (r.exitCode == 0 && now - r.start < RECENT_TTL) {
+                size = Math.max(size, r.transferredSize);
+            }
+        }
+
+        return size;
+    }
+
+    /*
+     * Bytes on the wire for transferring size bytes of files, scaled by what
+     * compression and the delta algorithm saved on the profile's recent runs
+     * (overhead included). Without such runs it is size itself.
+     */
+    public long getWireBytes(BackupItem b, long size) {
+        return getWireBytes(new RunHistory(mContext).getRuns(b.name, RECENT_RUNS), size);
+    }
+
+    static long getWireBytes(List<RunHistory.Run> runs, long size) {
+        long wire = 0;
+        long files = 0;
+
+        for (RunHistory.Run r : runs) {
+            if (r.exitCode != 0 || r.transferredSize < THROUGHPUT_MIN_BYTES) {
+                continue;
+            }
+
+            wire += r.getWireBytes();
+            files += r.transferredSize;
+        }
+
+        if (files == 0) {
+            return size;
+        }
+
+        return (long) (size * ((double) wire / files));
+    }
+
+    /* usual throughput of profile in bytes/s, -1 if it hasn't moved enough data yet */
+    public long getThroughput(String profile) {
+        return getThroughput(new RunHistory(mContext).getRuns(profile, THROUGHPUT_RUNS));
+    }
+
+    static long getThroughput(List<RunHistory.Run> runs) {
+        long bytes = 0;
+        long ms = 0;
+
+        for (RunHistory.Run r : runs) {
+            if (r.exitCode != 0 || r.getWireBytes() < THROUGHPUT_MIN_BYTES || r.duration <= 0) {
+                continue;
+            }
+
+            bytes += r.getWireBytes();
+            ms += r.duration;
+        }
+
+        if (ms == 0) {
+            return -1;
+        }
+
+        return bytes * 1000 / ms;
+    }
+
+    /* expected duration of carrying out plan in ms, -1 if unknown */
+    public long getEta(BackupItem b, Plan plan) {
+        long throughput = getThroughput(b.name);
+        if (throughput <= 0) {
+            return -1;
+        }
+
+        return plan.transferredSize * 1000 / throughput;
+    }
+
+    public String describe(BackupItem b, Plan plan) {
+        String s = "Planned transfer: " + formatSize(plan.transferredSize) + " in " +
+                   plan.filesTransferred + " of " + plan.files + " files";
+
+        long eta = getEta(b, plan);
+        if (eta >= 0) {
+            s += ", about " + formatDuration(eta);
+        }
+
+        return s;
+    }
+
+    /* usable bytes on the filesystem holding path (or its closest existing parent) */
+    public static long getUsableSpace(String path) {
+        File f = new File(path).getAbsoluteFile();
+        while (f != null && !f.exists()) {
+            f = f.getParentFile();
+        }
+
+        if (f == null) {
+            return -1;
+        }
+
+        return f.getUsableSpace();
+    }
+
+    public static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double v = bytes;
+        int i = -1;
+        while (v >= 1024 && i < units.length - 1) {
+            v /= 1024;
+            i++;
+        }
+
+        return String.format(Locale.ENGLISH, "%.1f %s", v, units[i]);
+    }
+
+    public static String formatDuration(long ms) {
+        long s = ms / 1000;
+        if (s < 60) {
+            return s + " s";
+        } else if (s < 3600) {
+            return (s / 60) + " min";
+        }
+
+        return String.format(Locale.ENGLISH, "%d h %02d min", s / 3600, (s / 60) % 60);
+    }
+
+    /* configuration errors hit while planning go to logcat rather than the profile log */
+    private static class LogOutputStream extends OutputStream {
+        private StringBuilder mLine = new StringBuilder();
+
+        @Override
+        public void write(int b) {
+            mLine.append((char) b);
+        }
+
+        @Override
+        public void flush() {
+            if (mLine.length() > 0) {
+                Log.e(TAG, mLine.toString());
+                mLine.setLength(0);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mLine.append(new String(b, off, len));
+            flush();
+        }
+    }
+}
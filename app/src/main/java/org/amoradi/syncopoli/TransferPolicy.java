@@ -0,0 +1,308 @@
+package org.amoradi.syncopoli;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Chooses between sending whole files and rsync's delta transfer from how
+ * fast the link to the endpoint has been and how fast this device computes
+ * checksums, and whether to compress from what the profile's files are made
+ * of (see CompressionPolicy).
+ *
+ * The delta algorithm reads and checksums every changed file on both sides,
+ * so once the link is about as fast as the phone can checksum, sending whole
+ * files is quicker.
+ *
+ * Link speed comes from earlier runs to the same endpoint, over the time
+ * their file data was moving. Runs using delta transfer are bound by the
+ * checksums as much as by the link, so on networks that cost nothing an
+ * endpoint that has only seen delta runs gets a whole file run to measure
+ * the link properly, at most once every PROBE_INTERVAL.
+ *
+ * Options given by the user always win over the policy.
+ */
+public class TransferPolicy {
+    private static final String TAG = "Syncopoli";
+
+    public static final String DEFAULT = "default";
+    public static final String WHOLE_FILE = "whole-file";
+    public static final String DELTA = "delta";
+
+    /* runs to the endpoint looked at to work out the link speed */
+    private static final int LINK_RUNS = 10;
+
+    /* runs moving less than this say more about latency than throughput */
+    private static final long LINK_MIN_BYTES = 1024 * 1024;
+
+    private static final String PREF_CHECKSUM_RATE = "ChecksumRate";
+    private static final String PREF_CHECKSUM_DEVICE = "ChecksumRateDevice";
+    private static final String PREF_PROBE = "LinkProbe_";
+
+    /* an endpoint whose whole file run didn't measure it (too small, failed) waits this long for the next */
+    static final long PROBE_INTERVAL = 24 * 3600 * 1000L;
+
+    private Context mContext;
+
+    public TransferPolicy(Context ctx) {
+        mContext = ctx;
+    }
+
+    /*
+     * Policy for a link of link bytes/s (<= 0 if unknown) and a checksum rate
+     * of checksum bytes/s.
+     */
+    static String choose(long link, long checksum) {
+        if (link <= 0 || checksum <= 0) {
+            return DEFAULT;
+        }
+
+        if (link * 2 >= checksum) {
+            return WHOLE_FILE;
+        }
+
+        return DELTA;
+    }
+
+    /* whether a link last probed at lastProbe may be probed again at now */
+    static boolean canProbe(long lastProbe, long now) {
+        return now - lastProbe >= PROBE_INTERVAL || now < lastProbe;
+    }
+
+    /* whether options already say whether to send whole files */
+    static boolean setsWholeFile(List<String> options) {
+        for (String o : options) {
+            if (o.equals("--whole-file") || o.equals("--no-whole-file") || o.equals("--no-W") || hasShortOption(o, 'W')) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /* whether options already say whether to compress */
+    static boolean setsCompress(List<String> options) {
+        for (String o : options) {
+            if (o.equals("--compress") || o.equals("--no-compress") || o.equals("--no-z") ||
+                    o.startsWith("--compress-level") || o.startsWith("--zl") ||
+                    o.startsWith("--compress-choice") || o.startsWith("--zc") ||
+                    hasShortOption(o, 'z')) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /* whether o is a bundle of short options (e.g. -avz) containing c */
+    private static boolean hasShortOption(String o, char c) {
+        if (!o.startsWith("-") || o.startsWith("--")) {
+            return false;
+        }
+
+        for (int i = 1; i < o.length(); i++) {
+            char x = o.charAt(i);
+            if (x == c) {
+                return true;
+            }
+
+            // options taking an argument end the bundle (-e ssh, -B 1024, ...)
+            if ("eBfMT".indexOf(x) >= 0) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /* whether options already give the suffixes not to compress */
+    static boolean setsSkipCompress(List<String> options) {
+        for (String o : options) {
+            if (o.startsWith("--skip-compress")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /*
+     * The local files of b, which a sample of stands in for what is sent, as
+     * rsync sources: where each source is or lands, with a trailing slash if
+     * its contents are at the top of the transfer.
+     */
+    static List<String> getLocalPaths(BackupItem b) {
+        if (b.direction == BackupItem.Direction.OUTGOING) {
+            return Arrays.asList(b.sources);
+        }
+
+        List<String> paths = new ArrayList<>();
+        for (String s : b.sources) {
+            String rel = ShardPlanner.getRelative(s);
+            if (rel.equals("")) {
+                paths.add(b.destination.endsWith("/") ? b.destination : b.destination + "/");
+            } else {
+                paths.add(new File(b.destination, rel).getPath());
+            }
+        }
+
+        return paths;
+    }
+
+    /*
+     * Add the options of the chosen policy to cmd, whose endpoint must be set.
+     * Returns the policy, as recorded in the run history: the transfer, with
+     * "+z" and the level appended if compressing, e.g. "delta+z6". Only a
+     * real run (run set) probes the link or samples the files; dry runs and
+     * the like go by what earlier runs found.
+     */
+    public String apply(RsyncCommand cmd, BackupItem b, boolean metered, boolean run, OutputStream log) throws IOException {
+        boolean fixedWholeFile = setsWholeFile(cmd.options);
+        boolean fixedCompress = setsCompress(cmd.options);
+
+        if (fixedWholeFile && fixedCompress) {
+            return DEFAULT;
+        }
+
+        long link = -1;
+        boolean measuredWholeFile = false;
+
+        if (cmd.endpoint != null) {
+            long bytes = 0;
+            long ms = 0;
+
+            for (RunHistory.Run r : new RunHistory(mContext).getEndpointRuns(cmd.endpoint, LINK_RUNS)) {
+                if (r.exitCode != 0 || r.getWireBytes() < LINK_MIN_BYTES || r.getTransferTime() <= 0) {
+                    continue;
+                }
+
+                bytes += r.getWireBytes();
+                ms += r.getTransferTime();
+
+                if (r.policy != null && r.policy.startsWith(WHOLE_FILE)) {
+                    measuredWholeFile = true;
+                }
+            }
+
+            if (ms > 0) {
+                link = bytes * 1000 / ms;
+            }
+        }
+
+        long checksum = getChecksumRate();
+        String policy = choose(link, checksum);
+        boolean probe = false;
+
+        if (policy.equals(DELTA) && !measuredWholeFile && !metered && !fixedWholeFile && run && cmd.endpoint != null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            long now = System.currentTimeMillis();
+
+            if (canProbe(prefs.getLong(PREF_PROBE + cmd.endpoint, 0), now)) {
+                prefs.edit().putLong(PREF_PROBE + cmd.endpoint, now).apply();
+                policy = WHOLE_FILE;
+                probe = true;
+            }
+        }
+
+        if (fixedWholeFile) {
+            policy = DEFAULT;
+        }
+
+        if (!policy.equals(DEFAULT)) {
+            cmd.options.add(policy.equals(WHOLE_FILE) ? "--whole-file" : "--no-whole-file");
+
+            log.write(String.format(Locale.ENGLISH, "Transfer policy: %s%s (link %s/s, checksums %s/s)\n",
+                    policy, probe ? " to measure the link" : "",
+                    link > 0 ? TransferEstimator.formatSize(link) : "unknown",
+                    TransferEstimator.formatSize(checksum)).getBytes());
+        }
+
+        CompressionPolicy.Sample sample = fixedCompress ? null : new CompressionPolicy(mContext).getSample(getLocalPaths(b), FilterRules.forProfile(mContext, b), run);
+        if (sample != null) {
+            CompressionPolicy.Decision d = CompressionPolicy.decide(sample, link);
+
+            if (d.level > 0) {
+                cmd.options.add("--compress");
+                cmd.options.add("--compress-level=" + d.level);
+                if (!setsSkipCompress(cmd.options)) {
+                    cmd.options.add("--skip-compress=" + d.skipCompress);
+                }
+
+                policy += "+z" + d.level;
+            }
+
+            log.write(String.format(Locale.ENGLISH, "Compression: %s, %d%% of sampled data compressible\n",
+                    d.describe(), Math.round(sample.getCompressibleShare() * 100)).getBytes());
+        }
+
+        log.write("\n".getBytes());
+        return policy;
+    }
+
+    /* bytes/s this device computes MD5 (rsync's checksum) at, measured once */
+    public long getChecksumRate() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+
+        // a restored backup of the settings may come from another device
+        String device = Build.MODEL + "/" + Build.CPU_ABI;
+        long rate = prefs.getLong(PREF_CHECKSUM_RATE, -1);
+        if (rate > 0 && device.equals(prefs.getString(PREF_CHECKSUM_DEVICE, ""))) {
+            return rate;
+        }
+
+        rate = measureChecksumRate();
+        prefs.edit()
+                .putLong(PREF_CHECKSUM_RATE, rate)
+                .putString(PREF_CHECKSUM_DEVICE, device)
+                .apply();
+
+        Log.d(TAG, "Checksum rate: " + TransferEstimator.formatSize(rate) + "/s");
+        return rate;
+    }
+
+    static long measureChecksumRate() {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        byte[] buf = new byte[64 * 1024];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (byte) (i * 31 + (i >> 8));
+        }
+
+        // warm up, then hash for at least 100 ms
+        for (int i = 0; i < 16; i++) {
+            md.update(buf);
+        }
+        md.digest();
+
+        long bytes = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 16; i++) {
+                md.update(buf);
+            }
+            bytes += 16 * buf.length;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < 100 * 1000 * 1000);
+        md.digest();
+
+        return bytes * 1000 * 1000 * 1000 / elapsed;
+    }
+}
@@ -0,0 +1,161 @@
+package org.amoradi.syncopoli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BandwidthBudgetTest {
+    /* a budget on a clock of its own, which pause() moves forward */
+    private static class FakeClock extends BandwidthBudget {
+        long nanos = 0;
+        long paused = 0;
+
+        @Override
+        long now() {
+            return nanos;
+        }
+
+        @Override
+        void pause(long ms) throws InterruptedException {
+            if (ms == 0) {
+                fail("waited for room");
+            }
+            nanos += ms * 1000000;
+            paused += ms;
+        }
+    }
+
+    /* the shares an rsync run was told to come down to */
+    private static class Lowered implements BandwidthBudget.Listener {
+        List<Integer> shares = new ArrayList<>();
+
+        @Override
+        public void onLowered(int share) {
+            shares.add(share);
+        }
+    }
+
+    @Test
+    public void unlimited_cap() throws Exception {
+        BandwidthBudget bb = new BandwidthBudget();
+        assertEquals(0, bb.acquire("a", 0, 0));
+        assertEquals(100, bb.acquire("b", 0, 100));
+    }
+
+    @Test
+    public void cap_split_between_runs() throws Exception {
+        BandwidthBudget bb = new BandwidthBudget();
+        assertEquals(1000, bb.acquire("a", 1000, 0, BandwidthBudget.FOLLOW));
+        assertEquals(500, bb.acquire("b", 1000, 0, BandwidthBudget.FOLLOW));
+        assertEquals(500, bb.getShare("a"));
+
+        bb.release("b");
+        assertEquals(1000, bb.getShare("a"));
+        bb.release("a");
+        assertEquals(1000, bb.acquire("c", 1000, 0));
+    }
+
+    @Test
+    public void running_rsync_comes_down() throws Exception {
+        BandwidthBudget bb = new BandwidthBudget();
+        Lowered a = new Lowered();
+        assertEquals(900, bb.acquire("a", 900, 0, a));
+        assertEquals(450, bb.acquire("b", 900, 0, BandwidthBudget.FOLLOW));
+        assertEquals(300, bb.acquire("c", 900, 0, BandwidthBudget.FOLLOW));
+        assertEquals(Arrays.asList(450, 300), a.shares);
+
+        // rsync can't go up, the others take what it leaves
+        bb.release("c");
+        assertEquals(300, bb.getShare("a"));
+        assertEquals(450, bb.getShare("b"));
+        assertEquals(Arrays.asList(450, 300), a.shares);
+    }
+
+    @Test
+    public void own_limit_never_raised() throws Exception {
+        BandwidthBudget bb = new BandwidthBudget();
+        assertEquals(200, bb.acquire("a", 1000, 200));
+        // and what it leaves goes to the others
+        assertEquals(800, bb.acquire("b", 1000, 0));
+    }
+
+    @Test
+    public void fixed_share_is_kept() throws Exception {
+        final BandwidthBudget bb = new BandwidthBudget() {
+            @Override
+            void pause(long ms) {
+                // the fixed run ends
+                release("a");
+            }
+        };
+        assertEquals(1000, bb.acquire("a", 1000, 0));
+        assertEquals(1000, bb.acquire("b", 1000, 0, BandwidthBudget.FOLLOW));
+        assertEquals(1, bb.getActiveRuns());
+    }
+
+    @Test
+    public void share_has_minimum() throws Exception {
+        FakeClock bb = new FakeClock();
+        bb.acquire("a", 20, 0, BandwidthBudget.FOLLOW);
+        assertEquals(10, bb.acquire("b", 20, 0, BandwidthBudget.FOLLOW));
+        try {
+            bb.acquire("c", 20, 0, BandwidthBudget.FOLLOW);
+            fail("got less than " + BandwidthBudget.MIN_SHARE);
+        } catch (AssertionError e) {
+            assertEquals("waited for room", e.getMessage());
+        }
+        assertEquals(2, bb.getActiveRuns());
+    }
+
+    @Test
+    public void shares_stay_under_cap() throws Exception {
+        Random r = new Random(1);
+        FakeClock bb = new FakeClock();
+        List<Integer> running = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            if (running.size() > 3 || (!running.isEmpty() && r.nextBoolean())) {
+                bb.release(running.remove(r.nextInt(running.size())));
+            } else {
+                BandwidthBudget.Listener l = r.nextBoolean() ? new Lowered() : BandwidthBudget.FOLLOW;
+                bb.acquire(i, 1000, r.nextBoolean() ? 0 : 10 + r.nextInt(500), l);
+                running.add(i);
+            }
+
+            int sum = 0;
+            for (int run : running) {
+                assertTrue(bb.getShare(run) >= BandwidthBudget.MIN_SHARE);
+                sum += bb.getShare(run);
+            }
+            assertTrue("shares add up to " + sum, sum <= 1000);
+        }
+    }
+
+    @Test
+    public void parse_bwlimit() throws Exception {
+        assertEquals(0, BandwidthBudget.parseBwlimit(Arrays.asList("-vrlt", "--no-perms")));
+        assertEquals(300, BandwidthBudget.parseBwlimit(Arrays.asList("--bwlimit=300")));
+        assertEquals(2048, BandwidthBudget.parseBwlimit(Arrays.asList("--bwlimit", "2M")));
+        assertEquals(50, BandwidthBudget.parseBwlimit(Arrays.asList("--bwlimit=1m", "--bwlimit=50k")));
+    }
+
+    @Test
+    public void throttle_paces_bytes() throws Exception {
+        FakeClock bb = new FakeClock();
+        bb.acquire("a", 100, 0, BandwidthBudget.FOLLOW);
+
+        bb.throttle("a", 50 * 1024);
+        assertTrue("throttled for " + bb.paused + "ms", bb.paused >= 500 && bb.paused <= 510);
+
+        // half the cap once another run joins
+        bb.acquire("b", 100, 0, BandwidthBudget.FOLLOW);
+        bb.paused = 0;
+        bb.throttle("a", 50 * 1024);
+        assertTrue("throttled for " + bb.paused + "ms", bb.paused >= 1000 && bb.paused <= 1010);
+    }
+}
@@ -0,0 +1,225 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ChunkStoreTest {
+    private static List<byte[]> chunks(byte[] data) throws Exception {
+        Chunker c = new Chunker(new ByteArrayInputStream(data));
+        List<byte[]> chunks = new ArrayList<>();
+        int n;
+        while ((n = c.next()) >= 0) {
+            chunks.add(Arrays.copyOf(c.getBuffer(), n));
+        }
+        return chunks;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void chunking() throws Exception {
+        byte[] data = random(12 * 1024 * 1024, 1);
+
+        List<byte[]> chunks = chunks(data);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] c = chunks.get(i);
+            assertTrue(c.length <= Chunker.MAX_SIZE);
+            assertTrue(i == chunks.size() - 1 || c.length >= Chunker.MIN_SIZE);
+            joined.write(c);
+        }
+        assertArrayEquals(data, joined.toByteArray());
+        assertTrue(chunks.size() > 3);
+
+        // a few bytes in front move the first cut only
+        byte[] shifted = new byte[data.length + 100];
+        System.arraycopy(data, 0, shifted, 100, data.length);
+        Set<String> before = new HashSet<>();
+        for (byte[] c : chunks) {
+            before.add(Arrays.toString(c));
+        }
+        int same = 0;
+        List<byte[]> after = chunks(shifted);
+        for (byte[] c : after) {
+            if (before.contains(Arrays.toString(c))) {
+                same++;
+            }
+        }
+        assertTrue(same >= after.size() - 2);
+
+        assertTrue(chunks(new byte[0]).isEmpty());
+        assertEquals(1, chunks(new byte[10]).size());
+
+        // a chunker started over, in the middle of a stream, cuts the next one the same
+        Chunker c = new Chunker(new ByteArrayInputStream(shifted));
+        assertTrue(c.next() > 0);
+        c.reset(new ByteArrayInputStream(data));
+        for (byte[] chunk : chunks) {
+            assertArrayEquals(chunk, Arrays.copyOf(c.getBuffer(), c.next()));
+        }
+        assertEquals(-1, c.next());
+    }
+
+    @Test
+    public void records() {
+        ChunkStore.Record r = new ChunkStore.Record();
+        r.rel = "DCIM/a b\\c\nd.jpg";
+        r.size = 10;
+        r.mtime = 1500000000000L;
+        r.mode = 0644;
+        r.chunks.add(ChunkStore.hex(new byte[32]));
+
+        String line = ChunkStore.format(r);
+        assertFalse(line.contains("\n"));
+        ChunkStore.Record p = ChunkStore.parseRecord(line);
+        assertEquals(r.rel, p.rel);
+        assertEquals(0644, p.mode);
+        assertEquals(r.chunks, p.chunks);
+
+        r.chunks.clear();
+        assertEquals(0, ChunkStore.parseRecord(ChunkStore.format(r)).chunks.size());
+        assertNull(ChunkStore.parseRecord(ChunkStore.SNAPSHOT_HEADER));
+
+        Map<String, ChunkStore.Location> index = new HashMap<>();
+        String c = ChunkStore.hex(new byte[32]);
+        assertTrue(ChunkStore.parseLocation(c + " " + c + " 0 100", index));
+        // cut short by a failed run
+        assertFalse(ChunkStore.parseLocation(c + " " + c.substring(0, 20), index));
+        assertEquals(100, index.get(c).length);
+    }
+
+    private static void write(File f, byte[] data, long mtime) throws Exception {
+        f.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        assertTrue(f.setLastModified(mtime));
+    }
+
+    private static byte[] read(File f) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(f);
+        byte[] buf = new byte[65536];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static int sh(File dir, String script) throws Exception {
+        Process p = new ProcessBuilder(Arrays.asList("sh", "-c", script)).directory(dir).redirectErrorStream(true).start();
+        p.getOutputStream().close();
+        InputStream in = p.getInputStream();
+        while (in.read() >= 0) {
+        }
+        return p.waitFor();
+    }
+
+    /* a run into a tar stream, unpacked as the server would */
+    private static ChunkStore.Writer run(File local, File store, List<Manifest.Entry> entries, Map<String, ChunkStore.Location> known,
+                                         Map<String, ChunkStore.Record> previous, String name) throws Exception {
+        File archive = new File(local, "run.tar");
+        FileOutputStream out = new FileOutputStream(archive);
+        ChunkStore.Writer w = new ChunkStore.Writer(new TarWriter(out), new File(local, "pack"), new File(local, "snapshot"), known, previous);
+        for (Manifest.Entry e : entries) {
+            assertTrue(w.add(e, false));
+        }
+        w.finish(name, 1500000000000L);
+        out.close();
+
+        assertEquals(0, sh(store, "tar -xf " + archive.getAbsolutePath()));
+        for (String line : w.getNewIndex()) {
+            ChunkStore.parseLocation(line, known);
+        }
+        return w;
+    }
+
+    @Test
+    public void store_and_restore() throws Exception {
+        if (!new File("/bin/sh").exists() || sh(new File("."), "command -v tar && command -v awk") != 0) {
+            return;
+        }
+
+        File local = File.createTempFile("chunks", "");
+        assertTrue(local.delete() && local.mkdir());
+        File store = new File(local, "store");
+        assertTrue(store.mkdir());
+
+        try {
+            byte[] big = random(3 * 1024 * 1024, 2);
+            File a = new File(local, "src/a.bin");
+            File b = new File(local, "src/it's/b.bin");
+            File c = new File(local, "src/empty");
+            write(a, big, 1500000000000L);
+            write(b, big, 1500000000000L);
+            write(c, new byte[0], 1500000000000L);
+
+            List<Manifest.Entry> entries = new ArrayList<>();
+            entries.add(new Manifest.Entry(a.getPath(), "a.bin", a.length(), a.lastModified()));
+            entries.add(new Manifest.Entry(b.getPath(), "it's/b.bin", b.length(), b.lastModified()));
+            entries.add(new Manifest.Entry(c.getPath(), "empty", 0, c.lastModified()));
+
+            Map<String, ChunkStore.Location> known = new HashMap<>();
+            ChunkStore.Writer w = run(local, store, entries, known, new HashMap<String, ChunkStore.Record>(), "snapshots/p/1");
+
+            // the same content twice is stored once
+            assertEquals(big.length, w.newBytes);
+            assertEquals(1, w.filesSent);
+
+            // a change at the end of a, and b not looked at again
+            byte[] changed = Arrays.copyOf(big, big.length);
+            changed[changed.length - 1]++;
+            write(a, changed, 1600000000000L);
+            entries.set(0, new Manifest.Entry(a.getPath(), "a.bin", a.length(), a.lastModified()));
+            assertTrue(b.delete());
+
+            ChunkStore.Writer w2 = run(local, store, entries, known, ChunkStore.readSnapshot(new File(local, "snapshot")), "snapshots/p/2");
+            assertTrue(w2.newBytes > 0 && w2.newBytes <= Chunker.MAX_SIZE);
+            assertEquals(3, w2.files);
+
+            assertEquals(0, sh(local, "sh store/restore.sh snapshots/p/2 out"));
+            assertArrayEquals(changed, read(new File(local, "out/a.bin")));
+            assertEquals(1600000000000L, new File(local, "out/a.bin").lastModified());
+            assertArrayEquals(big, read(new File(local, "out/it's/b.bin")));
+            assertEquals(0, new File(local, "out/empty").length());
+            assertEquals(1500000000000L, new File(local, "out/empty").lastModified());
+
+            assertEquals(0, sh(local, "sh store/restore.sh snapshots/p/1 old"));
+            assertArrayEquals(big, read(new File(local, "old/a.bin")));
+        } finally {
+            delete(local);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressionPolicyTest {
+    private static final long MB = 1024 * 1024;
+
+    private static void write(File f, byte[] data) throws Exception {
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+    }
+
+    private static File makeTree(boolean text) throws Exception {
+        File dir = File.createTempFile("compression", "");
+        dir.delete();
+        dir.mkdirs();
+
+        Random random = new Random(1);
+        for (int i = 0; i < 4; i++) {
+            byte[] data = new byte[128 * 1024];
+            if (text) {
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = (byte) "the quick brown fox\n".charAt((j + i) % 20);
+                }
+                write(new File(dir, "notes" + i + ".txt"), data);
+            } else {
+                random.nextBytes(data);
+                write(new File(dir, "blob" + i + ".bin"), data);
+            }
+        }
+
+        return dir;
+    }
+
+    @Test
+    public void extension() throws Exception {
+        assertEquals("jpg", CompressionPolicy.getExtension("IMG_0001.JPG"));
+        assertEquals("gz", CompressionPolicy.getExtension("backup.tar.gz"));
+        assertEquals("", CompressionPolicy.getExtension(".profile"));
+        assertEquals("", CompressionPolicy.getExtension("Makefile"));
+    }
+
+    @Test
+    public void text_compresses() throws Exception {
+        File dir = makeTree(true);
+        CompressionPolicy.Sample s = CompressionPolicy.sample(Arrays.asList(dir.getAbsolutePath()), null);
+
+        assertEquals(4 * 128 * 1024, s.bytes);
+        assertTrue(s.getRatio(true) < 0.1);
+        assertEquals(1.0, s.getCompressibleShare(), 0.001);
+
+        // slow link, fast CPU
+        assertTrue(CompressionPolicy.decide(s, MB / 2).level > 0);
+        // unknown link
+        assertEquals(1, CompressionPolicy.decide(s, -1).level);
+    }
+
+    @Test
+    public void random_data_skipped() throws Exception {
+        File dir = makeTree(false);
+        CompressionPolicy.Sample s = CompressionPolicy.sample(Arrays.asList(dir.getAbsolutePath()), null);
+
+        assertTrue(s.isSkipped("bin"));
+        assertEquals(0.0, s.getCompressibleShare(), 0.001);
+        assertEquals(0, CompressionPolicy.decide(s, MB / 2).level);
+
+        // the sampled suffix joins rsync's own list
+        String skip = CompressionPolicy.decide(s, MB / 2).skipCompress;
+        assertTrue(Arrays.asList(skip.split("/")).contains("bin"));
+        assertTrue(Arrays.asList(skip.split("/")).contains("jpg"));
+    }
+
+    @Test
+    public void filtered_files_not_sampled() throws Exception {
+        File dir = makeTree(false);
+        write(new File(dir, "notes.txt"), "the quick brown fox\n".getBytes());
+
+        CompressionPolicy.Sample s = CompressionPolicy.sample(Arrays.asList(dir.getAbsolutePath() + "/"), new FilterRules("- /*.bin"));
+        assertEquals(20, s.bytes);
+        assertFalse(s.extensionBytes.containsKey("bin"));
+
+        // the filter sees the directory itself at the top without the slash
+        s = CompressionPolicy.sample(Arrays.asList(dir.getAbsolutePath()), new FilterRules("- /" + dir.getName() + "/*.txt"));
+        assertEquals(4 * 128 * 1024, s.bytes);
+    }
+
+    @Test
+    public void fast_link_not_compressed() throws Exception {
+        CompressionPolicy.Sample s = new CompressionPolicy.Sample();
+        s.bytes = 100 * MB;
+        s.extensionBytes.put("txt", 100 * MB);
+        s.ratios.put("txt", 0.3);
+        s.ratioFast = 0.35;
+        s.ratioDefault = 0.3;
+        s.rateFast = 40 * MB;
+        s.rateDefault = 10 * MB;
+
+        // compressing is slower than sending it all over gigabit
+        assertEquals(0, CompressionPolicy.decide(s, 110 * MB).level);
+        // fast level keeps up with a 10 MB/s link, the default doesn't
+        assertEquals(1, CompressionPolicy.decide(s, 10 * MB).level);
+        // the default level keeps up with a slow link and saves more
+        assertEquals(6, CompressionPolicy.decide(s, MB).level);
+    }
+
+    @Test
+    public void sample_kept_as_text() throws Exception {
+        File dir = makeTree(false);
+        CompressionPolicy.Sample s = CompressionPolicy.sample(Arrays.asList(dir.getAbsolutePath()), null);
+        s.extensionBytes.put("odd\tone", 1L);
+
+        CompressionPolicy.Sample r = CompressionPolicy.Sample.parse(s.toString());
+        assertEquals(s.created, r.created);
+        assertEquals(s.bytes, r.bytes);
+        assertEquals(s.rateFast, r.rateFast);
+        assertEquals(s.ratioDefault, r.ratioDefault, 0);
+        assertEquals(s.ratios, r.ratios);
+        assertFalse(r.extensionBytes.containsKey("odd\tone"));
+        assertEquals(s.extensionBytes.get("bin"), r.extensionBytes.get("bin"));
+        assertEquals(CompressionPolicy.decide(s, MB / 2).skipCompress, CompressionPolicy.decide(r, MB / 2).skipCompress);
+
+        assertNull(CompressionPolicy.Sample.parse(null));
+        assertNull(CompressionPolicy.Sample.parse("garbage"));
+        assertNull(CompressionPolicy.Sample.parse("1:2:3:4:x:6"));
+    }
+}
@@ -0,0 +1,117 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EndpointTest {
+    @Test
+    public void parse_address_and_rules() throws Exception {
+        Endpoint e = Endpoint.parse("192.168.1.10:2222 ssid=Home;Home-5G subnet=192.168.1.0/24 mdns=nas.local");
+        assertEquals("192.168.1.10", e.host);
+        assertEquals(2222, e.port);
+        assertEquals(Arrays.asList("Home", "Home-5G"), e.ssids);
+        assertEquals(1, e.subnets.size());
+        assertEquals("nas.local", e.mdns);
+    }
+
+    @Test
+    public void parse_ipv6() throws Exception {
+        Endpoint e = Endpoint.parse("[fd00::10]:2222");
+        assertEquals("fd00::10", e.host);
+        assertEquals(2222, e.port);
+
+        e = Endpoint.parse("fd00::10");
+        assertEquals("fd00::10", e.host);
+        assertEquals(0, e.port);
+    }
+
+    @Test
+    public void parse_list_skips_comments() throws Exception {
+        List<Endpoint> list = Endpoint.parseList("# home\n\nnas.local\n  10.0.0.2 ssid=Work\n");
+        assertEquals(2, list.size());
+        assertEquals("nas.local", list.get(0).host);
+        assertEquals("10.0.0.2", list.get(1).host);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_unknown_rule() throws Exception {
+        Endpoint.parse("10.0.0.2 bssid=x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_bad_port() throws Exception {
+        Endpoint.parse("10.0.0.2:99999");
+    }
+
+    @Test
+    public void subnet_contains() throws Exception {
+        Endpoint.Subnet s = new Endpoint.Subnet("192.168.1.0/24");
+        assertTrue(s.contains(InetAddress.getByName("192.168.1.77")));
+        assertFalse(s.contains(InetAddress.getByName("192.168.2.77")));
+        assertFalse(s.contains(InetAddress.getByName("fd00::1")));
+
+        s = new Endpoint.Subnet("10.0.0.0/9");
+        assertTrue(s.contains(InetAddress.getByName("10.127.0.1")));
+        assertFalse(s.contains(InetAddress.getByName("10.128.0.1")));
+
+        s = new Endpoint.Subnet("fd00::/8");
+        assertTrue(s.contains(InetAddress.getByName("fd12::1")));
+    }
+
+    @Test
+    public void matches_rules() throws Exception {
+        List<InetAddress> local = new ArrayList<>();
+        local.add(InetAddress.getByName("192.168.1.20"));
+
+        assertTrue(Endpoint.parse("nas").matches(null, local));
+        assertTrue(Endpoint.parse("nas ssid=Home").matches("Home", local));
+        assertFalse(Endpoint.parse("nas ssid=Home").matches("Cafe", local));
+        assertFalse(Endpoint.parse("nas ssid=Home").matches(null, local));
+        assertTrue(Endpoint.parse("nas subnet=10.0.0.0/8;192.168.1.0/24").matches(null, local));
+        assertFalse(Endpoint.parse("nas ssid=Home subnet=10.0.0.0/8").matches("Home", local));
+    }
+
+    private static EndpointSelector.Choice choice(String host, int port, Endpoint e) {
+        EndpointSelector.Choice c = new EndpointSelector.Choice();
+        c.host = host;
+        c.port = port;
+        c.endpoint = e;
+        return c;
+    }
+
+    @Test
+    public void endpoint_beats_server_address() throws Exception {
+        EndpointSelector.Choice server = choice("example.org", 22, null);
+        EndpointSelector.Choice lan = choice("192.168.1.10", 22, Endpoint.parse("192.168.1.10"));
+
+        assertSame(lan, EndpointSelector.pick(Arrays.asList(server, lan)));
+        assertSame(server, EndpointSelector.pick(Arrays.asList(server)));
+        assertNull(EndpointSelector.pick(new ArrayList<EndpointSelector.Choice>()));
+    }
+
+    /* both answer at once, as through a router looping its public address back */
+    @Test
+    public void probe_prefers_endpoint() throws Exception {
+        ServerSocket a = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        ServerSocket b = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        try {
+            for (int i = 0; i < 5; i++) {
+                EndpointSelector.Choice server = choice("127.0.0.1", a.getLocalPort(), null);
+                EndpointSelector.Choice lan = choice("127.0.0.1", b.getLocalPort(), Endpoint.parse("127.0.0.1"));
+
+                assertSame(lan, EndpointSelector.probe(Arrays.asList(server, lan)));
+                assertTrue(lan.latency >= 0);
+            }
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+}
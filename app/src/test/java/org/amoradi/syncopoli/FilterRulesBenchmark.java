@@ -0,0 +1,59 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/*
+ * Matching many paths against thousands of rules with the tries and with
+ * each rule in turn, timed. Only run with gradle test -Dbenchmark=true,
+ * see app/build.gradle.
+ */
+public class FilterRulesBenchmark {
+    private static final int ROUNDS = 3;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("benchmarks run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+    }
+
+    /* best time of ROUNDS matches of all paths, in ms; the sum of the rules matched in sum[0] */
+    private static long time(FilterRules r, List<String> paths, boolean linear, long[] sum) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long s = 0;
+            long start = System.nanoTime();
+            for (String p : paths) {
+                s += linear ? r.getFirstMatchLinear(p, false) : r.getFirstMatch(p, false);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            sum[0] = s;
+        }
+
+        return best / 1000000;
+    }
+
+    @Test
+    public void tries_against_linear() {
+        for (int n : new int[] {100, 1000, 2000}) {
+            Random rnd = new Random(42);
+            FilterRules r = new FilterRules(FilterRulesTest.manyRules(rnd, n));
+            List<String> paths = FilterRulesTest.manyPaths(rnd, n, 10000);
+
+            long[] linearSum = {0};
+            long[] trieSum = {0};
+            long linear = time(r, paths, true, linearSum);
+            long tries = time(r, paths, false, trieSum);
+            assertEquals(linearSum[0], trieSum[0]);
+
+            System.out.println(String.format(Locale.ENGLISH, "filter %5d rules, %d paths: linear %6d ms, tries %4d ms (%.0fx)",
+                    5 * n + 5, paths.size(), linear, tries, (double) linear / Math.max(1, tries)));
+        }
+    }
+}
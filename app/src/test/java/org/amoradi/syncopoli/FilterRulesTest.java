@@ -0,0 +1,204 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FilterRulesTest {
+    private static FilterRules rules(String... lines) {
+        return new FilterRules(Arrays.asList(lines));
+    }
+
+    @Test
+    public void globs() {
+        assertTrue(new FilterRules.Glob("*.jpg").matches("IMG_1.jpg"));
+        assertFalse(new FilterRules.Glob("*.jpg").matches("a/b.jpg"));
+        assertTrue(new FilterRules.Glob("**.jpg").matches("a/b.jpg"));
+        assertTrue(new FilterRules.Glob("IMG_????.[jJ][pP]g").matches("IMG_2020.JPg"));
+        assertFalse(new FilterRules.Glob("IMG_????.jpg").matches("IMG_20.jpg"));
+        assertTrue(new FilterRules.Glob("[!.]*").matches("visible"));
+        assertFalse(new FilterRules.Glob("[!.]*").matches(".hidden"));
+        assertTrue(new FilterRules.Glob("[a-c]x").matches("bx"));
+        assertTrue(new FilterRules.Glob("a\\*b").matches("a*b"));
+        assertFalse(new FilterRules.Glob("a\\*b").matches("axb"));
+        assertTrue(new FilterRules.Glob("[unclosed").matches("[unclosed"));
+
+        // too long for the bit-parallel automaton
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            sb.append("a?");
+        }
+        String s = sb.toString().replace('?', 'b');
+        assertTrue(new FilterRules.Glob(sb + "*").matches(s + "tail"));
+        assertFalse(new FilterRules.Glob(sb + "*").matches(s.substring(1)));
+    }
+
+    @Test
+    public void rsync_semantics() {
+        FilterRules r = rules(
+                "# comment",
+                "+ keep.tmp",
+                "- *.tmp",
+                "- /Android/data",
+                "- .thumbnails/",
+                "- cache/**",
+                "- Music/*/Podcasts",
+                "+ Backups/***",
+                "- Backups*");
+
+        // unanchored patterns match the end of the path
+        assertTrue(r.excludes("DCIM/a.tmp", false));
+        assertFalse(r.excludes("DCIM/keep.tmp", false));
+
+        // anchored ones only from the top
+        assertTrue(r.excludes("Android/data", true));
+        assertFalse(r.excludes("x/Android/data", true));
+
+        // a trailing slash is for directories only
+        assertTrue(r.excludes("DCIM/.thumbnails", true));
+        assertFalse(r.excludes("DCIM/.thumbnails", false));
+
+        // ** crosses directories, but the directory itself is not matched
+        assertTrue(r.excludes("app/cache/a/b", false));
+        assertFalse(r.excludes("app/cache", true));
+
+        assertTrue(r.excludes("Music/Artist/Podcasts", true));
+        assertFalse(r.excludes("Music/A/B/Podcasts", true));
+
+        // *** is the directory and everything below, and comes first here
+        assertFalse(r.excludes("Backups", true));
+        assertFalse(r.excludes("Backups/x/y", false));
+        assertTrue(r.excludes("Backups2", true));
+
+        assertTrue(r.isExcluded("Android/data/com.app/file", false));
+        assertFalse(r.isExcluded("Android/media/file", false));
+
+        assertEquals(9 - 1, r.size());
+    }
+
+    @Test
+    public void clear_and_errors() {
+        FilterRules r = rules("- *.jpg", "!", "- *.png");
+        assertFalse(r.excludes("a.jpg", false));
+        assertTrue(r.excludes("a.png", false));
+
+        try {
+            rules("merge .rsync-filter");
+            fail("accepted a merge rule");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            rules("- /");
+            fail("accepted an empty pattern");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void from_options() {
+        List<String> found = FilterRules.fromOptions(Arrays.asList(
+                "-av", "--exclude=*.tmp", "--include", "keep", "--filter=- /cache", "-f", "merge x", "--delete"), new File("."));
+
+        assertEquals(Arrays.asList("- *.tmp", "+ keep", "- /cache"), found);
+    }
+
+    @Test
+    public void exclude_from_relative_to_rsync() throws Exception {
+        File dir = File.createTempFile("filters", "");
+        dir.delete();
+        dir.mkdir();
+
+        FileOutputStream out = new FileOutputStream(new File(dir, "excludes"));
+        out.write("# comment\n*.tmp\n\ncache/\n".getBytes());
+        out.close();
+
+        List<String> found = FilterRules.fromOptions(Arrays.asList("--exclude-from=excludes", "--include-from",
+                new File(dir, "excludes").getAbsolutePath()), dir);
+        assertEquals(Arrays.asList("- *.tmp", "- cache/", "+ *.tmp", "+ cache/"), found);
+
+        new File(dir, "excludes").delete();
+        dir.delete();
+    }
+
+    private static String pick(Random rnd, String[] a) {
+        return a[rnd.nextInt(a.length)];
+    }
+
+    private static final String[] DIRS = {"DCIM", "Camera", "Music", "Download", "Android", "data", "media", "cache", "Pictures", "WhatsApp", "2020", "2021"};
+    private static final String[] EXTS = {"jpg", "png", "mp4", "tmp", "log", "txt", "mp3", "pdf", "bak", "part"};
+
+    /* five rules of the usual kinds per i below n, and a few globs, shuffled */
+    static List<String> manyRules(Random rnd, int n) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            lines.add("- name" + i);
+            lines.add("- *.x" + i);
+            lines.add("- /" + pick(rnd, DIRS) + "/sub" + i);
+            lines.add("- d" + i + "/");
+            lines.add("+ keep" + i + "/***");
+        }
+        lines.add("- *." + EXTS[3]);
+        lines.add("- cache/");
+        lines.add("- **/.thumbnails/**");
+        lines.add("+ " + DIRS[0] + "/*/IMG_1*");
+        lines.add("- IMG_[0-4]*.jpg");
+        Collections.shuffle(lines, rnd);
+
+        return lines;
+    }
+
+    /* count paths up to six deep, partly named like the rules of manyRules(rnd, n) */
+    static List<String> manyPaths(Random rnd, int n, int count) {
+        int names = n + n / 2;
+
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder();
+            int depth = 1 + rnd.nextInt(5);
+            for (int d = 0; d < depth; d++) {
+                int k = rnd.nextInt(20);
+                sb.append(k < 12 ? DIRS[k] : k < 15 ? "name" + rnd.nextInt(names) : k < 17 ? "d" + rnd.nextInt(names) : "keep" + rnd.nextInt(names)).append('/');
+            }
+            int k = rnd.nextInt(10);
+            sb.append(k < 6 ? "IMG_" + rnd.nextInt(10000) + "." + pick(rnd, EXTS) : k < 8 ? "f." + "x" + rnd.nextInt(names) : "name" + rnd.nextInt(names));
+            paths.add(sb.toString());
+        }
+
+        return paths;
+    }
+
+    /*
+     * Thousands of rules of the usual kinds, matched against paths by the
+     * tries and by trying each rule in turn; both must agree on every path,
+     * as a file and as a directory. See FilterRulesBenchmark for how much
+     * faster the tries are.
+     */
+    @Test
+    public void tries_match_linear() {
+        Random rnd = new Random(42);
+        FilterRules r = new FilterRules(manyRules(rnd, 1000));
+
+        int excluded = 0;
+        for (String p : manyPaths(rnd, 1000, 2000)) {
+            assertEquals(p, r.getFirstMatchLinear(p, false), r.getFirstMatch(p, false));
+            assertEquals(p, r.getFirstMatchLinear(p, true), r.getFirstMatch(p, true));
+            if (r.excludes(p, false)) {
+                excluded++;
+            }
+        }
+
+        // the paths go both ways
+        assertTrue(excluded > 0 && excluded < 2000);
+    }
+}
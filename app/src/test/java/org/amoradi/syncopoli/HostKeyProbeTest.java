@@ -0,0 +1,176 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class HostKeyProbeTest {
+    private static byte[] hex(String s) {
+        byte[] b = new BigInteger("01" + s, 16).toByteArray();
+        return Arrays.copyOfRange(b, 1, b.length);
+    }
+
+    private static void writeString(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static void writePacket(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length + 8 + 1);
+        out.writeByte(8);
+        out.write(payload);
+        out.write(new byte[8]);
+        out.flush();
+    }
+
+    private static byte[] readPacket(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        int padding = in.readUnsignedByte();
+        byte[] payload = new byte[len - padding - 1];
+        in.readFully(payload);
+        in.readFully(new byte[padding]);
+        return payload;
+    }
+
+    /*
+     * An ssh server that only goes as far as the key exchange reply, offering
+     * kex. Returns the length of the client's public value.
+     */
+    private static class FakeServer extends Thread {
+        ServerSocket socket;
+        String kex;
+        byte[] hostKey;
+        int clientValue = -1;
+
+        FakeServer(String kex, byte[] hostKey) throws IOException {
+            socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            this.kex = kex;
+            this.hostKey = hostKey;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket s = socket.accept();
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+                out.write("a banner first\r\nSSH-2.0-Fake\r\n".getBytes());
+                while (in.read() != '\n') {
+                }
+
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                DataOutputStream init = new DataOutputStream(buf);
+                init.writeByte(20);
+                init.write(new byte[16]);
+                writeString(init, kex.getBytes());
+                writeString(init, "ssh-ed25519".getBytes());
+                for (int i = 0; i < 8; i++) {
+                    writeString(init, "none".getBytes());
+                }
+                init.writeBoolean(false);
+                init.writeInt(0);
+                writePacket(out, buf.toByteArray());
+
+                assertEquals(20, readPacket(in)[0]);
+                byte[] value = readPacket(in);
+                assertEquals(30, value[0]);
+                clientValue = value.length - 5;
+
+                buf = new ByteArrayOutputStream();
+                DataOutputStream reply = new DataOutputStream(buf);
+                reply.writeByte(31);
+                writeString(reply, hostKey);
+                writeString(reply, new byte[32]);
+                writeString(reply, new byte[64]);
+                writePacket(out, buf.toByteArray());
+
+                s.close();
+                socket.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static byte[] ed25519Key() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        writeString(out, "ssh-ed25519".getBytes());
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) 7);
+        writeString(out, key);
+        return buf.toByteArray();
+    }
+
+    private static int probe(String kex) throws Exception {
+        byte[] key = ed25519Key();
+        FakeServer server = new FakeServer(kex, key);
+        server.start();
+
+        HostKeyProbe.HostKey hk = new HostKeyProbe("127.0.0.1", server.socket.getLocalPort()).probe();
+        server.join();
+
+        assertEquals("ssh-ed25519", hk.keyType);
+        assertArrayEquals(key, hk.key);
+        return server.clientValue;
+    }
+
+    @Test
+    public void x25519_vectors() throws Exception {
+        // RFC 7748 5.2 and 6.1
+        assertArrayEquals(hex("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"),
+                HostKeyProbe.x25519(hex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4"),
+                        hex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c")));
+
+        byte[] base = new byte[32];
+        base[0] = 9;
+        assertArrayEquals(hex("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a"),
+                HostKeyProbe.x25519(hex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a"), base));
+    }
+
+    @Test
+    public void curve25519_only_server() throws Exception {
+        assertEquals(32, probe("curve25519-sha256,ext-info-s"));
+    }
+
+    @Test
+    public void ecdh_only_server() throws Exception {
+        assertEquals(65, probe("ecdh-sha2-nistp256"));
+    }
+
+    @Test
+    public void group14_server() throws Exception {
+        int len = probe("diffie-hellman-group14-sha1");
+        assertTrue("e of " + len + " bytes", len > 128 && len <= 257);
+    }
+
+    @Test
+    public void no_common_kex() throws Exception {
+        FakeServer server = new FakeServer("sntrup761x25519-sha512@openssh.com", ed25519Key());
+        server.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+            }
+        });
+        server.start();
+
+        try {
+            new HostKeyProbe("127.0.0.1", server.socket.getLocalPort()).probe();
+            fail("probe agreed on nothing");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("No common key exchange method"));
+        }
+        server.join();
+    }
+}
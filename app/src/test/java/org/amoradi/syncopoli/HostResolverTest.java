@@ -0,0 +1,70 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HostResolverTest {
+    private static InetAddress[] addresses(String... literals) throws Exception {
+        InetAddress[] a = new InetAddress[literals.length];
+        for (int i = 0; i < literals.length; i++) {
+            a[i] = InetAddress.getByName(literals[i]);
+        }
+        return a;
+    }
+
+    @Test
+    public void order_alternates_families() throws Exception {
+        List<InetAddress> ordered = HostResolver.order(addresses("192.0.2.1", "192.0.2.2", "2001:db8::1", "fe80::1%1"));
+
+        // IPv6 first, and no scoped addresses
+        assertEquals(Arrays.asList(addresses("2001:db8::1", "192.0.2.1", "192.0.2.2")), ordered);
+    }
+
+    @Test
+    public void race_skips_refused_address() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            List<String> errors = new ArrayList<>();
+            HostResolver.Result r = HostResolver.race("server", Arrays.asList(addresses("127.0.0.2", "127.0.0.1")),
+                    server.getLocalPort(), errors);
+
+            assertNotNull(r);
+            assertEquals("127.0.0.1", r.getLiteral());
+            assertEquals("server", r.host);
+            assertTrue(r.latency >= 0);
+            assertTrue(r.isFresh());
+            assertEquals(1, errors.size());
+            assertTrue(errors.get(0).startsWith("Connect to 127.0.0.2 failed"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void race_nothing_listening() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = server.getLocalPort();
+        server.close();
+
+        List<String> errors = new ArrayList<>();
+        assertNull(HostResolver.race("server", Arrays.asList(addresses("127.0.0.2", "127.0.0.1")), port, errors));
+        assertEquals(2, errors.size());
+    }
+
+    @Test
+    public void host_specs() throws Exception {
+        HostResolver.Result r = new HostResolver.Result();
+        r.address = InetAddress.getByName("2001:db8::1");
+        assertEquals("[2001:db8:0:0:0:0:0:1]", r.getHostSpec());
+
+        r.address = InetAddress.getByName("192.0.2.1");
+        assertEquals("192.0.2.1", r.getHostSpec());
+    }
+}
@@ -0,0 +1,161 @@
+package org.amoradi.syncopoli;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class IntegrityVerifierTest {
+    private File mRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("verify", "");
+        mRoot.delete();
+        mRoot.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mRoot);
+    }
+
+    private void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private File write(String path, byte[] data) throws IOException {
+        File f = new File(mRoot, path);
+        f.getParentFile().mkdirs();
+
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+
+    @Test
+    public void hash_matches_md5sum() throws Exception {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", FileHasher.hash(write("empty", new byte[0])));
+        assertEquals("5eb63bbbe01eeed093cb22bb8f5acdc3", FileHasher.hash(write("hello", "hello world".getBytes())));
+    }
+
+    @Test
+    public void hash_across_windows() throws Exception {
+        // same content hashed whole and in mapped windows
+        byte[] data = new byte[(int) FileHasher.WINDOW + 12345];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+
+        java.security.MessageDigest md = java.security.MessageDigest.getInstance("MD5");
+        StringBuilder expected = new StringBuilder();
+        for (byte b : md.digest(data)) {
+            expected.append(String.format("%02x", b & 0xff));
+        }
+
+        assertEquals(expected.toString(), FileHasher.hash(write("big", data)));
+    }
+
+    @Test
+    public void hash_all_parallel() throws Exception {
+        List<HashCache.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            entries.add(new HashCache.Entry(write("f" + i, ("file " + i).getBytes())));
+        }
+        entries.add(new HashCache.Entry(new File(mRoot, "missing")));
+
+        List<String> errors = new ArrayList<>();
+        assertEquals(20, FileHasher.hashAll(entries, 4, errors));
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).startsWith(new File(mRoot, "missing").getPath() + ": "));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(FileHasher.hash(new File(mRoot, "f" + i)), entries.get(i).hash);
+        }
+        assertNull(entries.get(20).hash);
+    }
+
+    @Test
+    public void plan_outgoing() throws Exception {
+        write("photos/a.jpg", new byte[1]);
+        write("photos/2020/b.jpg", new byte[1]);
+        write("docs/c.txt", new byte[1]);
+
+        BackupItem b = new BackupItem();
+        b.direction = BackupItem.Direction.OUTGOING;
+        b.sources = new String[] {mRoot + "/photos", mRoot + "/docs/"};
+        b.destination = "backup";
+
+        List<IntegrityVerifier.Group> groups = IntegrityVerifier.plan(b, null);
+        assertEquals(2, groups.size());
+
+        // without a trailing slash the directory itself is sent
+        assertEquals(mRoot.getPath(), groups.get(0).localBase);
+        assertEquals("backup", groups.get(0).remoteBase);
+        assertEquals(Arrays.asList("photos/2020/b.jpg", "photos/a.jpg"), groups.get(0).paths);
+
+        assertEquals(mRoot + "/docs/", groups.get(1).localBase);
+        assertEquals(Arrays.asList("c.txt"), groups.get(1).paths);
+    }
+
+    @Test
+    public void plan_incoming() throws Exception {
+        write("music/x.mp3", new byte[1]);
+
+        BackupItem b = new BackupItem();
+        b.direction = BackupItem.Direction.INCOMING;
+        b.sources = new String[] {"/srv/music"};
+        b.destination = mRoot.getPath();
+
+        List<IntegrityVerifier.Group> groups = IntegrityVerifier.plan(b, null);
+        assertEquals("/srv", groups.get(0).remoteBase);
+        assertEquals(Arrays.asList("music/x.mp3"), groups.get(0).paths);
+
+        assertEquals("", IntegrityVerifier.getRemoteBase("music"));
+        assertEquals("/", IntegrityVerifier.getRemoteBase("/music"));
+        assertEquals("music/", IntegrityVerifier.getRemoteBase("music/"));
+    }
+
+    @Test
+    public void parse_sums() throws Exception {
+        Map<String, String> sums = new HashMap<>();
+        IntegrityVerifier.parseSumLine("5eb63bbbe01eeed093cb22bb8f5acdc3  photos/a b.jpg", sums);
+        IntegrityVerifier.parseSumLine("D41D8CD98F00B204E9800998ECF8427E *bin", sums);
+        IntegrityVerifier.parseSumLine("\\5eb63bbbe01eeed093cb22bb8f5acdc3  two\\nlines\\\\", sums);
+        IntegrityVerifier.parseSumLine("md5sum: gone: No such file or directory", sums);
+
+        assertEquals(3, sums.size());
+        assertEquals("5eb63bbbe01eeed093cb22bb8f5acdc3", sums.get("photos/a b.jpg"));
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", sums.get("bin"));
+        assertEquals("5eb63bbbe01eeed093cb22bb8f5acdc3", sums.get("two\nlines\\"));
+    }
+
+    @Test
+    public void hash_command_expands_home() throws Exception {
+        assertEquals("cd ~/'backup' && xargs -0 md5sum --", IntegrityVerifier.getHashCommand("~/backup"));
+        assertEquals("cd . && xargs -0 md5sum --", IntegrityVerifier.getHashCommand(""));
+        assertEquals("cd '/srv/it'\\''s' && xargs -0 md5sum --", IntegrityVerifier.getHashCommand("/srv/it's"));
+
+        // snapshot profiles verify what latest points to
+        BackupItem b = new BackupItem();
+        b.sources = new String[] {"/sdcard/DCIM"};
+        b.destination = "~/backup";
+        assertEquals("cd ~/'backup/latest' && xargs -0 md5sum --", IntegrityVerifier.getHashCommand(Snapshots.getLatest(b).destination));
+    }
+}
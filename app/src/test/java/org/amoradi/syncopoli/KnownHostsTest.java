@@ -0,0 +1,131 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KnownHostsTest {
+    private static final byte[] KEY_A = {0, 0, 0, 7, 's', 's', 'h', '-', 'r', 's', 'a', 1};
+    private static final byte[] KEY_B = {0, 0, 0, 11, 's', 's', 'h', '-', 'e', 'd', '2', '5', '5', '1', '9', 2, 3};
+
+    private static File write(String content) throws IOException {
+        File dir = File.createTempFile("known_hosts", "");
+        dir.delete();
+        dir.mkdir();
+        File f = new File(dir, "known_hosts");
+
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(content.getBytes());
+        out.close();
+        return f;
+    }
+
+    private static String read(File f) throws IOException {
+        byte[] b = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        in.read(b);
+        in.close();
+        return new String(b);
+    }
+
+    @Test
+    public void base64() throws Exception {
+        for (int len = 0; len < 8; len++) {
+            byte[] data = new byte[len];
+            for (int i = 0; i < len; i++) {
+                data[i] = (byte) (i * 97 - 3);
+            }
+            assertArrayEquals(data, KnownHosts.decode(KnownHosts.encode(data)));
+        }
+
+        assertEquals("AAAAB3NzaC1yc2EB", KnownHosts.encode(KEY_A));
+        assertEquals("Zm8=", KnownHosts.encode("fo".getBytes()));
+        assertNull(KnownHosts.decode("Zm8"));
+        assertNull(KnownHosts.decode("Z=m8"));
+        assertNull(KnownHosts.decode("Zm8*"));
+    }
+
+    @Test
+    public void parse_lines() throws Exception {
+        File f = write("# comment\n" +
+                "server,10.0.0.1 ssh-rsa " + KnownHosts.encode(KEY_A) + "\n" +
+                "other ssh-ed25519 not*base64\n" +
+                "other ssh-ed25519 " + KnownHosts.encode(KEY_B) + " comment\n");
+        KnownHosts k = KnownHosts.getInstance(f);
+
+        assertEquals(1, k.getEntries("server").size());
+        assertEquals("ssh-rsa", k.getEntries("10.0.0.1").get(0).keyType);
+        assertEquals(1, k.getEntries("other").size());
+        assertTrue(k.getEntries("# comment").isEmpty());
+        assertTrue(k.getEntries("nobody").isEmpty());
+    }
+
+    @Test
+    public void key_matching() throws Exception {
+        KnownHosts k = KnownHosts.getInstance(write("server ssh-rsa " + KnownHosts.encode(KEY_A) + "\n"));
+
+        assertTrue(k.isTrusted("server", "ssh-rsa", KEY_A));
+        assertFalse(k.isTrusted("server", "ssh-ed25519", KEY_A));
+        assertFalse(k.isTrusted("server", "ssh-rsa", KEY_B));
+        assertFalse(k.isTrusted("server:22", "ssh-rsa", KEY_A));
+    }
+
+    @Test
+    public void add_replaces_same_type() throws Exception {
+        File f = write("server ssh-rsa " + KnownHosts.encode(KEY_A) + "\n" + "kept as is\n");
+        KnownHosts k = KnownHosts.getInstance(f);
+
+        k.add("server", "ssh-ed25519", KEY_B);
+        k.add("server", "ssh-rsa", KEY_B);
+
+        assertFalse(k.isTrusted("server", "ssh-rsa", KEY_A));
+        assertTrue(k.isTrusted("server", "ssh-rsa", KEY_B));
+        assertTrue(k.isTrusted("server", "ssh-ed25519", KEY_B));
+        assertEquals("kept as is\n" +
+                "server ssh-ed25519 " + KnownHosts.encode(KEY_B) + "\n" +
+                "server ssh-rsa " + KnownHosts.encode(KEY_B) + "\n", read(f));
+    }
+
+    @Test
+    public void alias_gets_every_key() throws Exception {
+        File f = write("server ssh-rsa " + KnownHosts.encode(KEY_A) + "\n" +
+                "server ssh-ed25519 " + KnownHosts.encode(KEY_B) + "\n");
+        KnownHosts k = KnownHosts.getInstance(f);
+
+        k.addAlias("10.0.0.1", "server");
+        List<KnownHosts.Entry> entries = k.getEntries("10.0.0.1");
+        assertEquals(2, entries.size());
+        assertTrue(k.isTrusted("10.0.0.1", "ssh-rsa", KEY_A));
+        assertTrue(k.isTrusted("10.0.0.1", "ssh-ed25519", KEY_B));
+
+        // nothing new, nothing written twice
+        String content = read(f);
+        k.addAlias("10.0.0.1", "server");
+        assertEquals(content, read(f));
+        assertEquals(4, content.split("\n").length);
+    }
+
+    @Test
+    public void changes_behind_our_back() throws Exception {
+        File f = write("server ssh-rsa " + KnownHosts.encode(KEY_A) + "\n");
+        KnownHosts k = KnownHosts.getInstance(f);
+        assertEquals(1, k.getEntries("server").size());
+
+        FileOutputStream out = new FileOutputStream(f, true);
+        out.write(("server ssh-ed25519 " + KnownHosts.encode(KEY_B) + "\n").getBytes());
+        out.close();
+        f.setLastModified(f.lastModified() + 2000);
+
+        assertTrue(k.isTrusted("server", "ssh-ed25519", KEY_B));
+
+        k.clear();
+        assertTrue(k.getEntries("server").isEmpty());
+        assertEquals("", read(f));
+    }
+}
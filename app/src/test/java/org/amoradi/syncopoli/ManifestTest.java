@@ -0,0 +1,137 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ManifestTest {
+    private static List<Manifest.Entry> tree(int dirs, int files) {
+        List<Manifest.Entry> entries = new ArrayList<>();
+        for (int d = 0; d < dirs; d++) {
+            for (int f = 0; f < files; f++) {
+                String rel = "DCIM/Camera " + d + "/IMG_" + f + ".jpg";
+                entries.add(new Manifest.Entry("/sdcard/" + rel, rel, d * 1000 + f, 1000 + f));
+            }
+        }
+
+        Collections.sort(entries, Manifest.ENTRY_ORDER);
+        return entries;
+    }
+
+    @Test
+    public void round_trip() throws Exception {
+        List<Manifest.Entry> entries = tree(10, 50);
+        entries.get(3).hash = "0123456789abcdef0123456789abcdef";
+
+        File f = File.createTempFile("manifest", "");
+        try {
+            Manifest.write(f, entries);
+            Manifest.Reader r = Manifest.Reader.open(f);
+            assertEquals(entries.size(), r.getCount());
+
+            for (Manifest.Entry e : entries) {
+                assertTrue(r.next());
+                assertEquals(e.rel, r.getPath());
+                assertEquals(e.size, r.getSize());
+                assertEquals(e.mtime, r.getMtime());
+                assertEquals(e.hash, r.getHash());
+            }
+            assertFalse(r.next());
+
+            // front coding keeps it well below the length of the paths alone
+            long paths = 0;
+            for (Manifest.Entry e : entries) {
+                paths += e.rel.length();
+            }
+            assertTrue(f.length() - entries.size() * 32L < paths / 3);
+
+            r.close();
+        } finally {
+            f.delete();
+        }
+
+        assertNull(Manifest.Reader.open(f));
+    }
+
+    @Test
+    public void order() throws Exception {
+        // UTF-16 puts the surrogate pair first, UTF-8 bytes the other way round
+        assertTrue(Manifest.PATH_ORDER.compare("\uffff", "\ud83d\ude00") < 0);
+        assertTrue(Manifest.PATH_ORDER.compare("a", "a/b") < 0);
+
+        File f = File.createTempFile("manifest", "");
+        Manifest.Writer w = new Manifest.Writer(f, 2);
+        w.add("b", 1, 1, null);
+        try {
+            w.add("a", 1, 1, null);
+            fail("accepted a path out of order");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        w.abort();
+        f.delete();
+    }
+
+    @Test
+    public void diff() throws Exception {
+        List<Manifest.Entry> before = tree(3, 100);
+        List<Manifest.Entry> after = tree(3, 100);
+
+        after.remove(150);
+        after.get(10).size++;
+        after.get(20).mtime++;
+        String rel = "DCIM/Camera 1/IMG_50.jpg ünïcode";
+        after.add(new Manifest.Entry("/sdcard/" + rel, rel, 1, 1));
+        Collections.sort(after, Manifest.ENTRY_ORDER);
+
+        File a = File.createTempFile("manifest", "");
+        File b = File.createTempFile("manifest", "");
+        try {
+            Manifest.write(a, before);
+            Manifest.write(b, after);
+            Manifest.Reader ra = Manifest.Reader.open(a);
+            Manifest.Reader rb = Manifest.Reader.open(b);
+
+            final List<String> removed = new ArrayList<>();
+            final List<String> changed = new ArrayList<>();
+            final List<String> added = new ArrayList<>();
+            Manifest.diff(ra, rb, new Manifest.DiffListener() {
+                @Override
+                public void onRemoved(Manifest.Reader before) {
+                    removed.add(before.getPath());
+                }
+
+                @Override
+                public void onAdded(Manifest.Reader after) {
+                    added.add(after.getPath());
+                }
+
+                @Override
+                public void onChanged(Manifest.Reader before, Manifest.Reader after) {
+                    changed.add(after.getPath());
+                }
+            });
+            assertEquals(Arrays.asList(before.get(150).rel), removed);
+            assertEquals(Arrays.asList(before.get(10).rel, before.get(20).rel), changed);
+            assertEquals(Arrays.asList(rel), added);
+
+            // as rsync --files-from --from0 reads them, in path order
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(3, Manifest.writeChanged(ra, rb, out));
+            assertEquals(before.get(10).rel + "\0" + before.get(20).rel + "\0" + rel + "\0", out.toString("UTF-8"));
+
+            ra.close();
+            rb.close();
+        } finally {
+            a.delete();
+            b.delete();
+        }
+    }
+}
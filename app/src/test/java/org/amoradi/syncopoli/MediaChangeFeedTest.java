@@ -0,0 +1,100 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MediaChangeFeedTest {
+    private static final long DAY = 24 * 3600 * 1000L;
+
+    @Test
+    public void media_sources() {
+        assertTrue(MediaChangeFeed.isMediaSource("/sdcard/DCIM", "/sdcard"));
+        assertTrue(MediaChangeFeed.isMediaSource("/sdcard/Pictures/Screenshots/", "/sdcard"));
+        assertFalse(MediaChangeFeed.isMediaSource("/sdcard/DCIMx", "/sdcard"));
+        assertFalse(MediaChangeFeed.isMediaSource("/sdcard/Download", "/sdcard"));
+    }
+
+    @Test
+    public void media_profiles() {
+        BackupItem b = new BackupItem();
+        b.direction = BackupItem.Direction.OUTGOING;
+        b.sources = new String[] {"/sdcard/DCIM", "/sdcard/Movies/"};
+        List<String> options = new ArrayList<>(Arrays.asList("-rt"));
+
+        assertTrue(MediaChangeFeed.isMediaProfile(b, options, "/sdcard"));
+        assertFalse(MediaChangeFeed.isMediaProfile(b, options, "/storage/extSdCard"));
+
+        // --delete from the app's settings counts as much as the profile's
+        options.add("--delete-after");
+        assertFalse(MediaChangeFeed.isMediaProfile(b, options, "/sdcard"));
+    }
+
+    /* /sdcard is a link to /storage/emulated/0, where the index has the files */
+    @Test
+    public void symlinked_storage() throws Exception {
+        File dir = File.createTempFile("media", "");
+        assertTrue(dir.delete() && dir.mkdir());
+
+        File storage = new File(dir, "0");
+        File link = new File(dir, "sdcard");
+        try {
+            assertTrue(new File(storage, "DCIM/Camera").mkdirs());
+            Files.createSymbolicLink(link.toPath(), storage.toPath());
+
+            BackupItem b = new BackupItem();
+            b.direction = BackupItem.Direction.OUTGOING;
+            b.sources = new String[] {link.getPath() + "/DCIM"};
+            assertTrue(MediaChangeFeed.isMediaProfile(b, new ArrayList<String>(), storage.getCanonicalPath()));
+
+            String indexed = storage.getCanonicalPath() + "/DCIM/Camera/a.jpg";
+            String local = MediaChangeFeed.toSource(b.sources[0], indexed);
+            assertEquals(link.getPath() + "/DCIM/Camera/a.jpg", local);
+            assertEquals("DCIM/Camera/a.jpg", MediaChangeFeed.getRelative(b.sources[0], local));
+            assertNull(MediaChangeFeed.toSource(link.getPath() + "/Pictures/", indexed));
+        } finally {
+            link.delete();
+            new File(storage, "DCIM/Camera").delete();
+            new File(storage, "DCIM").delete();
+            storage.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void relative_paths() {
+        // as rsync names them: with the source's own name unless it ends with /
+        assertEquals("DCIM/Camera/a.jpg", MediaChangeFeed.getRelative("/sdcard/DCIM", "/sdcard/DCIM/Camera/a.jpg"));
+        assertEquals("Camera/a.jpg", MediaChangeFeed.getRelative("/sdcard/DCIM/", "/sdcard/DCIM/Camera/a.jpg"));
+        assertNull(MediaChangeFeed.getRelative("/sdcard/DCIM", "/sdcard/DCIMx/a.jpg"));
+        assertNull(MediaChangeFeed.getRelative("/sdcard/DCIM", "/sdcard/DCIM"));
+    }
+
+    @Test
+    public void watermarks() {
+        MediaChangeFeed.Watermark w = new MediaChangeFeed.Watermark(120, 1600000000, 10 * DAY, 9 * DAY, "abc");
+        MediaChangeFeed.Watermark parsed = MediaChangeFeed.Watermark.parse(w.toString());
+
+        assertEquals(120, parsed.maxId);
+        assertEquals(1600000000, parsed.maxModified);
+        assertEquals(9 * DAY, parsed.fullTime);
+        assertEquals("abc", parsed.key);
+        assertNull(MediaChangeFeed.Watermark.parse("garbage"));
+
+        MediaChangeFeed.Watermark now = new MediaChangeFeed.Watermark(130, 1600000100, 11 * DAY, 11 * DAY, "abc");
+        assertNull(MediaChangeFeed.getInvalidReason(w, now, now.time));
+
+        assertNotNull(MediaChangeFeed.getInvalidReason(null, now, now.time));
+        assertNotNull(MediaChangeFeed.getInvalidReason(w, new MediaChangeFeed.Watermark(130, 0, 0, 0, "other"), now.time));
+        assertNotNull(MediaChangeFeed.getInvalidReason(w, new MediaChangeFeed.Watermark(50, 0, 0, 0, "abc"), now.time));
+
+        // a week after the last run through all files, however many partial ones came since
+        assertNotNull(MediaChangeFeed.getInvalidReason(w, now, 9 * DAY + MediaChangeFeed.FULL_SCAN_AGE + 1));
+    }
+}
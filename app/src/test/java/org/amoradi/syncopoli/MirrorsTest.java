@@ -0,0 +1,124 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MirrorsTest {
+    @Test
+    public void parse() {
+        assertEquals(Arrays.asList("backup2", "pool"), Mirrors.parse(" backup2, pool ,backup2"));
+        assertEquals(Arrays.asList("a", "b"), Mirrors.parse("a b"));
+        assertTrue(Mirrors.parse("").isEmpty());
+        assertTrue(Mirrors.parse(null).isEmpty());
+    }
+
+    @Test
+    public void batch_size() {
+        TransferEstimator.Plan plan = new TransferEstimator.Plan();
+        plan.files = 1000;
+        plan.transferredSize = 10 * 1024 * 1024;
+        long size = Mirrors.getBatchSize(plan);
+        assertEquals(10 * 1024 * 1024 + 1000 * Mirrors.BATCH_FILE_BYTES, size);
+
+        assertTrue(Mirrors.fits(size, 3 * size));
+        assertFalse(Mirrors.fits(size, 2 * size));
+
+        // however much room the cache has
+        plan.transferredSize = Mirrors.MAX_BATCH;
+        assertFalse(Mirrors.fits(Mirrors.getBatchSize(plan), Long.MAX_VALUE / 4));
+    }
+
+    @Test
+    public void batch_size_from_history() {
+        assertEquals(-1, Mirrors.getBatchSize(new ArrayList<RunHistory.Run>()));
+
+        RunHistory.Run small = new RunHistory.Run();
+        small.filesTransferred = 10;
+        small.transferredSize = 1024;
+        RunHistory.Run large = new RunHistory.Run();
+        large.filesTransferred = 100;
+        large.transferredSize = 50 * 1024 * 1024;
+
+        // the largest recent run
+        assertEquals(50 * 1024 * 1024 + 100 * Mirrors.BATCH_FILE_BYTES, Mirrors.getBatchSize(Arrays.asList(small, large)));
+    }
+
+    @Test
+    public void mirror_items() {
+        BackupItem b = new BackupItem();
+        b.name = "photos";
+        b.server = "home";
+        b.sources = new String[] {"/sdcard/DCIM"};
+        b.mirrors = "backup2";
+
+        BackupItem item = Mirrors.getItem(b, "backup2");
+        assertEquals("photos/backup2", item.name);
+        assertEquals("backup2", item.server);
+        assertEquals("", item.mirrors);
+        assertEquals("photos", b.name);
+    }
+
+    @Test
+    public void replay_options() {
+        List<String> options = Arrays.asList("-a", "--delete", "--exclude=*.tmp", "--exclude", "cache/",
+                "--bwlimit=100", "--write-batch=/data/batch", "-e", "ssh -p 22", "--rsync-path=sudo rsync", "--stats");
+
+        assertEquals(Arrays.asList("-a", "--delete", "--stats"), Mirrors.getReplayOptions(options));
+        assertEquals("sudo rsync", Mirrors.getRsyncPath(options));
+        assertEquals("rsync", Mirrors.getRsyncPath(Arrays.asList("-a")));
+
+        BackupItem b = new BackupItem();
+        b.filters = "- *.jpg\n\n+ keep/";
+        assertEquals(Arrays.asList("- *.jpg", "+ keep/", "- *.tmp", "- cache/"), Mirrors.getRules(b, options, new File(".")));
+    }
+
+    @Test
+    public void replay_command() {
+        List<String> rules = new ArrayList<>();
+        assertEquals("rsync --read-batch=- '-a' ~/'backup'", Mirrors.getReplayCommand("rsync", Arrays.asList("-a"), rules, "~/backup"));
+        assertEquals("rsync --read-batch=- '-a' .", Mirrors.getReplayCommand("rsync", Arrays.asList("-a"), rules, ""));
+
+        rules.add("- it's.tmp");
+        String command = Mirrors.getReplayCommand("rsync", Arrays.asList("-a"), rules, "/srv/b");
+        assertTrue(command.contains("printf '%s\\n' '- it'\\''s.tmp' > \"$f\""));
+        assertTrue(command.contains("--filter=\". $f\" '/srv/b'"));
+    }
+
+    private static String run(String script) throws Exception {
+        Process p = new ProcessBuilder(Arrays.asList("sh", "-c", script)).redirectErrorStream(true).start();
+        p.getOutputStream().close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = p.getInputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+
+        assertEquals(out.toString("UTF-8"), 0, p.waitFor());
+        return out.toString("UTF-8");
+    }
+
+    /* what a shell makes of it, with rsync standing in for the rules it is given */
+    @Test
+    public void replay_command_runs() throws Exception {
+        if (!new File("/bin/sh").exists() || run("command -v mktemp || true").trim().equals("")) {
+            return;
+        }
+
+        List<String> rules = Arrays.asList("- it's.tmp", "+ $HOME");
+        String output = run(Mirrors.getReplayCommand("f() { echo \"$@\"; cat \"${3#--filter=. }\"; }; f", Arrays.asList("-a"), rules, "b c"));
+
+        assertEquals("--read-batch=- -a --filter=. ", output.substring(0, output.indexOf('/')));
+        assertTrue(output.endsWith(" b c\n- it's.tmp\n+ $HOME\n"));
+    }
+}
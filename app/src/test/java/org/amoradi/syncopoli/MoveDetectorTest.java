@@ -0,0 +1,137 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MoveDetectorTest {
+    private static final long MB = 1024 * 1024;
+
+    private static Manifest.Entry entry(String rel, long size, String hash) {
+        Manifest.Entry e = new Manifest.Entry("/sdcard/DCIM/" + rel, "DCIM/" + rel, size, 1000);
+        e.hash = hash;
+        return e;
+    }
+
+    private static Manifest.Reader write(File f, Manifest.Entry... entries) throws Exception {
+        List<Manifest.Entry> list = new ArrayList<>(Arrays.asList(entries));
+        Collections.sort(list, Manifest.ENTRY_ORDER);
+        Manifest.write(f, list);
+        return Manifest.Reader.open(f);
+    }
+
+    private static List<Manifest.Entry> sorted(Manifest.Entry... entries) {
+        List<Manifest.Entry> list = new ArrayList<>(Arrays.asList(entries));
+        Collections.sort(list, Manifest.ENTRY_ORDER);
+        return list;
+    }
+
+    @Test
+    public void moved_into_dated_folder() throws Exception {
+        File before = File.createTempFile("manifest", "");
+        File after = File.createTempFile("manifest", "");
+
+        try {
+            Manifest.Reader previous = write(before,
+                    entry("a.jpg", 3 * MB, "aaa0000000000000000000000000000a"),
+                    entry("b.jpg", 3 * MB, "bbb0000000000000000000000000000b"),
+                    entry("small.txt", 10, null),
+                    entry("kept.jpg", 5 * MB, "ddd0000000000000000000000000000d"));
+
+            List<Manifest.Entry> scan = sorted(
+                    entry("2020/a.jpg", 3 * MB, null),
+                    entry("2021/b.jpg", 3 * MB, null),
+                    entry("2021/small.txt", 10, null),
+                    entry("kept.jpg", 5 * MB, null),
+                    entry("new.jpg", 4 * MB, null));
+            Manifest.write(after, scan);
+            Manifest.Reader current = Manifest.Reader.open(after);
+
+            // small files and sizes only on one side never need hashing
+            MoveDetector.Candidates c = MoveDetector.getCandidates(previous, current, scan);
+            assertEquals(2, c.added.size());
+            assertEquals("DCIM/2020/a.jpg", c.added.get(0).rel);
+
+            c.added.get(0).hash = "aaa0000000000000000000000000000a";
+            // b.jpg was edited on the way
+            c.added.get(1).hash = "ccc0000000000000000000000000000c";
+
+            List<MoveDetector.Move> moves = MoveDetector.match(c);
+            assertEquals(1, moves.size());
+            assertEquals("DCIM/a.jpg", moves.get(0).from);
+            assertEquals("DCIM/2020/a.jpg", moves.get(0).to);
+
+            previous.close();
+            current.close();
+        } finally {
+            before.delete();
+            after.delete();
+        }
+    }
+
+    @Test
+    public void duplicates_moved_once() throws Exception {
+        File before = File.createTempFile("manifest", "");
+        File after = File.createTempFile("manifest", "");
+
+        try {
+            Manifest.Reader previous = write(before, entry("a.jpg", 3 * MB, "aaa0000000000000000000000000000a"));
+
+            List<Manifest.Entry> scan = sorted(entry("x/a.jpg", 3 * MB, null), entry("y/a.jpg", 3 * MB, null));
+            Manifest.write(after, scan);
+            Manifest.Reader current = Manifest.Reader.open(after);
+
+            MoveDetector.Candidates c = MoveDetector.getCandidates(previous, current, scan);
+            for (Manifest.Entry e : c.added) {
+                e.hash = "aaa0000000000000000000000000000a";
+            }
+
+            assertEquals(1, MoveDetector.match(c).size());
+
+            previous.close();
+            current.close();
+        } finally {
+            before.delete();
+            after.delete();
+        }
+    }
+
+    @Test
+    public void script() throws Exception {
+        MoveDetector.Move m = new MoveDetector.Move("DCIM/a.jpg", "DCIM/2020/it's.jpg", MB);
+
+        assertEquals("[ -f 'DCIM/a.jpg' ] && [ ! -e 'DCIM/2020/it'\\''s.jpg' ] && mkdir -p 'DCIM/2020' && " +
+                "mv 'DCIM/a.jpg' 'DCIM/2020/it'\\''s.jpg'\nexit 0\n", MoveDetector.getScript(Arrays.asList(m), true));
+
+        assertTrue(MoveDetector.getScript(Arrays.asList(m), false).contains("{ ln 'DCIM/a.jpg' 'DCIM/2020/it'\\''s.jpg' 2>/dev/null || cp -p"));
+
+        assertTrue(MoveDetector.deletes(Arrays.asList("-a", "--delete-after")));
+        assertFalse(MoveDetector.deletes(Arrays.asList("-a", "--delay-updates")));
+    }
+
+    @Test
+    public void base() throws Exception {
+        List<Manifest.Entry> entries = new ArrayList<>();
+        entries.add(new Manifest.Entry("/sdcard/DCIM/a.jpg", "DCIM/a.jpg", 1, 1));
+        entries.add(new Manifest.Entry("/sdcard/Music/b.mp3", "Music/b.mp3", 1, 1));
+        assertEquals("/sdcard/", MoveDetector.getBase(entries));
+
+        // a source sent with its trailing slash has a base of its own
+        entries.add(new Manifest.Entry("/sdcard/Documents/c.pdf", "c.pdf", 1, 1));
+        assertNull(MoveDetector.getBase(entries));
+    }
+
+    @Test
+    public void remote_command_expands_home() throws Exception {
+        assertEquals("cd ~/'backup/phone' && sh", MoveDetector.getRemoteCommand("~/backup/phone"));
+        assertEquals("cd ~ && sh", MoveDetector.getRemoteCommand("~"));
+        assertEquals("cd '/srv/it'\\''s' && sh", MoveDetector.getRemoteCommand("/srv/it's"));
+        assertEquals("cd . && sh", MoveDetector.getRemoteCommand(""));
+    }
+}
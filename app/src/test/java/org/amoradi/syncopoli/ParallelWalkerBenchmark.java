@@ -0,0 +1,137 @@
+package org.amoradi.syncopoli;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/*
+ * Serial against parallel walks of synthetic trees of different shapes,
+ * timed. Only run with gradle test -Dbenchmark=true, see app/build.gradle.
+ */
+public class ParallelWalkerBenchmark {
+    private static final int ROUNDS = 5;
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("benchmarks run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+
+        mRoot = File.createTempFile("walker", "");
+        mRoot.delete();
+        mRoot.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        if (mRoot != null) {
+            delete(mRoot);
+        }
+    }
+
+    private void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private void touch(File f, int size) throws IOException {
+        f.getParentFile().mkdirs();
+
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[size]);
+        out.close();
+    }
+
+    private static Set<String> walk(File root, int threads) throws InterruptedException {
+        final Set<String> found = new TreeSet<>();
+
+        new ParallelWalker(threads).walk(root, "", new ParallelWalker.Listener() {
+            @Override
+            public void onFile(String rel, File file, long size, long mtime) {
+                synchronized (found) {
+                    found.add(rel);
+                }
+            }
+        });
+
+        return found;
+    }
+
+    /* best time of ROUNDS walks of tree on threads, in ms */
+    private static long time(File tree, int threads) throws InterruptedException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            walk(tree, threads);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return best / 1000000;
+    }
+
+    private static void report(String shape, File tree) throws InterruptedException {
+        assertEquals(walk(tree, 1), walk(tree, ParallelWalker.DEFAULT_THREADS));
+
+        long serial = time(tree, 1);
+        long parallel = time(tree, ParallelWalker.DEFAULT_THREADS);
+        System.out.println(String.format(Locale.ENGLISH, "walker %-5s serial %5d ms, %d threads %5d ms",
+                shape, serial, ParallelWalker.DEFAULT_THREADS, parallel));
+    }
+
+    @Test
+    public void deep() throws Exception {
+        // chains of directories with a few files each
+        File tree = new File(mRoot, "deep");
+        for (int c = 0; c < 20; c++) {
+            File d = new File(tree, "chain" + c);
+            for (int i = 0; i < 100; i++) {
+                d = new File(d, "d" + (i % 10));
+                touch(new File(d, "f1"), 0);
+                touch(new File(d, "f2"), 0);
+            }
+        }
+
+        report("deep", tree);
+    }
+
+    @Test
+    public void wide() throws Exception {
+        // many directories side by side, each with a few files
+        File tree = new File(mRoot, "wide");
+        for (int i = 0; i < 5000; i++) {
+            for (int j = 0; j < 3; j++) {
+                touch(new File(tree, "dir" + i + "/f" + j), 1);
+            }
+        }
+
+        report("wide", tree);
+    }
+
+    @Test
+    public void tiny() throws Exception {
+        // a few directories holding many empty files
+        File tree = new File(mRoot, "tiny");
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 2500; j++) {
+                touch(new File(tree, "dir" + i + "/f" + j), 0);
+            }
+        }
+
+        report("tiny", tree);
+    }
+}
@@ -0,0 +1,186 @@
+package org.amoradi.syncopoli;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class ParallelWalkerTest {
+    private File mRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("walker", "");
+        mRoot.delete();
+        mRoot.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mRoot);
+    }
+
+    private void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private void touch(File f, int size) throws IOException {
+        f.getParentFile().mkdirs();
+
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[size]);
+        out.close();
+    }
+
+    private static Set<String> walk(File root, int threads, ParallelWalker.Filter filter) throws InterruptedException {
+        final Set<String> found = new TreeSet<>();
+
+        ParallelWalker walker = new ParallelWalker(threads);
+        walker.setFilter(filter);
+        walker.walk(root, "", new ParallelWalker.Listener() {
+            @Override
+            public void onFile(String rel, File file, long size, long mtime) {
+                synchronized (found) {
+                    found.add(rel + ":" + size);
+                }
+            }
+        });
+
+        return found;
+    }
+
+    @Test
+    public void finds_every_file() throws Exception {
+        touch(new File(mRoot, "a"), 1);
+        touch(new File(mRoot, "d/b"), 2);
+        touch(new File(mRoot, "d/e/f/c"), 3);
+        new File(mRoot, "empty").mkdir();
+
+        Set<String> found = walk(mRoot, 4, null);
+        assertEquals("[a:1, d/b:2, d/e/f/c:3]", found.toString());
+    }
+
+    @Test
+    public void excluded_directories_not_entered() throws Exception {
+        touch(new File(mRoot, "keep/a"), 1);
+        touch(new File(mRoot, "cache/b"), 1);
+        touch(new File(mRoot, "keep/x.tmp"), 1);
+
+        final Set<String> asked = new TreeSet<>();
+        Set<String> found = walk(mRoot, 2, new ParallelWalker.Filter() {
+            @Override
+            public boolean excludes(String rel, boolean directory) {
+                synchronized (asked) {
+                    asked.add(rel);
+                }
+                return rel.equals("cache") || rel.endsWith(".tmp");
+            }
+        });
+
+        assertEquals("[keep/a:1]", found.toString());
+        assertFalse(asked.contains("cache/b"));
+    }
+
+    @Test
+    public void single_file_root() throws Exception {
+        File f = new File(mRoot, "only");
+        touch(f, 5);
+
+        final Set<String> found = new TreeSet<>();
+        new ParallelWalker(2).walk(f, "only", new ParallelWalker.Listener() {
+            @Override
+            public void onFile(String rel, File file, long size, long mtime) {
+                found.add(rel + ":" + size);
+            }
+        });
+
+        assertEquals("[only:5]", found.toString());
+    }
+
+    /*
+     * Synthetic trees of different shapes walked on 1 thread and on the
+     * default number; both must find the same files.
+     */
+    @Test
+    public void shapes_match_serial() throws Exception {
+
+        // deep: a chain of directories with a few files each
+        File deep = new File(mRoot, "deep");
+        File d = deep;
+        for (int i = 0; i < 100; i++) {
+            d = new File(d, "d" + (i % 10));
+            touch(new File(d, "f1"), 0);
+            touch(new File(d, "f2"), 0);
+        }
+
+        // wide: many directories side by side, each with a few files
+        File wide = new File(mRoot, "wide");
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < 3; j++) {
+                touch(new File(wide, "dir" + i + "/f" + j), 1);
+            }
+        }
+
+        // tiny: a few directories holding many empty files
+        File tiny = new File(mRoot, "tiny");
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 250; j++) {
+                touch(new File(tiny, "dir" + i + "/f" + j), 0);
+            }
+        }
+
+        for (File tree : new File[] {deep, wide, tiny}) {
+            Set<String> serial = walk(tree, 1, null);
+            assertEquals(serial, walk(tree, ParallelWalker.DEFAULT_THREADS, null));
+        }
+        assertEquals(200 * 3, walk(wide, 1, null).size());
+    }
+
+    @Test
+    public void directories_and_cancel() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            touch(new File(mRoot, "a/b" + i + "/f"), 1);
+        }
+        new File(mRoot, "empty").mkdir();
+
+        final Set<String> dirs = new TreeSet<>();
+        final ParallelWalker walker = new ParallelWalker(4);
+        final int[] files = {0};
+        walker.walk(mRoot, "root", new ParallelWalker.DirectoryListener() {
+            @Override
+            public void onDirectory(String rel, File dir) {
+                synchronized (dirs) {
+                    dirs.add(rel);
+                }
+            }
+
+            @Override
+            public void onFile(String rel, File file, long size, long mtime) {
+                synchronized (dirs) {
+                    assertTrue(dirs.contains(rel.substring(0, rel.lastIndexOf('/'))));
+                    if (++files[0] == 5) {
+                        walker.cancel();
+                    }
+                }
+            }
+        });
+
+        assertTrue(dirs.contains("root"));
+        assertTrue(dirs.contains("root/a"));
+        // cancelled: listings under way stop, nothing more is queued
+        assertTrue("" + files[0], files[0] >= 5 && files[0] < 20);
+    }
+}
@@ -0,0 +1,136 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ProfileBatchTest {
+    protected BackupItem item(String name, String destination, String... sources) {
+        BackupItem b = new BackupItem();
+        b.name = name;
+        b.sources = sources;
+        b.destination = destination;
+        b.direction = BackupItem.Direction.OUTGOING;
+        b.rsync_options = "";
+        return b;
+    }
+
+    @Test
+    public void compatible_profiles_share_a_batch() throws Exception {
+        BackupItem photos = item("photos", "backup", "/sdcard/DCIM");
+        BackupItem docs = item("docs", "backup", "/sdcard/Documents", "/sdcard/Download");
+        BackupItem other = item("other", "elsewhere", "/sdcard/Music");
+
+        List<ProfileBatch> batches = ProfileBatch.group(Arrays.asList(photos, docs, other));
+
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList(photos, docs), batches.get(0).getItems());
+        assertEquals(Arrays.asList(other), batches.get(1).getItems());
+
+        BackupItem merged = batches.get(0).getMerged();
+        assertEquals("photos, docs", merged.name);
+        assertArrayEquals(new String[] {"/sdcard/DCIM", "/sdcard/Documents", "/sdcard/Download"}, merged.sources);
+    }
+
+    @Test
+    public void batch_without_unchanged() throws Exception {
+        BackupItem photos = item("photos", "backup", "/sdcard/DCIM");
+        BackupItem docs = item("docs", "backup", "/sdcard/Documents");
+        BackupItem music = item("music", "backup", "/sdcard/Music");
+        ProfileBatch batch = ProfileBatch.group(Arrays.asList(photos, docs, music)).get(0);
+
+        ProfileBatch rest = batch.without(Arrays.asList(docs));
+        assertEquals(Arrays.asList(photos, music), rest.getItems());
+        assertEquals(3, batch.size());
+        assertArrayEquals(new String[] {"/sdcard/DCIM", "/sdcard/Music"}, rest.getMerged().sources);
+        assertEquals(music, rest.getOwner("Music/song.mp3"));
+        assertNull(rest.getOwner("Documents/a.txt"));
+    }
+
+    @Test
+    public void ambiguous_sources_run_alone() throws Exception {
+        BackupItem a = item("a", "backup", "/sdcard/DCIM/");
+        BackupItem b = item("b", "backup", "/sdcard/DCIM");
+        BackupItem c = item("c", "backup", "/storage/extSdCard/DCIM");
+
+        BackupItem d = item("d", "backup", "/sdcard/Pictures");
+        d.shards = 4;
+
+        List<ProfileBatch> batches = ProfileBatch.group(Arrays.asList(a, b, c, d));
+
+        assertEquals(4, batches.size());
+        for (ProfileBatch batch : batches) {
+            assertEquals(1, batch.size());
+        }
+    }
+
+    @Test
+    public void output_is_attributed_to_profiles() throws Exception {
+        BackupItem photos = item("photos", "backup", "/sdcard/DCIM");
+        BackupItem docs = item("docs", "backup", "/sdcard/Documents");
+        ProfileBatch batch = ProfileBatch.group(Arrays.asList(photos, docs)).get(0);
+
+        Map<BackupItem, OutputStream> logs = new LinkedHashMap<>();
+        ByteArrayOutputStream photosLog = new ByteArrayOutputStream();
+        ByteArrayOutputStream docsLog = new ByteArrayOutputStream();
+        logs.put(photos, photosLog);
+        logs.put(docs, docsLog);
+
+        ProfileBatch.BatchLog log = new ProfileBatch.BatchLog(batch, logs);
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                "sending incremental file list",
+                "4096 0 DCIM/",
+                "1000 1010 DCIM/IMG 1.jpg",
+                "2000 30 Documents/a.txt",
+                "deleting Documents/old.txt",
+                "Total bytes sent: 1,100"));
+        for (String line : lines) {
+            log.write((line + "\n").getBytes());
+        }
+
+        assertEquals("sending incremental file list\nDCIM/\nDCIM/IMG 1.jpg\nTotal bytes sent: 1,100\n", photosLog.toString());
+        assertEquals("sending incremental file list\nDocuments/a.txt\ndeleting Documents/old.txt\nTotal bytes sent: 1,100\n", docsLog.toString());
+
+        assertEquals(1, log.getResult(photos).files);
+        assertEquals(1000, log.getResult(photos).size);
+        assertEquals(1010, log.getResult(photos).bytes);
+        assertEquals(1, log.getResult(docs).files);
+        assertEquals(30, log.getResult(docs).bytes);
+    }
+
+    @Test
+    public void errors_fail_only_their_profile() throws Exception {
+        BackupItem photos = item("photos", "backup", "/sdcard/DCIM");
+        BackupItem docs = item("docs", "backup", "/sdcard/Documents");
+        ProfileBatch batch = ProfileBatch.group(Arrays.asList(photos, docs)).get(0);
+
+        Map<BackupItem, OutputStream> logs = new LinkedHashMap<>();
+        ByteArrayOutputStream photosLog = new ByteArrayOutputStream();
+        ByteArrayOutputStream docsLog = new ByteArrayOutputStream();
+        logs.put(photos, photosLog);
+        logs.put(docs, docsLog);
+
+        ProfileBatch.BatchLog log = new ProfileBatch.BatchLog(batch, logs);
+        log.write("rsync: send_files failed to open \"/sdcard/DCIM/x.jpg\": Permission denied (13)\n".getBytes());
+
+        assertEquals(1, log.getResult(photos).errors);
+        assertEquals("", docsLog.toString());
+        assertEquals(ProfileBatch.PARTIAL, batch.getExitCode(photos, log, ProfileBatch.PARTIAL));
+        assertEquals(0, batch.getExitCode(docs, log, ProfileBatch.PARTIAL));
+        // anything else holds for the whole batch
+        assertEquals(12, batch.getExitCode(docs, log, 12));
+
+        // a complaint nobody owns fails everyone
+        log.write("rsync: some error \"elsewhere\" (2)\n".getBytes());
+        assertEquals(1, log.getUnattributedErrors());
+        assertEquals(ProfileBatch.PARTIAL, batch.getExitCode(docs, log, ProfileBatch.PARTIAL));
+    }
+}
@@ -0,0 +1,126 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RemoteWatcherTest {
+    private static final String SUM = "d41d8cd98f00b204e9800998ecf8427e";
+
+    @Test
+    public void parse_token() {
+        assertEquals(SUM + "," + SUM, RemoteWatcher.parseToken(SUM + "  -\n" + SUM.toUpperCase() + "  -\n", 2));
+
+        // a source short, or something that isn't md5sum
+        assertNull(RemoteWatcher.parseToken(SUM + "  -\n", 2));
+        assertNull(RemoteWatcher.parseToken("sh: md5sum: not found\n", 1));
+        assertNull(RemoteWatcher.parseToken("", 1));
+    }
+
+    @Test
+    public void saved_tokens() {
+        long now = 1000000000000L;
+        String saved = now + ":abc:" + SUM;
+
+        assertTrue(RemoteWatcher.matches(saved, "abc", SUM, now + 1000));
+        assertFalse(RemoteWatcher.matches(saved, "abd", SUM, now + 1000));
+        assertFalse(RemoteWatcher.matches(saved, "abc", SUM.replace('d', 'e'), now + 1000));
+        assertFalse(RemoteWatcher.matches(saved, "abc", SUM, now + RemoteWatcher.MAX_AGE + 1));
+        assertFalse(RemoteWatcher.matches(saved, "abc", SUM, now - 1000));
+        assertFalse(RemoteWatcher.matches(null, "abc", SUM, now));
+    }
+
+    @Test
+    public void watchable_servers() {
+        BackupItem b = new BackupItem();
+        b.direction = BackupItem.Direction.INCOMING;
+        b.sources = new String[] {"/srv/music"};
+
+        Server ssh = new Server();
+        ssh.protocol = "SSH";
+        Server daemon = new Server();
+        daemon.protocol = "Rsync";
+
+        assertTrue(RemoteWatcher.isWatchable(b, ssh, 0));
+        assertFalse(RemoteWatcher.isWatchable(b, daemon, 0));
+        // the tunnel goes to the rsync daemon, there is no login to watch with
+        assertFalse(RemoteWatcher.isWatchable(b, ssh, 873));
+
+        // a pool is only watched if every member is
+        assertTrue(RemoteWatcher.isWatchable(b, Arrays.asList(ssh, ssh), 0));
+        assertFalse(RemoteWatcher.isWatchable(b, Arrays.asList(ssh, daemon), 0));
+        assertFalse(RemoteWatcher.isWatchable(b, Arrays.<Server>asList(), 0));
+
+        b.direction = BackupItem.Direction.OUTGOING;
+        assertFalse(RemoteWatcher.isWatchable(b, ssh, 0));
+    }
+
+    @Test
+    public void quoting() {
+        assertEquals("'/srv/it'\\''s'", RemoteWatcher.quoteSource("/srv/it's"));
+        assertEquals("~/'Music/'", RemoteWatcher.quoteSource("~/Music/"));
+        assertEquals("~", RemoteWatcher.quoteSource("~"));
+        assertTrue(RemoteWatcher.getWatchScript(new String[] {"a", "b c"}, 30).contains("--format . 'a' 'b c'; fi;"));
+    }
+
+    private static String run(String script, File dir) throws Exception {
+        Process p = new ProcessBuilder(Arrays.asList("sh", "-c", script)).directory(dir).start();
+        p.getOutputStream().close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = p.getInputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+
+        assertEquals(0, p.waitFor());
+        return out.toString("UTF-8");
+    }
+
+    private static void write(File f, String s, long mtime) throws Exception {
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(s.getBytes("UTF-8"));
+        out.close();
+        assertTrue(f.setLastModified(mtime));
+    }
+
+    @Test
+    public void token_script() throws Exception {
+        if (!new File("/bin/sh").exists() || run("command -v md5sum || true", new File(".")).trim().equals("")) {
+            return;
+        }
+
+        File dir = File.createTempFile("remote", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File sub = new File(dir, "it's here");
+        assertTrue(sub.mkdir());
+        File f = new File(sub, "a.txt");
+
+        try {
+            write(f, "one", 1500000000000L);
+            String[] sources = {"it's here", "missing/"};
+
+            String first = RemoteWatcher.parseToken(run(RemoteWatcher.getTokenScript(sources), dir), 2);
+            assertNotNull(first);
+            assertEquals(first, RemoteWatcher.parseToken(run(RemoteWatcher.getTokenScript(sources), dir), 2));
+
+            // same size, written later
+            write(f, "two", 1600000000000L);
+            String second = RemoteWatcher.parseToken(run(RemoteWatcher.getTokenScript(sources), dir), 2);
+            assertFalse(first.equals(second));
+            assertEquals(first.split(",")[1], second.split(",")[1]);
+        } finally {
+            f.delete();
+            sub.delete();
+            dir.delete();
+        }
+    }
+}
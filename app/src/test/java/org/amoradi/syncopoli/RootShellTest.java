@@ -0,0 +1,61 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RootShellTest {
+    @Test
+    public void quote_plain() throws Exception {
+        assertEquals("'/sdcard/DCIM'", RootShell.quote("/sdcard/DCIM"));
+        assertEquals("''", RootShell.quote(""));
+    }
+
+    @Test
+    public void quote_special_characters() throws Exception {
+        assertEquals("'ssh -p 22 -i /data/key'", RootShell.quote("ssh -p 22 -i /data/key"));
+        assertEquals("'$HOME `id` \"x\" \\n'", RootShell.quote("$HOME `id` \"x\" \\n"));
+    }
+
+    @Test
+    public void quote_single_quote() throws Exception {
+        assertEquals("'it'\\''s'", RootShell.quote("it's"));
+        assertEquals("''\\'''\\'''", RootShell.quote("''"));
+    }
+
+    @Test
+    public void interrupted_command_does_not_leak() throws Exception {
+        RootShell shell = RootShell.start("sh");
+        try {
+            try {
+                shell.run(Arrays.asList("sh", "-c", "echo a; echo b; exit 3"), null, null, new RootShell.OutputListener() {
+                    @Override
+                    public void onLine(String line) throws IOException {
+                        throw new IOException("stop at " + line);
+                    }
+                });
+                fail("listener did not stop the run");
+            } catch (IOException e) {
+                assertEquals("stop at a", e.getMessage());
+            }
+
+            final List<String> lines = new ArrayList<>();
+            int ret = shell.run(Arrays.asList("sh", "-c", "echo c; exit 5"), null, null, new RootShell.OutputListener() {
+                @Override
+                public void onLine(String line) {
+                    lines.add(line);
+                }
+            });
+
+            assertEquals(5, ret);
+            assertEquals(Arrays.asList("c"), lines);
+        } finally {
+            shell.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RsyncStatsTest {
+    protected RsyncStats parse(String output) {
+        RsyncStats stats = new RsyncStats();
+        for (String line : output.split("\n")) {
+            stats.feed(line);
+        }
+        return stats;
+    }
+
+    @Test
+    public void rsync_31_stats() throws Exception {
+        RsyncStats s = parse(
+                "sending incremental file list\n" +
+                "DCIM/IMG_0001.jpg\n" +
+                "\n" +
+                "Number of files: 1,204 (reg: 1,190, dir: 14)\n" +
+                "Number of created files: 3 (reg: 3)\n" +
+                "Number of deleted files: 0\n" +
+                "Number of regular files transferred: 3\n" +
+                "Total file size: 2,345,678,901 bytes\n" +
+                "Total transferred file size: 12,345,678 bytes\n" +
+                "Literal data: 12,345,678 bytes\n" +
+                "Matched data: 0 bytes\n" +
+                "File list size: 45,678\n" +
+                "Total bytes sent: 12,400,123\n" +
+                "Total bytes received: 1,234\n" +
+                "\n" +
+                "sent 12,400,123 bytes  received 1,234 bytes  1,653,514.27 bytes/sec\n");
+
+        assertTrue(s.isComplete());
+        assertEquals(1204, s.files);
+        assertEquals(3, s.filesTransferred);
+        assertEquals(2345678901L, s.totalSize);
+        assertEquals(12345678, s.transferredSize);
+        assertEquals(12400123, s.bytesSent);
+        assertEquals(1234, s.bytesReceived);
+        assertEquals(12401357, s.getWireBytes());
+    }
+
+    @Test
+    public void rsync_30_stats() throws Exception {
+        RsyncStats s = parse(
+                "Number of files: 12\n" +
+                "Number of files transferred: 2\n" +
+                "Total file size: 4096 bytes\n" +
+                "Total bytes sent: 500\n" +
+                "Total bytes received: 42\n");
+
+        assertEquals(2, s.filesTransferred);
+        assertEquals(4096, s.totalSize);
+        assertEquals(542, s.getWireBytes());
+    }
+
+    @Test
+    public void human_readable_stats() throws Exception {
+        RsyncStats s = parse(
+                "Total transferred file size: 1.50M bytes\n" +
+                "Total bytes sent: 2K\n" +
+                "Total bytes received: 10\n" +
+                "Total file size: 3.21G bytes\n");
+
+        assertEquals(1500000, s.transferredSize);
+        assertEquals(2000, s.bytesSent);
+        assertEquals(3210000000L, s.totalSize);
+        assertEquals(10, s.bytesReceived);
+    }
+
+    @Test
+    public void incomplete_without_summary() throws Exception {
+        RsyncStats s = parse("rsync: connection unexpectedly closed\n");
+        assertFalse(s.isComplete());
+        assertEquals(0, s.getWireBytes());
+    }
+}
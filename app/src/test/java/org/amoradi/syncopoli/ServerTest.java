@@ -0,0 +1,77 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ServerTest {
+    private Server defaults;
+
+    @Before
+    public void setUp() {
+        defaults = new Server();
+        defaults.address = "10.0.0.3";
+        defaults.port = "2222";
+        defaults.protocol = "SSH";
+        defaults.username = "phone";
+        defaults.rsyncPassword = "";
+        defaults.sshPassword = "secret";
+        defaults.privateKey = "";
+    }
+
+    @Test
+    public void parse_takes_defaults() throws Exception {
+        Server s = Server.parse("nas 192.168.1.10", defaults);
+        assertEquals("nas", s.name);
+        assertEquals("192.168.1.10", s.address);
+        assertEquals("2222", s.port);
+        assertEquals("SSH", s.protocol);
+        assertEquals("phone", s.username);
+        assertEquals("secret", s.sshPassword);
+        assertEquals("", s.pool);
+    }
+
+    @Test
+    public void parse_options() throws Exception {
+        Server s = Server.parse("m1 [fd00::1]:873 protocol=Rsync user=backup password=pw key=/sdcard/id pool=offsite", defaults);
+        assertEquals("fd00::1", s.address);
+        assertEquals("873", s.port);
+        assertEquals("Rsync", s.protocol);
+        assertEquals("backup", s.username);
+        assertEquals("pw", s.rsyncPassword);
+        assertEquals("/sdcard/id", s.privateKey);
+        assertEquals("offsite", s.pool);
+    }
+
+    @Test
+    public void parse_default_port_of_other_protocol() throws Exception {
+        assertEquals("873", Server.parse("m1 mirror protocol=Rsync", defaults).port);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_without_address() throws Exception {
+        Server.parse("nas", defaults);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_list_duplicate_name() throws Exception {
+        Server.parseList("nas 10.0.0.1\nnas 10.0.0.2\n", defaults);
+    }
+
+    @Test
+    public void find_members() throws Exception {
+        List<Server> servers = Server.parseList("# mirrors\nm1 a pool=offsite\nnas b\nm2 c pool=offsite\n", defaults);
+        assertEquals(3, servers.size());
+
+        List<Server> pool = Server.findMembers(servers, "offsite");
+        assertEquals(2, pool.size());
+        assertEquals("m1", pool.get(0).name);
+        assertEquals("m2", pool.get(1).name);
+
+        assertEquals(1, Server.findMembers(servers, "nas").size());
+        assertTrue(Server.findMembers(servers, "none").isEmpty());
+    }
+}
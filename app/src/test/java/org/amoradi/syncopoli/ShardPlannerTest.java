@@ -0,0 +1,163 @@
+package org.amoradi.syncopoli;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ShardPlannerTest {
+    private File mRoot;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = File.createTempFile("shards", "");
+        mRoot.delete();
+        mRoot.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mRoot);
+    }
+
+    private void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    private void touch(String path, int size) throws IOException {
+        File f = new File(mRoot, path);
+        f.getParentFile().mkdirs();
+
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[size]);
+        out.close();
+    }
+
+    /* every file below the source must end up in exactly one shard */
+    private Set<String> covered(List<ShardPlanner.Shard> shards) {
+        Set<String> paths = new HashSet<>();
+        for (ShardPlanner.Shard s : shards) {
+            for (ShardPlanner.Unit u : s.units) {
+                for (String p : u.paths) {
+                    assertTrue("duplicate " + p, paths.add(p));
+                }
+            }
+        }
+        return paths;
+    }
+
+    private boolean isCovered(Set<String> paths, String file) {
+        for (String p = file; p != null; p = new File(p).getParent()) {
+            if (paths.contains(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void large_directories_are_split() throws Exception {
+        touch("DCIM/a/1.jpg", 10);
+        touch("DCIM/a/2.jpg", 10);
+        touch("DCIM/b/c/3.jpg", 10);
+        touch("DCIM/b/c/4.jpg", 10);
+        touch("DCIM/b/c/5.jpg", 10);
+        touch("DCIM/b/c/6.jpg", 10);
+
+        String source = new File(mRoot, "DCIM").getPath();
+        List<ShardPlanner.Shard> shards = new ShardPlanner().plan(new String[] {source}, 2);
+
+        assertEquals(2, shards.size());
+        assertEquals(mRoot.getPath(), shards.get(0).units.get(0).base);
+
+        Set<String> paths = covered(shards);
+        assertFalse(paths.contains("DCIM"));
+        for (String f : new String[] {"DCIM/a/1.jpg", "DCIM/a/2.jpg", "DCIM/b/c/3.jpg", "DCIM/b/c/6.jpg"}) {
+            assertTrue(f, isCovered(paths, f));
+        }
+    }
+
+    @Test
+    public void flat_directory_is_chunked_and_balanced() throws Exception {
+        for (int i = 0; i < 400; i++) {
+            touch("Camera/" + i + ".jpg", 1000);
+        }
+
+        String source = new File(mRoot, "Camera").getPath() + "/";
+        List<ShardPlanner.Shard> shards = new ShardPlanner().plan(new String[] {source}, 4);
+
+        assertEquals(4, shards.size());
+        assertEquals(400, covered(shards).size());
+
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (ShardPlanner.Shard s : shards) {
+            min = Math.min(min, s.cost);
+            max = Math.max(max, s.cost);
+            assertEquals(1, s.getFileLists().size());
+            assertEquals(source, s.getFileLists().get(0).base);
+        }
+
+        assertTrue(max - min <= max / 4);
+    }
+
+    @Test
+    public void fewer_shards_than_units() throws Exception {
+        touch("only.txt", 10);
+
+        String source = new File(mRoot, "only.txt").getPath();
+        List<ShardPlanner.Shard> shards = new ShardPlanner().plan(new String[] {source}, 8);
+
+        assertEquals(1, shards.size());
+        assertTrue(covered(shards).contains("only.txt"));
+    }
+
+    @Test
+    public void filtered_files_cost_nothing() throws Exception {
+        for (int i = 0; i < 40; i++) {
+            touch("Camera/" + i + ".jpg", 1000);
+            touch("Camera/" + i + ".tmp", 1000000);
+        }
+        touch("Camera/cache/big.jpg", 1000000);
+
+        String source = new File(mRoot, "Camera").getPath() + "/";
+        ShardPlanner planner = new ShardPlanner();
+        planner.setFilter(new FilterRules("- *.tmp\n- /cache/"));
+        List<ShardPlanner.Shard> shards = planner.plan(new String[] {source}, 4);
+
+        long cost = 0;
+        for (ShardPlanner.Shard s : shards) {
+            cost += s.cost;
+        }
+        assertEquals(40 * (1000 + ShardPlanner.PER_FILE_COST), cost);
+
+        Set<String> paths = covered(shards);
+        assertEquals(40, paths.size());
+        for (String p : paths) {
+            assertTrue(p, p.endsWith(".jpg"));
+        }
+
+        // a source left out as a whole
+        planner.setFilter(new FilterRules("- Camera"));
+        assertTrue(planner.plan(new String[] {new File(mRoot, "Camera").getPath()}, 4).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void missing_source() throws Exception {
+        new ShardPlanner().plan(new String[] {new File(mRoot, "missing").getPath()}, 2);
+    }
+}
@@ -0,0 +1,160 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SnapshotsTest {
+    @Test
+    public void retention() {
+        Snapshots.Retention r = Snapshots.parseRetention(" 24h, 7d 4W");
+        assertEquals(24, r.hourly);
+        assertEquals(7, r.daily);
+        assertEquals(4, r.weekly);
+
+        assertEquals(0, Snapshots.parseRetention("3d").hourly);
+
+        for (String spec : new String[]{"24", "h", "7x", "1d 2"}) {
+            try {
+                Snapshots.parseRetention(spec);
+                fail("read " + spec);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(spec));
+            }
+        }
+    }
+
+    @Test
+    public void names() {
+        assertEquals(0, Snapshots.parseName("1970-01-01_000000"));
+        assertEquals(3600 * 1000L + 61000L, Snapshots.parseName("1970-01-01_010101"));
+        assertEquals(-1, Snapshots.parseName("latest"));
+        assertEquals(-1, Snapshots.parseName(".incomplete"));
+        assertEquals(-1, Snapshots.parseName("2017-13-01_000000"));
+        assertEquals(-1, Snapshots.parseName("2017-1-01_000000"));
+
+        long time = System.currentTimeMillis() / 1000 * 1000;
+        assertEquals(time, Snapshots.parseName(Snapshots.getName(time)));
+        assertEquals("1970-01-01_010101", Snapshots.getName(3600 * 1000L + 61000L));
+    }
+
+    @Test
+    public void expired() {
+        List<String> names = new ArrayList<>(Arrays.asList(
+                // Monday to Thursday, 2017-05-01 is a Monday
+                "2017-05-01_100000", "2017-05-02_100000", "2017-05-03_100000", "2017-05-04_100000",
+                // three in one hour and one more the next
+                "2017-05-04_120000", "2017-05-04_121500", "2017-05-04_123000", "2017-05-04_130000",
+                // the week before
+                "2017-04-24_100000", "2017-04-30_230000",
+                "latest", ".incomplete", "notes.txt"));
+
+        Snapshots.Retention r = new Snapshots.Retention();
+        // just the newest
+        List<String> expired = Snapshots.getExpired(names, "2017-05-04_130000", r);
+        assertEquals(9, expired.size());
+        assertEquals("2017-04-24_100000", expired.get(0));
+        assertFalse(expired.contains("2017-05-04_130000"));
+        assertFalse(expired.contains("latest"));
+
+        r.hourly = 2;
+        assertEquals(8, Snapshots.getExpired(names, "2017-05-04_130000", r).size());
+        assertFalse(Snapshots.getExpired(names, "2017-05-04_130000", r).contains("2017-05-04_123000"));
+
+        r.hourly = 0;
+        r.daily = 3;
+        expired = Snapshots.getExpired(names, "2017-05-04_130000", r);
+        assertEquals(Arrays.asList("2017-04-24_100000", "2017-04-30_230000", "2017-05-01_100000",
+                "2017-05-04_100000", "2017-05-04_120000", "2017-05-04_121500", "2017-05-04_123000"), expired);
+
+        // Sunday's is the newest of its week, Monday's starts the next one
+        r.daily = 0;
+        r.weekly = 2;
+        expired = Snapshots.getExpired(names, "2017-05-04_130000", r);
+        assertFalse(expired.contains("2017-04-30_230000"));
+        assertTrue(expired.contains("2017-04-24_100000"));
+        assertTrue(expired.contains("2017-05-01_100000"));
+    }
+
+    /* the clock went back: the snapshot just made sorts before the others */
+    @Test
+    public void current_is_kept() {
+        List<String> names = new ArrayList<>(Arrays.asList(
+                "2017-05-04_120000", "2017-05-04_130000", "2017-05-04_110000"));
+
+        List<String> expired = Snapshots.getExpired(names, "2017-05-04_110000", new Snapshots.Retention());
+        assertEquals(Arrays.asList("2017-05-04_120000"), expired);
+    }
+
+    @Test
+    public void items() {
+        BackupItem b = new BackupItem();
+        b.sources = new String[]{"/sdcard/DCIM"};
+        b.destination = "backups/";
+        assertEquals("backups/.incomplete", Snapshots.getIncomplete(b).destination);
+        b.destination = "";
+        assertEquals("latest", Snapshots.getLatest(b).destination);
+        assertEquals("", b.destination);
+    }
+
+    private static int sh(File dir, String script) throws Exception {
+        Process p = new ProcessBuilder(Arrays.asList("sh", "-c", script)).directory(dir).redirectErrorStream(true).start();
+        p.getOutputStream().close();
+        InputStream in = p.getInputStream();
+        while (in.read() >= 0) {
+        }
+        return p.waitFor();
+    }
+
+    /* what the server makes of it */
+    @Test
+    public void finish_script() throws Exception {
+        if (!new File("/bin/sh").exists()) {
+            return;
+        }
+
+        File dir = File.createTempFile("snapshots", "");
+        assertTrue(dir.delete() && dir.mkdir());
+
+        try {
+            assertTrue(new File(dir, "2017-05-01_100000").mkdir());
+            assertTrue(new File(dir, "it's").mkdir());
+            assertTrue(new File(dir, ".incomplete").mkdir());
+            assertTrue(new File(dir, ".incomplete/a").createNewFile());
+
+            String script = Snapshots.getFinishScript("'" + dir.getAbsolutePath() + "'", "2017-05-02_100000",
+                    Arrays.asList("2017-05-01_100000", "it's"));
+            assertEquals(0, sh(dir, script));
+
+            assertFalse(new File(dir, ".incomplete").exists());
+            assertFalse(new File(dir, "2017-05-01_100000").exists());
+            assertFalse(new File(dir, "it's").exists());
+            assertTrue(new File(dir, "latest/a").exists());
+            assertEquals(new File(dir, "2017-05-02_100000").getCanonicalPath(), new File(dir, "latest").getCanonicalPath());
+
+            // the next one moves the link
+            assertTrue(new File(dir, ".incomplete").mkdir());
+            assertEquals(0, sh(dir, Snapshots.getFinishScript(".", "2017-05-03_100000", new ArrayList<String>())));
+            assertEquals(new File(dir, "2017-05-03_100000").getCanonicalPath(), new File(dir, "latest").getCanonicalPath());
+            assertFalse(new File(dir, ".latest.new").exists());
+
+            // a snapshot of that name is left alone
+            assertTrue(new File(dir, ".incomplete").mkdir());
+            assertTrue(sh(dir, Snapshots.getFinishScript(".", "2017-05-03_100000", new ArrayList<String>())) != 0);
+            assertTrue(new File(dir, ".incomplete").exists());
+            assertFalse(new File(dir, "2017-05-03_100000/.incomplete").exists());
+            assertTrue(new File(dir, ".incomplete").delete());
+
+            // nothing to finish
+            assertTrue(sh(dir, Snapshots.getFinishScript(".", "2017-05-04_100000", new ArrayList<String>())) != 0);
+        } finally {
+            sh(dir.getParentFile(), "rm -rf '" + dir.getAbsolutePath() + "'");
+        }
+    }
+}
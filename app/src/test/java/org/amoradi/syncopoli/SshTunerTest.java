@@ -0,0 +1,36 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SshTunerTest {
+    @Test
+    public void parse_help() throws Exception {
+        String out = "Available ciphers:\naes128-ctr,aes256-ctr,chacha20-poly1305@openssh.com,3des-ctr\n";
+        assertEquals(Arrays.asList("aes128-ctr", "aes256-ctr", "chacha20-poly1305@openssh.com", "3des-ctr"),
+                     SshTuner.parseHelp(out));
+
+        out = "Available MACs: hmac-sha1-96,hmac-sha1, hmac-sha2-256\n";
+        assertEquals(Arrays.asList("hmac-sha1-96", "hmac-sha1", "hmac-sha2-256"), SshTuner.parseHelp(out));
+
+        assertTrue(SshTuner.parseHelp("dbclient: unknown option\n").isEmpty());
+    }
+
+    @Test
+    public void filter_secure() throws Exception {
+        List<String> available = Arrays.asList("3des-ctr", "aes256-ctr", "hmac-md5", "aes128-ctr", "twofish128-ctr");
+        assertEquals(Arrays.asList("aes128-ctr", "aes256-ctr"), SshTuner.filterSecure(available, SshTuner.SECURE_CIPHERS));
+        assertTrue(SshTuner.filterSecure(available, SshTuner.SECURE_MACS).isEmpty());
+    }
+
+    @Test
+    public void aead() throws Exception {
+        assertTrue(SshTuner.isAead("chacha20-poly1305@openssh.com"));
+        assertTrue(SshTuner.isAead("aes256-gcm@openssh.com"));
+        assertFalse(SshTuner.isAead("aes128-ctr"));
+    }
+}
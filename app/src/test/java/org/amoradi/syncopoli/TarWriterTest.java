@@ -0,0 +1,193 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TarWriterTest {
+    private static String field(byte[] header, int offset, int length) throws Exception {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, "UTF-8");
+    }
+
+    @Test
+    public void header() throws Exception {
+        byte[] h = TarWriter.getHeader("DCIM/a.jpg".getBytes("UTF-8"), 1234, 1500000000L, 0644, '0');
+
+        assertEquals(TarWriter.BLOCK, h.length);
+        assertEquals("DCIM/a.jpg", field(h, 0, 100));
+        assertEquals("00000002322", field(h, 124, 12));
+        assertEquals("ustar", field(h, 257, 6));
+
+        long sum = 0;
+        for (int i = 0; i < h.length; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : h[i] & 0xff;
+        }
+        assertEquals(sum, Long.parseLong(field(h, 148, 7), 8));
+
+        // too big for octal
+        h = TarWriter.getHeader("big".getBytes("UTF-8"), 10L << 30, 0, 0644, '0');
+        assertEquals(0x80, h[124] & 0xff);
+        assertEquals(2, h[131]);
+        assertEquals(0x80, h[132] & 0xff);
+    }
+
+    @Test
+    public void long_names() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            sb.append("directory").append(i).append('/');
+        }
+        String name = sb + "file.jpg";
+
+        // prefix and name
+        int split = TarWriter.getSplit(name.getBytes("UTF-8"));
+        assertTrue(split > 0);
+        assertEquals('/', name.charAt(split));
+
+        // a single name longer than 100 can't be split
+        assertEquals(-2, TarWriter.getSplit(new String(new char[120]).replace('\0', 'x').getBytes("UTF-8")));
+        assertEquals(-1, TarWriter.getSplit("short".getBytes("UTF-8")));
+
+        String record = TarWriter.getPaxRecord("path", "abcdefg");
+        assertEquals(record.length(), Integer.parseInt(record.substring(0, record.indexOf(' '))));
+        record = TarWriter.getPaxRecord("path", new String(new char[93]).replace('\0', 'x'));
+        assertEquals(record.length(), Integer.parseInt(record.substring(0, record.indexOf(' '))));
+    }
+
+    private static File write(File dir, String name, String content, long mtime) throws Exception {
+        File f = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        assertTrue(f.setLastModified(mtime));
+        return f;
+    }
+
+    private static String read(File f) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(f);
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    /* what tar on this machine makes of it, where there is one */
+    @Test
+    public void extracts() throws Exception {
+        if (!new File("/bin/sh").exists()) {
+            return;
+        }
+
+        File dir = File.createTempFile("tar", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File out = new File(dir, "out");
+        assertTrue(out.mkdir());
+
+        try {
+            String longName = new String(new char[130]).replace('\0', 'n') + ".txt";
+            File a = write(dir, "a.txt", "hello", 1500000000000L);
+            File b = write(dir, "b.txt", "grown", 1500000000000L);
+            File c = write(dir, "c.txt", "", 1500000000000L);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            TarWriter tar = new TarWriter(bytes);
+            tar.putFile("x/y/a.txt", a, a.length(), a.lastModified(), false);
+            tar.putFile("x/" + longName, a, a.length(), a.lastModified(), false);
+            // listed shorter than it is now
+            tar.putFile("b.txt", b, 3, b.lastModified(), false);
+            // and longer
+            tar.putFile("c.txt", c, 4, c.lastModified(), false);
+            tar.finish();
+
+            assertEquals(0, bytes.size() % TarWriter.BLOCK);
+            assertEquals(bytes.size(), tar.getWritten());
+
+            File archive = new File(dir, "a.tar");
+            FileOutputStream f = new FileOutputStream(archive);
+            f.write(bytes.toByteArray());
+            f.close();
+
+            Process p = new ProcessBuilder(Arrays.asList("sh", "-c", "command -v tar >/dev/null || exit 99; tar -xf ../a.tar"))
+                    .directory(out).redirectErrorStream(true).start();
+            p.getOutputStream().close();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            InputStream in = p.getInputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                output.write(buf, 0, n);
+            }
+            String errors = output.toString("UTF-8");
+            int ret = p.waitFor();
+            if (ret == 99) {
+                return;
+            }
+            assertEquals(errors, 0, ret);
+
+            assertEquals("hello", read(new File(out, "x/y/a.txt")));
+            assertEquals(1500000000000L, new File(out, "x/y/a.txt").lastModified());
+            assertEquals("hello", read(new File(out, "x/" + longName)));
+            assertEquals("gro", read(new File(out, "b.txt")));
+            assertEquals(4, new File(out, "c.txt").length());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void split_by_size() {
+        List<Manifest.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(new Manifest.Entry("/sdcard/f" + i, String.format("f%03d", i), i * 1000L, 0));
+        }
+
+        List<List<Manifest.Entry>> channels = Seeder.split(entries, 4);
+        assertEquals(4, channels.size());
+
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        int count = 0;
+        for (List<Manifest.Entry> c : channels) {
+            long load = 0;
+            for (int i = 0; i < c.size(); i++) {
+                load += c.get(i).size;
+                if (i > 0) {
+                    assertTrue(c.get(i - 1).rel.compareTo(c.get(i).rel) < 0);
+                }
+            }
+            min = Math.min(min, load);
+            max = Math.max(max, load);
+            count += c.size();
+        }
+
+        assertEquals(100, count);
+        assertTrue(max - min <= 99 * 1000L);
+    }
+}
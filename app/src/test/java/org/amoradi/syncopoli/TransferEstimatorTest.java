@@ -0,0 +1,99 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransferEstimatorTest {
+    private static final long MB = 1024 * 1024;
+
+    private static RunHistory.Run run(long start, int exitCode, long transferred, long wire, long duration) {
+        RunHistory.Run r = new RunHistory.Run("p", start, false);
+        r.exitCode = exitCode;
+        r.transferredSize = transferred;
+        r.bytesSent = wire;
+        r.duration = duration;
+        return r;
+    }
+
+    @Test
+    public void recent_size() {
+        long now = 10 * TransferEstimator.RECENT_TTL;
+        List<RunHistory.Run> runs = new ArrayList<>();
+        assertEquals(-1, TransferEstimator.getRecentSize(runs, now));
+
+        runs.add(run(now - 1000, 0, 5 * MB, 0, 0));
+        runs.add(run(now - 2000, 0, 8 * MB, 0, 0));
+        // failed, and too old
+        runs.add(run(now - 3000, 23, 50 * MB, 0, 0));
+        runs.add(run(now - TransferEstimator.RECENT_TTL - 1, 0, 90 * MB, 0, 0));
+        assertEquals(8 * MB, TransferEstimator.getRecentSize(runs, now));
+
+        // an unchanged server counts, with nothing to send
+        runs.clear();
+        runs.add(run(now - 1000, 0, 0, 0, 0));
+        assertEquals(0, TransferEstimator.getRecentSize(runs, now));
+    }
+
+    @Test
+    public void wire_bytes() {
+        List<RunHistory.Run> runs = new ArrayList<>();
+        assertEquals(10 * MB, TransferEstimator.getWireBytes(runs, 10 * MB));
+
+        // compression halved what was sent
+        runs.add(run(0, 0, 8 * MB, 4 * MB, 0));
+        runs.add(run(0, 0, 2 * MB, MB, 0));
+        // too small to tell, and failed
+        runs.add(run(0, 0, 1000, 900, 0));
+        runs.add(run(0, 12, 10 * MB, 10, 0));
+        assertEquals(5 * MB, TransferEstimator.getWireBytes(runs, 10 * MB));
+    }
+
+    @Test
+    public void throughput() {
+        List<RunHistory.Run> runs = new ArrayList<>();
+        assertEquals(-1, TransferEstimator.getThroughput(runs));
+
+        runs.add(run(0, 0, 0, 10 * MB, 10000));
+        runs.add(run(0, 0, 0, 30 * MB, 10000));
+        runs.add(run(0, 0, 0, 1000, 1));
+        assertEquals(2 * MB, TransferEstimator.getThroughput(runs));
+    }
+
+    @Test
+    public void cached_plans() {
+        BackupItem b = new BackupItem();
+        b.name = "estimator";
+        b.destination = "/backup";
+
+        TransferEstimator.Plan p = new TransferEstimator.Plan();
+        p.created = System.currentTimeMillis();
+        TransferEstimator.putPlan(b, p);
+        assertSame(p, TransferEstimator.getCachedPlan(b));
+
+        // a changed profile needs a plan of its own
+        b.rsync_options = "--delete";
+        assertNull(TransferEstimator.getCachedPlan(b));
+        b.rsync_options = null;
+        assertSame(p, TransferEstimator.getCachedPlan(b));
+
+        p.created -= TransferEstimator.PLAN_TTL;
+        assertNull(TransferEstimator.getCachedPlan(b));
+
+        p.created = System.currentTimeMillis();
+        TransferEstimator.invalidate(b);
+        assertNull(TransferEstimator.getCachedPlan(b));
+    }
+
+    @Test
+    public void formatting() {
+        assertEquals("512 B", TransferEstimator.formatSize(512));
+        assertEquals("1.5 MB", TransferEstimator.formatSize(3 * MB / 2));
+        assertEquals("42 s", TransferEstimator.formatDuration(42000));
+        assertEquals("2 h 05 min", TransferEstimator.formatDuration((2 * 3600 + 5 * 60) * 1000L));
+        assertTrue(TransferEstimator.getUsableSpace(System.getProperty("java.io.tmpdir") + "/not/there/yet") > 0);
+    }
+}
@@ -0,0 +1,92 @@
+package org.amoradi.syncopoli;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TransferPolicyTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void local_paths() throws Exception {
+        BackupItem b = new BackupItem();
+        b.direction = BackupItem.Direction.OUTGOING;
+        b.sources = new String[] {"/sdcard/DCIM", "/sdcard/Music/"};
+        b.destination = "backup";
+        assertEquals(Arrays.asList("/sdcard/DCIM", "/sdcard/Music/"), TransferPolicy.getLocalPaths(b));
+
+        // where incoming sources land
+        b.direction = BackupItem.Direction.INCOMING;
+        b.sources = new String[] {"/srv/music", "/srv/docs/"};
+        b.destination = "/sdcard/Backup";
+        assertEquals(Arrays.asList("/sdcard/Backup/music", "/sdcard/Backup/"), TransferPolicy.getLocalPaths(b));
+    }
+
+    @Test
+    public void choose_unknown_link() throws Exception {
+        assertEquals(TransferPolicy.DEFAULT, TransferPolicy.choose(-1, 200 * MB));
+    }
+
+    @Test
+    public void choose_fast_link() throws Exception {
+        // gigabit LAN against a phone hashing at 150 MB/s
+        assertEquals(TransferPolicy.WHOLE_FILE, TransferPolicy.choose(110 * MB, 150 * MB));
+    }
+
+    @Test
+    public void choose_slow_links() throws Exception {
+        assertEquals(TransferPolicy.DELTA, TransferPolicy.choose(5 * MB, 150 * MB));
+        assertEquals(TransferPolicy.DELTA, TransferPolicy.choose(MB / 2, 150 * MB));
+    }
+
+    @Test
+    public void user_options() throws Exception {
+        assertTrue(TransferPolicy.setsWholeFile(Arrays.asList("-a", "-W")));
+        assertTrue(TransferPolicy.setsWholeFile(Arrays.asList("-avW")));
+        assertTrue(TransferPolicy.setsWholeFile(Arrays.asList("--no-whole-file")));
+        assertFalse(TransferPolicy.setsWholeFile(Arrays.asList("-av", "--delete")));
+
+        assertTrue(TransferPolicy.setsCompress(Arrays.asList("-avz")));
+        assertTrue(TransferPolicy.setsCompress(Arrays.asList("--compress-level=3")));
+        assertTrue(TransferPolicy.setsCompress(Arrays.asList("--no-compress")));
+        assertFalse(TransferPolicy.setsCompress(Arrays.asList("-av", "--exclude=*.z")));
+        // z is the argument of -e here, not an option
+        assertFalse(TransferPolicy.setsCompress(Arrays.asList("-ez")));
+
+        assertTrue(TransferPolicy.setsSkipCompress(Arrays.asList("--skip-compress=jpg/zip")));
+        assertFalse(TransferPolicy.setsSkipCompress(Arrays.asList("-avz")));
+    }
+
+    @Test
+    public void probe_once_a_day() throws Exception {
+        long now = 100 * TransferPolicy.PROBE_INTERVAL;
+        assertTrue(TransferPolicy.canProbe(0, now));
+        assertFalse(TransferPolicy.canProbe(now - 1000, now));
+        assertTrue(TransferPolicy.canProbe(now - TransferPolicy.PROBE_INTERVAL, now));
+        // the clock went back
+        assertTrue(TransferPolicy.canProbe(now + 1000, now));
+    }
+
+    @Test
+    public void link_speed_leaves_out_file_list() throws Exception {
+        RsyncStats stats = new RsyncStats();
+        stats.feed("File list generation time: 1.500 seconds");
+        stats.feed("File list transfer time: 0.500 seconds");
+
+        RunHistory.Run r = new RunHistory.Run("a", 0, false);
+        r.setStats(stats);
+        r.duration = 10000;
+        assertEquals(8000, r.getTransferTime());
+
+        // sums of shards that overlapped
+        r.fileListTime = 20000;
+        assertEquals(10000, r.getTransferTime());
+    }
+
+    @Test
+    public void checksum_rate() throws Exception {
+        assertTrue(TransferPolicy.measureChecksumRate() > MB);
+    }
+}